@@ -159,6 +159,29 @@ public final class BytesUtils {
         return (null);
     }
 
+    /**
+     * Compute and return the checksum of several ByteBuffer as if their payload were a single one
+     * using the {@value #DEFAULT_CHECKSUM_ALGO} algorithm
+     * The checksum is made for each ByteBuffer payload from position to limit, positions are left untouched
+     * @param data The ByteBuffers to compute, in order
+     * @return The checksum of the ByteBuffers payload Or Null if unable to get the checksum algorithm
+     */
+    public static byte[] getCheckSum(final List<ByteBuffer> data) {
+        Objects.requireNonNull(data);
+        final MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance(BytesUtils.DEFAULT_CHECKSUM_ALGO);
+            for (final ByteBuffer bb : data)
+                md.update(bb.duplicate());
+            return (md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            final Logger logger = Logger.getLogger(BytesUtils.class);
+            logger.warn("Unable to get " + BytesUtils.DEFAULT_CHECKSUM_ALGO + " checksum algorithm! Exception:" + e.getMessage());
+        }
+        return (null);
+    }
+
     /**
      * Merge two byte array into a new byte array
      * @param begin The byte array that will copied at the begin
@@ -5,6 +5,7 @@ import com.google.protobuf.Timestamp;
 
 import java.time.Instant;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Utils class with static method to simplify the use of timestamp, instant function and object
@@ -13,6 +14,7 @@ import java.util.Objects;
  * @see Instant
  */
 public final class TimestampUtils {
+    private static final long NANOS_PER_SECOND = 1000000000L;
 
     /**
      * Class is not instantiable and inheritable
@@ -59,6 +61,38 @@ public final class TimestampUtils {
         return (TimestampUtils.toTimestamp(Instant.now().plusSeconds(seconds)));
     }
 
+    /**
+     * Convert a Timestamp into a number of nanoseconds since the epoch
+     * @param timestamp The Timestamp to convert
+     * @return The number of nanoseconds since the epoch
+     * @throws ArithmeticException If the Timestamp can't be represented in nanoseconds on a long
+     */
+    public static long toEpochNanos(final Timestamp timestamp) {
+        Objects.requireNonNull(timestamp);
+        return (Math.addExact(Math.multiplyExact(timestamp.getSeconds(), TimestampUtils.NANOS_PER_SECOND), timestamp.getNanos()));
+    }
+
+    /**
+     * Create a new Timestamp from a number of nanoseconds since the epoch
+     * @param epochNanos The number of nanoseconds since the epoch
+     * @return The new Timestamp
+     */
+    public static Timestamp fromEpochNanos(final long epochNanos) {
+        return (Timestamp.newBuilder()
+                .setSeconds(Math.floorDiv(epochNanos, TimestampUtils.NANOS_PER_SECOND))
+                .setNanos((int) Math.floorMod(epochNanos, TimestampUtils.NANOS_PER_SECOND))
+                .build());
+    }
+
+    /**
+     * Get the number of nanoseconds since the epoch of now
+     * Read from the system clock without allocating any object, with the same millisecond precision as Instant.now()
+     * @return The number of nanoseconds since the epoch
+     */
+    public static long nowEpochNanos() {
+        return (TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()));
+    }
+
     /**
      * Check if a Timestamp is strictly past another in time
      * @param after The base Timestamp
@@ -46,9 +46,20 @@ public final class UUIDUtils {
      */
     public static byte[] toBytes(final UUID uuid) {
         Objects.requireNonNull(uuid);
-        ByteBuffer bb = ByteBuffer.wrap(new byte[UUIDUtils.UUID_BYTE_SIZE]);
-        bb.putLong(uuid.getMostSignificantBits());
-        bb.putLong(uuid.getLeastSignificantBits());
-        return (bb.array());
+        return (UUIDUtils.put(ByteBuffer.wrap(new byte[UUIDUtils.UUID_BYTE_SIZE]), uuid).array());
+    }
+
+    /**
+     * Write the byte representation of an UUID at the buffer position, without any intermediate array
+     * @param buffer The buffer to write to, its position is moved past the UUID
+     * @param uuid The UUID to write
+     * @return the buffer
+     */
+    public static ByteBuffer put(final ByteBuffer buffer, final UUID uuid) {
+        Objects.requireNonNull(buffer);
+        Objects.requireNonNull(uuid);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        return (buffer);
     }
 }
@@ -0,0 +1,338 @@
+package fr.diguiet.grpc.fileserver;
+
+import com.google.protobuf.Timestamp;
+import fr.diguiet.grpc.fileserver.exception.RunTimeFileServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous view of a file server, every call runs on a bounded pool of I/O threads and returns a future
+ * The writes and the reads have their own pools, so the small reads don't wait behind the large writes in progress.
+ * A call is refused when the queue of its pool is full, its future then fails with a RejectedExecutionException
+ * so the callers answer at once instead of piling up
+ * @see IFileServer
+ */
+public class AsyncFileServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncFileServer.class);
+    private static final int TERMINATION_SECONDS_TIMEOUT = 10;
+    private final IFileServer fileServer;
+    private final ExecutorService readExecutor;
+    private final ExecutorService writeExecutor;
+
+    /**
+     * Create a new instance from a builder
+     * @param builder the builder
+     */
+    private AsyncFileServer(final AsyncFileServer.Builder builder) {
+        this.fileServer = builder.fileServer;
+        this.readExecutor = AsyncFileServer.newExecutor("file-server-read", builder.nbReadThreads, builder.queueCapacity);
+        this.writeExecutor = AsyncFileServer.newExecutor("file-server-write", builder.nbWriteThreads, builder.queueCapacity);
+    }
+
+    /**
+     * Create a new Builder instance
+     * @param fileServer the file server, opened and closed by its owner
+     * @return a new builder
+     */
+    public static Builder newInstance(final IFileServer fileServer) {
+        return (AsyncFileServer.Builder.newInstance(fileServer));
+    }
+
+    /**
+     * The asynchronous file server builder class
+     */
+    public static class Builder {
+        private final IFileServer fileServer;
+        private int nbReadThreads = Runtime.getRuntime().availableProcessors();
+        private int nbWriteThreads = Runtime.getRuntime().availableProcessors();
+        private int queueCapacity = 1024;
+
+        /**
+         * Create a new instance of the builder
+         * @param fileServer the file server
+         * @return a new builder
+         */
+        public static Builder newInstance(final IFileServer fileServer) {
+            return (new Builder(fileServer));
+        }
+
+        /**
+         * Instantiate a new builder
+         * @param fileServer the file server
+         */
+        private Builder(final IFileServer fileServer) {
+            Objects.requireNonNull(fileServer);
+            this.fileServer = fileServer;
+        }
+
+        /**
+         * Build a new asynchronous file server, its threads are started as the calls come
+         * @return a new asynchronous file server
+         */
+        public AsyncFileServer build() {
+            return (new AsyncFileServer(this));
+        }
+
+        /**
+         * Set the number of threads running the reads
+         * @param nbReadThreads the number of read threads
+         * @return The builder
+         * @throws IllegalArgumentException if the number of threads is below 1
+         */
+        public Builder setNbReadThreads(final int nbReadThreads) {
+            if (nbReadThreads < 1)
+                throw new IllegalArgumentException("Number of read threads must be greater than 0");
+            this.nbReadThreads = nbReadThreads;
+            return (this);
+        }
+
+        /**
+         * Set the number of threads running the writes, more threads than the file server has writers only wait
+         * @param nbWriteThreads the number of write threads
+         * @return The builder
+         * @throws IllegalArgumentException if the number of threads is below 1
+         */
+        public Builder setNbWriteThreads(final int nbWriteThreads) {
+            if (nbWriteThreads < 1)
+                throw new IllegalArgumentException("Number of write threads must be greater than 0");
+            this.nbWriteThreads = nbWriteThreads;
+            return (this);
+        }
+
+        /**
+         * Set the number of calls that may wait for a thread in each pool
+         * @param queueCapacity the queue capacity
+         * @return The builder
+         * @throws IllegalArgumentException if the capacity is below 1
+         */
+        public Builder setQueueCapacity(final int queueCapacity) {
+            if (queueCapacity < 1)
+                throw new IllegalArgumentException("Queue capacity must be greater than 0");
+            this.queueCapacity = queueCapacity;
+            return (this);
+        }
+    }
+
+    /**
+     * Create a pool of daemon threads with a bounded queue
+     * @param name the prefix of the thread names
+     * @param nbThreads the number of threads
+     * @param queueCapacity the queue capacity
+     * @return a new executor refusing the tasks once its queue is full
+     */
+    private static ExecutorService newExecutor(final String name, final int nbThreads, final int queueCapacity) {
+        final AtomicInteger threadIndex = new AtomicInteger();
+        return (new ThreadPoolExecutor(nbThreads, nbThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return (thread);
+        }, new ThreadPoolExecutor.AbortPolicy()));
+    }
+
+    /**
+     * Run a call on an executor
+     * @param executor the executor
+     * @param call the call
+     * @param <T> the call result type
+     * @return the future of the call result, failed at once if the executor refused the call
+     */
+    private static <T> CompletableFuture<T> submit(final ExecutorService executor, final Supplier<T> call) {
+        try {
+            return (CompletableFuture.supplyAsync(call, executor));
+        } catch (RejectedExecutionException e) {
+            AsyncFileServer.logger.warn("File server call refused: " + e.getMessage());
+            final CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return (future);
+        }
+    }
+
+    /**
+     * Get the exception thrown by a call from the exception a future failed with
+     * @param throwable the exception of the future
+     * @return the exception thrown by the call
+     */
+    public static Throwable unwrap(final Throwable throwable) {
+        if ((throwable instanceof CompletionException || throwable instanceof ExecutionException) && throwable.getCause() != null)
+            return (throwable.getCause());
+        return (throwable);
+    }
+
+    /**
+     * @see IFileServer#upload(UUID, Timestamp, byte[])
+     * @param fileId The file id
+     * @param expirationDate The expiration date
+     * @param data The data to save
+     * @return the future completed once the data is saved
+     */
+    public CompletableFuture<Void> upload(final UUID fileId, final Timestamp expirationDate, final byte[] data) {
+        return (AsyncFileServer.submit(this.writeExecutor, () -> {
+            this.fileServer.upload(fileId, expirationDate, data);
+            return (null);
+        }));
+    }
+
+    /**
+     * Upload data through a writer of the file server, so the buffers aren't gathered into an array first
+     * and a file server able to do so copies them straight to their final location
+     * The buffers must not be modified until the returned future is completed
+     * @see IFileServer#openWriter(UUID, Timestamp, long)
+     * @param fileId The file id
+     * @param expirationDate The expiration date
+     * @param data The buffers of the data to save, one after the other
+     * @return the future completed once the data is saved
+     */
+    public CompletableFuture<Void> upload(final UUID fileId, final Timestamp expirationDate, final List<ByteBuffer> data) {
+        return (AsyncFileServer.submit(this.writeExecutor, () -> {
+            long size = 0;
+            for (final ByteBuffer buffer : data)
+                size += buffer.remaining();
+            try (final BlobWriter writer = this.fileServer.openWriter(fileId, expirationDate, size)) {
+                for (final ByteBuffer buffer : data)
+                    writer.write(buffer.duplicate());
+            } catch (IOException e) {
+                throw new RunTimeFileServerException("Unable to write file " + fileId, e);
+            }
+            return (null);
+        }));
+    }
+
+    /**
+     * @see IFileServer#download(UUID)
+     * @param fileId the file id
+     * @return the future of the file data, completed with Null if the file wasn't found or is expired
+     */
+    public CompletableFuture<byte[]> download(final UUID fileId) {
+        return (AsyncFileServer.submit(this.readExecutor, () -> this.fileServer.download(fileId)));
+    }
+
+    /**
+     * @see IFileServer#read(UUID, long, int)
+     * @param fileId the file id
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read
+     * @return the future of the range, completed with Null if the file wasn't found or is expired
+     */
+    public CompletableFuture<byte[]> read(final UUID fileId, final long offset, final int length) {
+        return (AsyncFileServer.submit(this.readExecutor, () -> this.fileServer.read(fileId, offset, length)));
+    }
+
+    /**
+     * @see IFileServer#lease(UUID, long, int)
+     * @param fileId the file id
+     * @param offset the offset of the first byte to lease
+     * @param length the number of bytes to lease
+     * @return the future of the lease, to be closed by the caller, completed with Null if the file wasn't found or is expired
+     */
+    public CompletableFuture<BlobLease> lease(final UUID fileId, final long offset, final int length) {
+        return (AsyncFileServer.submit(this.readExecutor, () -> this.fileServer.lease(fileId, offset, length)));
+    }
+
+    /**
+     * @see IFileServer#getFileMetaData(UUID)
+     * @param fileId the file id
+     * @return the future of the file metadata, completed with Null if the file wasn't found or is expired
+     */
+    public CompletableFuture<DatabaseFileMetadata> getFileMetaData(final UUID fileId) {
+        return (AsyncFileServer.submit(this.readExecutor, () -> this.fileServer.getFileMetaData(fileId)));
+    }
+
+    /**
+     * @see IFileServer#getFile(UUID)
+     * @param fileId the file id
+     * @return the future of the file, completed with Null if the file wasn't found or is expired
+     */
+    public CompletableFuture<DatabaseFile> getFile(final UUID fileId) {
+        return (AsyncFileServer.submit(this.readExecutor, () -> this.fileServer.getFile(fileId)));
+    }
+
+    /**
+     * @see IFileServer#delete(UUID)
+     * @param fileId the file id
+     * @return the future completed once the file is deleted
+     */
+    public CompletableFuture<Void> delete(final UUID fileId) {
+        return (AsyncFileServer.submit(this.writeExecutor, () -> {
+            this.fileServer.delete(fileId);
+            return (null);
+        }));
+    }
+
+    /**
+     * The reservations are only accounted in memory, so they run on the read pool
+     * @see IFileServer#reserve(UUID, int, Timestamp)
+     * @param fileId the file id
+     * @param nbByte the number of bytes to reserve
+     * @param expirationDate the date after which the reservation is released if not used
+     * @return the future completed with False if there isn't enough space available
+     */
+    public CompletableFuture<Boolean> reserve(final UUID fileId, final int nbByte, final Timestamp expirationDate) {
+        return (AsyncFileServer.submit(this.readExecutor, () -> this.fileServer.reserve(fileId, nbByte, expirationDate)));
+    }
+
+    /**
+     * @see IFileServer#releaseReservation(UUID)
+     * @param fileId the file id
+     * @return the future completed once the reservation is released
+     */
+    public CompletableFuture<Void> releaseReservation(final UUID fileId) {
+        return (AsyncFileServer.submit(this.readExecutor, () -> {
+            this.fileServer.releaseReservation(fileId);
+            return (null);
+        }));
+    }
+
+    /**
+     * Get the file server the calls run on
+     * @return the file server
+     */
+    public IFileServer getFileServer() {
+        return (this.fileServer);
+    }
+
+    /**
+     * Stop the threads once the calls already submitted are done, the file server isn't closed
+     */
+    @Override
+    public void close() {
+        this.readExecutor.shutdown();
+        this.writeExecutor.shutdown();
+        try {
+            if (!this.readExecutor.awaitTermination(AsyncFileServer.TERMINATION_SECONDS_TIMEOUT, TimeUnit.SECONDS)
+                    || !this.writeExecutor.awaitTermination(AsyncFileServer.TERMINATION_SECONDS_TIMEOUT, TimeUnit.SECONDS))
+                AsyncFileServer.logger.warn("File server calls still running after " + AsyncFileServer.TERMINATION_SECONDS_TIMEOUT + " seconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "AsyncFileServer{" +
+                "fileServer=" + this.fileServer +
+                ", readExecutor=" + this.readExecutor +
+                ", writeExecutor=" + this.writeExecutor +
+                '}';
+    }
+}
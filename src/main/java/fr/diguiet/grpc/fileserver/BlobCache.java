@@ -0,0 +1,667 @@
+package fr.diguiet.grpc.fileserver;
+
+import fr.diguiet.grpc.common.utils.TimestampUtils;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Byte bounded cache of whole files whose data is kept in direct memory slots
+ * The eviction policy is a W-TinyLFU: a new file enters a small LRU window, the file evicted from the window
+ * is only admitted to the main space if it has been accessed more often than the files it would evict,
+ * the access frequencies being estimated by a count min sketch that is halved from time to time so it forgets the old accesses.
+ * The main space is a segmented LRU whose protected segment keeps the files accessed again since their admission.
+ * The slots of a file evicted while leased are only freed when the lease is closed
+ * @see SlabAllocator
+ */
+public class BlobCache {
+    private static final double PROTECTED_RATIO = 0.8;
+    private final SlabAllocator allocator;
+    private final FrequencySketch sketch;
+    private final long maxByteSize;
+    private final long windowMaxByteSize;
+    private final long protectedMaxByteSize;
+    private final Map<UUID, Entry> entries = new HashMap<>();
+    // Access ordered from the least to the most recently used
+    private final LinkedHashMap<UUID, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<UUID, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<UUID, Entry> protect = new LinkedHashMap<>();
+    private long windowBytes = 0;
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+    // Incremented at each invalidation, a file loaded before an invalidation may be stale and isn't cached
+    private long epoch = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long rejectionCount = 0;
+
+    /**
+     * The segment of the policy an entry is in
+     */
+    private enum Segment {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    /**
+     * A cached file
+     */
+    private static final class Entry {
+        private final DatabaseFileMetadata metadata;
+        private final long expirationNanos;
+        private final long weight;
+        private final List<SlabAllocator.Slot> slots = new ArrayList<>();
+        private Segment segment = Segment.WINDOW;
+        private int nbLeases = 0;
+        private boolean isEvicted = false;
+
+        /**
+         * Create a new entry instance
+         * @param metadata the file metadata
+         * @param weight the number of bytes the slots of the file data take
+         */
+        private Entry(final DatabaseFileMetadata metadata, final long weight) {
+            this.metadata = metadata;
+            this.expirationNanos = TimestampUtils.toEpochNanos(metadata.getExpirationDate());
+            this.weight = weight;
+        }
+
+        /**
+         * Get the slices of the slots holding a range of the file data
+         * @param offset the offset of the range in the file
+         * @param length the length of the range
+         * @param slabByteSize the byte size of a slot but the last
+         * @return the slices covering the whole range, sorted by offset
+         */
+        private List<ByteBuffer> getSlices(final long offset, final int length, final int slabByteSize) {
+            final List<ByteBuffer> slices = new ArrayList<>();
+            long position = offset;
+            final long end = offset + length;
+            while (position < end) {
+                final int index = (int) (position / slabByteSize);
+                final int sliceStart = (int) (position - (long) index * slabByteSize);
+                final int sliceLength = (int) Math.min(end - position, slabByteSize - sliceStart);
+                final ByteBuffer bb = this.slots.get(index).getBuffer();
+                bb.limit(sliceStart + sliceLength).position(sliceStart);
+                slices.add(bb.slice());
+                position += sliceLength;
+            }
+            return (slices);
+        }
+    }
+
+    /**
+     * Count min sketch of counters saturating at 15 estimating the access frequency of the files
+     */
+    private static final class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private final byte[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int nbSamples = 0;
+
+        /**
+         * Create a new sketch
+         * @param nbExpectedEntries the number of entries expected in the cache
+         */
+        private FrequencySketch(final int nbExpectedEntries) {
+            final int nbCounters = Math.max(64, Math.min(1 << 24, nbExpectedEntries * 4));
+            final int tableLength = Integer.highestOneBit(nbCounters - 1) << 1;
+            this.table = new byte[tableLength];
+            this.mask = tableLength - 1;
+            this.sampleSize = tableLength * 10;
+        }
+
+        /**
+         * Get the index of a counter of a file
+         * @param fileId the file id
+         * @param row the counter row
+         * @return the counter index
+         */
+        private int indexOf(final UUID fileId, final int row) {
+            long hash = (fileId.getMostSignificantBits() ^ Long.rotateLeft(fileId.getLeastSignificantBits(), 17)) * FrequencySketch.SEEDS[row];
+            hash ^= hash >>> 29;
+            return ((int) hash & this.mask);
+        }
+
+        /**
+         * Record an access to a file, every counter is halved once the sample is complete
+         * @param fileId the file id
+         */
+        private void increment(final UUID fileId) {
+            for (int row = 0; row < FrequencySketch.SEEDS.length; ++row) {
+                final int index = this.indexOf(fileId, row);
+                if (this.table[index] < FrequencySketch.MAX_COUNT)
+                    ++this.table[index];
+            }
+            if (++this.nbSamples >= this.sampleSize) {
+                for (int i = 0; i < this.table.length; ++i)
+                    this.table[i] >>= 1;
+                this.nbSamples /= 2;
+            }
+        }
+
+        /**
+         * Estimate the access frequency of a file
+         * @param fileId the file id
+         * @return the minimum of the counters of the file
+         */
+        private int frequency(final UUID fileId) {
+            int frequency = FrequencySketch.MAX_COUNT;
+            for (int row = 0; row < FrequencySketch.SEEDS.length; ++row)
+                frequency = Math.min(frequency, this.table[this.indexOf(fileId, row)]);
+            return (frequency);
+        }
+    }
+
+    /**
+     * Statistics of a cache, taken at once
+     */
+    @Immutable
+    public static final class Stats {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long rejectionCount;
+        private final long usedBytes;
+        private final int nbEntries;
+
+        /**
+         * Create a new stats instance
+         * @param cache the cache, its lock held
+         */
+        private Stats(final BlobCache cache) {
+            this.hitCount = cache.hitCount;
+            this.missCount = cache.missCount;
+            this.evictionCount = cache.evictionCount;
+            this.rejectionCount = cache.rejectionCount;
+            this.usedBytes = cache.windowBytes + cache.probationBytes + cache.protectedBytes;
+            this.nbEntries = cache.entries.size();
+        }
+
+        /**
+         * Get the number of lookups that found their file
+         * @return the hit count
+         */
+        public long getHitCount() {
+            return (this.hitCount);
+        }
+
+        /**
+         * Get the number of lookups that didn't find their file
+         * @return the miss count
+         */
+        public long getMissCount() {
+            return (this.missCount);
+        }
+
+        /**
+         * Get the ratio of lookups that found their file
+         * @return the hit ratio, 1 if there wasn't any lookup
+         */
+        public double getHitRatio() {
+            final long nbLookups = this.hitCount + this.missCount;
+            return ((nbLookups == 0) ? 1 : (double) this.hitCount / nbLookups);
+        }
+
+        /**
+         * Get the number of files evicted to make room for others
+         * @return the eviction count
+         */
+        public long getEvictionCount() {
+            return (this.evictionCount);
+        }
+
+        /**
+         * Get the number of files not admitted because the files they would evict are accessed more often
+         * @return the rejection count
+         */
+        public long getRejectionCount() {
+            return (this.rejectionCount);
+        }
+
+        /**
+         * Get the number of bytes the slots of the cached files take
+         * @return the used bytes
+         */
+        public long getUsedBytes() {
+            return (this.usedBytes);
+        }
+
+        /**
+         * Get the number of cached files
+         * @return the number of entries
+         */
+        public int getNbEntries() {
+            return (this.nbEntries);
+        }
+
+        /**
+         * String representation of the instance
+         * @return a string representation of the instance
+         */
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "hitCount=" + this.hitCount +
+                    ", missCount=" + this.missCount +
+                    ", hitRatio=" + this.getHitRatio() +
+                    ", evictionCount=" + this.evictionCount +
+                    ", rejectionCount=" + this.rejectionCount +
+                    ", usedBytes=" + this.usedBytes +
+                    ", nbEntries=" + this.nbEntries +
+                    '}';
+        }
+    }
+
+    /**
+     * Create a new cache, the direct memory is allocated as the files are cached
+     * @param maxByteSize the maximum number of bytes the cached data may take
+     * @param slabByteSize the byte size of a slab of the allocator
+     * @param windowRatio the share of the cache given to the new files
+     * @return a new cache
+     * @throws IllegalArgumentException if the sizes are invalid or the ratio isn't within ]0, 1[
+     */
+    public static BlobCache newInstance(final long maxByteSize, final int slabByteSize, final double windowRatio) {
+        if (!(windowRatio > 0 && windowRatio < 1))
+            throw new IllegalArgumentException("The window ratio must be within ]0, 1[");
+        return (new BlobCache(SlabAllocator.newInstance(maxByteSize, slabByteSize), windowRatio));
+    }
+
+    /**
+     * Create a new cache instance
+     * @param allocator the allocator of the data slots
+     * @param windowRatio the share of the cache given to the new files
+     */
+    private BlobCache(final SlabAllocator allocator, final double windowRatio) {
+        this.allocator = allocator;
+        this.maxByteSize = allocator.getCapacityBytes();
+        this.windowMaxByteSize = (long) (this.maxByteSize * windowRatio);
+        this.protectedMaxByteSize = (long) ((this.maxByteSize - this.windowMaxByteSize) * BlobCache.PROTECTED_RATIO);
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, this.maxByteSize / allocator.getSlabByteSize() * 16));
+    }
+
+    /**
+     * Get the current epoch, to be read before loading a file that will be cached
+     * @return the epoch
+     */
+    public synchronized long getEpoch() {
+        return (this.epoch);
+    }
+
+    /**
+     * Cache a file, the file is only cached if it hasn't been invalidated since the epoch and is admitted by the policy
+     * @param metadata the file metadata
+     * @param data the whole file data
+     * @param epoch the epoch read before the file has been loaded
+     * @return if the file has been cached
+     */
+    public synchronized boolean put(final DatabaseFileMetadata metadata, final byte[] data, final long epoch) {
+        Objects.requireNonNull(metadata);
+        Objects.requireNonNull(data);
+        final UUID fileId = metadata.getId();
+        if (epoch != this.epoch || data.length != metadata.getDataLength())
+            return (false);
+        final long weight = this.allocator.getFootprint(data.length);
+        if (weight > this.maxByteSize)
+            return (false);
+        this.remove(fileId);
+        this.sketch.increment(fileId);
+        final Entry entry = new Entry(metadata, weight);
+        this.entries.put(fileId, entry);
+        this.window.put(fileId, entry);
+        this.windowBytes += weight;
+        this.evictFromWindow();
+        if (entry.isEvicted)
+            return (false);
+        final int slabByteSize = this.allocator.getSlabByteSize();
+        for (int position = 0; position < data.length; position += slabByteSize) {
+            final int length = Math.min(slabByteSize, data.length - position);
+            SlabAllocator.Slot slot;
+            // The slabs may be held by other size classes even when the weights fit, evict until a slot is free
+            while ((slot = this.allocator.allocate(length)) == null) {
+                if (!this.evictAny(fileId)) {
+                    this.remove(fileId);
+                    ++this.rejectionCount;
+                    return (false);
+                }
+            }
+            slot.getBuffer().put(data, position, length);
+            entry.slots.add(slot);
+        }
+        return (true);
+    }
+
+    /**
+     * Move the least recently used files of the window to the main space while the window is too large
+     * A file is admitted to the main space if it is more frequent than every file it would evict, otherwise it's evicted
+     */
+    private void evictFromWindow() {
+        while (this.windowBytes > this.windowMaxByteSize && !this.window.isEmpty()) {
+            final Entry candidate = this.window.values().iterator().next();
+            final UUID candidateId = candidate.metadata.getId();
+            this.window.remove(candidateId);
+            this.windowBytes -= candidate.weight;
+            final long mainMaxByteSize = this.maxByteSize - this.windowMaxByteSize;
+            if (candidate.weight > mainMaxByteSize) {
+                this.entries.remove(candidateId);
+                this.release(candidate);
+                ++this.rejectionCount;
+                continue;
+            }
+            final List<Entry> victims = new ArrayList<>();
+            long freedBytes = 0;
+            final Iterator<Entry> probationIterator = this.probation.values().iterator();
+            final Iterator<Entry> protectedIterator = this.protect.values().iterator();
+            while (this.probationBytes + this.protectedBytes - freedBytes + candidate.weight > mainMaxByteSize) {
+                final Entry victim = probationIterator.hasNext() ? probationIterator.next() : protectedIterator.next();
+                victims.add(victim);
+                freedBytes += victim.weight;
+            }
+            final int candidateFrequency = this.sketch.frequency(candidateId);
+            boolean isAdmitted = true;
+            for (final Entry victim : victims) {
+                if (this.sketch.frequency(victim.metadata.getId()) >= candidateFrequency) {
+                    isAdmitted = false;
+                    break;
+                }
+            }
+            if (isAdmitted) {
+                for (final Entry victim : victims) {
+                    this.remove(victim.metadata.getId());
+                    ++this.evictionCount;
+                }
+                candidate.segment = Segment.PROBATION;
+                this.probation.put(candidateId, candidate);
+                this.probationBytes += candidate.weight;
+            } else {
+                this.entries.remove(candidateId);
+                this.release(candidate);
+                ++this.rejectionCount;
+            }
+        }
+    }
+
+    /**
+     * Evict the least valuable file other than one, from the probation segment then the window then the protected segment
+     * @param keptId the id of the file not to evict
+     * @return False if there isn't any other file to evict
+     */
+    private boolean evictAny(final UUID keptId) {
+        for (final LinkedHashMap<UUID, Entry> segment : Arrays.asList(this.probation, this.window, this.protect)) {
+            for (final UUID fileId : segment.keySet()) {
+                if (!fileId.equals(keptId)) {
+                    this.remove(fileId);
+                    ++this.evictionCount;
+                    return (true);
+                }
+            }
+        }
+        return (false);
+    }
+
+    /**
+     * Remove a file from the cache, if present
+     * @param fileId the file id
+     */
+    private void remove(final UUID fileId) {
+        final Entry entry = this.entries.remove(fileId);
+        if (entry == null)
+            return;
+        switch (entry.segment) {
+            case WINDOW:
+                this.window.remove(fileId);
+                this.windowBytes -= entry.weight;
+                break;
+            case PROBATION:
+                this.probation.remove(fileId);
+                this.probationBytes -= entry.weight;
+                break;
+            default:
+                this.protect.remove(fileId);
+                this.protectedBytes -= entry.weight;
+        }
+        this.release(entry);
+    }
+
+    /**
+     * Mark an entry evicted and free its slots unless it's leased
+     * @param entry the entry out of every segment
+     */
+    private void release(final Entry entry) {
+        entry.isEvicted = true;
+        if (entry.nbLeases == 0) {
+            entry.slots.forEach(this.allocator::free);
+            entry.slots.clear();
+        }
+    }
+
+    /**
+     * Get the live entry of a file and record the access
+     * @param fileId the file id
+     * @return the entry Or Null if the file isn't cached, an expired file is removed
+     */
+    private @Nullable Entry access(final UUID fileId) {
+        this.sketch.increment(fileId);
+        final Entry entry = this.entries.get(fileId);
+        if (entry == null || TimestampUtils.nowEpochNanos() > entry.expirationNanos) {
+            if (entry != null)
+                this.remove(fileId);
+            ++this.missCount;
+            return (null);
+        }
+        ++this.hitCount;
+        switch (entry.segment) {
+            case WINDOW:
+                this.window.remove(fileId);
+                this.window.put(fileId, entry);
+                break;
+            case PROBATION:
+                this.probation.remove(fileId);
+                this.probationBytes -= entry.weight;
+                entry.segment = Segment.PROTECTED;
+                this.protect.put(fileId, entry);
+                this.protectedBytes += entry.weight;
+                // The least recently used protected files go back to probation
+                while (this.protectedBytes > this.protectedMaxByteSize) {
+                    final Entry demoted = this.protect.values().iterator().next();
+                    this.protect.remove(demoted.metadata.getId());
+                    this.protectedBytes -= demoted.weight;
+                    demoted.segment = Segment.PROBATION;
+                    this.probation.put(demoted.metadata.getId(), demoted);
+                    this.probationBytes += demoted.weight;
+                }
+                break;
+            default:
+                this.protect.remove(fileId);
+                this.protect.put(fileId, entry);
+        }
+        return (entry);
+    }
+
+    /**
+     * Get the metadata of a cached file
+     * @param fileId the file id
+     * @return the file metadata Or Null if the file isn't cached or is expired
+     */
+    public synchronized @Nullable DatabaseFileMetadata getMetadata(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        final Entry entry = this.access(fileId);
+        return ((entry != null) ? entry.metadata : null);
+    }
+
+    /**
+     * Get a cached file
+     * @param fileId the file id
+     * @return a copy of the file Or Null if the file isn't cached or is expired
+     */
+    public synchronized @Nullable DatabaseFile getFile(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        final Entry entry = this.access(fileId);
+        if (entry == null)
+            return (null);
+        return (DatabaseFile.newInstance(entry.metadata, this.copy(entry, 0, entry.metadata.getDataLength())));
+    }
+
+    /**
+     * Read a range of a cached file data
+     * @param fileId the file id
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return a copy of the range Or Null if the file isn't cached or is expired
+     * @throws IllegalArgumentException if the range is not within the file data
+     */
+    public synchronized @Nullable byte[] read(final UUID fileId, final long offset, final int length) {
+        Objects.requireNonNull(fileId);
+        final Entry entry = this.access(fileId);
+        if (entry == null)
+            return (null);
+        BlobCache.checkRange(entry, offset, length);
+        return (this.copy(entry, offset, length));
+    }
+
+    /**
+     * Lease a range of a cached file data, the slots are kept until the lease is closed even if the file is evicted
+     * @param fileId the file id
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the read only lease of the range Or Null if the file isn't cached or is expired
+     * @throws IllegalArgumentException if the range is not within the file data
+     */
+    public synchronized @Nullable BlobLease lease(final UUID fileId, final long offset, final int length) {
+        Objects.requireNonNull(fileId);
+        final Entry entry = this.access(fileId);
+        if (entry == null)
+            return (null);
+        BlobCache.checkRange(entry, offset, length);
+        final List<ByteBuffer> slices = new ArrayList<>();
+        for (final ByteBuffer slice : entry.getSlices(offset, length, this.allocator.getSlabByteSize()))
+            slices.add(slice.asReadOnlyBuffer());
+        ++entry.nbLeases;
+        return (BlobLease.newInstance(slices, () -> this.unlease(entry)));
+    }
+
+    /**
+     * Close a lease of an entry, the slots of an evicted entry are freed with its last lease
+     * @param entry the leased entry
+     */
+    private synchronized void unlease(final Entry entry) {
+        if (--entry.nbLeases == 0 && entry.isEvicted)
+            this.release(entry);
+    }
+
+    /**
+     * Throw an exception if a range isn't within the data of a file
+     * @param entry the file entry
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @throws IllegalArgumentException if the range is not within the file data
+     */
+    private static void checkRange(final Entry entry, final long offset, final int length) {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("Offset and length must be greater than or equal to 0");
+        if (offset + length > entry.metadata.getDataLength())
+            throw new IllegalArgumentException("Range [" + offset + ", " + (offset + length) + ") is outside of file "
+                    + entry.metadata.getId() + " of length " + entry.metadata.getDataLength());
+    }
+
+    /**
+     * Copy a range of a cached file data
+     * @param entry the file entry
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the range data
+     */
+    private byte[] copy(final Entry entry, final long offset, final int length) {
+        final byte[] bytes = new byte[length];
+        int position = 0;
+        for (final ByteBuffer slice : entry.getSlices(offset, length, this.allocator.getSlabByteSize())) {
+            final int sliceLength = slice.remaining();
+            slice.get(bytes, position, sliceLength);
+            position += sliceLength;
+        }
+        return (bytes);
+    }
+
+    /**
+     * Remove a file from the cache, the files being loaded aren't cached either
+     * @param fileId the file id
+     */
+    public synchronized void invalidate(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        ++this.epoch;
+        this.remove(fileId);
+    }
+
+    /**
+     * Remove every file from the cache, the files being loaded aren't cached either
+     */
+    public synchronized void invalidateAll() {
+        ++this.epoch;
+        new ArrayList<>(this.entries.keySet()).forEach(this::remove);
+    }
+
+    /**
+     * Remove the expired files from the cache
+     * @return the number of removed files
+     */
+    public synchronized int removeExpired() {
+        final long nowNanos = TimestampUtils.nowEpochNanos();
+        final List<UUID> expiredIds = new ArrayList<>();
+        for (final Map.Entry<UUID, Entry> entry : this.entries.entrySet()) {
+            if (nowNanos > entry.getValue().expirationNanos)
+                expiredIds.add(entry.getKey());
+        }
+        expiredIds.forEach(this::remove);
+        return (expiredIds.size());
+    }
+
+    /**
+     * Get the statistics of the cache
+     * @return the current statistics
+     */
+    public synchronized Stats getStats() {
+        return (new Stats(this));
+    }
+
+    /**
+     * Get the maximum number of bytes the cached data may take
+     * @return the cache byte size
+     */
+    public long getMaxByteSize() {
+        return (this.maxByteSize);
+    }
+
+    /**
+     * Get the maximum number of bytes the new files may take before being evaluated for admission
+     * @return the window byte size
+     */
+    public long getWindowMaxByteSize() {
+        return (this.windowMaxByteSize);
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public synchronized String toString() {
+        return "BlobCache{" +
+                "maxByteSize=" + this.maxByteSize +
+                ", windowMaxByteSize=" + this.windowMaxByteSize +
+                ", protectedMaxByteSize=" + this.protectedMaxByteSize +
+                ", stats=" + new Stats(this) +
+                '}';
+    }
+}
@@ -0,0 +1,246 @@
+package fr.diguiet.grpc.fileserver;
+
+import fr.diguiet.grpc.common.utils.UUIDUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Utils class with static method to build and read the LMDB keys used by the file server
+ * A file is stored as a list of chunks, each chunk key is the file id followed by the big endian
+ * offset of the chunk in the file so all the chunks of a file are contiguous and sorted by offset
+ * An expiration key is the big endian expiration epoch second followed by the file id so the keys are sorted by expiration
+ * A content key is the SHA-256 digest of a chunk data followed by log2 of its compression block size, 0 when not compressed,
+ * so the same data compressed differently is stored apart
+ */
+public final class BlobKeys {
+    private static final int OFFSET_BYTE_SIZE = Long.BYTES;
+    private static final int CHUNK_KEY_BYTE_SIZE = UUIDUtils.getUuidByteSize() + BlobKeys.OFFSET_BYTE_SIZE;
+    private static final int EXPIRATION_KEY_BYTE_SIZE = Long.BYTES + UUIDUtils.getUuidByteSize();
+    private static final int CONTENT_DIGEST_BYTE_SIZE = 32;
+    private static final int CONTENT_KEY_BYTE_SIZE = BlobKeys.CONTENT_DIGEST_BYTE_SIZE + 1;
+    private static final ThreadLocal<ByteBuffer> LOCAL_ID_KEYS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(UUIDUtils.getUuidByteSize()));
+    private static final ThreadLocal<ByteBuffer> LOCAL_CHUNK_KEYS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BlobKeys.CHUNK_KEY_BYTE_SIZE));
+
+    /**
+     * Class is not instantiable and inheritable
+     */
+    private BlobKeys() {
+
+    }
+
+    /**
+     * Get the byte size of a chunk key
+     * @return the byte size
+     */
+    public static int getChunkKeyByteSize() {
+        return (BlobKeys.CHUNK_KEY_BYTE_SIZE);
+    }
+
+    /**
+     * Get the byte size of an expiration key
+     * @return the byte size
+     */
+    public static int getExpirationKeyByteSize() {
+        return (BlobKeys.EXPIRATION_KEY_BYTE_SIZE);
+    }
+
+    /**
+     * Get the byte size of a content key
+     * @return the byte size
+     */
+    public static int getContentKeyByteSize() {
+        return (BlobKeys.CONTENT_KEY_BYTE_SIZE);
+    }
+
+    /**
+     * Create a new direct key containing only the file id
+     * @param fileId the file id
+     * @return a new flipped direct ByteBuffer
+     */
+    public static ByteBuffer ofId(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        final ByteBuffer key = ByteBuffer.allocateDirect(UUIDUtils.getUuidByteSize());
+        UUIDUtils.put(key, fileId).flip();
+        return (key);
+    }
+
+    /**
+     * Get the key containing only the file id in a direct buffer owned by the calling thread
+     * Nothing is allocated, the buffer is overwritten by the next call on the same thread
+     * so it must only be used for a lookup and never kept or shared with another thread
+     * @param fileId the file id
+     * @return the flipped thread local direct ByteBuffer
+     */
+    public static ByteBuffer localOfId(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        final ByteBuffer key = BlobKeys.LOCAL_ID_KEYS.get();
+        key.clear();
+        UUIDUtils.put(key, fileId).flip();
+        return (key);
+    }
+
+    /**
+     * Create a new direct key of the chunk starting at the specified offset of a file
+     * @param fileId the file id
+     * @param offset the offset of the chunk in the file
+     * @return a new flipped direct ByteBuffer
+     * @throws IllegalArgumentException if the offset is negative
+     */
+    public static ByteBuffer ofChunk(final UUID fileId, final long offset) {
+        Objects.requireNonNull(fileId);
+        if (offset < 0)
+            throw new IllegalArgumentException("Chunk offset must be greater than or equal to 0");
+        return (BlobKeys.putChunk(ByteBuffer.allocateDirect(BlobKeys.CHUNK_KEY_BYTE_SIZE), fileId, offset));
+    }
+
+    /**
+     * Get the key of the chunk starting at the specified offset of a file in a direct buffer owned by the calling thread
+     * Nothing is allocated, the buffer is overwritten by the next call on the same thread
+     * so it must only be used for a lookup and never kept or shared with another thread
+     * @param fileId the file id
+     * @param offset the offset of the chunk in the file
+     * @return the flipped thread local direct ByteBuffer
+     * @throws IllegalArgumentException if the offset is negative
+     */
+    public static ByteBuffer localOfChunk(final UUID fileId, final long offset) {
+        Objects.requireNonNull(fileId);
+        if (offset < 0)
+            throw new IllegalArgumentException("Chunk offset must be greater than or equal to 0");
+        final ByteBuffer key = BlobKeys.LOCAL_CHUNK_KEYS.get();
+        key.clear();
+        return (BlobKeys.putChunk(key, fileId, offset));
+    }
+
+    /**
+     * Write a chunk key in a cleared buffer
+     * @param key the buffer to write to
+     * @param fileId the file id
+     * @param offset the offset of the chunk in the file
+     * @return the flipped buffer
+     */
+    private static ByteBuffer putChunk(final ByteBuffer key, final UUID fileId, final long offset) {
+        UUIDUtils.put(key, fileId);
+        key.putLong(offset);
+        key.flip();
+        return (key);
+    }
+
+    /**
+     * Predicate that tell whether or not a key belong to the specified file
+     * @param key the key to check
+     * @param fileId the file id
+     * @return if the key start with the file id
+     */
+    public static boolean belongsTo(final ByteBuffer key, final UUID fileId) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(fileId);
+        if (key.remaining() < UUIDUtils.getUuidByteSize())
+            return (false);
+        return (key.getLong(key.position()) == fileId.getMostSignificantBits()
+                && key.getLong(key.position() + Long.BYTES) == fileId.getLeastSignificantBits());
+    }
+
+    /**
+     * Get the file id of a key
+     * @param key the key
+     * @return the file id
+     */
+    public static UUID getId(final ByteBuffer key) {
+        Objects.requireNonNull(key);
+        return (new UUID(key.getLong(key.position()), key.getLong(key.position() + Long.BYTES)));
+    }
+
+    /**
+     * Get the chunk offset of a key
+     * Keys written before the chunk layout only contain the file id, the whole file is then at offset 0
+     * @param key the key
+     * @return the offset of the chunk in the file
+     */
+    public static long getOffset(final ByteBuffer key) {
+        Objects.requireNonNull(key);
+        if (key.remaining() < BlobKeys.CHUNK_KEY_BYTE_SIZE)
+            return (0);
+        return (key.getLong(key.position() + UUIDUtils.getUuidByteSize()));
+    }
+
+    /**
+     * Create a new direct key of the expiration index
+     * @param expirationEpochSeconds the file expiration epoch second
+     * @param fileId the file id
+     * @return a new flipped direct ByteBuffer
+     * @throws IllegalArgumentException if the expiration is negative
+     */
+    public static ByteBuffer ofExpiration(final long expirationEpochSeconds, final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        if (expirationEpochSeconds < 0)
+            throw new IllegalArgumentException("Expiration epoch second must be greater than or equal to 0");
+        final ByteBuffer key = ByteBuffer.allocateDirect(BlobKeys.EXPIRATION_KEY_BYTE_SIZE);
+        key.putLong(expirationEpochSeconds);
+        UUIDUtils.put(key, fileId).flip();
+        return (key);
+    }
+
+    /**
+     * Get the expiration epoch second of an expiration key
+     * @param key the expiration key
+     * @return the expiration epoch second
+     */
+    public static long getExpirationSeconds(final ByteBuffer key) {
+        Objects.requireNonNull(key);
+        return (key.getLong(key.position()));
+    }
+
+    /**
+     * Get the file id of an expiration key
+     * @param key the expiration key
+     * @return the file id
+     */
+    public static UUID getExpirationId(final ByteBuffer key) {
+        Objects.requireNonNull(key);
+        return (new UUID(key.getLong(key.position() + Long.BYTES), key.getLong(key.position() + Long.BYTES * 2)));
+    }
+
+    /**
+     * Create a new direct key of deduplicated content
+     * @param digest the SHA-256 digest of the content data
+     * @param blockSize the compression block size of the content Or 0 if it isn't compressed
+     * @return a new flipped direct ByteBuffer
+     * @throws IllegalArgumentException if the digest isn't a SHA-256 digest
+     */
+    public static ByteBuffer ofContent(final byte[] digest, final int blockSize) {
+        Objects.requireNonNull(digest);
+        if (digest.length != BlobKeys.CONTENT_DIGEST_BYTE_SIZE)
+            throw new IllegalArgumentException("Content digest must be " + BlobKeys.CONTENT_DIGEST_BYTE_SIZE + " bytes long");
+        final ByteBuffer key = ByteBuffer.allocateDirect(BlobKeys.CONTENT_KEY_BYTE_SIZE);
+        key.put(digest);
+        key.put((byte) ((blockSize != 0) ? Integer.numberOfTrailingZeros(blockSize) : 0));
+        key.flip();
+        return (key);
+    }
+
+    /**
+     * Get the compression block size of a content from its key
+     * @param key the content key
+     * @return the compression block size of the content Or 0 if it isn't compressed
+     */
+    public static int getContentBlockSize(final ByteBuffer key) {
+        Objects.requireNonNull(key);
+        final int blockShift = key.get(key.position() + BlobKeys.CONTENT_DIGEST_BYTE_SIZE);
+        return ((blockShift != 0) ? 1 << blockShift : 0);
+    }
+
+    /**
+     * Copy a key into a new direct buffer, to keep a key read from the database once the transaction moves on
+     * @param key the key
+     * @return a new flipped direct ByteBuffer
+     */
+    public static ByteBuffer copyOf(final ByteBuffer key) {
+        Objects.requireNonNull(key);
+        final ByteBuffer copy = ByteBuffer.allocateDirect(key.remaining());
+        copy.put(key.duplicate());
+        copy.flip();
+        return (copy);
+    }
+}
@@ -0,0 +1,120 @@
+package fr.diguiet.grpc.fileserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Represent a range of a file data borrowed from the file server without being copied
+ * The buffers may point straight to the storage memory, they must not be used once the lease is closed
+ * @see IFileServer#lease(java.util.UUID, long, int)
+ */
+public class BlobLease implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(BlobLease.class);
+    private final List<ByteBuffer> buffers;
+    private final int length;
+    private final Closeable resource;
+    private boolean isOpen = true;
+
+    /**
+     * Create a new lease
+     * @param buffers the buffers holding the leased data, in order
+     * @param resource the resource keeping the buffers valid, closed with the lease
+     * @return a new lease
+     */
+    public static BlobLease newInstance(final List<ByteBuffer> buffers, final Closeable resource) {
+        Objects.requireNonNull(buffers);
+        Objects.requireNonNull(resource);
+        return (new BlobLease(buffers, resource));
+    }
+
+    /**
+     * Create a new lease of a data that does not need to be released
+     * @param data the leased data
+     * @return a new lease
+     */
+    public static BlobLease of(final ByteBuffer data) {
+        Objects.requireNonNull(data);
+        return (new BlobLease(Collections.singletonList(data), () -> { }));
+    }
+
+    /**
+     * Create a new lease instance
+     * @param buffers the buffers holding the leased data
+     * @param resource the resource keeping the buffers valid
+     */
+    private BlobLease(final List<ByteBuffer> buffers, final Closeable resource) {
+        final List<ByteBuffer> readOnlyBuffers = new ArrayList<>(buffers.size());
+        int length = 0;
+        for (final ByteBuffer buffer : buffers) {
+            readOnlyBuffers.add(buffer.asReadOnlyBuffer());
+            length = Math.addExact(length, buffer.remaining());
+        }
+        this.buffers = Collections.unmodifiableList(readOnlyBuffers);
+        this.length = length;
+        this.resource = resource;
+    }
+
+    /**
+     * Get the read only buffers of the leased data, in order
+     * @return the leased buffers
+     * @throws IllegalStateException if the lease is closed
+     */
+    public List<ByteBuffer> getBuffers() {
+        if (!this.isOpen)
+            throw new IllegalStateException("The lease has been released");
+        return (this.buffers);
+    }
+
+    /**
+     * Get the leased data length
+     * @return the leased data length
+     */
+    public int getLength() {
+        return (this.length);
+    }
+
+    /**
+     * Predicate that tell whether or not the lease is still held
+     * @return If the lease is open or not
+     */
+    public boolean isOpen() {
+        return (this.isOpen);
+    }
+
+    /**
+     * Release the lease, must be idempotent because of Closeable
+     * @see Closeable
+     */
+    @Override
+    public synchronized void close() {
+        if (this.isOpen) {
+            this.isOpen = false;
+            try {
+                this.resource.close();
+            } catch (IOException e) {
+                BlobLease.logger.warn("Unable to release lease resource: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "BlobLease{" +
+                "nbBuffers=" + this.buffers.size() +
+                ", length=" + this.length +
+                ", isOpen=" + this.isOpen +
+                '}';
+    }
+}
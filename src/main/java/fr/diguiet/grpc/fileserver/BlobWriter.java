@@ -0,0 +1,155 @@
+package fr.diguiet.grpc.fileserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Represent a channel writing data of a known size at the end of a file
+ * The data is saved once the channel is closed after the whole size has been written,
+ * a channel closed before is discarded and nothing of its data is saved
+ * @see IFileServer#openWriter(java.util.UUID, com.google.protobuf.Timestamp, long)
+ */
+public abstract class BlobWriter implements WritableByteChannel {
+    private final long size;
+    private long position = 0;
+    private boolean isOpen = true;
+
+    /**
+     * Create a new writer instance
+     * @param size the number of bytes to write
+     */
+    protected BlobWriter(final long size) {
+        this.size = size;
+    }
+
+    /**
+     * Create a new writer copying the data into an array saved at once when the writer is closed,
+     * for the file servers that can't write the data straight to its final location
+     * @param size the number of bytes to write
+     * @param save the action saving the data
+     * @return a new writer
+     * @throws IllegalArgumentException if the size isn't within [0, Integer.MAX_VALUE]
+     */
+    public static BlobWriter newBufferedInstance(final long size, final Consumer<byte[]> save) {
+        Objects.requireNonNull(save);
+        BlobWriter.checkSize(size);
+        final byte[] data = new byte[(int) size];
+        return (new BlobWriter(size) {
+            @Override
+            protected void append(final ByteBuffer src) {
+                src.get(data, (int) this.getPosition(), src.remaining());
+            }
+
+            @Override
+            protected void commit() {
+                save.accept(data);
+            }
+
+            @Override
+            protected void abort() {
+            }
+        });
+    }
+
+    /**
+     * Check the size of the data to write
+     * @param size the number of bytes to write
+     * @throws IllegalArgumentException if the size isn't within [0, Integer.MAX_VALUE]
+     */
+    public static void checkSize(final long size) {
+        if (size < 0 || size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Size must be within [0, " + Integer.MAX_VALUE + "]");
+    }
+
+    /**
+     * Write the remaining bytes of a buffer, a write always consumes the whole buffer
+     * @param src the buffer
+     * @return the number of bytes written
+     * @throws ClosedChannelException if the writer is closed
+     * @throws IllegalArgumentException if the buffer goes past the size of the writer
+     */
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        Objects.requireNonNull(src);
+        if (!this.isOpen)
+            throw new ClosedChannelException();
+        final int length = src.remaining();
+        if (length > this.size - this.position)
+            throw new IllegalArgumentException("Tried to write " + length + " bytes with " + (this.size - this.position) + " bytes left");
+        this.append(src);
+        this.position += length;
+        return (length);
+    }
+
+    /**
+     * Write all of the remaining bytes of a buffer
+     * @param src the buffer
+     */
+    protected abstract void append(final ByteBuffer src) throws IOException;
+
+    /**
+     * Save the written data, called once the whole size has been written
+     */
+    protected abstract void commit();
+
+    /**
+     * Discard the written data, called if the writer is closed before the whole size has been written
+     */
+    protected abstract void abort();
+
+    /**
+     * Get the number of bytes to write
+     * @return the size of the writer
+     */
+    public long getSize() {
+        return (this.size);
+    }
+
+    /**
+     * Get the number of bytes written so far
+     * @return the position of the writer
+     */
+    public long getPosition() {
+        return (this.position);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isOpen() {
+        return (this.isOpen);
+    }
+
+    /**
+     * Save the data if the whole size has been written or discard it otherwise, must be idempotent because of Closeable
+     * @see java.io.Closeable
+     */
+    @Override
+    public void close() {
+        if (this.isOpen) {
+            this.isOpen = false;
+            if (this.position == this.size)
+                this.commit();
+            else
+                this.abort();
+        }
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "BlobWriter{" +
+                "size=" + this.size +
+                ", position=" + this.position +
+                ", isOpen=" + this.isOpen +
+                '}';
+    }
+}
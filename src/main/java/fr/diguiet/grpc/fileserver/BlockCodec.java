@@ -0,0 +1,255 @@
+package fr.diguiet.grpc.fileserver;
+
+import fr.diguiet.grpc.fileserver.exception.databasefile.DatabaseFileException;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Utils class with static method to compress the chunks stored by the file server in independent blocks
+ * A compressed chunk has the following layout, big endian:
+ * <pre>
+ * 0  uncompressed chunk length (4 bytes)
+ * 4  end of each block, relative to the first block (4 bytes per block)
+ * .. the blocks, one after the other
+ * </pre>
+ * Every block but the last one holds block size bytes of data, deflated with the zlib format,
+ * or stored as is when deflating doesn't shrink it, a stored block is as long as its data.
+ * So a range of the chunk is read by inflating only the blocks it overlaps
+ */
+public final class BlockCodec {
+    private static final int MIN_BLOCK_BYTE_SIZE = 1 << 10;
+    private static final int MAX_BLOCK_BYTE_SIZE = 1 << 24;
+    private static final int LENGTH_BYTE_SIZE = Integer.BYTES;
+    private static final int BLOCK_END_BYTE_SIZE = Integer.BYTES;
+    private static final int PROBE_SAMPLE_BYTE_SIZE = 8 * 1024;
+    private static final double PROBE_MAX_RATIO = 0.875;
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Class is not instantiable and inheritable
+     */
+    private BlockCodec() {
+
+    }
+
+    /**
+     * Check the size of the blocks
+     * @param blockSize the number of bytes of data in a block
+     * @throws IllegalArgumentException if the block size isn't a power of two within [1 ko, 16 mo]
+     */
+    public static void checkBlockSize(final int blockSize) {
+        if (blockSize < BlockCodec.MIN_BLOCK_BYTE_SIZE || blockSize > BlockCodec.MAX_BLOCK_BYTE_SIZE || Integer.bitCount(blockSize) != 1)
+            throw new IllegalArgumentException("Block size must be a power of two within ["
+                    + BlockCodec.MIN_BLOCK_BYTE_SIZE + ", " + BlockCodec.MAX_BLOCK_BYTE_SIZE + "]");
+    }
+
+    /**
+     * Predicate that tell whether or not data is worth compressing, from how much a few samples of it shrink
+     * The data already compressed, such as PNG images, is told apart without compressing all of it
+     * @param data the data
+     * @return if the data samples shrink enough
+     */
+    public static boolean isCompressible(final byte[] data) {
+        Objects.requireNonNull(data);
+        final int sampleLength = Math.min(data.length, BlockCodec.PROBE_SAMPLE_BYTE_SIZE);
+        if (sampleLength < BlockCodec.MIN_BLOCK_BYTE_SIZE)
+            return (false);
+        // The start and the middle of the data, so a header alone doesn't decide
+        final int middle = Math.max(sampleLength, data.length / 2);
+        final int middleLength = Math.min(sampleLength, data.length - middle);
+        final int sampledLength = sampleLength + middleLength;
+        final int maxDeflatedLength = (int) (sampledLength * BlockCodec.PROBE_MAX_RATIO);
+        final byte[] deflated = new byte[maxDeflatedLength];
+        final Deflater deflater = BlockCodec.DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data, 0, sampleLength);
+        int deflatedLength = BlockCodec.deflate(deflater, deflated, 0, maxDeflatedLength);
+        deflater.setInput(data, middle, middleLength);
+        deflater.finish();
+        deflatedLength += BlockCodec.deflate(deflater, deflated, deflatedLength, maxDeflatedLength - deflatedLength);
+        return (deflater.finished());
+    }
+
+    /**
+     * Compress data into a new chunk
+     * @param data the data
+     * @param blockSize the number of bytes of data in a block
+     * @return a new flipped direct ByteBuffer
+     * @throws IllegalArgumentException if the block size is invalid
+     */
+    public static ByteBuffer encode(final byte[] data, final int blockSize) {
+        Objects.requireNonNull(data);
+        BlockCodec.checkBlockSize(blockSize);
+        final int nbBlocks = BlockCodec.getNbBlocks(data.length, blockSize);
+        final int headerLength = BlockCodec.getHeaderLength(nbBlocks);
+        // A block is never longer than its data, so the whole chunk fits
+        final byte[] chunk = new byte[headerLength + data.length];
+        final ByteBuffer header = ByteBuffer.wrap(chunk);
+        header.putInt(data.length);
+        final Deflater deflater = BlockCodec.DEFLATERS.get();
+        int end = 0;
+        for (int i = 0; i < nbBlocks; ++i) {
+            final int dataOffset = i * blockSize;
+            final int dataLength = Math.min(blockSize, data.length - dataOffset);
+            final int blockOffset = headerLength + end;
+            deflater.reset();
+            deflater.setInput(data, dataOffset, dataLength);
+            deflater.finish();
+            int blockLength = BlockCodec.deflate(deflater, chunk, blockOffset, dataLength - 1);
+            if (!deflater.finished()) {
+                System.arraycopy(data, dataOffset, chunk, blockOffset, dataLength);
+                blockLength = dataLength;
+            }
+            end += blockLength;
+            header.putInt(end);
+        }
+        final ByteBuffer bb = ByteBuffer.allocateDirect(headerLength + end);
+        bb.put(chunk, 0, headerLength + end);
+        bb.flip();
+        return (bb);
+    }
+
+    /**
+     * Get the uncompressed length of a chunk without decompressing it
+     * @param chunk the compressed chunk
+     * @return the chunk data length
+     */
+    public static int getLength(final ByteBuffer chunk) {
+        Objects.requireNonNull(chunk);
+        return (chunk.getInt(chunk.position()));
+    }
+
+    /**
+     * Decompress a whole chunk into a new buffer
+     * @param chunk the compressed chunk, its position is left untouched
+     * @param blockSize the number of bytes of data in a block
+     * @return a new heap buffer of the chunk data
+     * @throws DatabaseFileException if a block is corrupted
+     */
+    public static ByteBuffer decode(final ByteBuffer chunk, final int blockSize) {
+        return (BlockCodec.decode(chunk, blockSize, 0, BlockCodec.getLength(chunk)));
+    }
+
+    /**
+     * Decompress a range of a chunk into a new buffer, only the blocks overlapping the range are inflated
+     * @param chunk the compressed chunk, its position is left untouched
+     * @param blockSize the number of bytes of data in a block
+     * @param from the offset of the first byte of the range in the chunk data
+     * @param to the offset following the last byte of the range in the chunk data
+     * @return a new heap buffer whose remaining bytes are the range
+     * @throws IllegalArgumentException if the range isn't within the chunk data
+     * @throws DatabaseFileException if a block is corrupted
+     */
+    public static ByteBuffer decode(final ByteBuffer chunk, final int blockSize, final int from, final int to) {
+        Objects.requireNonNull(chunk);
+        final int length = BlockCodec.getLength(chunk);
+        if (from < 0 || from > to || to > length)
+            throw new IllegalArgumentException("Range [" + from + ", " + to + ") is outside of chunk of length " + length);
+        if (from == to)
+            return (ByteBuffer.allocate(0));
+        final int nbBlocks = BlockCodec.getNbBlocks(length, blockSize);
+        final int firstBlock = from / blockSize;
+        final int lastBlock = (to - 1) / blockSize;
+        final int firstDataOffset = firstBlock * blockSize;
+        final byte[] data = new byte[Math.min(length, (lastBlock + 1) * blockSize) - firstDataOffset];
+        final Inflater inflater = BlockCodec.INFLATERS.get();
+        final ByteBuffer blocks = chunk.duplicate();
+        final int blocksOffset = chunk.position() + BlockCodec.getHeaderLength(nbBlocks);
+        for (int i = firstBlock; i <= lastBlock; ++i) {
+            final int dataLength = Math.min(blockSize, length - i * blockSize);
+            final int start = BlockCodec.getBlockStart(chunk, i);
+            final int end = chunk.getInt(chunk.position() + BlockCodec.LENGTH_BYTE_SIZE + i * BlockCodec.BLOCK_END_BYTE_SIZE);
+            final byte[] block = new byte[end - start];
+            blocks.limit(blocksOffset + end).position(blocksOffset + start);
+            blocks.get(block);
+            final int dataOffset = i * blockSize - firstDataOffset;
+            if (block.length == dataLength)
+                System.arraycopy(block, 0, data, dataOffset, dataLength);
+            else
+                BlockCodec.inflate(inflater, block, data, dataOffset, dataLength);
+        }
+        return (ByteBuffer.wrap(data, from - firstDataOffset, to - from));
+    }
+
+    /**
+     * Get the number of blocks of a chunk
+     * @param length the chunk data length
+     * @param blockSize the number of bytes of data in a block
+     * @return the number of blocks
+     */
+    private static int getNbBlocks(final int length, final int blockSize) {
+        return ((int) (((long) length + blockSize - 1) / blockSize));
+    }
+
+    /**
+     * Get the byte size of the header of a chunk
+     * @param nbBlocks the number of blocks of the chunk
+     * @return the header byte size
+     */
+    private static int getHeaderLength(final int nbBlocks) {
+        return (BlockCodec.LENGTH_BYTE_SIZE + nbBlocks * BlockCodec.BLOCK_END_BYTE_SIZE);
+    }
+
+    /**
+     * Get the start of a block, relative to the first block
+     * @param chunk the compressed chunk
+     * @param blockIndex the block index
+     * @return the block start
+     */
+    private static int getBlockStart(final ByteBuffer chunk, final int blockIndex) {
+        if (blockIndex == 0)
+            return (0);
+        return (chunk.getInt(chunk.position() + BlockCodec.LENGTH_BYTE_SIZE + (blockIndex - 1) * BlockCodec.BLOCK_END_BYTE_SIZE));
+    }
+
+    /**
+     * Deflate the input of a deflater into an array until the deflater is done or the array is full
+     * @param deflater the deflater
+     * @param output the array to write to
+     * @param offset the offset of the first byte to write
+     * @param length the maximum number of bytes to write
+     * @return the number of bytes written
+     */
+    private static int deflate(final Deflater deflater, final byte[] output, final int offset, final int length) {
+        int written = 0;
+        while (written < length && !deflater.finished()) {
+            final int n = deflater.deflate(output, offset + written, length - written);
+            if (n == 0 && deflater.needsInput())
+                break;
+            written += n;
+        }
+        return (written);
+    }
+
+    /**
+     * Inflate a whole block into an array
+     * @param inflater the inflater
+     * @param block the deflated block
+     * @param output the array to write to
+     * @param offset the offset of the first byte to write
+     * @param length the block data length
+     * @throws DatabaseFileException if the block is corrupted
+     */
+    private static void inflate(final Inflater inflater, final byte[] block, final byte[] output, final int offset, final int length) {
+        inflater.reset();
+        inflater.setInput(block);
+        try {
+            int written = 0;
+            while (written < length) {
+                final int n = inflater.inflate(output, offset + written, length - written);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                written += n;
+            }
+            if (written != length)
+                throw new DatabaseFileException("Compressed block is shorter than its data length");
+        } catch (DataFormatException e) {
+            throw new DatabaseFileException("Unable to inflate compressed block", e);
+        }
+    }
+}
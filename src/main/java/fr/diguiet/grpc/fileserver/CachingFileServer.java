@@ -0,0 +1,409 @@
+package fr.diguiet.grpc.fileserver;
+
+import com.google.protobuf.Timestamp;
+import fr.diguiet.grpc.fileserver.exception.AlreadyOpenException;
+import fr.diguiet.grpc.fileserver.exception.ClosedException;
+import fr.diguiet.grpc.fileserver.exception.FileServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * File server that keeps the recently used files of another file server in a byte bounded cache
+ * The files are read right after being written, so a whole file upload is cached at once, and so is a downloaded file.
+ * The cache is invalidated by every write and deletion of its file before the file server is modified,
+ * a file loaded meanwhile isn't cached, so the cache never returns data older than the file server.
+ * A ranged read of a file that isn't cached loads the whole file if it fits in the window of the cache,
+ * so the next ranges of a file uploaded in several chunks are read from the cache
+ * @see BlobCache
+ */
+public class CachingFileServer implements IFileServer {
+    private static final Logger logger = LoggerFactory.getLogger(CachingFileServer.class);
+    private final IFileServer fileServer;
+    private final long cacheMaxByteSize;
+    private final int slabByteSize;
+    private final double windowRatio;
+    private volatile BlobCache cache;
+    private boolean isOpen = false;
+
+    /**
+     * Create a new instance from a builder
+     * @param builder the builder
+     */
+    private CachingFileServer(final CachingFileServer.Builder builder) {
+        this.fileServer = builder.fileServer;
+        this.cacheMaxByteSize = builder.cacheMaxByteSize;
+        this.slabByteSize = builder.slabByteSize;
+        this.windowRatio = builder.windowRatio;
+    }
+
+    /**
+     * Create a new Builder instance
+     * @param fileServer the cached file server
+     * @return a new builder
+     */
+    public static Builder newInstance(final IFileServer fileServer) {
+        return (CachingFileServer.Builder.newInstance(fileServer));
+    }
+
+    /**
+     * The caching file server builder class
+     */
+    public static class Builder {
+        private final IFileServer fileServer;
+        private long cacheMaxByteSize = 1024L * 1024 * 64; // 64 mo
+        private int slabByteSize = 1024 * 1024; // 1 mo
+        private double windowRatio = 0.2;
+
+        /**
+         * Create a new instance of the builder
+         * @param fileServer the cached file server
+         * @return a new builder
+         */
+        public static Builder newInstance(final IFileServer fileServer) {
+            return (new Builder(fileServer));
+        }
+
+        /**
+         * Instantiate a new builder
+         * @param fileServer the cached file server
+         */
+        private Builder(final IFileServer fileServer) {
+            Objects.requireNonNull(fileServer);
+            this.fileServer = fileServer;
+        }
+
+        /**
+         * Build a new caching file server
+         * @return a new file server
+         * @throws IllegalArgumentException if the cache size is below the slab size
+         */
+        public IFileServer build() {
+            if (this.cacheMaxByteSize < this.slabByteSize)
+                throw new IllegalArgumentException("The cache size must be atleast the slab size");
+            return (new CachingFileServer(this));
+        }
+
+        /**
+         * Set the maximum number of bytes of direct memory the cached data may take
+         * @param cacheMaxByteSize the cache byte size
+         * @return The builder
+         * @throws IllegalArgumentException if the size is below 1
+         */
+        public Builder setCacheMaxByteSize(final long cacheMaxByteSize) {
+            if (cacheMaxByteSize < 1)
+                throw new IllegalArgumentException("The cache size must be greater than 0");
+            this.cacheMaxByteSize = cacheMaxByteSize;
+            return (this);
+        }
+
+        /**
+         * Set the byte size of a slab of the cache memory, a file larger than it takes several slots
+         * @param slabByteSize the slab byte size
+         * @return The builder
+         * @throws IllegalArgumentException if the size is below 4096
+         */
+        public Builder setSlabByteSize(final int slabByteSize) {
+            if (slabByteSize < 4096)
+                throw new IllegalArgumentException("The slab size must be atleast 4096");
+            this.slabByteSize = slabByteSize;
+            return (this);
+        }
+
+        /**
+         * Set the share of the cache given to the new files, the others must be accessed more often than the files they evict
+         * @param windowRatio the window ratio
+         * @return The builder
+         * @throws IllegalArgumentException if the ratio isn't within ]0, 1[
+         */
+        public Builder setWindowRatio(final double windowRatio) {
+            if (!(windowRatio > 0 && windowRatio < 1))
+                throw new IllegalArgumentException("The window ratio must be within ]0, 1[");
+            this.windowRatio = windowRatio;
+            return (this);
+        }
+    }
+
+    /**
+     * The cache memory is allocated as the files are cached
+     * @inheritDoc
+     */
+    @Override
+    public void openOrCreate() throws FileServerException {
+        if (this.isOpen) {
+            CachingFileServer.logger.error("Tried to open already opened caching file server");
+            throw new AlreadyOpenException();
+        }
+        this.fileServer.openOrCreate();
+        this.cache = BlobCache.newInstance(this.cacheMaxByteSize, this.slabByteSize, this.windowRatio);
+        this.isOpen = true;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void close() {
+        if (this.isOpen) {
+            CachingFileServer.logger.info("Closing caching file server: " + this.cache.getStats());
+            this.isOpen = false;
+            this.cache.invalidateAll();
+            this.fileServer.close();
+        }
+    }
+
+    /**
+     * A whole file upload is cached, an append only invalidates the cached file
+     * The cached file is invalidated again once the data is saved, so a file loaded during the write isn't cached,
+     * and the epoch is only read afterwards
+     * @inheritDoc
+     */
+    @Override
+    public void upload(final UUID fileId, final Timestamp expirationDate, final byte[] data) {
+        this.mustBeOpenOrThrow();
+        this.cache.invalidate(fileId);
+        try {
+            this.fileServer.upload(fileId, expirationDate, data);
+        } finally {
+            this.cache.invalidate(fileId);
+        }
+        final long epoch = this.cache.getEpoch();
+        final DatabaseFileMetadata metadata = this.fileServer.getFileMetaData(fileId);
+        if (metadata != null && metadata.getDataLength() == data.length)
+            this.cache.put(metadata, data, epoch);
+    }
+
+    /**
+     * The written data isn't cached, the cached file is invalidated when the writer is opened and once the data is saved
+     * @inheritDoc
+     */
+    @Override
+    public BlobWriter openWriter(final UUID fileId, final Timestamp expirationDate, final long size) {
+        this.mustBeOpenOrThrow();
+        this.cache.invalidate(fileId);
+        final BlobWriter writer = this.fileServer.openWriter(fileId, expirationDate, size);
+        return (new BlobWriter(size) {
+            @Override
+            protected void append(final ByteBuffer src) throws IOException {
+                writer.write(src);
+            }
+
+            @Override
+            protected void commit() {
+                try {
+                    writer.close();
+                } finally {
+                    CachingFileServer.this.cache.invalidate(fileId);
+                }
+            }
+
+            @Override
+            protected void abort() {
+                writer.close();
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable byte[] download(final UUID fileId) {
+        final DatabaseFile file = this.getFile(fileId);
+        return ((file != null) ? file.getData() : null);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable byte[] read(final UUID fileId, final long offset, final int length) {
+        this.mustBeOpenOrThrow();
+        byte[] bytes = this.cache.read(fileId, offset, length);
+        if (bytes == null && this.loadIfSmall(fileId))
+            bytes = this.cache.read(fileId, offset, length);
+        return ((bytes != null) ? bytes : this.fileServer.read(fileId, offset, length));
+    }
+
+    /**
+     * The leased buffers of a cached file point straight to the cache memory
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable BlobLease lease(final UUID fileId, final long offset, final int length) {
+        this.mustBeOpenOrThrow();
+        BlobLease lease = this.cache.lease(fileId, offset, length);
+        if (lease == null && this.loadIfSmall(fileId))
+            lease = this.cache.lease(fileId, offset, length);
+        return ((lease != null) ? lease : this.fileServer.lease(fileId, offset, length));
+    }
+
+    /**
+     * Load a whole file from the file server and cache it, if it fits in the window of the cache
+     * @param fileId the file id
+     * @return if the file has been cached
+     */
+    private boolean loadIfSmall(final UUID fileId) {
+        final DatabaseFileMetadata metadata = this.fileServer.getFileMetaData(fileId);
+        if (metadata == null || metadata.getDataLength() > this.cache.getWindowMaxByteSize())
+            return (false);
+        final long epoch = this.cache.getEpoch();
+        final DatabaseFile file = this.fileServer.getFile(fileId);
+        return (file != null && this.cache.put(file.getDatabaseFileMetadata(), file.getData(), epoch));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable DatabaseFileMetadata getFileMetaData(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        final DatabaseFileMetadata metadata = this.cache.getMetadata(fileId);
+        return ((metadata != null) ? metadata : this.fileServer.getFileMetaData(fileId));
+    }
+
+    /**
+     * A file that isn't cached is loaded from the file server and cached
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable DatabaseFile getFile(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        final DatabaseFile cached = this.cache.getFile(fileId);
+        if (cached != null)
+            return (cached);
+        final long epoch = this.cache.getEpoch();
+        final DatabaseFile file = this.fileServer.getFile(fileId);
+        if (file != null)
+            this.cache.put(file.getDatabaseFileMetadata(), file.getData(), epoch);
+        return (file);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void delete(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        this.cache.invalidate(fileId);
+        this.fileServer.delete(fileId);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void deleteAll() {
+        this.mustBeOpenOrThrow();
+        this.cache.invalidateAll();
+        this.fileServer.deleteAll();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isExpired(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        return (this.getFileMetaData(fileId) == null);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void removeExpired() {
+        this.mustBeOpenOrThrow();
+        final int nbExpired = this.cache.removeExpired();
+        this.fileServer.removeExpired();
+        CachingFileServer.logger.debug("Removed " + nbExpired + " expired files from the cache: " + this.cache.getStats());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long getAvailableUsableByte() {
+        this.mustBeOpenOrThrow();
+        return (this.fileServer.getAvailableUsableByte());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean hasEnoughSpaceFor(final int nbByte) {
+        this.mustBeOpenOrThrow();
+        return (this.fileServer.hasEnoughSpaceFor(nbByte));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean reserve(final UUID fileId, final int nbByte, final Timestamp expirationDate) {
+        this.mustBeOpenOrThrow();
+        return (this.fileServer.reserve(fileId, nbByte, expirationDate));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void releaseReservation(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        this.fileServer.releaseReservation(fileId);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isOpen() {
+        return (this.isOpen);
+    }
+
+    /**
+     * Get the statistics of the cache
+     * @return the current cache statistics
+     */
+    public BlobCache.Stats getCacheStats() {
+        this.mustBeOpenOrThrow();
+        return (this.cache.getStats());
+    }
+
+    /**
+     * Get the cached file server
+     * @return the file server
+     */
+    public IFileServer getFileServer() {
+        return (this.fileServer);
+    }
+
+    /**
+     * Throw an exception if the file server is closed
+     * @throws ClosedException
+     */
+    private void mustBeOpenOrThrow() {
+        if (!this.isOpen)
+            throw new ClosedException();
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "CachingFileServer{" +
+                "fileServer=" + this.fileServer +
+                ", cache=" + this.cache +
+                ", isOpen=" + this.isOpen +
+                '}';
+    }
+}
@@ -0,0 +1,149 @@
+package fr.diguiet.grpc.fileserver;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Content defined chunker, cutting data where a rolling gear hash of its last bytes matches a mask (FastCDC)
+ * The cut points only depend on the bytes around them, so the data shared by two files is cut the same way
+ * even if it doesn't start at the same offset, and the pieces are stored once.
+ * The chunks are at least a quarter and at most eight times the average size, the mask is harder to match
+ * before the average size and easier after, so the chunk sizes stay close to the average (normalized chunking)
+ */
+@Immutable
+public final class ContentDefinedChunker {
+    private static final int MIN_AVERAGE_BYTE_SIZE = 256;
+    private static final int MAX_AVERAGE_BYTE_SIZE = 1 << 20;
+    private static final int NORMALIZATION_LEVEL = 2;
+    // The gears must never change, the cut points of the stored files would move otherwise
+    private static final long GEAR_SEED = 0x5DEECE66DL;
+    private static final long[] GEARS = ContentDefinedChunker.newGears();
+    private final int averageSize;
+    private final int minSize;
+    private final int maxSize;
+    private final long smallMask;
+    private final long largeMask;
+
+    /**
+     * Create a new chunker instance
+     * @param averageSize the average chunk byte size
+     */
+    private ContentDefinedChunker(final int averageSize) {
+        final int bits = Integer.numberOfTrailingZeros(averageSize);
+        this.averageSize = averageSize;
+        this.minSize = averageSize / 4;
+        this.maxSize = averageSize * 8;
+        this.smallMask = ContentDefinedChunker.newMask(bits + ContentDefinedChunker.NORMALIZATION_LEVEL);
+        this.largeMask = ContentDefinedChunker.newMask(bits - ContentDefinedChunker.NORMALIZATION_LEVEL);
+    }
+
+    /**
+     * Create a new chunker
+     * @param averageSize the average chunk byte size
+     * @return a new chunker
+     * @throws IllegalArgumentException if the average size isn't a power of two within [256, 1 mo]
+     */
+    public static ContentDefinedChunker newInstance(final int averageSize) {
+        ContentDefinedChunker.checkAverageSize(averageSize);
+        return (new ContentDefinedChunker(averageSize));
+    }
+
+    /**
+     * Check the average size of the chunks
+     * @param averageSize the average chunk byte size
+     * @throws IllegalArgumentException if the average size isn't a power of two within [256, 1 mo]
+     */
+    public static void checkAverageSize(final int averageSize) {
+        if (averageSize < ContentDefinedChunker.MIN_AVERAGE_BYTE_SIZE || averageSize > ContentDefinedChunker.MAX_AVERAGE_BYTE_SIZE
+                || Integer.bitCount(averageSize) != 1)
+            throw new IllegalArgumentException("Average chunk size must be a power of two within ["
+                    + ContentDefinedChunker.MIN_AVERAGE_BYTE_SIZE + ", " + ContentDefinedChunker.MAX_AVERAGE_BYTE_SIZE + "]");
+    }
+
+    /**
+     * Create the gear table, a random value per byte drawn from a fixed seed
+     * @return the gear table
+     */
+    private static long[] newGears() {
+        final Random random = new Random(ContentDefinedChunker.GEAR_SEED);
+        final long[] gears = new long[256];
+        for (int i = 0; i < gears.length; ++i)
+            gears[i] = random.nextLong();
+        return (gears);
+    }
+
+    /**
+     * Create a mask of the highest bits of the hash, they depend on the most bytes
+     * @param nbBits the number of bits to match
+     * @return the mask
+     */
+    private static long newMask(final int nbBits) {
+        return (-1L << (Long.SIZE - nbBits));
+    }
+
+    /**
+     * Get the length of the chunk starting at an offset of data
+     * @param data the data
+     * @param offset the offset of the chunk start
+     * @param end the offset following the last byte of the data
+     * @return the chunk length, 0 only if there isn't any byte left
+     */
+    public int next(final byte[] data, final int offset, final int end) {
+        Objects.requireNonNull(data);
+        final int length = Math.min(end - offset, this.maxSize);
+        if (length <= this.minSize)
+            return (length);
+        final int normalSize = Math.min(length, this.averageSize);
+        long hash = 0;
+        int i = this.minSize;
+        for (; i < normalSize; ++i) {
+            hash = (hash << 1) + ContentDefinedChunker.GEARS[data[offset + i] & 0xFF];
+            if ((hash & this.smallMask) == 0)
+                return (i);
+        }
+        for (; i < length; ++i) {
+            hash = (hash << 1) + ContentDefinedChunker.GEARS[data[offset + i] & 0xFF];
+            if ((hash & this.largeMask) == 0)
+                return (i);
+        }
+        return (length);
+    }
+
+    /**
+     * Get the average chunk size
+     * @return the average chunk byte size
+     */
+    public int getAverageSize() {
+        return (this.averageSize);
+    }
+
+    /**
+     * Get the minimum chunk size, only the last chunk of data may be smaller
+     * @return the minimum chunk byte size
+     */
+    public int getMinSize() {
+        return (this.minSize);
+    }
+
+    /**
+     * Get the maximum chunk size
+     * @return the maximum chunk byte size
+     */
+    public int getMaxSize() {
+        return (this.maxSize);
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "ContentDefinedChunker{" +
+                "averageSize=" + this.averageSize +
+                ", minSize=" + this.minSize +
+                ", maxSize=" + this.maxSize +
+                '}';
+    }
+}
@@ -11,12 +11,14 @@ import fr.diguiet.grpc.common.IJsonSerialize;
 import fr.diguiet.grpc.common.utils.BytesUtils;
 import fr.diguiet.grpc.common.utils.StringUtils;
 import fr.diguiet.grpc.common.utils.TimestampUtils;
+import fr.diguiet.grpc.fileserver.checksum.ChecksumAlgorithm;
 import fr.diguiet.grpc.fileserver.exception.databasefile.MetadataException;
 import fr.diguiet.grpc.fileserver.json.TimestampDataBind;
 import fr.diguiet.grpc.fileserver.exception.databasefile.SerializerOutOfBound;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import java.io.IOException;
 import java.util.Objects;
@@ -24,19 +26,26 @@ import java.util.UUID;
 
 /**
  * Represent the metadata of a database file
- * Serializable to json
+ * Serializable to json, stored by the file server with the binary {@link MetadataCodec}
  * @see DatabaseFileMetadata
  */
 @Immutable
 public class DatabaseFileMetadata implements IJsonSerialize {
     private static final Logger logger = LoggerFactory.getLogger(DatabaseFileMetadata.class);
     private static final int MAX_SERIALIZED_LENGTH = 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper(); // Thread safe once configured
     private final UUID id;
     private final int dataLength;
     private final Timestamp creationDate;
     private final Timestamp lastModificationDate;
     private final Timestamp expirationDate;
     private final byte[] checksum;
+    private final ChecksumAlgorithm checksumAlgorithm;
+    private final byte[] checksumState;
+    private final boolean spilled;
+    private final int compressionBlockSize;
+    private final boolean deduplicated;
+    private final boolean inline;
 
     /**
      * Create a new instance using a builder
@@ -49,6 +58,12 @@ public class DatabaseFileMetadata implements IJsonSerialize {
         this.expirationDate = builder.expirationDate;
         this.lastModificationDate = builder.lastModificationDate;
         this.checksum = builder.checksum;
+        this.checksumAlgorithm = builder.checksumAlgorithm;
+        this.checksumState = builder.checksumState;
+        this.spilled = builder.spilled;
+        this.compressionBlockSize = builder.compressionBlockSize;
+        this.deduplicated = builder.deduplicated;
+        this.inline = builder.inline;
     }
 
     /**
@@ -58,9 +73,8 @@ public class DatabaseFileMetadata implements IJsonSerialize {
      */
     @Override @JsonIgnore
     public String toJsonString() {
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            return (mapper.writeValueAsString(this));
+            return (DatabaseFileMetadata.MAPPER.writeValueAsString(this));
         } catch (JsonProcessingException e) {
             DatabaseFileMetadata.logger.warn("Unable to convert object into json string");
             DatabaseFileMetadata.logger.debug("DatabaseFileMetadata: " + this);
@@ -76,6 +90,12 @@ public class DatabaseFileMetadata implements IJsonSerialize {
         private UUID id;
         private int dataLength;
         private byte[] checksum;
+        private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.SHA1; // Algorithm of the metadata saved before it was recorded
+        private byte[] checksumState;
+        private boolean spilled = false;
+        private int compressionBlockSize = 0;
+        private boolean deduplicated = false;
+        private boolean inline = false;
         private Timestamp creationDate;
         private Timestamp expirationDate;
         private Timestamp lastModificationDate;
@@ -108,9 +128,8 @@ public class DatabaseFileMetadata implements IJsonSerialize {
         @JsonIgnore
         public static DatabaseFileMetadata.Builder fromJson(final String json) {
             Objects.requireNonNull(json);
-            ObjectMapper mapper = new ObjectMapper();
             try {
-                final Builder builder = mapper.readValue(json, Builder.class);
+                final Builder builder = DatabaseFileMetadata.MAPPER.readValue(json, Builder.class);
                 // double check since jackson doesn't check required fields
                 builder.checkRequiredField();
                 return (builder);
@@ -181,21 +200,82 @@ public class DatabaseFileMetadata implements IJsonSerialize {
             return (this.setLastModificationDate(lastModificationDate));
         }
 
+        /**
+         * Specify the algorithm used to compute the checksum, {@link ChecksumAlgorithm#SHA1} by default
+         * @param checksumAlgorithm the checksum algorithm
+         * @return The build step
+         */
+        @Override @JsonIgnore
+        public Build checksumAlgorithm(final ChecksumAlgorithm checksumAlgorithm) {
+            return (this.setChecksumAlgorithm(checksumAlgorithm));
+        }
+
+        /**
+         * Specify the running state of the checksum, used to resume it when data is appended to the file
+         * @param checksumState the running checksum state Or Null if it can't be serialized
+         * @return The build step
+         */
+        @Override @JsonIgnore
+        public Build checksumState(@Nullable final byte[] checksumState) {
+            return (this.setChecksumState(checksumState));
+        }
+
+        /**
+         * Specify whether or not the file data is stored in a side file instead of the data database, False by default
+         * @param spilled if the file data is spilled
+         * @return The build step
+         */
+        @Override @JsonIgnore
+        public Build spilled(final boolean spilled) {
+            return (this.setSpilled(spilled));
+        }
+
+        /**
+         * Specify the block size of the compressed chunks of the file data, 0 by default when the chunks aren't compressed
+         * @param compressionBlockSize the compression block size Or 0
+         * @return The build step
+         * @see BlockCodec
+         */
+        @Override @JsonIgnore
+        public Build compressionBlockSize(final int compressionBlockSize) {
+            return (this.setCompressionBlockSize(compressionBlockSize));
+        }
+
+        /**
+         * Specify whether or not the chunks of the file data are references to content shared by the files, False by default
+         * @param deduplicated if the file chunks are deduplicated
+         * @return The build step
+         */
+        @Override @JsonIgnore
+        public Build deduplicated(final boolean deduplicated) {
+            return (this.setDeduplicated(deduplicated));
+        }
+
+        /**
+         * Specify whether or not the file data is stored in the metadata record instead of the data database, False by default
+         * @param inline if the file data is inline
+         * @return The build step
+         */
+        @Override @JsonIgnore
+        public Build inline(final boolean inline) {
+            return (this.setInline(inline));
+        }
+
         /**
          * Build the file metadata instance
          * @return a built instance of file metadata
-         * @throws SerializerOutOfBound if the serialized length of the built object is longer than {@value #MAX_SERIALIZED_LENGTH}
+         * @throws SerializerOutOfBound if the encoded length of the built object is longer than {@value #MAX_SERIALIZED_LENGTH}
          */
         @Override @JsonIgnore
         public DatabaseFileMetadata build() {
             final DatabaseFileMetadata databaseFileMetadata = new DatabaseFileMetadata(this);
-            final int serializedLength = databaseFileMetadata.toJsonString().length();
+            final int serializedLength = MetadataCodec.getEncodedLength(databaseFileMetadata);
             if (serializedLength > DatabaseFileMetadata.MAX_SERIALIZED_LENGTH) {
                 DatabaseFileMetadata.logger.error("Serialized length (" + serializedLength + ") greater than max (" + DatabaseFileMetadata.getMaxSerializedLength() + ")");
                 DatabaseFileMetadata.logger.debug("DatabaseFileMetadata: " + databaseFileMetadata);
                 throw new SerializerOutOfBound(serializedLength);
             }
-            return (new DatabaseFileMetadata(this));
+            return (databaseFileMetadata);
         }
 
         /**
@@ -262,6 +342,57 @@ public class DatabaseFileMetadata implements IJsonSerialize {
             return (this);
         }
 
+        /**
+         * Only to allow Jackson to deserialize automatically the builder
+         */
+        private Builder setChecksumAlgorithm(final ChecksumAlgorithm checksumAlgorithm) {
+            Objects.requireNonNull(checksumAlgorithm);
+            this.checksumAlgorithm = checksumAlgorithm;
+            return (this);
+        }
+
+        /**
+         * Only to allow Jackson to deserialize automatically the builder
+         */
+        private Builder setChecksumState(@Nullable final byte[] checksumState) {
+            this.checksumState = checksumState;
+            return (this);
+        }
+
+        /**
+         * Only to allow Jackson to deserialize automatically the builder
+         */
+        private Builder setSpilled(final boolean spilled) {
+            this.spilled = spilled;
+            return (this);
+        }
+
+        /**
+         * Only to allow Jackson to deserialize automatically the builder
+         */
+        private Builder setCompressionBlockSize(final int compressionBlockSize) {
+            if (compressionBlockSize != 0)
+                BlockCodec.checkBlockSize(compressionBlockSize);
+            this.compressionBlockSize = compressionBlockSize;
+            return (this);
+        }
+
+        /**
+         * Only to allow Jackson to deserialize automatically the builder
+         */
+        private Builder setDeduplicated(final boolean deduplicated) {
+            this.deduplicated = deduplicated;
+            return (this);
+        }
+
+        /**
+         * Only to allow Jackson to deserialize automatically the builder
+         */
+        private Builder setInline(final boolean inline) {
+            this.inline = inline;
+            return (this);
+        }
+
         /**
          * Check the required builder fields
          * Since jackson doesn't check required field, we set every required field again just in case there is one missing
@@ -270,6 +401,7 @@ public class DatabaseFileMetadata implements IJsonSerialize {
             this.setId(this.id);
             this.setDataLength(this.dataLength);
             this.checksum(this.checksum);
+            this.setChecksumAlgorithm(this.checksumAlgorithm);
             this.setCreationDate(this.creationDate);
             this.setExpirationDate(this.expirationDate);
             this.setLastModificationDate(this.lastModificationDate);
@@ -290,6 +422,12 @@ public class DatabaseFileMetadata implements IJsonSerialize {
             this.id = databaseFileMetadata.id;
             this.dataLength = databaseFileMetadata.dataLength;
             this.checksum = databaseFileMetadata.checksum;
+            this.checksumAlgorithm = databaseFileMetadata.checksumAlgorithm;
+            this.checksumState = databaseFileMetadata.checksumState;
+            this.spilled = databaseFileMetadata.spilled;
+            this.compressionBlockSize = databaseFileMetadata.compressionBlockSize;
+            this.deduplicated = databaseFileMetadata.deduplicated;
+            this.inline = databaseFileMetadata.inline;
             this.creationDate = databaseFileMetadata.creationDate;
             this.expirationDate = databaseFileMetadata.expirationDate;
             this.lastModificationDate = databaseFileMetadata.lastModificationDate;
@@ -342,6 +480,12 @@ public class DatabaseFileMetadata implements IJsonSerialize {
      * Build step, used in the builder
      */
     public interface Build {
+        public Build checksumAlgorithm(final ChecksumAlgorithm checksumAlgorithm);
+        public Build checksumState(@Nullable final byte[] checksumState);
+        public Build spilled(final boolean spilled);
+        public Build compressionBlockSize(final int compressionBlockSize);
+        public Build deduplicated(final boolean deduplicated);
+        public Build inline(final boolean inline);
         public DatabaseFileMetadata build();
     }
 
@@ -396,6 +540,65 @@ public class DatabaseFileMetadata implements IJsonSerialize {
         return (this.checksum.clone());
     }
 
+    /**
+     * Get the algorithm used to compute the file data checksum
+     * @return the checksum algorithm
+     */
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return (this.checksumAlgorithm);
+    }
+
+    /**
+     * Get the running state of the file data checksum
+     * @return the running checksum state Or Null if it can't be serialized
+     * @see fr.diguiet.grpc.fileserver.checksum.IChecksum#getState()
+     */
+    public @Nullable byte[] getChecksumState() {
+        return ((this.checksumState != null) ? this.checksumState.clone() : null);
+    }
+
+    /**
+     * Get whether or not the file data is stored in a side file instead of the data database
+     * @return if the file data is spilled
+     */
+    public boolean isSpilled() {
+        return (this.spilled);
+    }
+
+    /**
+     * Get the block size of the compressed chunks of the file data
+     * @return the compression block size Or 0 if the chunks aren't compressed
+     * @see BlockCodec
+     */
+    public int getCompressionBlockSize() {
+        return (this.compressionBlockSize);
+    }
+
+    /**
+     * Get whether or not the chunks of the file data are compressed
+     * @return if the file data is compressed
+     */
+    @JsonIgnore
+    public boolean isCompressed() {
+        return (this.compressionBlockSize != 0);
+    }
+
+    /**
+     * Get whether or not the chunks of the file data are references to content shared by the files
+     * @return if the file chunks are deduplicated
+     */
+    public boolean isDeduplicated() {
+        return (this.deduplicated);
+    }
+
+    /**
+     * Get whether or not the file data is stored in the metadata record instead of the data database
+     * @return if the file data is inline
+     */
+    public boolean isInline() {
+        return (this.inline);
+    }
+
     /**
      * The maximum serialized length of a metadata instance
      * @return the maximum serialized length
@@ -417,6 +620,11 @@ public class DatabaseFileMetadata implements IJsonSerialize {
                 ", lastModificationDate=" + StringUtils.replaceNewLine(this.lastModificationDate.toString(), " ") +
                 ", expirationDate=" + StringUtils.replaceNewLine(this.expirationDate.toString(), " ") +
                 ", checksum=" + BytesUtils.toBase64String(this.checksum) +
+                ", checksumAlgorithm=" + this.checksumAlgorithm +
+                ", spilled=" + this.spilled +
+                ", compressionBlockSize=" + this.compressionBlockSize +
+                ", deduplicated=" + this.deduplicated +
+                ", inline=" + this.inline +
                 '}';
     }
 }
@@ -0,0 +1,62 @@
+package fr.diguiet.grpc.fileserver;
+
+import fr.diguiet.grpc.fileserver.exception.RunTimeFileServerException;
+import org.lmdbjava.Env;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Utils class with static method to reach the LMDB env functions lmdbjava doesn't expose
+ * lmdbjava 0.6.1 binds mdb_env_set_mapsize but only calls it before opening the env,
+ * the binding is reached by reflection until the library exposes Env.setMapSize
+ */
+final class EnvUtils {
+    private static final Object LMDB;
+    private static final Method SET_MAP_SIZE;
+    private static final Method POINTER;
+
+    static {
+        try {
+            final Field lib = Class.forName("org.lmdbjava.Library").getDeclaredField("LIB");
+            lib.setAccessible(true);
+            LMDB = lib.get(null);
+            SET_MAP_SIZE = Class.forName("org.lmdbjava.Library$Lmdb")
+                    .getMethod("mdb_env_set_mapsize", Class.forName("jnr.ffi.Pointer"), long.class);
+            SET_MAP_SIZE.setAccessible(true);
+            POINTER = Env.class.getDeclaredMethod("pointer");
+            POINTER.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Class is not instantiable and inheritable
+     */
+    private EnvUtils() {
+
+    }
+
+    /**
+     * Set the map size of an open env, the data file grows as needed
+     * No transaction may be active in the process while the map is resized and
+     * no buffer read from the previous map may be used afterward
+     * @param env the open LMDB env
+     * @param mapSize the new map size in byte, a multiple of the page size
+     * @throws RunTimeFileServerException if the map can't be resized
+     */
+    static void setMapSize(final Env<ByteBuffer> env, final long mapSize) {
+        Objects.requireNonNull(env);
+        try {
+            final int rc = (int) EnvUtils.SET_MAP_SIZE.invoke(EnvUtils.LMDB, EnvUtils.POINTER.invoke(env), mapSize);
+            if (rc != 0)
+                throw new RunTimeFileServerException("Unable to set the map size to " + mapSize + ", error code " + rc);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new RunTimeFileServerException("Unable to set the map size to " + mapSize, e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package fr.diguiet.grpc.fileserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic remover of the expired files of a file server, run by slices on a scheduled executor
+ * A slice removes a bounded number of expired files in one short write, so a sweep never holds a reader
+ * nor the writers for long. Once the time budget of a run is spent the sweep yields for as long as the budget
+ * and goes on from where it stopped, the files expiring meanwhile are removed by the same sweep.
+ * The duration of each sweep is logged and kept with the number of files it removed
+ */
+public class ExpirationSweeper {
+    private static final Logger logger = LoggerFactory.getLogger(ExpirationSweeper.class);
+    private static final int TERMINATION_SECONDS_TIMEOUT = 10;
+    private final String name;
+    private final ScheduledExecutorService executor;
+    private final ISlice slice;
+    private final long periodMs;
+    private final int sliceSize;
+    private final long timeBudgetMs;
+    private long sweepStartNanos = 0;
+    private long nbSweepRemoved = 0;
+    private int nbSweepSlices = 0;
+    private volatile long lastSweepNanos = 0;
+    private volatile long lastSweepNbRemoved = 0;
+    private volatile long nbSweeps = 0;
+    private volatile long nbRemoved = 0;
+
+    /**
+     * A slice of sweep
+     */
+    @FunctionalInterface
+    public interface ISlice {
+        /**
+         * Remove at most the specified number of expired files
+         * @param maxNbFiles the maximum number of files to remove
+         * @return the number of files removed, the sweep is over once it's below the maximum
+         */
+        int sweep(int maxNbFiles);
+    }
+
+    /**
+     * Create a new sweeper instance
+     * @param name the name of the swept file server
+     * @param executor the executor running the slices
+     * @param slice the slice of sweep
+     * @param periodMs the number of milliseconds between the end of a sweep and the next one
+     * @param sliceSize the maximum number of files removed by a slice
+     * @param timeBudgetMs the number of milliseconds a sweep runs before yielding
+     */
+    private ExpirationSweeper(final String name, final ScheduledExecutorService executor, final ISlice slice,
+                              final long periodMs, final int sliceSize, final long timeBudgetMs) {
+        this.name = name;
+        this.executor = executor;
+        this.slice = slice;
+        this.periodMs = periodMs;
+        this.sliceSize = sliceSize;
+        this.timeBudgetMs = timeBudgetMs;
+    }
+
+    /**
+     * Create a new sweeper, the first sweep starts after a period
+     * @param name the name of the swept file server, used in the logs
+     * @param executor the executor running the slices, shared with the other periodic tasks of the file server
+     * @param slice the slice of sweep
+     * @param periodMs the number of milliseconds between the end of a sweep and the next one
+     * @param sliceSize the maximum number of files removed by a slice
+     * @param timeBudgetMs the number of milliseconds a sweep runs before yielding
+     * @return a new sweeper
+     * @throws IllegalArgumentException if the period or the slice size is below 1 or the time budget negative
+     */
+    public static ExpirationSweeper newInstance(final String name, final ScheduledExecutorService executor, final ISlice slice,
+                                                final long periodMs, final int sliceSize, final long timeBudgetMs) {
+        Objects.requireNonNull(name);
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(slice);
+        if (periodMs < 1)
+            throw new IllegalArgumentException("The sweep period must be greater than 0");
+        if (sliceSize < 1)
+            throw new IllegalArgumentException("The slice size must be greater than 0");
+        if (timeBudgetMs < 0)
+            throw new IllegalArgumentException("The time budget must be greater than or equal to 0");
+        final ExpirationSweeper sweeper = new ExpirationSweeper(name, executor, slice, periodMs, sliceSize, timeBudgetMs);
+        executor.schedule(sweeper::run, periodMs, TimeUnit.MILLISECONDS);
+        return (sweeper);
+    }
+
+    /**
+     * Create a single daemon thread executor for the periodic tasks of a file server
+     * The delayed tasks are dropped once it's shut down
+     * @param threadName the thread name
+     * @return a new scheduled executor
+     */
+    public static ScheduledExecutorService newScheduler(final String threadName) {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return (thread);
+        });
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        return (scheduler);
+    }
+
+    /**
+     * Stop an executor of periodic tasks, the slice in progress is run to the end
+     * @param scheduler the executor
+     */
+    public static void shutdown(final ScheduledExecutorService scheduler) {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(ExpirationSweeper.TERMINATION_SECONDS_TIMEOUT, TimeUnit.SECONDS))
+                ExpirationSweeper.logger.warn("Periodic task still running after " + ExpirationSweeper.TERMINATION_SECONDS_TIMEOUT + " seconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run the slices of the current sweep until it's over or the time budget is spent, then schedule the next run
+     */
+    private void run() {
+        final long runStartNanos = System.nanoTime();
+        if (this.nbSweepSlices == 0)
+            this.sweepStartNanos = runStartNanos;
+        try {
+            while (true) {
+                final int nbRemoved = this.slice.sweep(this.sliceSize);
+                this.nbSweepRemoved += nbRemoved;
+                ++this.nbSweepSlices;
+                if (nbRemoved < this.sliceSize) {
+                    this.endSweep();
+                    return;
+                }
+                if (System.nanoTime() - runStartNanos >= TimeUnit.MILLISECONDS.toNanos(this.timeBudgetMs)) {
+                    this.reschedule(this.timeBudgetMs);
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            ExpirationSweeper.logger.error("Sweep of " + this.name + " failed: " + e.getMessage());
+            this.endSweep();
+        }
+    }
+
+    /**
+     * Record the figures of the sweep that just ended and schedule the next one
+     */
+    private void endSweep() {
+        this.lastSweepNanos = System.nanoTime() - this.sweepStartNanos;
+        this.lastSweepNbRemoved = this.nbSweepRemoved;
+        this.nbRemoved += this.nbSweepRemoved;
+        ++this.nbSweeps;
+        if (this.nbSweepRemoved > 0 || ExpirationSweeper.logger.isDebugEnabled()) {
+            ExpirationSweeper.logger.info("Sweep of " + this.name + " removed " + this.nbSweepRemoved + " expired files in "
+                    + TimeUnit.NANOSECONDS.toMillis(this.lastSweepNanos) + " ms over " + this.nbSweepSlices + " slices");
+        }
+        this.nbSweepRemoved = 0;
+        this.nbSweepSlices = 0;
+        this.reschedule(this.periodMs);
+    }
+
+    /**
+     * Schedule the next run, unless the executor is shut down
+     * @param delayMs the delay in milliseconds
+     */
+    private void reschedule(final long delayMs) {
+        if (!this.executor.isShutdown())
+            this.executor.schedule(this::run, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the number of nanoseconds the last sweep took, from its first slice to its last including the yields
+     * @return the duration of the last sweep in nanoseconds, 0 if no sweep is over yet
+     */
+    public long getLastSweepNanos() {
+        return (this.lastSweepNanos);
+    }
+
+    /**
+     * Get the number of files removed by the last sweep
+     * @return the number of files removed
+     */
+    public long getLastSweepNbRemoved() {
+        return (this.lastSweepNbRemoved);
+    }
+
+    /**
+     * Get the number of files removed by all the sweeps over so far
+     * @return the number of files removed
+     */
+    public long getNbRemoved() {
+        return (this.nbRemoved);
+    }
+
+    /**
+     * Get the number of sweeps over so far
+     * @return the number of sweeps
+     */
+    public long getNbSweeps() {
+        return (this.nbSweeps);
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "ExpirationSweeper{" +
+                "name='" + this.name + '\'' +
+                ", periodMs=" + this.periodMs +
+                ", sliceSize=" + this.sliceSize +
+                ", timeBudgetMs=" + this.timeBudgetMs +
+                ", lastSweepNanos=" + this.lastSweepNanos +
+                ", lastSweepNbRemoved=" + this.lastSweepNbRemoved +
+                ", nbSweeps=" + this.nbSweeps +
+                ", nbRemoved=" + this.nbRemoved +
+                '}';
+    }
+}
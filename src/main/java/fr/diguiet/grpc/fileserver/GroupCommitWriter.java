@@ -0,0 +1,268 @@
+package fr.diguiet.grpc.fileserver;
+
+import fr.diguiet.grpc.fileserver.exception.ClosedException;
+import org.lmdbjava.Env;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single writer thread that commits the queued write operations by batch
+ * LMDB only allows one writer at a time, so instead of each caller waiting for the write lock and paying for its own commit,
+ * the operations are queued and applied in a single transaction per batch.
+ * Each operation runs in its own nested transaction so a failing operation doesn't fail the rest of the batch
+ * @see WriteSession
+ */
+public class GroupCommitWriter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+    private static final long POLL_MS_DELAY = 100;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Env<ByteBuffer> env;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final Lock commitLock;
+    private final Thread writer;
+    private boolean isOpen = true;
+
+    /**
+     * A write operation applied by the writer thread
+     */
+    @FunctionalInterface
+    public interface IWriteOperation {
+        /**
+         * Apply the operation
+         * @param session the write session of the operation
+         */
+        void apply(final WriteSession session);
+    }
+
+    /**
+     * A queued write operation and the future completed once it has been committed
+     */
+    private static class PendingWrite {
+        private final IWriteOperation operation;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private RuntimeException failure;
+
+        /**
+         * Create a new pending write
+         * @param operation the write operation
+         */
+        private PendingWrite(final IWriteOperation operation) {
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * Create and start a new writer
+     * @param env the LMDB env to write to
+     * @param maxBatchSize the maximum number of operations committed at once
+     * @param lingerMs the maximum number of milliseconds to wait for more operations before committing a batch
+     * @return a new started writer
+     * @throws IllegalArgumentException if the batch size is below 1 or the linger time is negative
+     */
+    public static GroupCommitWriter newInstance(final Env<ByteBuffer> env, final int maxBatchSize, final long lingerMs) {
+        return (GroupCommitWriter.newInstance(env, maxBatchSize, lingerMs, new ReentrantLock()));
+    }
+
+    /**
+     * Create and start a new writer that holds a lock while committing each batch
+     * @param env the LMDB env to write to
+     * @param maxBatchSize the maximum number of operations committed at once
+     * @param lingerMs the maximum number of milliseconds to wait for more operations before committing a batch
+     * @param commitLock the lock held from the start of a batch transaction to its end
+     * @return a new started writer
+     * @throws IllegalArgumentException if the batch size is below 1 or the linger time is negative
+     */
+    public static GroupCommitWriter newInstance(final Env<ByteBuffer> env, final int maxBatchSize, final long lingerMs, final Lock commitLock) {
+        Objects.requireNonNull(env);
+        Objects.requireNonNull(commitLock);
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("Max batch size must be greater than 0");
+        if (lingerMs < 0)
+            throw new IllegalArgumentException("Linger time must be greater than or equal to 0");
+        final GroupCommitWriter groupCommitWriter = new GroupCommitWriter(env, maxBatchSize, lingerMs, commitLock);
+        groupCommitWriter.writer.start();
+        return (groupCommitWriter);
+    }
+
+    /**
+     * Create a new writer instance
+     * @param env the LMDB env to write to
+     * @param maxBatchSize the maximum number of operations committed at once
+     * @param lingerMs the maximum number of milliseconds to wait for more operations
+     * @param commitLock the lock held while committing a batch
+     */
+    private GroupCommitWriter(final Env<ByteBuffer> env, final int maxBatchSize, final long lingerMs, final Lock commitLock) {
+        this.env = env;
+        this.commitLock = commitLock;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.writer = new Thread(this::run, "lmdb-group-commit");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Queue a write operation
+     * @param operation the write operation
+     * @return a future completed once the operation has been committed, or exceptionally if it failed
+     */
+    public synchronized CompletableFuture<Void> submit(final IWriteOperation operation) {
+        Objects.requireNonNull(operation);
+        final PendingWrite pendingWrite = new PendingWrite(operation);
+        if (!this.isOpen)
+            pendingWrite.future.completeExceptionally(new ClosedException());
+        else
+            this.queue.add(pendingWrite);
+        return (pendingWrite.future);
+    }
+
+    /**
+     * Stop accepting operations and wait for the queued ones to be committed
+     * Must be idempotent because of Closeable
+     * @see Closeable
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.isOpen = false;
+        }
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            GroupCommitWriter.logger.warn("Interrupted while waiting for the writer to commit the queued operations");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Predicate that tell whether or not the writer still accepts operations
+     * @return If the writer is open or not
+     */
+    public synchronized boolean isOpen() {
+        return (this.isOpen);
+    }
+
+    /**
+     * Writer thread loop, wait for a first operation then gather a batch and commit it
+     */
+    private void run() {
+        final List<PendingWrite> batch = new ArrayList<>(this.maxBatchSize);
+        try {
+            while (this.isOpen() || !this.queue.isEmpty()) {
+                final PendingWrite first = this.queue.poll(GroupCommitWriter.POLL_MS_DELAY, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                final long deadline = System.nanoTime() + this.lingerNanos;
+                while (batch.size() < this.maxBatchSize) {
+                    PendingWrite next = this.queue.poll();
+                    if (next == null) {
+                        final long remainingNanos = deadline - System.nanoTime();
+                        if (remainingNanos <= 0)
+                            break;
+                        next = this.queue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                        if (next == null)
+                            break;
+                    }
+                    batch.add(next);
+                }
+                this.commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            GroupCommitWriter.logger.error("Writer thread interrupted, failing the queued operations");
+            batch.addAll(this.queue);
+            batch.forEach(pendingWrite -> pendingWrite.future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Apply a batch of operations in a single transaction and complete their futures
+     * If the batch transaction itself can't be begun or committed, nothing of it is durable and the operations that didn't
+     * fail on their own are applied again one by one, so each of them fails with its own cause, such as a full map the caller
+     * grows before retrying. The commit actions run once the transaction is durable never fail the batch,
+     * so a committed operation is never applied twice
+     * The futures are completed once the lock is released so their callbacks may write again
+     * @param batch the operations to commit
+     */
+    private void commit(final List<PendingWrite> batch) {
+        boolean batchFailed = false;
+        this.commitLock.lock();
+        try (final WriteSession session = WriteSession.newInstance(this.env)) {
+            for (final PendingWrite pendingWrite : batch) {
+                try (final WriteSession nested = WriteSession.newNestedInstance(this.env, session)) {
+                    pendingWrite.operation.apply(nested);
+                    nested.commit();
+                } catch (RuntimeException e) {
+                    pendingWrite.failure = e;
+                }
+            }
+            // Only throws if the transaction isn't committed, the failures of the commit actions are logged by the session
+            session.commit();
+        } catch (RuntimeException e) {
+            GroupCommitWriter.logger.warn("Unable to commit a batch of " + batch.size() + " operations, committing them one by one: " + e.getMessage());
+            batchFailed = true;
+        } finally {
+            this.commitLock.unlock();
+        }
+        if (batchFailed) {
+            for (final PendingWrite pendingWrite : batch) {
+                if (pendingWrite.failure == null)
+                    this.commitAlone(pendingWrite);
+            }
+        }
+        int nbCommitted = 0;
+        for (final PendingWrite pendingWrite : batch) {
+            if (pendingWrite.failure != null) {
+                pendingWrite.future.completeExceptionally(pendingWrite.failure);
+            } else {
+                pendingWrite.future.complete(null);
+                ++nbCommitted;
+            }
+        }
+        if (GroupCommitWriter.logger.isDebugEnabled())
+            GroupCommitWriter.logger.debug("Committed a batch of " + nbCommitted + "/" + batch.size() + " operations");
+    }
+
+    /**
+     * Apply an operation in its own transaction, its failure is recorded in the pending write
+     * @param pendingWrite the operation to commit
+     */
+    private void commitAlone(final PendingWrite pendingWrite) {
+        this.commitLock.lock();
+        try (final WriteSession session = WriteSession.newInstance(this.env)) {
+            pendingWrite.operation.apply(session);
+            session.commit();
+        } catch (RuntimeException e) {
+            pendingWrite.failure = e;
+        } finally {
+            this.commitLock.unlock();
+        }
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "GroupCommitWriter{" +
+                "maxBatchSize=" + this.maxBatchSize +
+                ", lingerNanos=" + this.lingerNanos +
+                ", queued=" + this.queue.size() +
+                ", isOpen=" + this.isOpen +
+                '}';
+    }
+}
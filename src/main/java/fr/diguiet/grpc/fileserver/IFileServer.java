@@ -34,6 +34,20 @@ public interface IFileServer extends Closeable {
      */
     void upload(final UUID fileId, final Timestamp expirationDate, final byte[] data);
 
+    /**
+     * Open a writer appending data of a known size to a file with a expiration date, like an upload
+     * The data is copied straight to its final location when the file server allows it, as it comes or when the writer is closed,
+     * so the written buffers must not be modified until then.
+     * It's saved when the writer is closed after the whole size has been written and discarded otherwise
+     * @param fileId The file id
+     * @param expirationDate The expiration date
+     * @param size The number of bytes to write
+     * @return a new writer, to be closed by the caller
+     * @throws IllegalArgumentException if the size isn't within [0, Integer.MAX_VALUE]
+     * @see BlobWriter
+     */
+    BlobWriter openWriter(final UUID fileId, final Timestamp expirationDate, final long size);
+
     /**
      * Download a file data with the specified id
      * @param fileId the file id
@@ -41,6 +55,28 @@ public interface IFileServer extends Closeable {
      */
     @Nullable byte[] download(final UUID fileId);
 
+    /**
+     * Read a range of a file data with the specified id
+     * @param fileId the file id
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read
+     * @return the requested range of the file data or Null if the file wasn't found or is expired
+     * @throws IllegalArgumentException if the range is not within the file data
+     */
+    @Nullable byte[] read(final UUID fileId, final long offset, final int length);
+
+    /**
+     * Lease a range of a file data with the specified id without copying it
+     * The lease must be closed once the data isn't used anymore
+     * @param fileId the file id
+     * @param offset the offset of the first byte to lease
+     * @param length the number of bytes to lease
+     * @return the lease of the requested range or Null if the file wasn't found or is expired
+     * @throws IllegalArgumentException if the range is not within the file data
+     * @see BlobLease
+     */
+    @Nullable BlobLease lease(final UUID fileId, final long offset, final int length);
+
     /**
      * Get the file metadata related to the specified file id
      * @param fileId the file id
@@ -93,6 +129,22 @@ public interface IFileServer extends Closeable {
      */
     boolean hasEnoughSpaceFor(final int nbByte);
 
+    /**
+     * Reserve space for a file about to be uploaded, the reserved space isn't available to the other files
+     * The reservation is used up as the file data is uploaded and released when the file is deleted or the reservation expires
+     * @param fileId the file id
+     * @param nbByte the file data length
+     * @param expirationDate the date after which the space is released if not used
+     * @return False if there isn't enough space, nothing is reserved then
+     */
+    boolean reserve(final UUID fileId, final int nbByte, final Timestamp expirationDate);
+
+    /**
+     * Release the space still reserved for a file, if any
+     * @param fileId the file id
+     */
+    void releaseReservation(final UUID fileId);
+
     /**
      * Predicate that tell whether or not the file server is open
      * @return If the file server is open or not
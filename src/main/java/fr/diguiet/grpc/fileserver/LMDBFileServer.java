@@ -1,27 +1,42 @@
 package fr.diguiet.grpc.fileserver;
 
 import com.google.protobuf.Timestamp;
+import fr.diguiet.grpc.fileserver.checksum.ChecksumAlgorithm;
+import fr.diguiet.grpc.fileserver.checksum.IChecksum;
 import fr.diguiet.grpc.fileserver.exception.FileServerException;
 import fr.diguiet.grpc.fileserver.exception.AlreadyOpenException;
 import fr.diguiet.grpc.fileserver.exception.ClosedException;
+import fr.diguiet.grpc.fileserver.exception.databasefile.DatabaseFileException;
+import fr.diguiet.grpc.fileserver.exception.databasefile.MetadataException;
 import fr.diguiet.grpc.common.utils.BytesUtils;
 import fr.diguiet.grpc.common.utils.FileUtils;
 import fr.diguiet.grpc.common.utils.TimestampUtils;
 import fr.diguiet.grpc.common.utils.UUIDUtils;
-import jdk.nashorn.internal.ir.annotations.Immutable;
+import net.jodah.expiringmap.ExpirationPolicy;
+import net.jodah.expiringmap.ExpiringMap;
 import org.lmdbjava.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Represent an implementation of file server using the LMDB embedded NoSql database
@@ -29,33 +44,58 @@ import java.util.UUID;
  * @see org.lmdbjava.Library.Lmdb
  */
 public class LMDBFileServer implements IFileServer {
-    private static final int MIN_READERS = LMDBFileServer.DB_COUNT;
+    private static final int MIN_READERS = 3;
     private static final long DB_MIN_BYTE_SIZE = 4096;
-    private static final int DB_COUNT = 2;
+    private static final int DB_COUNT = 5;
     private static final Logger logger = LoggerFactory.getLogger(LMDBFileServer.class);
-    private final Timer scheduler = new Timer();
+    private static final ByteBuffer EMPTY_VALUE = ByteBuffer.allocateDirect(0);
+    private static final String SPILL_DIRECTORY_NAME = "spill";
+    private static final String CONTENT_DB_NAME = "content";
+    private static final String REF_DB_NAME = "refs";
+    private static final int MAX_INLINE_THRESHOLD_BYTE_SIZE = 64 * 1024;
+    private static final int CLOSE_SECONDS_TIMEOUT = 10;
+    private static final long RESIZE_MS_TIMEOUT = 1000;
+    // Running checksums of the files whose checksum state can't be stored in their metadata
+    private final ExpiringMap<UUID, IChecksum> runningChecksums = ExpiringMap.builder()
+            .variableExpiration()
+            .build();
     private final Settings settings;
     private boolean isOpen = false;
     private Env<ByteBuffer> env;
     private Dbi<ByteBuffer> dataDb;
     private Dbi<ByteBuffer> metaDb;
+    private Dbi<ByteBuffer> expireDb;
+    // The deduplicated chunks by content key and their number of references
+    private Dbi<ByteBuffer> contentDb;
+    private Dbi<ByteBuffer> refDb;
+    private GroupCommitWriter writer;
+    private int pageSize;
+    private volatile long mapSize;
+    private SpaceLedger ledger;
+    private Transaction.ReadPool readers;
+    private SpillStore spill;
+    private ScheduledExecutorService scheduler;
+    private ExpirationSweeper sweeper;
+    // Held for read by the write transactions and for write while the map is resized
+    private final ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();
+    // Held by the write sessions of the caller threads until their commit actions have run
+    private final ReentrantLock sessionLock = new ReentrantLock();
 
     /**
      * Create a new instance from a builder
      * @param builder
      */
     private LMDBFileServer(final LMDBFileServer.Builder builder) {
-        this.settings = new Settings(builder);
-        final long checkEveryMs = this.settings.expirationCheckSecondsDelay * 1000;
-        this.scheduler.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                if (LMDBFileServer.this.isOpen) {
-                    LMDBFileServer.logger.info("Cleaning expired entries...");
-                    LMDBFileServer.this.removeExpired();
-                }
-            }
-        }, checkEveryMs, checkEveryMs);
+        this(builder, builder.dbDirectoryName);
+    }
+
+    /**
+     * Create a new instance from a builder, stored in another directory than the builder one
+     * @param builder the builder
+     * @param dbDirectoryName the database directory name
+     */
+    private LMDBFileServer(final LMDBFileServer.Builder builder, final String dbDirectoryName) {
+        this.settings = new Settings(builder, dbDirectoryName);
     }
 
     /**
@@ -73,22 +113,59 @@ public class LMDBFileServer implements IFileServer {
     public static class Settings {
         private final String dataDbName;
         private final String metaDbName;
+        private final String expireDbName;
         private final File dbDirectory;
         private final long dbMaxByteSize;
+        private final long dbGrowthCeilingByteSize;
+        private final double dbGrowthFactor;
+        private final double dbGrowthHighWaterMark;
         private final int maxNbReaders;
+        private final long readerWaitMs;
         private final int expirationCheckSecondsDelay;
+        private final int spaceReconcileSecondsDelay;
+        private final int expirationSliceSize;
+        private final long expirationTimeBudgetMs;
+        private final ChecksumAlgorithm checksumAlgorithm;
+        private final boolean groupCommit;
+        private final int groupCommitMaxBatchSize;
+        private final long groupCommitLingerMs;
+        private final int spillThresholdByteSize;
+        private final int inlineThresholdByteSize;
+        private final boolean compressed;
+        private final int compressionBlockByteSize;
+        private final boolean deduplicated;
+        private final ContentDefinedChunker chunker;
 
         /**
          * Create a new Settings instance from the Builder
          * @param builder
+         * @param dbDirectoryName the database directory name
          */
-        private Settings(final Builder builder) {
+        private Settings(final Builder builder, final String dbDirectoryName) {
             this.dataDbName = builder.dataDbName;
             this.metaDbName = builder.metaDbName;
-            this.dbDirectory = new File(builder.parentDbDirectory, builder.dbDirectoryName);
+            this.expireDbName = builder.expireDbName;
+            this.dbDirectory = new File(builder.parentDbDirectory, dbDirectoryName);
             this.dbMaxByteSize = builder.dbMaxByteSize;
+            this.dbGrowthCeilingByteSize = Math.max(builder.dbGrowthCeilingByteSize, builder.dbMaxByteSize);
+            this.dbGrowthFactor = builder.dbGrowthFactor;
+            this.dbGrowthHighWaterMark = builder.dbGrowthHighWaterMark;
             this.maxNbReaders = builder.maxReaders;
+            this.readerWaitMs = builder.readerWaitMs;
             this.expirationCheckSecondsDelay =  builder.expirationCheckSecondsDelay;
+            this.spaceReconcileSecondsDelay = builder.spaceReconcileSecondsDelay;
+            this.expirationSliceSize = builder.expirationSliceSize;
+            this.expirationTimeBudgetMs = builder.expirationTimeBudgetMs;
+            this.checksumAlgorithm = builder.checksumAlgorithm;
+            this.groupCommit = builder.groupCommit;
+            this.groupCommitMaxBatchSize = builder.groupCommitMaxBatchSize;
+            this.groupCommitLingerMs = builder.groupCommitLingerMs;
+            this.spillThresholdByteSize = builder.spillThresholdByteSize;
+            this.inlineThresholdByteSize = builder.inlineThresholdByteSize;
+            this.compressed = builder.compressed;
+            this.compressionBlockByteSize = builder.compressionBlockByteSize;
+            this.deduplicated = builder.deduplicated || builder.contentDefinedChunking;
+            this.chunker = (builder.contentDefinedChunking) ? ContentDefinedChunker.newInstance(builder.chunkingAverageByteSize) : null;
         }
 
         /**
@@ -107,6 +184,14 @@ public class LMDBFileServer implements IFileServer {
             return (this.metaDbName);
         }
 
+        /**
+         * Get the expiration index database name
+         * @return the expiration index database name
+         */
+        public String getExpireDbName() {
+            return (this.expireDbName);
+        }
+
         /**
          * Get the database directory
          * @return the database directory
@@ -116,13 +201,37 @@ public class LMDBFileServer implements IFileServer {
         }
 
         /**
-         * Get the database maximum byte size
+         * Get the database maximum byte size, the initial map size when the map grows
          * @return the database maximum byte size
          */
         public long getDbMaxByteSize() {
             return (this.dbMaxByteSize);
         }
 
+        /**
+         * Get the byte size the map may grow up to, equal to the database maximum byte size when the map doesn't grow
+         * @return the map growth ceiling in byte
+         */
+        public long getDbGrowthCeilingByteSize() {
+            return (this.dbGrowthCeilingByteSize);
+        }
+
+        /**
+         * Get the factor the map size is multiplied by at each growth
+         * @return the map growth factor
+         */
+        public double getDbGrowthFactor() {
+            return (this.dbGrowthFactor);
+        }
+
+        /**
+         * Get the ratio of the map in use above which the map grows before the next write
+         * @return the map high water mark
+         */
+        public double getDbGrowthHighWaterMark() {
+            return (this.dbGrowthHighWaterMark);
+        }
+
         /**
          * Get the maximum number of readers
          * @return the maximum number of readers
@@ -131,6 +240,156 @@ public class LMDBFileServer implements IFileServer {
             return (this.maxNbReaders);
         }
 
+        /**
+         * Get the maximum number of milliseconds a read waits for a reader slot when they are all taken
+         * @return the reader wait in milliseconds
+         */
+        public long getReaderWaitMs() {
+            return (this.readerWaitMs);
+        }
+
+        /**
+         * Get the number of seconds between the end of a sweep of the expired files and the next one
+         * @return the number of seconds between each check
+         */
+        public int getExpirationCheckSecondsDelay() {
+            return (this.expirationCheckSecondsDelay);
+        }
+
+        /**
+         * Get the number of seconds between each reconciliation of the used space estimate
+         * @return the number of seconds between each reconciliation
+         */
+        public int getSpaceReconcileSecondsDelay() {
+            return (this.spaceReconcileSecondsDelay);
+        }
+
+        /**
+         * Get the maximum number of expired files removed in a single write transaction
+         * @return the expiration slice size
+         */
+        public int getExpirationSliceSize() {
+            return (this.expirationSliceSize);
+        }
+
+        /**
+         * Get the number of milliseconds a sweep of the expired files runs before yielding
+         * @return the expiration time budget in milliseconds
+         */
+        public long getExpirationTimeBudgetMs() {
+            return (this.expirationTimeBudgetMs);
+        }
+
+        /**
+         * Get the algorithm used to compute the checksum of new files
+         * @return the checksum algorithm
+         */
+        public ChecksumAlgorithm getChecksumAlgorithm() {
+            return (this.checksumAlgorithm);
+        }
+
+        /**
+         * Get whether or not the writes are committed by batch by a single writer thread
+         * @return if group commit is enabled
+         * @see GroupCommitWriter
+         */
+        public boolean isGroupCommit() {
+            return (this.groupCommit);
+        }
+
+        /**
+         * Get the maximum number of writes committed at once in group commit mode
+         * @return the maximum batch size
+         */
+        public int getGroupCommitMaxBatchSize() {
+            return (this.groupCommitMaxBatchSize);
+        }
+
+        /**
+         * Get the maximum number of milliseconds to wait for more writes before committing a batch in group commit mode
+         * @return the linger time in milliseconds
+         */
+        public long getGroupCommitLingerMs() {
+            return (this.groupCommitLingerMs);
+        }
+
+        /**
+         * Get the file data length from which the data is stored in a side file instead of the data database
+         * @return the spill threshold in byte
+         * @see SpillStore
+         */
+        public int getSpillThresholdByteSize() {
+            return (this.spillThresholdByteSize);
+        }
+
+        /**
+         * Predicate that tell whether or not the data of a file of the specified length is stored in a side file
+         * @param dataLength the file data length
+         * @return if the file data is spilled
+         */
+        public boolean isSpilled(final long dataLength) {
+            return (dataLength >= this.spillThresholdByteSize);
+        }
+
+        /**
+         * Get the file data length below which the data is stored in the metadata record instead of the data database
+         * @return the inline threshold in byte
+         */
+        public int getInlineThresholdByteSize() {
+            return (this.inlineThresholdByteSize);
+        }
+
+        /**
+         * Predicate that tell whether or not the data of a file of the specified length is stored in its metadata record
+         * @param dataLength the file data length
+         * @return if the file data is inline
+         */
+        public boolean isInline(final long dataLength) {
+            return (dataLength < this.inlineThresholdByteSize && !this.isSpilled(dataLength));
+        }
+
+        /**
+         * Get whether or not the chunks of the new files are compressed when their data is compressible
+         * @return if compression is enabled
+         * @see BlockCodec
+         */
+        public boolean isCompressed() {
+            return (this.compressed);
+        }
+
+        /**
+         * Get the number of bytes of data in a block of a compressed chunk
+         * @return the compression block byte size
+         */
+        public int getCompressionBlockByteSize() {
+            return (this.compressionBlockByteSize);
+        }
+
+        /**
+         * Get whether or not the chunks of the new files are stored once per content
+         * @return if deduplication is enabled
+         */
+        public boolean isDeduplicated() {
+            return (this.deduplicated);
+        }
+
+        /**
+         * Get whether or not the data of the new files is cut into chunks where its content tells, so the data shared
+         * by near duplicate files is stored once
+         * @return if content defined chunking is enabled
+         */
+        public boolean isContentDefinedChunking() {
+            return (this.chunker != null);
+        }
+
+        /**
+         * Get the chunker cutting the data of the new files
+         * @return the chunker Or Null if content defined chunking is disabled
+         */
+        public @Nullable ContentDefinedChunker getChunker() {
+            return (this.chunker);
+        }
+
         /**
          * Get the LMDB env builder
          * @return the lMDB env builder
@@ -152,10 +411,28 @@ public class LMDBFileServer implements IFileServer {
             return "Settings{" +
                     "dataDbName='" + this.dataDbName + '\'' +
                     ", metaDbName='" + this.metaDbName + '\'' +
+                    ", expireDbName='" + this.expireDbName + '\'' +
                     ", dbDirectory=" + this.dbDirectory +
                     ", dbMaxByteSize=" + this.dbMaxByteSize +
+                    ", dbGrowthCeilingByteSize=" + this.dbGrowthCeilingByteSize +
+                    ", dbGrowthFactor=" + this.dbGrowthFactor +
+                    ", dbGrowthHighWaterMark=" + this.dbGrowthHighWaterMark +
                     ", maxNbReaders=" + this.maxNbReaders +
+                    ", readerWaitMs=" + this.readerWaitMs +
                     ", expirationCheckSecondsDelay=" + this.expirationCheckSecondsDelay +
+                    ", spaceReconcileSecondsDelay=" + this.spaceReconcileSecondsDelay +
+                    ", expirationSliceSize=" + this.expirationSliceSize +
+                    ", expirationTimeBudgetMs=" + this.expirationTimeBudgetMs +
+                    ", checksumAlgorithm=" + this.checksumAlgorithm +
+                    ", groupCommit=" + this.groupCommit +
+                    ", groupCommitMaxBatchSize=" + this.groupCommitMaxBatchSize +
+                    ", groupCommitLingerMs=" + this.groupCommitLingerMs +
+                    ", spillThresholdByteSize=" + this.spillThresholdByteSize +
+                    ", inlineThresholdByteSize=" + this.inlineThresholdByteSize +
+                    ", compressed=" + this.compressed +
+                    ", compressionBlockByteSize=" + this.compressionBlockByteSize +
+                    ", deduplicated=" + this.deduplicated +
+                    ", chunker=" + this.chunker +
                     '}';
         }
     }
@@ -166,11 +443,30 @@ public class LMDBFileServer implements IFileServer {
     public static class Builder {
         private String dataDbName = "data";
         private String metaDbName = "meta";
+        private String expireDbName = "expire";
         private long dbMaxByteSize = 1024 * 1024 * 256;  // 256 mo
+        private long dbGrowthCeilingByteSize = 0; // No growth
+        private double dbGrowthFactor = 2;
+        private double dbGrowthHighWaterMark = 0.8;
         private int maxReaders = 128;
+        private long readerWaitMs = 5000; // 5 seconds
         private File parentDbDirectory = FileUtils.getCurrentWorkingDirectory();
         private String dbDirectoryName = "db";
         private int expirationCheckSecondsDelay = 60; // 1 minute
+        private int spaceReconcileSecondsDelay = 30;
+        private int expirationSliceSize = 256;
+        private long expirationTimeBudgetMs = 50;
+        private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.SHA1;
+        private boolean groupCommit = false;
+        private int groupCommitMaxBatchSize = 64;
+        private long groupCommitLingerMs = 2;
+        private int spillThresholdByteSize = Integer.MAX_VALUE; // Never spilled
+        private int inlineThresholdByteSize = 0; // Never inline
+        private boolean compressed = false;
+        private int compressionBlockByteSize = 64 * 1024; // 64 ko
+        private boolean deduplicated = false;
+        private boolean contentDefinedChunking = false;
+        private int chunkingAverageByteSize = 8 * 1024; // 8 ko
 
         /**
          * Create a new instance of the builder
@@ -195,6 +491,20 @@ public class LMDBFileServer implements IFileServer {
             return (new LMDBFileServer(this));
         }
 
+        /**
+         * Build a new file server stored in another directory of the parent directory, the builder isn't modified
+         * so it may build several file servers that only differ by their directory
+         * @param dbDirectoryName the database directory name
+         * @return a new file server
+         * @throws IllegalArgumentException if the database directory name is empty
+         */
+        IFileServer build(final String dbDirectoryName) {
+            Objects.requireNonNull(dbDirectoryName);
+            if (dbDirectoryName.isEmpty())
+                throw new IllegalArgumentException("Db directory name must not be empty");
+            return (new LMDBFileServer(this, dbDirectoryName));
+        }
+
         /**
          * Set the maximum number of readers
          * @param maxReaders the maximum of readers
@@ -209,7 +519,21 @@ public class LMDBFileServer implements IFileServer {
         }
 
         /**
-         * Set the maximum database byte size
+         * Set the maximum number of milliseconds a read waits for a reader slot when they are all taken,
+         * a slot may be held by a lease for as long as its client takes to read it
+         * @param readerWaitMs the reader wait in milliseconds
+         * @return The builder
+         * @throws IllegalArgumentException if the wait is below 1
+         */
+        public Builder setReaderWaitMs(final long readerWaitMs) {
+            if (readerWaitMs < 1)
+                throw new IllegalArgumentException("The reader wait must be greater than 0");
+            this.readerWaitMs = readerWaitMs;
+            return (this);
+        }
+
+        /**
+         * Set the maximum database byte size, the initial map size when the map grows
          * @param dbMaxSize the maximum database byte sizeof readers
          * @return The builder
          * @throws IllegalArgumentException if the maximum database size is below {@value #DB_MIN_BYTE_SIZE}
@@ -221,6 +545,47 @@ public class LMDBFileServer implements IFileServer {
             return (this);
         }
 
+        /**
+         * Set the byte size the map may grow up to
+         * The map starts at the database maximum byte size and grows when it's nearly full or a write doesn't fit,
+         * a ceiling below the database maximum byte size disables the growth
+         * @param dbGrowthCeilingByteSize the map growth ceiling in byte
+         * @return The builder
+         * @throws IllegalArgumentException if the ceiling is below {@value #DB_MIN_BYTE_SIZE}
+         */
+        public Builder setDbGrowthCeilingByteSize(final long dbGrowthCeilingByteSize) {
+            if (dbGrowthCeilingByteSize < LMDBFileServer.DB_MIN_BYTE_SIZE)
+                throw new IllegalArgumentException("The map growth ceiling must be atleast " + LMDBFileServer.DB_MIN_BYTE_SIZE);
+            this.dbGrowthCeilingByteSize = dbGrowthCeilingByteSize;
+            return (this);
+        }
+
+        /**
+         * Set the factor the map size is multiplied by at each growth
+         * @param dbGrowthFactor the map growth factor
+         * @return The builder
+         * @throws IllegalArgumentException if the factor isn't greater than 1
+         */
+        public Builder setDbGrowthFactor(final double dbGrowthFactor) {
+            if (!(dbGrowthFactor > 1))
+                throw new IllegalArgumentException("The map growth factor must be greater than 1");
+            this.dbGrowthFactor = dbGrowthFactor;
+            return (this);
+        }
+
+        /**
+         * Set the ratio of the map in use above which the map grows before the next write
+         * @param dbGrowthHighWaterMark the map high water mark
+         * @return The builder
+         * @throws IllegalArgumentException if the ratio isn't within ]0, 1]
+         */
+        public Builder setDbGrowthHighWaterMark(final double dbGrowthHighWaterMark) {
+            if (!(dbGrowthHighWaterMark > 0 && dbGrowthHighWaterMark <= 1))
+                throw new IllegalArgumentException("The map high water mark must be within ]0, 1]");
+            this.dbGrowthHighWaterMark = dbGrowthHighWaterMark;
+            return (this);
+        }
+
         /**
          * Set the parent database directory
          * @param parentDbDirectory the parent database directory
@@ -283,6 +648,22 @@ public class LMDBFileServer implements IFileServer {
             return (this);
         }
 
+        /**
+         * Set the expiration index database name
+         * @param expireDbName the expiration index database name
+         * @return The builder
+         * @throws IllegalArgumentException if name is empty or is identical to the data or metadata database name
+         */
+        public Builder setExpireDbName(final String expireDbName) {
+            Objects.requireNonNull(expireDbName);
+            if (expireDbName.length() < 1)
+                throw new IllegalArgumentException("The name of the database must not be empty!");
+            if (expireDbName.equals(this.dataDbName) || expireDbName.equals(this.metaDbName))
+                throw new IllegalArgumentException("Expiration index database cannot have the same name as the data or meta database!");
+            this.expireDbName = expireDbName;
+            return (this);
+        }
+
         /**
          * Set the number of seconds between each check to remove expired entries
          * @param expirationCheckSecondsDelay the number of seconds between each check
@@ -295,6 +676,191 @@ public class LMDBFileServer implements IFileServer {
             this.expirationCheckSecondsDelay = expirationCheckSecondsDelay;
             return (this);
         }
+
+        /**
+         * Set the number of seconds between each reconciliation of the used space estimate with the database figures
+         * @param spaceReconcileSecondsDelay the number of seconds between each reconciliation
+         * @return The builder
+         * @throws IllegalArgumentException if number of seconds below 1
+         */
+        public Builder setSpaceReconcileSecondsDelay(final int spaceReconcileSecondsDelay) {
+            if (spaceReconcileSecondsDelay < 1)
+                throw new IllegalArgumentException("The delay to reconcile the used space must be greater than 0");
+            this.spaceReconcileSecondsDelay = spaceReconcileSecondsDelay;
+            return (this);
+        }
+
+        /**
+         * Set the maximum number of expired files removed in a single write transaction
+         * A smaller slice holds the writers for less time, a larger one commits less often
+         * @param expirationSliceSize the expiration slice size
+         * @return The builder
+         * @throws IllegalArgumentException if the slice size is below 1
+         */
+        public Builder setExpirationSliceSize(final int expirationSliceSize) {
+            if (expirationSliceSize < 1)
+                throw new IllegalArgumentException("The expiration slice size must be greater than 0");
+            this.expirationSliceSize = expirationSliceSize;
+            return (this);
+        }
+
+        /**
+         * Set the number of milliseconds a sweep of the expired files runs before yielding for as long
+         * @param expirationTimeBudgetMs the expiration time budget in milliseconds
+         * @return The builder
+         * @throws IllegalArgumentException if the time budget is negative
+         */
+        public Builder setExpirationTimeBudgetMs(final long expirationTimeBudgetMs) {
+            if (expirationTimeBudgetMs < 0)
+                throw new IllegalArgumentException("The expiration time budget must be greater than or equal to 0");
+            this.expirationTimeBudgetMs = expirationTimeBudgetMs;
+            return (this);
+        }
+
+        /**
+         * Set the algorithm used to compute the checksum of new files
+         * Prefer a non cryptographic algorithm when only the integrity of the data matters
+         * @param checksumAlgorithm the checksum algorithm
+         * @return The builder
+         */
+        public Builder setChecksumAlgorithm(final ChecksumAlgorithm checksumAlgorithm) {
+            Objects.requireNonNull(checksumAlgorithm);
+            this.checksumAlgorithm = checksumAlgorithm;
+            return (this);
+        }
+
+        /**
+         * Set whether or not the uploads and deletions are queued and committed by batch by a single writer thread
+         * @param groupCommit enable group commit or not
+         * @return The builder
+         * @see GroupCommitWriter
+         */
+        public Builder setGroupCommit(final boolean groupCommit) {
+            this.groupCommit = groupCommit;
+            return (this);
+        }
+
+        /**
+         * Set the maximum number of writes committed at once in group commit mode
+         * @param groupCommitMaxBatchSize the maximum batch size
+         * @return The builder
+         * @throws IllegalArgumentException if the batch size is below 1
+         */
+        public Builder setGroupCommitMaxBatchSize(final int groupCommitMaxBatchSize) {
+            if (groupCommitMaxBatchSize < 1)
+                throw new IllegalArgumentException("The group commit max batch size must be greater than 0");
+            this.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+            return (this);
+        }
+
+        /**
+         * Set the maximum number of milliseconds to wait for more writes before committing a batch in group commit mode
+         * @param groupCommitLingerMs the linger time in milliseconds
+         * @return The builder
+         * @throws IllegalArgumentException if the linger time is negative
+         */
+        public Builder setGroupCommitLingerMs(final long groupCommitLingerMs) {
+            if (groupCommitLingerMs < 0)
+                throw new IllegalArgumentException("The group commit linger time must be greater than or equal to 0");
+            this.groupCommitLingerMs = groupCommitLingerMs;
+            return (this);
+        }
+
+        /**
+         * Set the file data length from which the data is stored in a side file of the database directory
+         * instead of the data database, the large files then don't take any space in the map
+         * A file already stored in the data database is moved to a side file once its data reaches the threshold
+         * @param spillThresholdByteSize the spill threshold in byte
+         * @return The builder
+         * @throws IllegalArgumentException if the threshold is below 1
+         * @see SpillStore
+         */
+        public Builder setSpillThresholdByteSize(final int spillThresholdByteSize) {
+            if (spillThresholdByteSize < 1)
+                throw new IllegalArgumentException("The spill threshold must be greater than 0");
+            this.spillThresholdByteSize = spillThresholdByteSize;
+            return (this);
+        }
+
+        /**
+         * Set the file data length below which the data is stored in the metadata record of the file instead of the data database,
+         * so the small files are read with a single lookup and deleted with their metadata. A file is moved to the data database
+         * once its data reaches the threshold, the inline data is never compressed nor deduplicated
+         * @param inlineThresholdByteSize the inline threshold in byte, 0 to never store the data inline
+         * @return The builder
+         * @throws IllegalArgumentException if the threshold isn't within [0, 64 ko]
+         */
+        public Builder setInlineThresholdByteSize(final int inlineThresholdByteSize) {
+            if (inlineThresholdByteSize < 0 || inlineThresholdByteSize > LMDBFileServer.MAX_INLINE_THRESHOLD_BYTE_SIZE)
+                throw new IllegalArgumentException("The inline threshold must be within [0, " + LMDBFileServer.MAX_INLINE_THRESHOLD_BYTE_SIZE + "]");
+            this.inlineThresholdByteSize = inlineThresholdByteSize;
+            return (this);
+        }
+
+        /**
+         * Set whether or not the chunks of the new files are compressed in independent blocks, so a ranged read
+         * only inflates the blocks it overlaps. The first data of a file is probed and the file is stored as is
+         * if it doesn't shrink enough, such as an image already compressed. The spilled files are never compressed
+         * @param compressed enable compression or not
+         * @return The builder
+         * @see BlockCodec
+         */
+        public Builder setCompressed(final boolean compressed) {
+            this.compressed = compressed;
+            return (this);
+        }
+
+        /**
+         * Set the number of bytes of data in a block of a compressed chunk, the smallest range a read inflates
+         * The block size is recorded in the metadata of each file, so it can be changed between two openings
+         * @param compressionBlockByteSize the compression block byte size
+         * @return The builder
+         * @throws IllegalArgumentException if the block size isn't a power of two within [1 ko, 16 mo]
+         */
+        public Builder setCompressionBlockByteSize(final int compressionBlockByteSize) {
+            BlockCodec.checkBlockSize(compressionBlockByteSize);
+            this.compressionBlockByteSize = compressionBlockByteSize;
+            return (this);
+        }
+
+        /**
+         * Set whether or not the chunks of the new files are stored once per content, keyed by their SHA-256 digest
+         * The chunks of a file then only reference their content, which is counted and deleted with its last reference,
+         * so the files uploaded several times take space once. The spilled files are never deduplicated
+         * @param deduplicated enable deduplication or not
+         * @return The builder
+         */
+        public Builder setDeduplicated(final boolean deduplicated) {
+            this.deduplicated = deduplicated;
+            return (this);
+        }
+
+        /**
+         * Set whether or not the uploaded data is cut into chunks of variable size where a rolling hash of its content matches,
+         * instead of one chunk per upload. The cut points only depend on the bytes around them, so the files sharing most
+         * of their data, such as an image with a changed header or an appended log, share most of their chunks.
+         * It implies deduplication, the spilled files are never cut
+         * @param contentDefinedChunking enable content defined chunking or not
+         * @return The builder
+         * @see ContentDefinedChunker
+         */
+        public Builder setContentDefinedChunking(final boolean contentDefinedChunking) {
+            this.contentDefinedChunking = contentDefinedChunking;
+            return (this);
+        }
+
+        /**
+         * Set the average byte size of the chunks cut by content, the chunks are within a quarter and eight times that size
+         * The smaller the chunks, the more data is shared between near duplicates but the more entries are stored
+         * @param chunkingAverageByteSize the average chunk byte size
+         * @return The builder
+         * @throws IllegalArgumentException if the size isn't a power of two within [256, 1 mo]
+         */
+        public Builder setChunkingAverageByteSize(final int chunkingAverageByteSize) {
+            ContentDefinedChunker.checkAverageSize(chunkingAverageByteSize);
+            this.chunkingAverageByteSize = chunkingAverageByteSize;
+            return (this);
+        }
     }
 
     /**
@@ -305,16 +871,118 @@ public class LMDBFileServer implements IFileServer {
         this.mustBeCloseOrThrow("Tried to open already opened db");
         try {
             FileUtils.createFolderIfNotPresent(this.settings.getDbDirectory());
+            this.spill = SpillStore.newInstance(new File(this.settings.getDbDirectory(), LMDBFileServer.SPILL_DIRECTORY_NAME));
         } catch (IOException e) {
             LMDBFileServer.logger.error("Tried to open invalid path: " + e.getMessage());
             LMDBFileServer.logger.debug("path: " + this.settings.getDbDirectory());
             throw (new FileServerException(e));
         }
         this.env = this.settings.getEnvBuilder().open(this.settings.getDbDirectory(), EnvFlags.MDB_NOTLS);
+        this.readers = Transaction.ReadPool.newInstance(this.env, this.settings.getMaxNbReaders(), this.settings.getReaderWaitMs());
+        this.pageSize = this.env.stat().pageSize;
+        this.mapSize = this.env.info().mapSize;
+        this.ledger = SpaceLedger.newInstance(this.pageSize);
         LMDBFileServer.logger.info("Opening database at " + this.settings.getDbDirectory().toString());
         this.metaDb = this.env.openDbi(this.settings.getMetaDbName(), DbiFlags.MDB_CREATE);
         this.dataDb = this.env.openDbi(this.settings.getDataDbName(), DbiFlags.MDB_CREATE);
+        this.expireDb = this.env.openDbi(this.settings.getExpireDbName(), DbiFlags.MDB_CREATE);
+        this.contentDb = this.env.openDbi(LMDBFileServer.CONTENT_DB_NAME, DbiFlags.MDB_CREATE);
+        this.refDb = this.env.openDbi(LMDBFileServer.REF_DB_NAME, DbiFlags.MDB_CREATE);
         this.isOpen = true;
+        this.migrateJsonMetadata();
+        this.indexExpirations();
+        this.removeOrphanSideFiles();
+        this.reconcileUsedSpace();
+        if (this.settings.isGroupCommit()) {
+            this.writer = GroupCommitWriter.newInstance(this.env, this.settings.getGroupCommitMaxBatchSize(), this.settings.getGroupCommitLingerMs(),
+                    this.mapLock.readLock());
+        }
+        this.scheduler = ExpirationSweeper.newScheduler("lmdb-file-server-sweeper");
+        this.sweeper = ExpirationSweeper.newInstance(this.settings.getDbDirectory().toString(), this.scheduler, this::removeExpired,
+                TimeUnit.SECONDS.toMillis(this.settings.getExpirationCheckSecondsDelay()), this.settings.getExpirationSliceSize(),
+                this.settings.getExpirationTimeBudgetMs());
+        final long reconcileEveryMs = TimeUnit.SECONDS.toMillis(this.settings.getSpaceReconcileSecondsDelay());
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                this.reconcileUsedSpace();
+            } catch (RuntimeException e) {
+                LMDBFileServer.logger.warn("Unable to reconcile used space: " + e.getMessage());
+            }
+        }, reconcileEveryMs, reconcileEveryMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Build the expiration index of the metadata records written by previous versions
+     * It only happens once, when the index is empty while there are metadata records
+     */
+    private void indexExpirations() {
+        int nbIndexed = 0;
+        try (final WriteSession session = WriteSession.newInstance(this.env)) {
+            if (this.expireDb.stat(session.get()).entries > 0 || this.metaDb.stat(session.get()).entries == 0)
+                return;
+            try (final Cursor<ByteBuffer> cursor = this.metaDb.openCursor(session.get())) {
+                boolean hasNext = cursor.seek(SeekOp.MDB_FIRST);
+                while (hasNext) {
+                    final UUID fileId = BlobKeys.getId(cursor.key());
+                    try {
+                        session.put(this.expireDb, this.getExpirationKey(fileId, cursor.val()), LMDBFileServer.EMPTY_VALUE);
+                        ++nbIndexed;
+                    } catch (MetadataException e) {
+                        LMDBFileServer.logger.warn("Unable to index expiration of file " + fileId + ": " + e.getMessage());
+                    }
+                    hasNext = cursor.next();
+                }
+            }
+            session.commit();
+        }
+        LMDBFileServer.logger.info("Indexed expiration of " + nbIndexed + " files");
+    }
+
+    /**
+     * Delete the side files no metadata record refers to
+     * They are left by a process that stopped between the commit of a deletion and the deletion of the side file
+     */
+    private void removeOrphanSideFiles() {
+        int nbRemoved = 0;
+        try (final Transaction transac = this.readers.acquire()) {
+            for (final UUID fileId : this.spill.getIds()) {
+                final ByteBuffer metadata = this.metaDb.get(transac.get(), BlobKeys.localOfId(fileId));
+                if ((metadata == null || !MetadataCodec.isSpilled(metadata)) && this.spill.delete(fileId))
+                    ++nbRemoved;
+            }
+        }
+        if (nbRemoved > 0)
+            LMDBFileServer.logger.info("Removed " + nbRemoved + " orphan side files");
+    }
+
+    /**
+     * Rewrite the Json metadata records written by previous versions with the binary layout
+     * @see MetadataCodec
+     */
+    private void migrateJsonMetadata() {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> records = new ArrayList<>();
+        try (final WriteSession session = WriteSession.newInstance(this.env)) {
+            try (final Cursor<ByteBuffer> cursor = this.metaDb.openCursor(session.get())) {
+                boolean hasNext = cursor.seek(SeekOp.MDB_FIRST);
+                while (hasNext) {
+                    if (MetadataCodec.isJson(cursor.val())) {
+                        try {
+                            records.add(MetadataCodec.encode(MetadataCodec.decode(cursor.val())));
+                            keys.add(BytesUtils.allocateAndPutFlip(BytesUtils.toByteArray(cursor.key().slice())));
+                        } catch (MetadataException e) {
+                            LMDBFileServer.logger.warn("Unable to migrate Json metadata record: " + e.getMessage());
+                        }
+                    }
+                    hasNext = cursor.next();
+                }
+            }
+            for (int i = 0; i < keys.size(); ++i)
+                session.put(this.metaDb, keys.get(i), records.get(i));
+            session.commit();
+        }
+        if (!keys.isEmpty())
+            LMDBFileServer.logger.info("Migrated " + keys.size() + " Json metadata records to the binary layout");
     }
 
     /**
@@ -332,8 +1000,23 @@ public class LMDBFileServer implements IFileServer {
     public void close() {
         if (this.isOpen) {
             LMDBFileServer.logger.info("Closing database at " + this.settings.getDbDirectory().toString());
+            // The slice in progress is committed before the environment is closed
+            ExpirationSweeper.shutdown(this.scheduler);
+            if (this.writer != null) {
+                this.writer.close();
+                this.writer = null;
+            }
+            if (!this.readers.close(LMDBFileServer.CLOSE_SECONDS_TIMEOUT, TimeUnit.SECONDS)) {
+                // A lease closed later would release its transaction on a freed env, the env is leaked instead
+                LMDBFileServer.logger.error("Leases still open, leaving the database at " + this.settings.getDbDirectory() + " open");
+                this.isOpen = false;
+                return;
+            }
             this.dataDb.close();
             this.metaDb.close();
+            this.expireDb.close();
+            this.contentDb.close();
+            this.refDb.close();
             this.env.close();
             this.isOpen = false;
         }
@@ -344,119 +1027,613 @@ public class LMDBFileServer implements IFileServer {
      */
     @Override
     public void upload(final UUID fileId, final Timestamp expirationDate, byte[] data) {
+        LMDBFileServer.join(this.uploadAsync(fileId, expirationDate, data));
+    }
+
+    /**
+     * Upload data to a file with a expiration date, the data is committed by the group commit writer if enabled
+     * The data must not be modified until the returned future is completed
+     * @param fileId The file id
+     * @param expirationDate The expiration date
+     * @param data The data to save
+     * @return a future completed once the data has been committed
+     * @see IFileServer#upload(UUID, Timestamp, byte[])
+     * @see GroupCommitWriter
+     */
+    public CompletableFuture<Void> uploadAsync(final UUID fileId, final Timestamp expirationDate, final byte[] data) {
+        Objects.requireNonNull(data);
+        return (this.uploadAsync(fileId, expirationDate, Collections.singletonList(ByteBuffer.wrap(data)), data.length));
+    }
+
+    /**
+     * Upload the data of buffers to a file with a expiration date, the data is committed by the group commit writer if enabled
+     * The buffers must not be modified until the returned future is completed
+     * @param fileId The file id
+     * @param expirationDate The expiration date
+     * @param data The buffers of the data to save, one after the other
+     * @param length The number of bytes of the buffers
+     * @return a future completed once the data has been committed
+     */
+    private CompletableFuture<Void> uploadAsync(final UUID fileId, final Timestamp expirationDate, final List<ByteBuffer> data, final int length) {
         Objects.requireNonNull(fileId);
         Objects.requireNonNull(expirationDate);
-        Objects.requireNonNull(data);
         this.mustBeOpenOrThrow("Tried to upload data with closed connection! fileId:" + fileId);
-        DatabaseFileMetadata databaseFileMetadata = this.getFileMetaData(fileId);
-        if (databaseFileMetadata == null) {
+        final long[] usedBytes = new long[1];
+        return (this.write(session -> usedBytes[0] = this.upload(session, fileId, expirationDate, data, length))
+                .thenRun(() -> {
+                    this.ledger.addUsedBytes(usedBytes[0]);
+                    this.ledger.consume(fileId, usedBytes[0]);
+                }));
+    }
+
+    /**
+     * Upload data to a file within a write session
+     * The metadata, the expiration index and the chunk are committed at once,
+     * the data of a spilled file is written to its side file before the commit.
+     * The chunk of a file that isn't spilled is reserved in the data database and the buffers are copied straight into it,
+     * unless it must be gathered into an array first. The buffers are only read, so the session may be applied again
+     * @param session the write session
+     * @param fileId The file id
+     * @param expirationDate The expiration date
+     * @param data The buffers of the data to save, one after the other
+     * @param length The number of bytes of the buffers
+     * @return the estimated number of bytes taken by the write, negative if it freed more than it took
+     */
+    private long upload(final WriteSession session, final UUID fileId, final Timestamp expirationDate, final List<ByteBuffer> data,
+                        final int length) {
+        final PendingUpload upload = this.beginUpload(session, fileId, expirationDate, length);
+        for (final ByteBuffer buffer : data)
+            upload.checksum.update(buffer.duplicate());
+        if (upload.spilled) {
+            // Written at the committed length, so the bytes of a discarded session are overwritten by the next write
+            this.spill.write(fileId, upload.chunkOffset, data);
+        } else if (this.isBuffered(upload)) {
+            this.putChunk(session, upload, LMDBFileServer.toArray(data, length));
+        } else {
+            final ByteBuffer chunk = this.dataDb.reserve(session.get(), BlobKeys.ofChunk(fileId, upload.chunkOffset), length);
+            for (final ByteBuffer buffer : data)
+                chunk.put(buffer.duplicate());
+            upload.chunkBytes = this.ledger.estimateEntryBytes(BlobKeys.getChunkKeyByteSize(), length);
+        }
+        return (this.endUpload(session, upload));
+    }
+
+    /**
+     * Predicate that tell whether or not the chunk of an upload is only known once all of its data is there,
+     * when it may be compressed or deduplicated, or when it is written with the metadata record
+     * @param upload the pending upload of a file that isn't spilled
+     * @return if the chunk data must be gathered into an array
+     */
+    private boolean isBuffered(final PendingUpload upload) {
+        if (upload.inline)
+            return (true);
+        if (upload.previousMetadata == null)
+            return (this.settings.isCompressed() || this.settings.isDeduplicated());
+        return (upload.compressionBlockSize != 0 || upload.deduplicated);
+    }
+
+    /**
+     * Gather the data of buffers into an array, the array of a single buffer wrapping all of it isn't copied
+     * @param data the buffers of the data, one after the other
+     * @param length the number of bytes of the buffers
+     * @return the data
+     */
+    private static byte[] toArray(final List<ByteBuffer> data, final int length) {
+        if (data.size() == 1) {
+            final ByteBuffer buffer = data.get(0);
+            if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.array().length == length)
+                return (buffer.array());
+        }
+        final byte[] bytes = new byte[length];
+        final ByteBuffer bb = ByteBuffer.wrap(bytes);
+        for (final ByteBuffer buffer : data)
+            bb.put(buffer.duplicate());
+        return (bytes);
+    }
+
+    /**
+     * Put the chunk of an upload that isn't spilled, compressed if the file is
+     * The data of a new file is probed when compression is enabled, an appended chunk is stored like the first one.
+     * The chunk of a deduplicated file is a reference to its content, stored once whatever the number of chunks referencing it.
+     * The data is cut into several chunks by content when content defined chunking is enabled, the first one at the upload offset.
+     * The data of an inline file is only kept with the upload, it is written with the metadata record
+     * @param session the write session
+     * @param upload the pending upload
+     * @param data the uploaded data
+     * @see BlockCodec
+     */
+    private void putChunk(final WriteSession session, final PendingUpload upload, final byte[] data) {
+        if (upload.inline) {
+            upload.inlineData.add(ByteBuffer.wrap(data));
+            return;
+        }
+        if (upload.previousMetadata == null) {
+            if (this.settings.isCompressed() && BlockCodec.isCompressible(data))
+                upload.compressionBlockSize = this.settings.getCompressionBlockByteSize();
+            upload.deduplicated = this.settings.isDeduplicated();
+        }
+        final ByteBuffer key = BlobKeys.ofChunk(upload.fileId, upload.chunkOffset);
+        if (!upload.deduplicated) {
+            final ByteBuffer chunk = LMDBFileServer.encodeChunk(data, upload.compressionBlockSize);
+            upload.chunkBytes = this.ledger.estimateEntryBytes(BlobKeys.getChunkKeyByteSize(), chunk.remaining());
+            session.put(this.dataDb, key, chunk);
+            return;
+        }
+        final ContentDefinedChunker chunker = this.settings.getChunker();
+        if (chunker == null) {
+            this.putReference(session, upload, key, data);
+            return;
+        }
+        // An empty upload still has its chunk, so the file data always starts with one
+        int pieceOffset = 0;
+        do {
+            final int pieceLength = chunker.next(data, pieceOffset, data.length);
+            final byte[] piece = (pieceLength == data.length) ? data : Arrays.copyOfRange(data, pieceOffset, pieceOffset + pieceLength);
+            this.putReference(session, upload, BlobKeys.ofChunk(upload.fileId, (long) upload.chunkOffset + pieceOffset), piece);
+            pieceOffset += pieceLength;
+        } while (pieceOffset < data.length);
+    }
+
+    /**
+     * Put a chunk of a deduplicated file, a reference to its content, and the content if it isn't stored yet
+     * @param session the write session
+     * @param upload the pending upload, its chunk bytes are increased by the bytes taken
+     * @param key the chunk key
+     * @param data the chunk data
+     */
+    private void putReference(final WriteSession session, final PendingUpload upload, final ByteBuffer key, final byte[] data) {
+        final ByteBuffer contentKey = BlobKeys.ofContent(ChecksumAlgorithm.SHA256.getCheckSum(data), upload.compressionBlockSize);
+        upload.chunkBytes += this.ledger.estimateEntryBytes(BlobKeys.getChunkKeyByteSize(), BlobKeys.getContentKeyByteSize());
+        if (this.addReference(session.get(), contentKey) == 1) {
+            final ByteBuffer content = LMDBFileServer.encodeChunk(data, upload.compressionBlockSize);
+            upload.chunkBytes += this.ledger.estimateEntryBytes(BlobKeys.getContentKeyByteSize(), content.remaining())
+                    + this.ledger.estimateEntryBytes(BlobKeys.getContentKeyByteSize(), Integer.BYTES);
+            session.put(this.contentDb, contentKey, content);
+        } else {
+            LMDBFileServer.logger.debug("Chunk at offset " + BlobKeys.getOffset(key) + " of file " + upload.fileId + " is already stored");
+        }
+        session.put(this.dataDb, key, contentKey);
+    }
+
+    /**
+     * Copy data into a new chunk, compressed if a block size is specified
+     * @param data the data
+     * @param blockSize the compression block size Or 0
+     * @return a new flipped direct ByteBuffer
+     */
+    private static ByteBuffer encodeChunk(final byte[] data, final int blockSize) {
+        return ((blockSize != 0) ? BlockCodec.encode(data, blockSize) : BytesUtils.allocateAndPutFlip(data));
+    }
+
+    /**
+     * Count one more reference to a content
+     * @param txn the write transaction
+     * @param contentKey the content key
+     * @return the number of references to the content, 1 if the content isn't stored yet
+     */
+    private int addReference(final Txn<ByteBuffer> txn, final ByteBuffer contentKey) {
+        final ByteBuffer count = this.refDb.get(txn, contentKey);
+        final int nbReferences = ((count != null) ? count.getInt(count.position()) : 0) + 1;
+        this.refDb.put(txn, contentKey, LMDBFileServer.newReferenceCount(nbReferences));
+        return (nbReferences);
+    }
+
+    /**
+     * Count one less reference to a content, the content is deleted once it isn't referenced anymore
+     * @param txn the write transaction
+     * @param contentKey the content key
+     * @return the estimated number of bytes freed, 0 if the content is still referenced
+     */
+    private long releaseReference(final Txn<ByteBuffer> txn, final ByteBuffer contentKey) {
+        final ByteBuffer count = this.refDb.get(txn, contentKey);
+        if (count == null) {
+            LMDBFileServer.logger.warn("Released a reference to a content that isn't referenced");
+            return (0);
+        }
+        final int nbReferences = count.getInt(count.position()) - 1;
+        if (nbReferences > 0) {
+            this.refDb.put(txn, contentKey, LMDBFileServer.newReferenceCount(nbReferences));
+            return (0);
+        }
+        long freedBytes = this.ledger.estimateEntryBytes(BlobKeys.getContentKeyByteSize(), Integer.BYTES);
+        final ByteBuffer content = this.contentDb.get(txn, contentKey);
+        if (content != null)
+            freedBytes += this.ledger.estimateEntryBytes(BlobKeys.getContentKeyByteSize(), content.remaining());
+        this.refDb.delete(txn, contentKey);
+        this.contentDb.delete(txn, contentKey);
+        return (freedBytes);
+    }
+
+    /**
+     * Create a reference count value
+     * @param nbReferences the number of references
+     * @return a new flipped direct ByteBuffer
+     */
+    private static ByteBuffer newReferenceCount(final int nbReferences) {
+        final ByteBuffer count = ByteBuffer.allocateDirect(Integer.BYTES);
+        count.putInt(nbReferences).flip();
+        return (count);
+    }
+
+    /**
+     * An upload whose data is being written, the metadata is written once the checksum of the data is known
+     */
+    private static final class PendingUpload {
+        private final UUID fileId;
+        private final Timestamp expirationDate;
+        private final DatabaseFileMetadata previousMetadata;
+        private final int chunkOffset;
+        private final int dataLength;
+        private final boolean spilled;
+        private final boolean inline;
+        // The data written with the metadata record of an inline file, the previous data first
+        private final List<ByteBuffer> inlineData = new ArrayList<>();
+        private final IChecksum checksum;
+        private final long usedBytes;
+        // Set once the chunk is written, the layout of a new file depends on its data
+        private int compressionBlockSize;
+        private boolean deduplicated;
+        private long chunkBytes;
+
+        /**
+         * Create a new pending upload
+         * @param fileId the file id
+         * @param expirationDate the expiration date
+         * @param previousMetadata the metadata of the file the data is appended to Or Null for a new file
+         * @param chunkOffset the offset of the uploaded data in the file
+         * @param dataLength the file data length once uploaded
+         * @param spilled whether or not the file data is stored in a side file
+         * @param inline whether or not the file data is stored in its metadata record
+         * @param checksum the running checksum of the file, to be updated with the uploaded data
+         * @param usedBytes the estimated number of bytes taken so far
+         */
+        private PendingUpload(final UUID fileId, final Timestamp expirationDate, @Nullable final DatabaseFileMetadata previousMetadata,
+                              final int chunkOffset, final int dataLength, final boolean spilled, final boolean inline,
+                              final IChecksum checksum, final long usedBytes) {
+            this.fileId = fileId;
+            this.expirationDate = expirationDate;
+            this.previousMetadata = previousMetadata;
+            this.chunkOffset = chunkOffset;
+            this.dataLength = dataLength;
+            this.spilled = spilled;
+            this.inline = inline;
+            this.checksum = checksum;
+            this.usedBytes = usedBytes;
+            // The appended chunks are stored like the first one, the chunks of a file being spilled are inflated
+            if (previousMetadata != null && !spilled) {
+                this.compressionBlockSize = previousMetadata.getCompressionBlockSize();
+                this.deduplicated = previousMetadata.isDeduplicated();
+            }
+        }
+    }
+
+    /**
+     * Begin an upload within a write session, the leftovers of an expired file are deleted,
+     * the chunks of a file reaching the spill threshold are moved to its side file
+     * and the inline data of a file reaching the inline threshold is moved to a chunk
+     * @param session the write session
+     * @param fileId The file id
+     * @param expirationDate The expiration date
+     * @param length the length of the data to upload
+     * @return the pending upload, the data is to be written at its chunk offset
+     */
+    private PendingUpload beginUpload(final WriteSession session, final UUID fileId, final Timestamp expirationDate, final int length) {
+        long usedBytes = 0;
+        final DatabaseFileMetadata previousMetadata = this.getLiveFileMetaData(session.get(), fileId);
+        final PendingUpload upload;
+        if (previousMetadata == null) {
+            // Leftover of an expired file with the same id, it must not be stitched with the new data
+            usedBytes += this.delete(session, fileId);
+            upload = new PendingUpload(fileId, expirationDate, null, 0, length, this.settings.isSpilled(length), this.settings.isInline(length),
+                    this.settings.getChecksumAlgorithm().newChecksum(), usedBytes);
+        } else {
+            final int dataLength = Math.addExact(previousMetadata.getDataLength(), length);
+            final boolean spilled = previousMetadata.isSpilled() || this.settings.isSpilled(dataLength);
+            final boolean inline = previousMetadata.isInline() && this.settings.isInline(dataLength);
+            // Only the appended data is hashed, the checksum is resumed from its running state
+            final IChecksum checksum = this.getRunningChecksum(session.get(), previousMetadata);
+            if (previousMetadata.getExpirationDate().getSeconds() != expirationDate.getSeconds())
+                session.delete(this.expireDb, BlobKeys.ofExpiration(previousMetadata.getExpirationDate().getSeconds(), fileId));
+            // Copied since the record is rewritten by the upload
+            final ByteBuffer previousInlineData = (previousMetadata.isInline())
+                    ? ByteBuffer.wrap(BytesUtils.toByteArray(this.getInlineData(session.get(), fileId).slice())) : null;
+            if (previousMetadata.isInline() && !inline)
+                usedBytes += this.outlineData(session, fileId, previousInlineData, spilled);
+            else if (spilled && !previousMetadata.isSpilled())
+                usedBytes += this.spillChunks(session.get(), fileId, ChunkLayout.of(previousMetadata));
+            usedBytes -= this.getIndexEntriesBytes(MetadataCodec.getRecordLength(previousMetadata));
+            upload = new PendingUpload(fileId, expirationDate, previousMetadata, previousMetadata.getDataLength(), dataLength, spilled, inline,
+                    checksum, usedBytes);
+            if (inline)
+                upload.inlineData.add(previousInlineData);
+        }
+        return (upload);
+    }
+
+    /**
+     * Move the inline data of a file to a chunk at offset 0, stored as is, or to its side file if the file is being spilled
+     * @param session the write session
+     * @param fileId the file id
+     * @param data the inline data
+     * @param spilled whether or not the file is being spilled
+     * @return the estimated number of bytes taken
+     */
+    private long outlineData(final WriteSession session, final UUID fileId, final ByteBuffer data, final boolean spilled) {
+        LMDBFileServer.logger.debug("Moving the inline data of file " + fileId + ((spilled) ? " to its side file" : " to a chunk"));
+        if (spilled) {
+            this.spill.write(fileId, 0, Collections.singletonList(data));
+            return (0);
+        }
+        session.put(this.dataDb, BlobKeys.ofChunk(fileId, 0), BytesUtils.allocateAndPutFlip(BytesUtils.toByteArray(data.slice())));
+        return (this.ledger.estimateEntryBytes(BlobKeys.getChunkKeyByteSize(), data.remaining()));
+    }
+
+    /**
+     * End an upload within a write session once its data has been written, the metadata and the expiration index are written
+     * @param session the write session
+     * @param upload the pending upload
+     * @return the estimated number of bytes taken by the upload, negative if it freed more than it took
+     */
+    private long endUpload(final WriteSession session, final PendingUpload upload) {
+        final UUID fileId = upload.fileId;
+        final IChecksum checksum = upload.checksum;
+        final DatabaseFileMetadata databaseFileMetadata;
+        if (upload.previousMetadata == null) {
             databaseFileMetadata = DatabaseFileMetadata.Builder.newBuilder()
                     .id(fileId)
-                    .dataLength(data.length)
-                    .checksum(BytesUtils.getCheckSum(data))
+                    .dataLength(upload.dataLength)
+                    .checksum(checksum.getValue())
                     .creationDate(TimestampUtils.now())
-                    .expirationDate(expirationDate)
+                    .expirationDate(upload.expirationDate)
                     .lastModificationDate(TimestampUtils.now())
+                    .checksumAlgorithm(checksum.getAlgorithm())
+                    .checksumState(checksum.getState())
+                    .spilled(upload.spilled)
+                    .compressionBlockSize(upload.compressionBlockSize)
+                    .deduplicated(upload.deduplicated)
+                    .inline(upload.inline)
                     .build();
         } else {
-            byte existingData[] = this.download(fileId);
-            if (existingData != null)
-                data = BytesUtils.merge(existingData, data);
-            databaseFileMetadata = DatabaseFileMetadata.Builder.fromPrototype(databaseFileMetadata)
-                    .dataLength(data.length)
-                    .checksum(BytesUtils.getCheckSum(data))
-                    .creationDate(databaseFileMetadata.getCreationDate())
-                    .expirationDate(expirationDate)
+            databaseFileMetadata = DatabaseFileMetadata.Builder.fromPrototype(upload.previousMetadata)
+                    .dataLength(upload.dataLength)
+                    .checksum(checksum.getValue())
+                    .creationDate(upload.previousMetadata.getCreationDate())
+                    .expirationDate(upload.expirationDate)
                     .lastModificationDate(TimestampUtils.now())
+                    .checksumState(checksum.getState())
+                    .spilled(upload.spilled)
+                    .compressionBlockSize(upload.compressionBlockSize)
+                    .deduplicated(upload.deduplicated)
+                    .inline(upload.inline)
                     .build();
         }
-        final ByteBuffer key = BytesUtils.allocateAndPutFlip(UUIDUtils.toBytes(fileId));
-        final String jsonMetaData = databaseFileMetadata.toJsonString();
-        final ByteBuffer metaData = BytesUtils.toByteBuffer(jsonMetaData);
+        long usedBytes = upload.usedBytes + this.getIndexEntriesBytes(MetadataCodec.getRecordLength(databaseFileMetadata));
+        if (!upload.spilled)
+            usedBytes += upload.chunkBytes;
+        session.put(this.metaDb, BlobKeys.ofId(fileId), MetadataCodec.encode(databaseFileMetadata,
+                (upload.inline) ? upload.inlineData : Collections.emptyList()));
+        session.put(this.expireDb, BlobKeys.ofExpiration(upload.expirationDate.getSeconds(), fileId), LMDBFileServer.EMPTY_VALUE);
+        // Checked against the metadata length when resumed, so it doesn't matter if the session is discarded
+        if (checksum.getState() == null) {
+            this.runningChecksums.put(fileId, checksum, ExpirationPolicy.CREATED,
+                    Math.max(1, TimestampUtils.getSecondsDifferenceFromNow(upload.expirationDate)), TimeUnit.SECONDS);
+        }
+
+        LMDBFileServer.logger.debug("Uploaded metadata: " + databaseFileMetadata);
+        LMDBFileServer.logger.info("Uploaded file: " + fileId + " chunk at offset " + upload.chunkOffset
+                + ((upload.spilled) ? " to its side file" : ((upload.inline) ? " inline" : "")));
+        return (usedBytes);
+    }
+
+    /**
+     * The written buffers are kept, not copied, and uploaded in a single write when the writer is closed:
+     * the chunk of a file that isn't spilled is reserved in the data database and the buffers are copied straight into it,
+     * the buffers of a spilled file are written straight to its side file. No lock nor transaction is held between
+     * the writes of the caller, the write transaction lives on the thread closing the writer, or on the group commit writer,
+     * and the map is grown as for any upload. The data of a chunk that may be compressed or deduplicated, or of a file
+     * small enough to be inline, is gathered into an array first since its stored form is only known once all of it is there.
+     * The written buffers must not be modified until the writer is closed
+     * @inheritDoc
+     */
+    @Override
+    public BlobWriter openWriter(final UUID fileId, final Timestamp expirationDate, final long size) {
+        Objects.requireNonNull(fileId);
+        Objects.requireNonNull(expirationDate);
+        BlobWriter.checkSize(size);
+        this.mustBeOpenOrThrow("Tried to open a writer with closed connection! fileId:" + fileId);
+        final List<ByteBuffer> data = new ArrayList<>();
+        return (new BlobWriter(size) {
+            @Override
+            protected void append(final ByteBuffer src) {
+                data.add(src.duplicate());
+                src.position(src.limit());
+            }
+
+            @Override
+            protected void commit() {
+                LMDBFileServer.join(LMDBFileServer.this.uploadAsync(fileId, expirationDate, data, (int) size));
+            }
+
+            @Override
+            protected void abort() {
+                LMDBFileServer.logger.info("Discarded upload of file: " + fileId + " after " + this.getPosition() + " of " + size + " bytes");
+            }
+        });
+    }
 
-        this.metaDb.put(key, metaData);
-        this.dataDb.put(key, BytesUtils.allocateAndPutFlip(data));
+    /**
+     * Move the chunks of a file to its side file, once the file data reaches the spill threshold
+     * @param txn the write transaction
+     * @param fileId the file id
+     * @param layout the layout of the file chunks
+     * @return the estimated number of bytes freed, as a negative number
+     */
+    private long spillChunks(final Txn<ByteBuffer> txn, final UUID fileId, final ChunkLayout layout) {
+        this.spill.write(fileId, 0, this.getChunks(txn, fileId, layout));
+        LMDBFileServer.logger.info("Moved the chunks of file " + fileId + " to its side file");
+        return (-this.deleteChunks(txn, fileId, layout));
+    }
 
-        LMDBFileServer.logger.debug("Uploaded metadata: " + jsonMetaData);
-        LMDBFileServer.logger.info("Uploaded file: " + fileId);
+    /**
+     * Estimate the bytes taken by the metadata record and the expiration index entry of a file
+     * @param metadataLength the metadata record length
+     * @return the estimated number of bytes
+     */
+    private long getIndexEntriesBytes(final int metadataLength) {
+        return (this.ledger.estimateEntryBytes(UUIDUtils.getUuidByteSize(), metadataLength)
+                + this.ledger.estimateEntryBytes(BlobKeys.getExpirationKeyByteSize(), 0));
     }
 
     /**
+     * The metadata and the data are read within a single read transaction
      * @inheritDoc
      */
     @Override
     public @Nullable byte[] download(final UUID fileId) {
         Objects.requireNonNull(fileId);
         this.mustBeOpenOrThrow("Tried to download file: " + fileId + " with closed connection!");
-        final ByteBuffer key = BytesUtils.allocateAndPutFlip(UUIDUtils.toBytes(fileId));
-
-        if (this.isExpired(fileId)) {
-            LMDBFileServer.logger.info("Tried to download expired file: " + fileId);
-            return (null);
-        }
-        try (final Transaction dataTransac = Transaction.newInstance(this.env)) {
-            final ByteBuffer data = this.dataDb.get(dataTransac.get(), key); // Temporary data, must be copied if we want to keep it
-            if (data == null) {
+        try (final Transaction dataTransac = this.readers.acquire()) {
+            final ByteBuffer metadata = this.getUnexpiredRecord(dataTransac.get(), fileId);
+            if (metadata == null) {
+                LMDBFileServer.logger.info("Tried to download expired file: " + fileId);
+                return (null);
+            }
+            final byte[] bytes = this.readChunks(dataTransac.get(), fileId, metadata);
+            if (bytes == null) {
                 LMDBFileServer.logger.info("Tried to download non present file: " + fileId);
                 return (null);
             }
             LMDBFileServer.logger.info("Downloaded file: " + fileId);
-            final byte[] bytes = BytesUtils.toByteArray(data);
             LMDBFileServer.logger.debug("Data length: " + bytes.length);
             return (bytes);
         }
     }
 
     /**
+     * Only the chunks overlapping the range are read, straight from the LMDB memory map
      * @inheritDoc
      */
     @Override
-    public @Nullable DatabaseFileMetadata getFileMetaData(final UUID fileId) {
+    public @Nullable byte[] read(final UUID fileId, final long offset, final int length) {
         Objects.requireNonNull(fileId);
-        this.mustBeOpenOrThrow("Tried to get metadata of " + fileId + " with closed connection!");
-        final ByteBuffer key = BytesUtils.allocateAndPutFlip(UUIDUtils.toBytes(fileId));
-        if (this.isExpired(fileId)) {
-            LMDBFileServer.logger.info("Tried to get expired metadata of file: " + fileId);
-            return (null);
+        this.mustBeOpenOrThrow("Tried to read file: " + fileId + " with closed connection!");
+        try (final Transaction transac = this.readers.acquire()) {
+            final List<ByteBuffer> slices = this.getRange(transac.get(), fileId, offset, length);
+            if (slices == null)
+                return (null);
+            final byte[] bytes = new byte[length];
+            int position = 0;
+            for (final ByteBuffer slice : slices) {
+                final int sliceLength = slice.remaining();
+                slice.get(bytes, position, sliceLength);
+                position += sliceLength;
+            }
+            LMDBFileServer.logger.debug("Read " + length + " bytes at " + offset + " of file: " + fileId);
+            return (bytes);
         }
-        try (final Transaction metaTransac = Transaction.newInstance(this.env)) {
-            final ByteBuffer metadata = this.metaDb.get(metaTransac.get(), key);
-            if (metadata == null) {
-                LMDBFileServer.logger.info("Unable to get metadata of file " + fileId);
+    }
+
+    /**
+     * The read transaction is kept open until the lease is closed so the leased buffers
+     * point straight to the LMDB memory map, no byte is copied unless the file is compressed,
+     * only the blocks overlapping the range are then inflated
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable BlobLease lease(final UUID fileId, final long offset, final int length) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow("Tried to lease file: " + fileId + " with closed connection!");
+        final Transaction transac = this.readers.acquire();
+        try {
+            final List<ByteBuffer> slices = this.getRange(transac.get(), fileId, offset, length);
+            if (slices == null) {
+                transac.close();
                 return (null);
             }
-            final DatabaseFileMetadata databaseFileMetadata = this.getFileMetaDataFrom(metadata);
-            if (databaseFileMetadata == null) {
-                LMDBFileServer.logger.error("Unable to convert metadata of file" + fileId);
+            LMDBFileServer.logger.debug("Leased " + length + " bytes at " + offset + " of file: " + fileId);
+            return (BlobLease.newInstance(slices, transac));
+        } catch (RuntimeException e) {
+            transac.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a range of a file to a channel
+     * The range of a spilled file is transferred straight from its side file, the kernel copies the bytes when it can
+     * @param fileId the file id
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @param target the channel to write to
+     * @return the number of bytes written Or -1 if the file is expired or not found
+     * @throws IllegalArgumentException if the range is not within the file data
+     * @throws DatabaseFileException if the data can't be read or written
+     */
+    public long transferTo(final UUID fileId, final long offset, final int length, final WritableByteChannel target) {
+        Objects.requireNonNull(fileId);
+        Objects.requireNonNull(target);
+        this.mustBeOpenOrThrow("Tried to transfer file: " + fileId + " with closed connection!");
+        try (final Transaction transac = this.readers.acquire()) {
+            final ByteBuffer metadata = this.getRangeMetadata(transac.get(), fileId, offset, length);
+            if (metadata == null)
+                return (-1);
+            if (MetadataCodec.isSpilled(metadata))
+                return (this.spill.transferTo(fileId, offset, length, target));
+            final List<ByteBuffer> slices = (MetadataCodec.isInline(metadata))
+                    ? Collections.singletonList(LMDBFileServer.getInlineRange(metadata, offset, length))
+                    : this.getChunkRange(transac.get(), fileId, ChunkLayout.of(metadata), offset, length);
+            for (final ByteBuffer slice : slices) {
+                while (slice.hasRemaining())
+                    target.write(slice);
             }
+            return (length);
+        } catch (IOException e) {
+            throw new DatabaseFileException("Unable to transfer file " + fileId, e);
+        }
+    }
+
+    /**
+     * The metadata is read and decoded within a single read transaction
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable DatabaseFileMetadata getFileMetaData(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        if (!this.isOpen)
+            this.mustBeOpenOrThrow("Tried to get metadata of " + fileId + " with closed connection!");
+        try (final Transaction metaTransac = this.readers.acquire()) {
+            final DatabaseFileMetadata databaseFileMetadata = this.getLiveFileMetaData(metaTransac.get(), fileId);
+            if (databaseFileMetadata == null && LMDBFileServer.logger.isInfoEnabled())
+                LMDBFileServer.logger.info("Tried to get expired metadata of file: " + fileId);
             return (databaseFileMetadata);
         }
     }
 
     /**
+     * The metadata and the data are read from the same snapshot, within a single read transaction,
+     * and the metadata record is decoded once
      * @inheritDoc
      */
     @Override
     public @Nullable DatabaseFile getFile(UUID fileId) {
         Objects.requireNonNull(fileId);
         this.mustBeOpenOrThrow("Tried to download file : " + fileId + " with closed connection!");
-        final byte[] data = this.download(fileId);
-        final DatabaseFileMetadata databaseFileMetadata = this.getFileMetaData(fileId);
-
-        if (data == null || databaseFileMetadata == null) {
-            if (data != null) {
-                LMDBFileServer.logger.warn("File without metadata, removing file " + fileId);
-                LMDBFileServer.logger.debug("file length: " + data.length);
-                this.delete(fileId);
-            } else if (databaseFileMetadata != null) {
-                LMDBFileServer.logger.warn("Metadata without file, removing metdata " + fileId);
-                LMDBFileServer.logger.debug("metadata: " + databaseFileMetadata);
-                this.delete(fileId);
+        final DatabaseFileMetadata databaseFileMetadata;
+        final byte[] data;
+        try (final Transaction transac = this.readers.acquire()) {
+            final ByteBuffer metadata = this.getUnexpiredRecord(transac.get(), fileId);
+            if (metadata == null) {
+                LMDBFileServer.logger.info("Tried to get expired file: " + fileId);
+                return (null);
             }
-            return (null);
+            // Decoding doesn't read from the transaction, so the record is still valid to read the data with
+            databaseFileMetadata = this.getFileMetaDataFrom(metadata);
+            data = this.readChunks(transac.get(), fileId, metadata);
         }
-        if (this.isExpired(fileId, databaseFileMetadata, ByteBuffer.wrap(data))) {
-            LMDBFileServer.logger.info("Tried to get expired file: " + fileId);
+        if (data == null) {
+            LMDBFileServer.logger.warn("Metadata without file, removing metdata " + fileId);
+            LMDBFileServer.logger.debug("metadata: " + databaseFileMetadata);
+            this.delete(fileId);
             return (null);
         }
         return DatabaseFile.newInstance(databaseFileMetadata, data);
@@ -467,14 +1644,219 @@ public class LMDBFileServer implements IFileServer {
      */
     @Override
     public void delete(final UUID fileId) {
-        this.mustBeOpenOrThrow("Tried to delete file: " + fileId + " with closed connection!");
-        final ByteBuffer key = BytesUtils.allocateAndPutFlip(UUIDUtils.toBytes(fileId));
+        LMDBFileServer.join(this.deleteAsync(fileId));
+    }
 
+    /**
+     * Delete a file with the specified id, the deletion is committed by the group commit writer if enabled
+     * @param fileId the file id to delete
+     * @return a future completed once the deletion has been committed
+     * @see IFileServer#delete(UUID)
+     * @see GroupCommitWriter
+     */
+    public CompletableFuture<Void> deleteAsync(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow("Tried to delete file: " + fileId + " with closed connection!");
         LMDBFileServer.logger.info("Removing entries with id: " + fileId);
-        if (!this.dataDb.delete(key))
-            LMDBFileServer.logger.debug("Unable to remove file data with id: " + fileId + " maybe it has already been deleted");
-        if (!this.metaDb.delete(key))
+        final long[] usedBytes = new long[1];
+        return (this.write(session -> usedBytes[0] = this.delete(session, fileId))
+                .thenRun(() -> {
+                    this.ledger.addUsedBytes(usedBytes[0]);
+                    this.ledger.release(fileId);
+                }));
+    }
+
+    /**
+     * Apply a write operation, through the group commit writer if enabled or in its own write session otherwise
+     * @param operation the write operation
+     * @return a future completed once the operation has been committed
+     */
+    private CompletableFuture<Void> write(final GroupCommitWriter.IWriteOperation operation) {
+        this.growIfAboveHighWaterMark();
+        final long mapSize = this.env.info().mapSize;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        this.writeOnce(operation).whenComplete((ignored, e) -> {
+            if (e == null) {
+                future.complete(null);
+            } else if (LMDBFileServer.isMapFull(e) && this.grow(mapSize)) {
+                // Nothing has been written, the operation is applied again on the grown map
+                this.write(operation).whenComplete((retried, retryError) -> {
+                    if (retryError == null)
+                        future.complete(null);
+                    else
+                        future.completeExceptionally(retryError);
+                });
+            } else {
+                future.completeExceptionally(e);
+            }
+        });
+        return (future);
+    }
+
+    /**
+     * Apply a write operation in its own transaction, or queue it for the group commit writer if enabled
+     * @param operation the write operation
+     * @return a future completed once the operation has been committed
+     */
+    private CompletableFuture<Void> writeOnce(final GroupCommitWriter.IWriteOperation operation) {
+        if (this.writer != null)
+            return (this.writer.submit(operation));
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        RuntimeException failure = null;
+        // LMDB already serializes the write transactions, the lock also covers the commit actions
+        this.sessionLock.lock();
+        this.mapLock.readLock().lock();
+        try (final WriteSession session = WriteSession.newInstance(this.env)) {
+            operation.apply(session);
+            session.commit();
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            this.mapLock.readLock().unlock();
+            this.sessionLock.unlock();
+        }
+        if (failure == null)
+            future.complete(null);
+        else
+            future.completeExceptionally(failure);
+        return (future);
+    }
+
+    /**
+     * Predicate that tell whether or not a write failed because the map is full
+     * @param throwable the write failure
+     * @return if the map is full
+     */
+    private static boolean isMapFull(final Throwable throwable) {
+        final Throwable cause = (throwable instanceof CompletionException) ? throwable.getCause() : throwable;
+        return (cause instanceof Env.MapFullException);
+    }
+
+    /**
+     * Grow the map before writing if the part of the map in use is above the high water mark
+     */
+    private void growIfAboveHighWaterMark() {
+        final EnvInfo info = this.env.info();
+        if (info.mapSize >= this.settings.getDbGrowthCeilingByteSize())
+            return;
+        final double usedRatio = (double) ((info.lastPageNumber + 1) * this.pageSize) / info.mapSize;
+        if (usedRatio > this.settings.getDbGrowthHighWaterMark())
+            this.grow(info.mapSize);
+    }
+
+    /**
+     * Grow the map geometrically up to the ceiling, the writers and readers wait until the map is resized
+     * The read transactions still open, such as the leases of slow clients, are only waited for a bounded time,
+     * the map isn't grown if they aren't closed by then
+     * Must not be called by a thread holding a read or write transaction
+     * @param observedMapSize the map size seen before the write that needs more space
+     * @return False if the map can't grow anymore or the read transactions weren't closed in time,
+     * True if it has grown since the observed size
+     */
+    private boolean grow(final long observedMapSize) {
+        this.mapLock.writeLock().lock();
+        try {
+            final long mapSize = this.env.info().mapSize;
+            if (mapSize != observedMapSize)
+                return (true);
+            final long ceiling = this.settings.getDbGrowthCeilingByteSize();
+            if (mapSize >= ceiling)
+                return (false);
+            final long grownMapSize = (long) Math.min(ceiling, mapSize * this.settings.getDbGrowthFactor());
+            final long newMapSize = Math.max(mapSize + this.pageSize, grownMapSize - grownMapSize % this.pageSize);
+            // No buffer of the current map may be in use while it's remapped
+            if (!this.readers.suspend(LMDBFileServer.RESIZE_MS_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LMDBFileServer.logger.warn("Map of " + this.settings.getDbDirectory() + " not grown, read transactions still open after "
+                        + LMDBFileServer.RESIZE_MS_TIMEOUT + " ms");
+                return (false);
+            }
+            try {
+                EnvUtils.setMapSize(this.env, newMapSize);
+                this.mapSize = newMapSize;
+            } finally {
+                this.readers.resume();
+            }
+            LMDBFileServer.logger.info("Map of " + this.settings.getDbDirectory() + " grown from " + mapSize + " to " + newMapSize + " bytes");
+            return (true);
+        } finally {
+            this.mapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the sweeper removing the expired files periodically, with the figures of its last sweep
+     * @return the expiration sweeper
+     */
+    public ExpirationSweeper getExpirationSweeper() {
+        this.mustBeOpenOrThrow("Tried to get the expiration sweeper with closed connection!");
+        return (this.sweeper);
+    }
+
+    /**
+     * Get the current byte size of the map
+     * @return the map byte size
+     */
+    public long getMapByteSize() {
+        this.mustBeOpenOrThrow("Tried to get the map size with closed connection!");
+        return (this.env.info().mapSize);
+    }
+
+    /**
+     * Wait for a write to be committed and rethrow its failure as is
+     * @param future the write future
+     */
+    private static void join(final CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the metadata, the expiration index entry and the chunks of a file within a write session
+     * @param session the write session
+     * @param fileId the file id to delete
+     * @return the estimated number of bytes freed, as a negative number
+     */
+    private long delete(final WriteSession session, final UUID fileId) {
+        final ByteBuffer key = BlobKeys.ofId(fileId);
+        long freedBytes = 0;
+        this.runningChecksums.remove(fileId);
+        final ByteBuffer metadata = this.metaDb.get(session.get(), key);
+        final ChunkLayout layout = ChunkLayout.of(metadata);
+        // The data of an inline file is deleted with its metadata, there isn't any chunk to look for
+        final boolean inline = metadata != null && MetadataCodec.isInline(metadata);
+        if (metadata != null) {
+            freedBytes += this.getIndexEntriesBytes(metadata.remaining());
+            if (MetadataCodec.isSpilled(metadata))
+                session.onCommit(() -> this.deleteSideFileIfUnreferenced(fileId));
+            session.delete(this.expireDb, this.getExpirationKey(fileId, metadata));
+            session.delete(this.metaDb, key);
+        } else {
             LMDBFileServer.logger.debug("Unable to remove metadata with id: " + fileId + " maybe it has already been deleted");
+        }
+        final long freedChunkBytes = (inline) ? 0 : this.deleteChunks(session.get(), fileId, layout);
+        if (freedChunkBytes == 0 && !inline)
+            LMDBFileServer.logger.debug("Unable to remove file data with id: " + fileId + " maybe it has already been deleted");
+        return (-(freedBytes + freedChunkBytes));
+    }
+
+    /**
+     * Delete the side file of a deleted file, unless a later write of the same session spilled the file again
+     * Runs once the deletion is committed, so the side file is never missing while its metadata is visible
+     * @param fileId the file id
+     */
+    private void deleteSideFileIfUnreferenced(final UUID fileId) {
+        try (final Transaction transac = this.readers.acquire()) {
+            final ByteBuffer metadata = this.metaDb.get(transac.get(), BlobKeys.localOfId(fileId));
+            if (metadata != null && MetadataCodec.isSpilled(metadata))
+                return;
+        }
+        if (this.spill.delete(fileId))
+            LMDBFileServer.logger.debug("Deleted the side file of " + fileId);
     }
 
     /**
@@ -482,40 +1864,101 @@ public class LMDBFileServer implements IFileServer {
      */
     @Override
     public void deleteAll() {
-        try (final Transaction dataTransac = Transaction.newInstance(this.env, false)) {
-            this.dataDb.drop(dataTransac.get());
-        }
-        try (final Transaction metaTransac = Transaction.newInstance(this.env, false)) {
-            this.metaDb.drop(metaTransac.get());
+        this.mapLock.readLock().lock();
+        try (final WriteSession session = WriteSession.newInstance(this.env)) {
+            this.dataDb.drop(session.get());
+            this.metaDb.drop(session.get());
+            this.expireDb.drop(session.get());
+            this.contentDb.drop(session.get());
+            this.refDb.drop(session.get());
+            session.onCommit(this.spill::deleteAll);
+            session.commit();
+        } finally {
+            this.mapLock.readLock().unlock();
         }
+        this.runningChecksums.clear();
+        this.reconcileUsedSpace();
     }
 
     /**
+     * The expired files are removed by slices, each in its own write transaction with a short read transaction to find them
      * @inheritDoc
      */
     @Override
     public void removeExpired() {
-        try (final Transaction dataTransac = Transaction.newInstance(this.env)) {
-            final Cursor<ByteBuffer> cursor = this.dataDb.openCursor(dataTransac.get()); // A cursor always belongs to a particular Dbi.
-            if (cursor.seek(SeekOp.MDB_FIRST)) {
-                try (final Transaction metaTransac = Transaction.newInstance(this.env)) {
-                    boolean hasNext;
-                    do {
-                        final ByteBuffer key = cursor.key();
-                        final ByteBuffer metadata = this.metaDb.get(metaTransac.get(), key);
-                        final ByteBuffer data = this.dataDb.get(dataTransac.get(), key);
-                        final UUID fileId = UUIDUtils.fromBytes(BytesUtils.toByteArray(key));
-                        hasNext = cursor.seek(SeekOp.MDB_NEXT);
-                        if (this.isExpired(fileId, metadata, data)) {
-                            LMDBFileServer.logger.info("File " + fileId + " has expired");
-                            LMDBFileServer.logger.debug("Metadata: " + metadata);
-                            LMDBFileServer.logger.debug("Now: " + TimestampUtils.now());
-                            this.delete(fileId);
-                        }
-                    } while (hasNext);
+        this.mustBeOpenOrThrow("Tried to remove expired files with closed connection!");
+        final int sliceSize = this.settings.getExpirationSliceSize();
+        int nbRemoved;
+        do {
+            nbRemoved = this.removeExpired(sliceSize);
+        } while (nbRemoved == sliceSize);
+    }
+
+    /**
+     * Remove a slice of the expired files and of the stale expiration index entries in a single write transaction
+     * The expiration index is read in a transaction closed before the write, no reader is held while writing,
+     * so LMDB reuses the pages freed by the previous slices
+     * @param maxNbKeys the maximum number of expiration index entries to handle
+     * @return the number of expiration index entries removed, below the maximum once none expiring up to now is left
+     * @see ExpirationSweeper
+     */
+    private int removeExpired(final int maxNbKeys) {
+        if (!this.isOpen)
+            return (0);
+        final long nowSeconds = TimestampUtils.now().getSeconds();
+        final List<ByteBuffer> expiredKeys = new ArrayList<>();
+        // Only the index entries expiring up to now are scanned, the cost doesn't depend on the number of live files
+        try (final Transaction transac = this.readers.acquire();
+             final Cursor<ByteBuffer> cursor = this.expireDb.openCursor(transac.get())) {
+            boolean hasNext = cursor.get(BlobKeys.ofExpiration(0, new UUID(0, 0)), GetOp.MDB_SET_RANGE);
+            while (hasNext && expiredKeys.size() < maxNbKeys && BlobKeys.getExpirationSeconds(cursor.key()) <= nowSeconds) {
+                expiredKeys.add(BytesUtils.allocateAndPutFlip(BytesUtils.toByteArray(cursor.key().slice())));
+                hasNext = cursor.next();
+            }
+        }
+        if (expiredKeys.isEmpty())
+            return (0);
+        final long[] usedBytes = new long[1];
+        final int[] nbRemovedKeys = new int[1];
+        final List<UUID> removedIds = new ArrayList<>();
+        LMDBFileServer.join(this.write(session -> {
+            // The operation is applied again if the map had to grow
+            usedBytes[0] = 0;
+            nbRemovedKeys[0] = 0;
+            removedIds.clear();
+            for (final ByteBuffer expiredKey : expiredKeys) {
+                final UUID fileId = BlobKeys.getExpirationId(expiredKey);
+                final boolean hasData = this.hasData(session.get(), fileId);
+                final ByteBuffer metadata = this.metaDb.get(session.get(), BlobKeys.ofId(fileId));
+                if (this.isExpired(fileId, metadata, hasData)) {
+                    usedBytes[0] += this.delete(session, fileId);
+                    removedIds.add(fileId);
+                    session.delete(this.expireDb, expiredKey);
+                    ++nbRemovedKeys[0];
+                } else if (!this.getExpirationKey(fileId, metadata).equals(expiredKey)) {
+                    // The entry is stale, the expiration date of its file has changed
+                    session.delete(this.expireDb, expiredKey);
+                    ++nbRemovedKeys[0];
                 }
             }
+        }));
+        this.ledger.addUsedBytes(usedBytes[0]);
+        for (final UUID fileId : removedIds) {
+            LMDBFileServer.logger.info("File " + fileId + " has expired");
+            this.ledger.release(fileId);
         }
+        return (nbRemovedKeys[0]);
+    }
+
+    /**
+     * Get the expiration index key of a file
+     * @param fileId the file id
+     * @param metadata the binary metadata record of the file
+     * @return the expiration index key
+     */
+    private ByteBuffer getExpirationKey(final UUID fileId, final ByteBuffer metadata) {
+        final long expirationSeconds = Math.floorDiv(MetadataCodec.getExpirationEpochNanos(metadata), TimeUnit.SECONDS.toNanos(1));
+        return (BlobKeys.ofExpiration(expirationSeconds, fileId));
     }
 
     /**
@@ -525,42 +1968,103 @@ public class LMDBFileServer implements IFileServer {
      * @return False If the specified id is present and has a valid metadata date and data that isn't expired yet in any other case it will return True
      */
     public boolean isExpired(final UUID fileId) {
-        this.mustBeOpenOrThrow("Tried to check if id: " + fileId + " expired with closed connection!");
-        final ByteBuffer key = BytesUtils.allocateAndPutFlip(UUIDUtils.toBytes(fileId));
-        final ByteBuffer metadata;
-        final ByteBuffer data;
-
-        try (final Transaction dataTransac = Transaction.newInstance(this.env);
-             final Transaction metaTransac = Transaction.newInstance(this.env)) {
-            metadata = this.metaDb.get(metaTransac.get(), key);
-            data = this.dataDb.get(dataTransac.get(), key);
+        // The error message is only built when closed, nothing is allocated on the lookup path
+        if (!this.isOpen)
+            this.mustBeOpenOrThrow("Tried to check if id: " + fileId + " expired with closed connection!");
+        try (final Transaction transac = this.readers.acquire()) {
+            final boolean hasData = this.hasData(transac.get(), fileId);
+            final ByteBuffer metadata = this.metaDb.get(transac.get(), BlobKeys.localOfId(fileId));
+            return (this.isExpired(fileId, metadata, hasData));
         }
-        return (this.isExpired(fileId, metadata, data));
     }
 
     /**
+     * Read from the running space account, no transaction is needed
+     * The space reserved for the uploads in progress isn't available
      * @inheritDoc
      */
     @Override
     public long getAvailableUsableByte() {
-        final long metaUsedSpace = this.getMetaDataUsedSpace();
-        final long dataUsedSpace = this.getDataUsedSpace();
-        final long mapSize = this.env.info().mapSize;
-        final int pageSize = this.env.stat().pageSize;
-        final long metaReservedPages = (long)Math.ceil((double) metaUsedSpace / pageSize);
-        final long dataReservedPages = (long)Math.ceil((double) dataUsedSpace / pageSize);
-
-        return (mapSize - pageSize * (metaReservedPages + dataReservedPages));
+        this.mustBeOpenOrThrow("Tried to get available space with closed connection!");
+        return (this.ledger.getAvailableBytes(this.getCapacityByte()));
     }
 
     /**
+     * Read from the running space account, no transaction is needed
      * @inheritDoc
      */
     @Override
     public boolean hasEnoughSpaceFor(final int nbByte) {
-        final int pageSize = this.env.stat().pageSize;
-        final long neededSpace = ((long)Math.ceil((double) (nbByte + DatabaseFileMetadata.getMaxSerializedLength()) / pageSize)) * pageSize;
-        return (this.getAvailableUsableByte() > neededSpace);
+        return (this.getAvailableUsableByte() > this.getFileBytes(nbByte) && this.hasEnoughDiskSpaceFor(nbByte));
+    }
+
+    /**
+     * Predicate that tell whether or not the disk has enough space left for the side file of a new file
+     * @param nbByte the file data length
+     * @return True if the file isn't spilled or the disk has enough usable space
+     */
+    private boolean hasEnoughDiskSpaceFor(final int nbByte) {
+        return (!this.settings.isSpilled(nbByte) || this.spill.getUsableBytes() > nbByte);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean reserve(final UUID fileId, final int nbByte, final Timestamp expirationDate) {
+        Objects.requireNonNull(fileId);
+        Objects.requireNonNull(expirationDate);
+        this.mustBeOpenOrThrow("Tried to reserve space with closed connection!");
+        final boolean isReserved = this.hasEnoughDiskSpaceFor(nbByte) && this.ledger.reserve(fileId, this.getFileBytes(nbByte), this.getCapacityByte(),
+                TimestampUtils.getSecondsDifferenceFromNow(expirationDate));
+        if (!isReserved)
+            LMDBFileServer.logger.info("Not enough space to reserve " + nbByte + " bytes for file " + fileId);
+        return (isReserved);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void releaseReservation(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow("Tried to release a reservation with closed connection!");
+        this.ledger.release(fileId);
+    }
+
+    /**
+     * Replace the running used space estimate by the space used by the databases
+     * Writes committed while the databases are measured may be counted twice or not at all until the next reconciliation
+     */
+    public void reconcileUsedSpace() {
+        this.mustBeOpenOrThrow("Tried to reconcile used space with closed connection!");
+        try (final Transaction transac = this.readers.acquire()) {
+            final long usedBytes = this.getUsedSpace(this.metaDb.stat(transac.get()))
+                    + this.getUsedSpace(this.expireDb.stat(transac.get()))
+                    + this.getDataUsedSpace(transac.get());
+            LMDBFileServer.logger.debug("Used space estimate " + this.ledger.getUsedBytes() + " reconciled to " + usedBytes + " bytes");
+            this.ledger.reconcile(usedBytes);
+        }
+    }
+
+    /**
+     * Get the number of bytes the map may use, the map grows up to the ceiling on demand
+     * @return the capacity in byte
+     */
+    private long getCapacityByte() {
+        return (Math.max(this.mapSize, this.settings.getDbGrowthCeilingByteSize()));
+    }
+
+    /**
+     * Estimate the bytes taken in the map by a new file stored in a single chunk, or in a side file
+     * @param nbByte the file data length
+     * @return the estimated number of bytes
+     */
+    private long getFileBytes(final int nbByte) {
+        final long indexEntriesBytes = this.getIndexEntriesBytes(DatabaseFileMetadata.getMaxSerializedLength());
+        if (this.settings.isSpilled(nbByte))
+            return (indexEntriesBytes);
+        return (this.ledger.estimateEntryBytes(BlobKeys.getChunkKeyByteSize(), nbByte) + indexEntriesBytes);
     }
 
     /**
@@ -593,19 +2097,165 @@ public class LMDBFileServer implements IFileServer {
      */
     public long getMetaDataUsedSpace() {
         this.mustBeOpenOrThrow("Tried to get used space with closed connection!");
-        try (final Transaction metaTransac = Transaction.newInstance(this.env)) {
+        try (final Transaction metaTransac = this.readers.acquire()) {
             return (this.getUsedSpace(this.metaDb.stat(metaTransac.get())));
         }
     }
 
     /**
-     * Get the used byte space by the data database
+     * Get the used byte space by the expiration index database
+     * @return the used expiration index space in byte
+     */
+    public long getExpirationIndexUsedSpace() {
+        this.mustBeOpenOrThrow("Tried to get used space with closed connection!");
+        try (final Transaction expireTransac = this.readers.acquire()) {
+            return (this.getUsedSpace(this.expireDb.stat(expireTransac.get())));
+        }
+    }
+
+    /**
+     * Get the used byte space by the data database and the deduplicated content
      * @return the used data space in byte
      */
     public long getDataUsedSpace() {
         this.mustBeOpenOrThrow("Tried to get used space with closed connection!");
-        try (final Transaction dataTransac = Transaction.newInstance(this.env)) {
-            return (this.getUsedSpace(this.dataDb.stat(dataTransac.get())));
+        try (final Transaction dataTransac = this.readers.acquire()) {
+            return (this.getDataUsedSpace(dataTransac.get()));
+        }
+    }
+
+    /**
+     * Get the used byte space by the data database and the deduplicated content
+     * @param txn the transaction to read with
+     * @return the used data space in byte
+     */
+    private long getDataUsedSpace(final Txn<ByteBuffer> txn) {
+        return (this.getUsedSpace(this.dataDb.stat(txn))
+                + this.getUsedSpace(this.contentDb.stat(txn))
+                + this.getUsedSpace(this.refDb.stat(txn)));
+    }
+
+    /**
+     * Get the statistics of the deduplicated content, read from the content and the reference databases
+     * @return the current statistics
+     */
+    public DeduplicationStats getDeduplicationStats() {
+        this.mustBeOpenOrThrow("Tried to get deduplication stats with closed connection!");
+        long nbContents = 0;
+        long nbReferences = 0;
+        long referencedBytes = 0;
+        long contentBytes = 0;
+        long storedBytes = 0;
+        try (final Transaction transac = this.readers.acquire();
+             final Cursor<ByteBuffer> cursor = this.refDb.openCursor(transac.get())) {
+            boolean hasNext = cursor.seek(SeekOp.MDB_FIRST);
+            while (hasNext) {
+                final int count = cursor.val().getInt(cursor.val().position());
+                final ByteBuffer content = this.contentDb.get(transac.get(), cursor.key());
+                if (content != null) {
+                    final int length = (BlobKeys.getContentBlockSize(cursor.key()) != 0) ? BlockCodec.getLength(content) : content.remaining();
+                    ++nbContents;
+                    nbReferences += count;
+                    referencedBytes += (long) length * count;
+                    contentBytes += length;
+                    storedBytes += content.remaining();
+                }
+                hasNext = cursor.next();
+            }
+        }
+        return (new DeduplicationStats(nbContents, nbReferences, referencedBytes, contentBytes, storedBytes));
+    }
+
+    /**
+     * Statistics of the deduplicated content of the file server
+     */
+    @Immutable
+    public static final class DeduplicationStats {
+        private final long nbContents;
+        private final long nbReferences;
+        private final long referencedBytes;
+        private final long contentBytes;
+        private final long storedBytes;
+
+        /**
+         * Create a new stats instance
+         * @param nbContents the number of contents stored
+         * @param nbReferences the number of chunks referencing them
+         * @param referencedBytes the data length of the chunks referencing them
+         * @param contentBytes the data length of the contents
+         * @param storedBytes the stored length of the contents, once compressed
+         */
+        private DeduplicationStats(final long nbContents, final long nbReferences, final long referencedBytes,
+                                   final long contentBytes, final long storedBytes) {
+            this.nbContents = nbContents;
+            this.nbReferences = nbReferences;
+            this.referencedBytes = referencedBytes;
+            this.contentBytes = contentBytes;
+            this.storedBytes = storedBytes;
+        }
+
+        /**
+         * Get the number of contents stored
+         * @return the number of contents
+         */
+        public long getNbContents() {
+            return (this.nbContents);
+        }
+
+        /**
+         * Get the number of chunks referencing a content
+         * @return the number of references
+         */
+        public long getNbReferences() {
+            return (this.nbReferences);
+        }
+
+        /**
+         * Get the number of bytes of data the deduplicated files hold
+         * @return the referenced bytes
+         */
+        public long getReferencedBytes() {
+            return (this.referencedBytes);
+        }
+
+        /**
+         * Get the number of bytes of data the contents hold, each content counted once
+         * @return the content bytes
+         */
+        public long getContentBytes() {
+            return (this.contentBytes);
+        }
+
+        /**
+         * Get the number of bytes the contents take once compressed
+         * @return the stored bytes
+         */
+        public long getStoredBytes() {
+            return (this.storedBytes);
+        }
+
+        /**
+         * Get the ratio of the data the deduplicated files hold to the data actually stored
+         * @return the deduplication ratio, 1 if there isn't any content
+         */
+        public double getRatio() {
+            return ((this.contentBytes == 0) ? 1 : (double) this.referencedBytes / this.contentBytes);
+        }
+
+        /**
+         * String representation of the instance
+         * @return a string representation of the instance
+         */
+        @Override
+        public String toString() {
+            return "DeduplicationStats{" +
+                    "nbContents=" + this.nbContents +
+                    ", nbReferences=" + this.nbReferences +
+                    ", referencedBytes=" + this.referencedBytes +
+                    ", contentBytes=" + this.contentBytes +
+                    ", storedBytes=" + this.storedBytes +
+                    ", ratio=" + this.getRatio() +
+                    '}';
         }
     }
 
@@ -613,51 +2263,414 @@ public class LMDBFileServer implements IFileServer {
      * Predicate that tell whether or not a file is expired
      * @param fileId the file id
      * @param metadata the metadata associated to the file
-     * @param data the data associated to the file
+     * @param hasData whether or not the file has at least one data chunk
      * @return if the file is expired
      */
-    private boolean isExpired(final UUID fileId, final ByteBuffer metadata, final ByteBuffer data) {
-        if (metadata != null) {
-            return (this.isExpired(fileId, this.getFileMetaDataFrom(metadata), data));
-        } else {
-            return (this.isExpired(fileId, (DatabaseFileMetadata) null, data));
+    private boolean isExpired(final UUID fileId, final ByteBuffer metadata, final boolean hasData) {
+        if (metadata == null || !hasData) {
+            return (this.isExpired(fileId, (DatabaseFileMetadata) null, hasData));
         }
+        // Only the expiration date is read, the record isn't decoded
+        return (TimestampUtils.nowEpochNanos() > MetadataCodec.getExpirationEpochNanos(metadata));
     }
 
     /**
      * Predicate that tell whether or not a file is expired
      * @param fileId the file id
      * @param metadata the metadata associated to the file
-     * @param data the data associated to the file
+     * @param hasData whether or not the file has at least one data chunk
      * @return if the file is expired
      */
-    private boolean isExpired(final UUID fileId, final DatabaseFileMetadata metadata, final ByteBuffer data) {
-        if (metadata == null || data == null) {
-            LMDBFileServer.logger.debug("Id: " + fileId + " is considered expired because metadata or data is null");
-            LMDBFileServer.logger.debug("Data: " + data);
-            LMDBFileServer.logger.debug("Metadata: " + metadata);
+    private boolean isExpired(final UUID fileId, final DatabaseFileMetadata metadata, final boolean hasData) {
+        if (metadata == null || !hasData) {
+            if (LMDBFileServer.logger.isDebugEnabled()) {
+                LMDBFileServer.logger.debug("Id: " + fileId + " is considered expired because metadata or data is null");
+                LMDBFileServer.logger.debug("Has data: " + hasData);
+                LMDBFileServer.logger.debug("Metadata: " + metadata);
+            }
             return (true);
         }
-        final Timestamp timeStampNow = TimestampUtils.now();
-        return (TimestampUtils.isAfter(metadata.getExpirationDate(), timeStampNow));
+        return (TimestampUtils.nowEpochNanos() > TimestampUtils.toEpochNanos(metadata.getExpirationDate()));
+    }
+
+    /**
+     * Get the metadata of a file that isn't expired
+     * The record is decoded before the chunks are looked for, since the lookup reuses the value buffer of the transaction
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @return the file metadata Or Null if the file wasn't found or is expired
+     */
+    private @Nullable DatabaseFileMetadata getLiveFileMetaData(final Txn<ByteBuffer> txn, final UUID fileId) {
+        final ByteBuffer record = this.getUnexpiredRecord(txn, fileId);
+        if (record == null)
+            return (null);
+        final DatabaseFileMetadata metadata = this.getFileMetaDataFrom(record);
+        if (!metadata.isInline() && !metadata.isSpilled() && !this.hasChunks(txn, fileId)) {
+            LMDBFileServer.logger.debug("Id: " + fileId + " is considered expired because it has no data");
+            return (null);
+        }
+        return (metadata);
+    }
+
+    /**
+     * Get the metadata record of a file whose expiration date hasn't passed, only the expiration date is read
+     * Whether or not the file has data is told by reading it
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @return the binary metadata record, only valid until the next read of the transaction, Or Null if the file wasn't found or is expired
+     */
+    private @Nullable ByteBuffer getUnexpiredRecord(final Txn<ByteBuffer> txn, final UUID fileId) {
+        final ByteBuffer metadata = this.metaDb.get(txn, BlobKeys.localOfId(fileId));
+        if (metadata == null || TimestampUtils.nowEpochNanos() > MetadataCodec.getExpirationEpochNanos(metadata))
+            return (null);
+        return (metadata);
     }
 
     /**
      * Create a new database file metadata from its byte representation
      * @param metadata the metadata to convert
      * @return the file metadata instance
+     * @see MetadataCodec
      */
     private DatabaseFileMetadata getFileMetaDataFrom(final ByteBuffer metadata) {
         Objects.requireNonNull(metadata);
-        final String jsonMetadata = BytesUtils.toString(metadata);
-        final DatabaseFileMetadata.Builder builder = DatabaseFileMetadata.Builder.fromJson(jsonMetadata);
-        if (builder == null) {
-            LMDBFileServer.logger.error("Unable to convert json metadata to builder!");
-            LMDBFileServer.logger.debug("Json: " + jsonMetadata);
+        return (MetadataCodec.decode(metadata));
+    }
+
+    /**
+     * The way the chunks of a file are stored in the data database, told by its metadata
+     */
+    @Immutable
+    private static final class ChunkLayout {
+        private static final ChunkLayout RAW = new ChunkLayout(0, false);
+        private final int blockSize;
+        private final boolean deduplicated;
+
+        /**
+         * Create a new chunk layout
+         * @param blockSize the compression block size of the chunks Or 0 if they aren't compressed
+         * @param deduplicated whether or not the chunks are references to their content
+         */
+        private ChunkLayout(final int blockSize, final boolean deduplicated) {
+            this.blockSize = blockSize;
+            this.deduplicated = deduplicated;
+        }
+
+        /**
+         * Get the chunk layout of a file from its metadata record, without decoding it
+         * @param record the metadata record Or Null if the file has no metadata, its chunks are then stored as is
+         * @return the chunk layout
+         */
+        private static ChunkLayout of(@Nullable final ByteBuffer record) {
+            if (record == null)
+                return (ChunkLayout.RAW);
+            return (new ChunkLayout(MetadataCodec.getCompressionBlockSize(record), MetadataCodec.isDeduplicated(record)));
+        }
+
+        /**
+         * Get the chunk layout of a file from its metadata
+         * @param metadata the file metadata
+         * @return the chunk layout
+         */
+        private static ChunkLayout of(final DatabaseFileMetadata metadata) {
+            return (new ChunkLayout(metadata.getCompressionBlockSize(), metadata.isDeduplicated()));
+        }
+    }
+
+    /**
+     * Get the stored bytes of a chunk, the content it references if the file is deduplicated
+     * @param txn the transaction to read with
+     * @param chunk the chunk value
+     * @param layout the layout of the file chunks
+     * @return the stored chunk, compressed if the file is, only valid until the next read of the transaction
+     * @throws DatabaseFileException if the referenced content isn't found
+     */
+    private ByteBuffer getStoredChunk(final Txn<ByteBuffer> txn, final ByteBuffer chunk, final ChunkLayout layout) {
+        if (!layout.deduplicated)
+            return (chunk);
+        final ByteBuffer content = this.contentDb.get(txn, chunk);
+        if (content == null)
+            throw new DatabaseFileException("Content referenced by a chunk not found");
+        return (content);
+    }
+
+    /**
+     * Get the data of the chunks of a file, sorted by offset
+     * The returned buffers point to the LMDB memory map and are only valid while the transaction is open,
+     * unless the chunks are compressed, they are then inflated into new buffers
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @param layout the layout of the file chunks
+     * @return the chunks of the file, empty if there isn't any
+     */
+    private List<ByteBuffer> getChunks(final Txn<ByteBuffer> txn, final UUID fileId, final ChunkLayout layout) {
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        try (final Cursor<ByteBuffer> cursor = this.dataDb.openCursor(txn)) {
+            boolean hasNext = cursor.get(BlobKeys.localOfId(fileId), GetOp.MDB_SET_RANGE);
+            while (hasNext && BlobKeys.belongsTo(cursor.key(), fileId)) {
+                // The cursor and the transaction buffers are reused at each move
+                final ByteBuffer chunk = this.getStoredChunk(txn, cursor.val(), layout);
+                chunks.add((layout.blockSize != 0) ? BlockCodec.decode(chunk, layout.blockSize) : chunk.duplicate());
+                hasNext = cursor.next();
+            }
+        }
+        return (chunks);
+    }
+
+    /**
+     * Get the slices of the LMDB memory map holding a range of a file data, or the mapped range of its side file
+     * The returned buffers are only valid while the transaction is open, the range of a compressed file is inflated into new buffers
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the slices covering the whole range, sorted by offset, or Null if the file is expired or not found
+     * @throws IllegalArgumentException if the range is not within the file data
+     * @throws DatabaseFileException if the chunks don't cover the range
+     */
+    private @Nullable List<ByteBuffer> getRange(final Txn<ByteBuffer> txn, final UUID fileId, final long offset, final int length) {
+        final ByteBuffer metadata = this.getRangeMetadata(txn, fileId, offset, length);
+        if (metadata == null)
+            return (null);
+        if (MetadataCodec.isSpilled(metadata)) {
+            final ByteBuffer mapped = this.spill.map(fileId, offset, length);
+            return ((mapped != null) ? Collections.singletonList(mapped) : null);
+        }
+        if (MetadataCodec.isInline(metadata))
+            return (Collections.singletonList(LMDBFileServer.getInlineRange(metadata, offset, length)));
+        return (this.getChunkRange(txn, fileId, ChunkLayout.of(metadata), offset, length));
+    }
+
+    /**
+     * Get a range of the inline data of a file, pointing to the metadata record
+     * @param metadata the binary metadata record, whose data is inline
+     * @param offset the offset of the range in the file
+     * @param length the length of the range, within the file data
+     * @return the slice of the record holding the range
+     */
+    private static ByteBuffer getInlineRange(final ByteBuffer metadata, final long offset, final int length) {
+        final ByteBuffer slice = MetadataCodec.getInlineData(metadata);
+        slice.position(slice.position() + (int) offset);
+        slice.limit(slice.position() + length);
+        return (slice);
+    }
+
+    /**
+     * Get the inline data of a file
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @return the slice of the metadata record holding the data, only valid until the next read of the transaction
+     * @throws DatabaseFileException if the file has no metadata record
+     * @throws MetadataException if the data of the file isn't inline
+     */
+    private ByteBuffer getInlineData(final Txn<ByteBuffer> txn, final UUID fileId) {
+        final ByteBuffer metadata = this.metaDb.get(txn, BlobKeys.localOfId(fileId));
+        if (metadata == null)
+            throw new DatabaseFileException("Metadata of inline file " + fileId + " not found");
+        return (MetadataCodec.getInlineData(metadata));
+    }
+
+    /**
+     * Get the metadata record of a file that isn't expired and check a range is within its data
+     * The record is only valid until the next read of the transaction
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the binary metadata record or Null if the file is expired or not found
+     * @throws IllegalArgumentException if the range is not within the file data
+     */
+    private @Nullable ByteBuffer getRangeMetadata(final Txn<ByteBuffer> txn, final UUID fileId, final long offset, final int length) {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("Offset and length must be greater than or equal to 0");
+        final boolean hasData = this.hasData(txn, fileId);
+        final ByteBuffer metadata = this.metaDb.get(txn, BlobKeys.localOfId(fileId));
+        if (this.isExpired(fileId, metadata, hasData)) {
+            if (LMDBFileServer.logger.isInfoEnabled())
+                LMDBFileServer.logger.info("Tried to read expired file: " + fileId);
+            return (null);
+        }
+        final int dataLength = MetadataCodec.getDataLength(metadata);
+        if (offset + length > dataLength)
+            throw new IllegalArgumentException("Range [" + offset + ", " + (offset + length) + ") is outside of file " + fileId + " of length " + dataLength);
+        return (metadata);
+    }
+
+    /**
+     * Get the slices of the chunks holding a range of a file data
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @param layout the layout of the file chunks
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the slices covering the whole range, sorted by offset
+     * @throws DatabaseFileException if the chunks don't cover the range
+     */
+    private List<ByteBuffer> getChunkRange(final Txn<ByteBuffer> txn, final UUID fileId, final ChunkLayout layout, final long offset, final int length) {
+        final List<ByteBuffer> slices = this.getChunkSlices(txn, fileId, layout, offset, length);
+        long sliceLength = 0;
+        for (final ByteBuffer slice : slices)
+            sliceLength += slice.remaining();
+        if (sliceLength != length)
+            throw new DatabaseFileException("File " + fileId + " chunks don't cover its metadata length");
+        return (slices);
+    }
+
+    /**
+     * Get the parts of the chunks of a file that overlap the specified range, sorted by offset
+     * The returned buffers point to the LMDB memory map and are only valid while the transaction is open,
+     * unless the chunks are compressed, only the blocks overlapping the range are then inflated into new buffers
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @param layout the layout of the file chunks
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the slices of the chunks overlapping the range, empty if there isn't any
+     */
+    private List<ByteBuffer> getChunkSlices(final Txn<ByteBuffer> txn, final UUID fileId, final ChunkLayout layout, final long offset, final int length) {
+        final List<ByteBuffer> slices = new ArrayList<>();
+        final long end = offset + length;
+        try (final Cursor<ByteBuffer> cursor = this.dataDb.openCursor(txn)) {
+            // Position the cursor on the last chunk starting at or before the offset
+            boolean found = cursor.get(BlobKeys.localOfChunk(fileId, offset), GetOp.MDB_SET_RANGE);
+            if (!found || !BlobKeys.belongsTo(cursor.key(), fileId) || BlobKeys.getOffset(cursor.key()) > offset)
+                found = (found) ? cursor.prev() : cursor.last();
+            while (found && BlobKeys.belongsTo(cursor.key(), fileId)) {
+                final long chunkOffset = BlobKeys.getOffset(cursor.key());
+                if (chunkOffset >= end)
+                    break;
+                final ByteBuffer chunk = this.getStoredChunk(txn, cursor.val(), layout);
+                final long chunkEnd = chunkOffset + ((layout.blockSize != 0) ? BlockCodec.getLength(chunk) : chunk.remaining());
+                if (chunkEnd > offset) {
+                    final int from = (int) (Math.max(offset, chunkOffset) - chunkOffset);
+                    final int to = (int) (Math.min(end, chunkEnd) - chunkOffset);
+                    if (layout.blockSize != 0) {
+                        slices.add(BlockCodec.decode(chunk, layout.blockSize, from, to));
+                    } else {
+                        final ByteBuffer slice = chunk.duplicate(); // The cursor and the transaction buffers are reused at each move
+                        slice.limit(slice.position() + to);
+                        slice.position(slice.position() + from);
+                        slices.add(slice);
+                    }
+                }
+                found = cursor.next();
+            }
+        }
+        return (slices);
+    }
+
+    /**
+     * Predicate that tell whether or not a file has at least one data chunk
+     * The data of a file always starts with a chunk at offset 0, or with a single key made of its id
+     * for the files written before the chunk layout, so no cursor is needed
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @return if the file has data
+     */
+    private boolean hasChunks(final Txn<ByteBuffer> txn, final UUID fileId) {
+        return (this.dataDb.get(txn, BlobKeys.localOfChunk(fileId, 0)) != null
+                || this.dataDb.get(txn, BlobKeys.localOfId(fileId)) != null);
+    }
+
+    /**
+     * Predicate that tell whether or not a file has data, inline, in its side file or in at least one chunk
+     * The metadata record is read again by the callers since the chunk lookup reuses the value buffer of the transaction
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @return if the file has data
+     */
+    private boolean hasData(final Txn<ByteBuffer> txn, final UUID fileId) {
+        final ByteBuffer metadata = this.metaDb.get(txn, BlobKeys.localOfId(fileId));
+        return ((metadata != null && (MetadataCodec.isInline(metadata) || MetadataCodec.isSpilled(metadata))) || this.hasChunks(txn, fileId));
+    }
+
+    /**
+     * Stitch the chunks of a file into a new byte array, inflated if compressed, or read the data of a spilled file from its side file
+     * The inline data of a file is copied from its metadata record
+     * @param txn the transaction to read with
+     * @param fileId the file id
+     * @param metadata the metadata record of the file, read with the transaction and not moved since
+     * @return the file data or Null if the file has no chunk
+     */
+    private @Nullable byte[] readChunks(final Txn<ByteBuffer> txn, final UUID fileId, final ByteBuffer metadata) {
+        if (MetadataCodec.isSpilled(metadata))
+            return (this.spill.read(fileId, MetadataCodec.getDataLength(metadata)));
+        if (MetadataCodec.isInline(metadata))
+            return (BytesUtils.toByteArray(MetadataCodec.getInlineData(metadata).slice()));
+        final List<ByteBuffer> chunks = this.getChunks(txn, fileId, ChunkLayout.of(metadata));
+        if (chunks.isEmpty())
+            return (null);
+        int length = 0;
+        for (final ByteBuffer chunk : chunks)
+            length = Math.addExact(length, chunk.remaining());
+        final byte[] bytes = new byte[length];
+        int offset = 0;
+        for (final ByteBuffer chunk : chunks) {
+            final int chunkLength = chunk.remaining();
+            chunk.get(bytes, offset, chunkLength);
+            offset += chunkLength;
+        }
+        return (bytes);
+    }
+
+    /**
+     * Delete all the chunks of a file, the references of a deduplicated file to its content are released
+     * @param txn the write transaction
+     * @param fileId the file id
+     * @param layout the layout of the file chunks
+     * @return the estimated number of bytes freed, 0 if the file had no chunk
+     */
+    private long deleteChunks(final Txn<ByteBuffer> txn, final UUID fileId, final ChunkLayout layout) {
+        final ByteBuffer firstKey = BlobKeys.ofId(fileId);
+        long freedBytes = 0;
+        try (final Cursor<ByteBuffer> cursor = this.dataDb.openCursor(txn)) {
+            while (cursor.get(firstKey, GetOp.MDB_SET_RANGE) && BlobKeys.belongsTo(cursor.key(), fileId)) {
+                freedBytes += this.ledger.estimateEntryBytes(cursor.key().remaining(), cursor.val().remaining());
+                if (layout.deduplicated)
+                    freedBytes += this.releaseReference(txn, BlobKeys.copyOf(cursor.val()));
+                cursor.delete();
+            }
+        }
+        return (freedBytes);
+    }
+
+    /**
+     * Get the running checksum of a file to append data to it
+     * The checksum is resumed from the state stored in the metadata or kept in memory,
+     * the existing chunks are only hashed again when there is none, after a restart for instance
+     * @param txn the transaction to read the chunks with
+     * @param metadata the file metadata
+     * @return the running checksum of the file data
+     */
+    private IChecksum getRunningChecksum(final Txn<ByteBuffer> txn, final DatabaseFileMetadata metadata) {
+        final UUID fileId = metadata.getId();
+        final ChecksumAlgorithm algorithm = metadata.getChecksumAlgorithm();
+        final byte[] state = metadata.getChecksumState();
+        if (state != null) {
+            final IChecksum checksum = algorithm.resume(state);
+            if (checksum.getLength() == metadata.getDataLength())
+                return (checksum);
         } else {
-            return (builder.build());
+            final IChecksum checksum = this.runningChecksums.remove(fileId);
+            if (checksum != null && checksum.getAlgorithm() == algorithm && checksum.getLength() == metadata.getDataLength())
+                return (checksum);
+        }
+        LMDBFileServer.logger.debug("No running checksum for file " + fileId + ", hashing its chunks again");
+        final IChecksum checksum = algorithm.newChecksum();
+        if (metadata.isSpilled()) {
+            final ByteBuffer data = this.spill.map(fileId, 0, metadata.getDataLength());
+            if (data == null)
+                throw new DatabaseFileException("Side file of " + fileId + " not found");
+            checksum.update(data);
+            return (checksum);
+        }
+        if (metadata.isInline()) {
+            checksum.update(this.getInlineData(txn, fileId));
+            return (checksum);
         }
-        return (null);
+        for (final ByteBuffer chunk : this.getChunks(txn, fileId, ChunkLayout.of(metadata)))
+            checksum.update(chunk);
+        return (checksum);
     }
 
     /**
@@ -713,6 +2726,7 @@ public class LMDBFileServer implements IFileServer {
                 ", env=" + this.env +
                 ", dataDb=" + this.dataDb +
                 ", metaDb=" + this.metaDb +
+                ", expireDb=" + this.expireDb +
                 '}';
     }
 }
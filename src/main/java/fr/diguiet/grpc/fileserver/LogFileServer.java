@@ -0,0 +1,1359 @@
+package fr.diguiet.grpc.fileserver;
+
+import com.google.protobuf.Timestamp;
+import fr.diguiet.grpc.common.utils.FileUtils;
+import fr.diguiet.grpc.common.utils.TimestampUtils;
+import fr.diguiet.grpc.fileserver.checksum.ChecksumAlgorithm;
+import fr.diguiet.grpc.fileserver.checksum.IChecksum;
+import fr.diguiet.grpc.fileserver.exception.AlreadyOpenException;
+import fr.diguiet.grpc.fileserver.exception.ClosedException;
+import fr.diguiet.grpc.fileserver.exception.FileServerException;
+import fr.diguiet.grpc.fileserver.exception.RunTimeFileServerException;
+import fr.diguiet.grpc.fileserver.exception.databasefile.DatabaseFileException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Represent an implementation of file server appending the file data to memory mapped segment files
+ * Every upload and deletion is a record appended to the active segment, so the writes are sequential,
+ * the location of the file chunks is kept in an in memory index rebuilt from the segments when opened.
+ * A file expires without any write, a segment is deleted at once when all of its records have expired
+ * and the segments holding mostly dead records are compacted by copying their live records to the active segment
+ * <pre>
+ * Record layout, big endian, padded to 8 bytes:
+ * 0  type (1 byte), 1 for a chunk, 2 for a deletion
+ * 1  checksum algorithm code (1 byte)
+ * 2  reserved (2 bytes)
+ * 4  data length (4 bytes)
+ * 8  id, most then least significant bits (16 bytes)
+ * 24 generation of the file, a new generation begins at each upload of a file that doesn't exist (8 bytes)
+ * 32 offset of the chunk in the file (8 bytes)
+ * 40 creation date, epoch nanos (8 bytes)
+ * 48 last modification date, epoch nanos (8 bytes)
+ * 56 expiration date, epoch nanos (8 bytes)
+ * 64 CRC32 of the header before it and of the data (4 bytes)
+ * 68 reserved (4 bytes)
+ * 72 data
+ * </pre>
+ * @see IFileServer
+ */
+public class LogFileServer implements IFileServer {
+    private static final Logger logger = LoggerFactory.getLogger(LogFileServer.class);
+    private static final int SEGMENT_MIN_BYTE_SIZE = 4096;
+    private static final int EXPIRATION_SLICE_SIZE = 256;
+    private static final long EXPIRATION_TIME_BUDGET_MS = 20;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte CHUNK_RECORD = 1;
+    private static final byte DELETE_RECORD = 2;
+    private static final int HEADER_BYTE_SIZE = 72;
+    private static final int CRC_OFFSET = 64;
+    private static final int RECORD_ALIGNMENT = 8;
+    private final Settings settings;
+    private final Map<UUID, FileEntry> index = new ConcurrentHashMap<>();
+    // Sorted by sequence, the last one is the active segment, only modified with the write lock held
+    private final List<Segment> segments = new ArrayList<>();
+    // Held to append records and to modify the segments
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean isOpen = false;
+    private SpaceLedger ledger;
+    private ScheduledExecutorService scheduler;
+    // Position of the sweep in the index, kept between the slices of a sweep
+    private Iterator<FileEntry> sweepCursor;
+    // Held by the slice of sweep in progress
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private long nextGeneration;
+    private long nextSequence;
+
+    /**
+     * Create a new instance from a builder
+     * @param builder the builder
+     */
+    private LogFileServer(final LogFileServer.Builder builder) {
+        this.settings = new Settings(builder);
+    }
+
+    /**
+     * Create a new Builder instance
+     * @return a new builder
+     */
+    public static Builder newInstance() {
+        return (LogFileServer.Builder.newInstance());
+    }
+
+    /**
+     * File server settings class representation
+     */
+    @Immutable
+    public static class Settings {
+        private final File dbDirectory;
+        private final int segmentByteSize;
+        private final long maxByteSize;
+        private final double compactionLiveRatio;
+        private final int expirationCheckSecondsDelay;
+        private final ChecksumAlgorithm checksumAlgorithm;
+        private final boolean syncOnWrite;
+
+        /**
+         * Create a new Settings instance from the Builder
+         * @param builder the builder
+         */
+        private Settings(final Builder builder) {
+            this.dbDirectory = new File(builder.parentDbDirectory, builder.dbDirectoryName);
+            this.segmentByteSize = builder.segmentByteSize;
+            this.maxByteSize = builder.maxByteSize;
+            this.compactionLiveRatio = builder.compactionLiveRatio;
+            this.expirationCheckSecondsDelay = builder.expirationCheckSecondsDelay;
+            this.checksumAlgorithm = builder.checksumAlgorithm;
+            this.syncOnWrite = builder.syncOnWrite;
+        }
+
+        /**
+         * Get the directory of the segments
+         * @return the database directory
+         */
+        public File getDbDirectory() {
+            return (this.dbDirectory);
+        }
+
+        /**
+         * Get the byte size of a segment, a record larger than it gets a segment of its own
+         * @return the segment byte size
+         */
+        public int getSegmentByteSize() {
+            return (this.segmentByteSize);
+        }
+
+        /**
+         * Get the maximum number of bytes the records may take
+         * @return the maximum byte size
+         */
+        public long getMaxByteSize() {
+            return (this.maxByteSize);
+        }
+
+        /**
+         * Get the ratio of live bytes below which a segment is compacted
+         * @return the compaction live ratio
+         */
+        public double getCompactionLiveRatio() {
+            return (this.compactionLiveRatio);
+        }
+
+        /**
+         * Get the number of seconds between each removal of the expired files and compaction
+         * @return the number of seconds between each check
+         */
+        public int getExpirationCheckSecondsDelay() {
+            return (this.expirationCheckSecondsDelay);
+        }
+
+        /**
+         * Get the algorithm used to compute the checksum of new files
+         * @return the checksum algorithm
+         */
+        public ChecksumAlgorithm getChecksumAlgorithm() {
+            return (this.checksumAlgorithm);
+        }
+
+        /**
+         * Get whether or not the active segment is forced to the disk after each write
+         * @return if the writes are synchronous
+         */
+        public boolean isSyncOnWrite() {
+            return (this.syncOnWrite);
+        }
+
+        /**
+         * Get the string representation of the settings
+         * @return the string representation of the settings
+         */
+        @Override
+        public String toString() {
+            return "Settings{" +
+                    "dbDirectory=" + this.dbDirectory +
+                    ", segmentByteSize=" + this.segmentByteSize +
+                    ", maxByteSize=" + this.maxByteSize +
+                    ", compactionLiveRatio=" + this.compactionLiveRatio +
+                    ", expirationCheckSecondsDelay=" + this.expirationCheckSecondsDelay +
+                    ", checksumAlgorithm=" + this.checksumAlgorithm +
+                    ", syncOnWrite=" + this.syncOnWrite +
+                    '}';
+        }
+    }
+
+    /**
+     * The file server builder class
+     */
+    public static class Builder {
+        private File parentDbDirectory = FileUtils.getCurrentWorkingDirectory();
+        private String dbDirectoryName = "log";
+        private int segmentByteSize = 1024 * 1024 * 64; // 64 mo
+        private long maxByteSize = 1024L * 1024 * 1024; // 1 go
+        private double compactionLiveRatio = 0.5;
+        private int expirationCheckSecondsDelay = 60; // 1 minute
+        private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.SHA1;
+        private boolean syncOnWrite = true;
+
+        /**
+         * Create a new instance of the builder
+         * @return a new builder
+         */
+        public static Builder newInstance() {
+            return (new Builder());
+        }
+
+        /**
+         * Instantiate a new builder
+         */
+        private Builder() {
+
+        }
+
+        /**
+         * Build a new file server
+         * @return a new file server
+         */
+        public IFileServer build() {
+            return (new LogFileServer(this));
+        }
+
+        /**
+         * Set the parent database directory
+         * @param parentDbDirectory the parent database directory
+         * @return The builder
+         * @throws IllegalArgumentException if the directory is invalid or not writable
+         */
+        public Builder setParentDbDirectory(final File parentDbDirectory) {
+            Objects.requireNonNull(parentDbDirectory);
+            if (!Files.isDirectory(parentDbDirectory.toPath()))
+                throw new IllegalArgumentException("The given path must be a directory");
+            if (!Files.isWritable(parentDbDirectory.toPath()))
+                throw new IllegalArgumentException("The given path must exist and be writable");
+            this.parentDbDirectory = parentDbDirectory;
+            return (this);
+        }
+
+        /**
+         * Set the database directory name
+         * @param dbDirectoryName the database directory name
+         * @return The builder
+         * @throws IllegalArgumentException if the database directory name is empty
+         */
+        public Builder setDbDirectoryName(final String dbDirectoryName) {
+            Objects.requireNonNull(dbDirectoryName);
+            if (dbDirectoryName.isEmpty())
+                throw new IllegalArgumentException("Db directory name must not be empty");
+            this.dbDirectoryName = dbDirectoryName;
+            return (this);
+        }
+
+        /**
+         * Set the byte size of a segment
+         * @param segmentByteSize the segment byte size
+         * @return The builder
+         * @throws IllegalArgumentException if the size is below {@value #SEGMENT_MIN_BYTE_SIZE}
+         */
+        public Builder setSegmentByteSize(final int segmentByteSize) {
+            if (segmentByteSize < LogFileServer.SEGMENT_MIN_BYTE_SIZE)
+                throw new IllegalArgumentException("The segment size must be atleast " + LogFileServer.SEGMENT_MIN_BYTE_SIZE);
+            this.segmentByteSize = segmentByteSize;
+            return (this);
+        }
+
+        /**
+         * Set the maximum number of bytes the records may take
+         * @param maxByteSize the maximum byte size
+         * @return The builder
+         * @throws IllegalArgumentException if the size is below {@value #SEGMENT_MIN_BYTE_SIZE}
+         */
+        public Builder setMaxByteSize(final long maxByteSize) {
+            if (maxByteSize < LogFileServer.SEGMENT_MIN_BYTE_SIZE)
+                throw new IllegalArgumentException("The max size must be atleast " + LogFileServer.SEGMENT_MIN_BYTE_SIZE);
+            this.maxByteSize = maxByteSize;
+            return (this);
+        }
+
+        /**
+         * Set the ratio of live bytes below which a segment is compacted
+         * @param compactionLiveRatio the compaction live ratio
+         * @return The builder
+         * @throws IllegalArgumentException if the ratio isn't within ]0, 1[
+         */
+        public Builder setCompactionLiveRatio(final double compactionLiveRatio) {
+            if (!(compactionLiveRatio > 0 && compactionLiveRatio < 1))
+                throw new IllegalArgumentException("The compaction live ratio must be within ]0, 1[");
+            this.compactionLiveRatio = compactionLiveRatio;
+            return (this);
+        }
+
+        /**
+         * Set the number of seconds between each removal of the expired files and compaction
+         * @param expirationCheckSecondsDelay the number of seconds between each check
+         * @return The builder
+         * @throws IllegalArgumentException if number of seconds below 1
+         */
+        public Builder setExpirationCheckSecondsDelay(final int expirationCheckSecondsDelay) {
+            if (expirationCheckSecondsDelay < 1)
+                throw new IllegalArgumentException("The delay to check for expired file must be greater than 0");
+            this.expirationCheckSecondsDelay = expirationCheckSecondsDelay;
+            return (this);
+        }
+
+        /**
+         * Set the algorithm used to compute the checksum of new files
+         * @param checksumAlgorithm the checksum algorithm
+         * @return The builder
+         */
+        public Builder setChecksumAlgorithm(final ChecksumAlgorithm checksumAlgorithm) {
+            Objects.requireNonNull(checksumAlgorithm);
+            this.checksumAlgorithm = checksumAlgorithm;
+            return (this);
+        }
+
+        /**
+         * Set whether or not the active segment is forced to the disk after each write
+         * Without it a write may be lost if the system stops, the segments are never corrupted though
+         * @param syncOnWrite force each write or not
+         * @return The builder
+         */
+        public Builder setSyncOnWrite(final boolean syncOnWrite) {
+            this.syncOnWrite = syncOnWrite;
+            return (this);
+        }
+    }
+
+    /**
+     * A segment file, mapped in memory for its whole capacity
+     */
+    private static final class Segment {
+        private final long sequence;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final Set<UUID> fileIds = new HashSet<>();
+        private final List<Deletion> deletions = new ArrayList<>();
+        private int writePosition = 0;
+        private long liveBytes = 0;
+        private long maxExpirationNanos = Long.MIN_VALUE;
+
+        /**
+         * Create a new segment instance
+         * @param sequence the segment sequence number
+         * @param path the segment file path
+         * @param channel the segment file channel
+         * @param buffer the memory map of the segment file
+         */
+        private Segment(final long sequence, final Path path, final FileChannel channel, final MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+
+        /**
+         * Get a slice of the segment
+         * @param position the slice position
+         * @param length the slice length
+         * @return a new buffer sharing the segment memory
+         */
+        private ByteBuffer slice(final int position, final int length) {
+            final ByteBuffer bb = this.buffer.duplicate();
+            bb.limit(position + length).position(position);
+            return (bb.slice());
+        }
+
+        /**
+         * Get the ratio of the written bytes belonging to live records
+         * @return the live ratio
+         */
+        private double getLiveRatio() {
+            return ((this.writePosition == 0) ? 1 : (double) this.liveBytes / this.writePosition);
+        }
+
+        /**
+         * String representation of the instance
+         * @return a string representation of the instance
+         */
+        @Override
+        public String toString() {
+            return "Segment{" +
+                    "sequence=" + this.sequence +
+                    ", capacity=" + this.capacity +
+                    ", writePosition=" + this.writePosition +
+                    ", liveBytes=" + this.liveBytes +
+                    ", nbFiles=" + this.fileIds.size() +
+                    '}';
+        }
+    }
+
+    /**
+     * The location of a chunk of file data in a segment
+     */
+    @Immutable
+    private static final class Chunk {
+        private final Segment segment;
+        private final int position;
+        private final long offset;
+        private final int length;
+
+        /**
+         * Create a new chunk instance
+         * @param segment the segment holding the chunk record
+         * @param position the position of the chunk data in the segment
+         * @param offset the offset of the chunk in the file
+         * @param length the chunk length
+         */
+        private Chunk(final Segment segment, final int position, final long offset, final int length) {
+            this.segment = segment;
+            this.position = position;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Get the chunk data
+         * @return a new buffer sharing the segment memory
+         */
+        private ByteBuffer getData() {
+            return (this.segment.slice(this.position, this.length));
+        }
+    }
+
+    /**
+     * A deletion record, it must outlive the chunk records of the deleted file so it's kept until the file would have expired
+     */
+    @Immutable
+    private static final class Deletion {
+        private final UUID fileId;
+        private final long generation;
+        private final long expirationNanos;
+
+        /**
+         * Create a new deletion instance
+         * @param fileId the deleted file id
+         * @param generation the deleted file generation
+         * @param expirationNanos the expiration date of the deleted file, epoch nanos
+         */
+        private Deletion(final UUID fileId, final long generation, final long expirationNanos) {
+            this.fileId = fileId;
+            this.generation = generation;
+            this.expirationNanos = expirationNanos;
+        }
+    }
+
+    /**
+     * The index entry of a file, replaced as a whole at each write so the readers always see a consistent file
+     */
+    @Immutable
+    private static final class FileEntry {
+        private final UUID id;
+        private final long generation;
+        private final List<Chunk> chunks;
+        private final int dataLength;
+        private final long creationNanos;
+        private final long lastModificationNanos;
+        private final long expirationNanos;
+        private final byte[] checksum;
+        // Only used by the writer, it always holds the checksum of the latest entry
+        private final IChecksum runningChecksum;
+
+        /**
+         * Create a new file entry instance
+         * @param id the file id
+         * @param generation the file generation
+         * @param chunks the file chunks sorted by offset
+         * @param creationNanos the creation date, epoch nanos
+         * @param lastModificationNanos the last modification date, epoch nanos
+         * @param expirationNanos the expiration date, epoch nanos
+         * @param runningChecksum the checksum of the whole file data
+         */
+        private FileEntry(final UUID id, final long generation, final List<Chunk> chunks, final long creationNanos,
+                          final long lastModificationNanos, final long expirationNanos, final IChecksum runningChecksum) {
+            this.id = id;
+            this.generation = generation;
+            this.chunks = Collections.unmodifiableList(chunks);
+            int dataLength = 0;
+            for (final Chunk chunk : chunks)
+                dataLength = Math.addExact(dataLength, chunk.length);
+            this.dataLength = dataLength;
+            this.creationNanos = creationNanos;
+            this.lastModificationNanos = lastModificationNanos;
+            this.expirationNanos = expirationNanos;
+            this.checksum = runningChecksum.getValue();
+            this.runningChecksum = runningChecksum;
+        }
+
+        /**
+         * Predicate that tell whether or not the file is expired
+         * @param nowNanos the current date, epoch nanos
+         * @return if the file is expired
+         */
+        private boolean isExpired(final long nowNanos) {
+            return (nowNanos > this.expirationNanos);
+        }
+    }
+
+    /**
+     * A file being rebuilt from the records of the segments
+     */
+    private static final class ReplayedFile {
+        private final long generation;
+        private final TreeMap<Long, Chunk> chunks = new TreeMap<>();
+        private long creationNanos;
+        private long lastModificationNanos = Long.MIN_VALUE;
+        private long expirationNanos;
+        private ChecksumAlgorithm checksumAlgorithm;
+
+        /**
+         * Create a new replayed file instance
+         * @param generation the file generation
+         */
+        private ReplayedFile(final long generation) {
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Open the segments and rebuild the index from their records
+     * @inheritDoc
+     */
+    @Override
+    public void openOrCreate() throws FileServerException {
+        if (this.isOpen) {
+            LogFileServer.logger.error("Tried to open already opened log file server");
+            throw new AlreadyOpenException();
+        }
+        this.writeLock.lock();
+        try {
+            FileUtils.createFolderIfNotPresent(this.settings.getDbDirectory());
+            LogFileServer.logger.info("Opening log at " + this.settings.getDbDirectory());
+            this.nextGeneration = 0;
+            this.nextSequence = 0;
+            this.replay(this.openSegments());
+            if (this.segments.isEmpty())
+                this.segments.add(this.createSegment(this.settings.getSegmentByteSize()));
+            this.ledger = SpaceLedger.newInstance(LogFileServer.RECORD_ALIGNMENT);
+            this.ledger.reconcile(this.getWrittenBytes());
+        } catch (IOException e) {
+            LogFileServer.logger.error("Unable to open log: " + e.getMessage());
+            this.closeSegments();
+            throw (new FileServerException(e));
+        } finally {
+            this.writeLock.unlock();
+        }
+        this.isOpen = true;
+        this.scheduler = ExpirationSweeper.newScheduler("log-file-server-sweeper");
+        ExpirationSweeper.newInstance(this.settings.getDbDirectory().toString(), this.scheduler, this::removeExpired,
+                TimeUnit.SECONDS.toMillis(this.settings.getExpirationCheckSecondsDelay()), LogFileServer.EXPIRATION_SLICE_SIZE,
+                LogFileServer.EXPIRATION_TIME_BUDGET_MS);
+    }
+
+    /**
+     * Open the existing segment files, sorted by sequence
+     * @return the opened segments
+     * @throws IOException if a segment can't be opened
+     */
+    private List<Segment> openSegments() throws IOException {
+        final TreeMap<Long, Path> paths = new TreeMap<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(this.settings.getDbDirectory().toPath(),
+                LogFileServer.SEGMENT_PREFIX + "*" + LogFileServer.SEGMENT_SUFFIX)) {
+            for (final Path path : stream) {
+                final String name = path.getFileName().toString();
+                try {
+                    paths.put(Long.parseLong(name.substring(LogFileServer.SEGMENT_PREFIX.length(),
+                            name.length() - LogFileServer.SEGMENT_SUFFIX.length()), 16), path);
+                } catch (NumberFormatException e) {
+                    LogFileServer.logger.warn("Ignoring " + path + " in the log directory");
+                }
+            }
+        }
+        final List<Segment> segments = new ArrayList<>(paths.size());
+        for (final Map.Entry<Long, Path> entry : paths.entrySet()) {
+            final FileChannel channel = FileChannel.open(entry.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(new Segment(entry.getKey(), entry.getValue(), channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size())));
+            this.nextSequence = entry.getKey() + 1;
+        }
+        return (segments);
+    }
+
+    /**
+     * Create a new empty segment file
+     * @param capacity the segment byte size
+     * @return the new segment
+     * @throws IOException if the segment can't be created
+     */
+    private Segment createSegment(final int capacity) throws IOException {
+        final long sequence = this.nextSequence++;
+        final Path path = new File(this.settings.getDbDirectory(), String.format("%s%016x%s", LogFileServer.SEGMENT_PREFIX,
+                sequence, LogFileServer.SEGMENT_SUFFIX)).toPath();
+        try (final RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(capacity); // Sparse, the blocks are allocated as the records are written
+        }
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        LogFileServer.logger.debug("Created segment " + path);
+        return (new Segment(sequence, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity)));
+    }
+
+    /**
+     * Rebuild the index from the records of the segments
+     * The records may come in any order since the compaction moves them, a file is made of the chunks of its latest generation
+     * and its dates are the ones of its latest modification
+     * @param segments the segments sorted by sequence
+     */
+    private void replay(final List<Segment> segments) {
+        final Map<UUID, ReplayedFile> files = new HashMap<>();
+        final Map<UUID, Long> deletedGenerations = new HashMap<>();
+        for (final Segment segment : segments) {
+            this.segments.add(segment);
+            this.replay(segment, files, deletedGenerations);
+        }
+        final long nowNanos = TimestampUtils.nowEpochNanos();
+        int nbIncomplete = 0;
+        for (final Map.Entry<UUID, ReplayedFile> entry : files.entrySet()) {
+            final ReplayedFile file = entry.getValue();
+            if (nowNanos > file.expirationNanos)
+                continue;
+            final List<Chunk> chunks = new ArrayList<>(file.chunks.values());
+            final IChecksum checksum = file.checksumAlgorithm.newChecksum();
+            long expectedOffset = 0;
+            for (final Chunk chunk : chunks) {
+                if (chunk.offset != expectedOffset)
+                    break;
+                checksum.update(chunk.getData());
+                expectedOffset += chunk.length;
+            }
+            final Chunk last = chunks.get(chunks.size() - 1);
+            if (last.offset + last.length != expectedOffset) {
+                ++nbIncomplete;
+                continue;
+            }
+            final FileEntry fileEntry = new FileEntry(entry.getKey(), file.generation, chunks, file.creationNanos,
+                    file.lastModificationNanos, file.expirationNanos, checksum);
+            this.index.put(fileEntry.id, fileEntry);
+            this.addLiveChunks(fileEntry);
+        }
+        if (nbIncomplete > 0)
+            LogFileServer.logger.warn("Dropped " + nbIncomplete + " files with missing chunks");
+        LogFileServer.logger.info("Replayed " + segments.size() + " segments, " + this.index.size() + " live files");
+    }
+
+    /**
+     * Replay the records of a segment, the write position is set after its last valid record
+     * @param segment the segment
+     * @param files the files being rebuilt
+     * @param deletedGenerations the latest deleted generation of each file
+     */
+    private void replay(final Segment segment, final Map<UUID, ReplayedFile> files, final Map<UUID, Long> deletedGenerations) {
+        final ByteBuffer bb = segment.buffer.duplicate();
+        int position = 0;
+        while (position + LogFileServer.HEADER_BYTE_SIZE <= segment.capacity) {
+            final byte type = bb.get(position);
+            if (type != LogFileServer.CHUNK_RECORD && type != LogFileServer.DELETE_RECORD)
+                break;
+            final int dataLength = bb.getInt(position + 4);
+            final int recordLength = LogFileServer.getRecordByteSize(dataLength);
+            if (dataLength < 0 || recordLength > segment.capacity - position || LogFileServer.getCrc(bb, position, dataLength) != bb.getInt(position + LogFileServer.CRC_OFFSET)) {
+                LogFileServer.logger.warn("Segment " + segment.path + " ends with a torn record at " + position);
+                break;
+            }
+            final UUID fileId = new UUID(bb.getLong(position + 8), bb.getLong(position + 16));
+            final long generation = bb.getLong(position + 24);
+            final long expirationNanos = bb.getLong(position + 56);
+            this.nextGeneration = Math.max(this.nextGeneration, generation + 1);
+            segment.maxExpirationNanos = Math.max(segment.maxExpirationNanos, expirationNanos);
+            if (type == LogFileServer.DELETE_RECORD) {
+                deletedGenerations.merge(fileId, generation, Math::max);
+                final ReplayedFile file = files.get(fileId);
+                if (file != null && file.generation <= generation)
+                    files.remove(fileId);
+                segment.deletions.add(new Deletion(fileId, generation, expirationNanos));
+            } else if (deletedGenerations.getOrDefault(fileId, -1L) < generation) {
+                ReplayedFile file = files.get(fileId);
+                if (file == null || file.generation < generation) {
+                    file = new ReplayedFile(generation);
+                    files.put(fileId, file);
+                }
+                if (file.generation == generation) {
+                    file.chunks.put(bb.getLong(position + 32), new Chunk(segment, position + LogFileServer.HEADER_BYTE_SIZE, bb.getLong(position + 32), dataLength));
+                    final long lastModificationNanos = bb.getLong(position + 48);
+                    if (lastModificationNanos >= file.lastModificationNanos) {
+                        file.creationNanos = bb.getLong(position + 40);
+                        file.lastModificationNanos = lastModificationNanos;
+                        file.expirationNanos = expirationNanos;
+                        file.checksumAlgorithm = ChecksumAlgorithm.fromCode(bb.get(position + 1));
+                    }
+                }
+            }
+            position += recordLength;
+        }
+        segment.writePosition = position;
+    }
+
+    /**
+     * Count the chunks of a file as live in their segments
+     * @param entry the file entry
+     */
+    private void addLiveChunks(final FileEntry entry) {
+        for (final Chunk chunk : entry.chunks) {
+            chunk.segment.liveBytes += LogFileServer.getRecordByteSize(chunk.length);
+            chunk.segment.fileIds.add(entry.id);
+            chunk.segment.maxExpirationNanos = Math.max(chunk.segment.maxExpirationNanos, entry.expirationNanos);
+        }
+    }
+
+    /**
+     * Count the chunks of a file as dead in their segments
+     * @param entry the file entry
+     */
+    private void removeLiveChunks(final FileEntry entry) {
+        for (final Chunk chunk : entry.chunks) {
+            chunk.segment.liveBytes -= LogFileServer.getRecordByteSize(chunk.length);
+            chunk.segment.fileIds.remove(entry.id);
+        }
+    }
+
+    /**
+     * Get the byte size of a record, header and padding included
+     * @param dataLength the record data length
+     * @return the record byte size
+     */
+    private static int getRecordByteSize(final int dataLength) {
+        final long size = (long) LogFileServer.HEADER_BYTE_SIZE + dataLength;
+        return (Math.toIntExact((size + LogFileServer.RECORD_ALIGNMENT - 1) / LogFileServer.RECORD_ALIGNMENT * LogFileServer.RECORD_ALIGNMENT));
+    }
+
+    /**
+     * Compute the CRC of a record
+     * @param segment the segment buffer
+     * @param position the record position
+     * @param dataLength the record data length
+     * @return the record CRC
+     */
+    private static int getCrc(final ByteBuffer segment, final int position, final int dataLength) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer bb = segment.duplicate();
+        bb.limit(position + LogFileServer.CRC_OFFSET).position(position);
+        crc.update(bb);
+        bb.limit(position + LogFileServer.HEADER_BYTE_SIZE + dataLength).position(position + LogFileServer.HEADER_BYTE_SIZE);
+        crc.update(bb);
+        return ((int) crc.getValue());
+    }
+
+    /**
+     * Append a record to the active segment, a new segment is created when it's full
+     * Must be called with the write lock held
+     * @param type the record type
+     * @param entry the file the record belongs to, with the dates of the record
+     * @param offset the offset of the chunk in the file
+     * @param data the chunk data, empty for a deletion
+     * @return the appended chunk
+     * @throws RunTimeFileServerException if there isn't enough space left or the segment can't be created
+     */
+    private Chunk append(final byte type, final FileEntry entry, final long offset, final ByteBuffer data) {
+        final int dataLength = data.remaining();
+        final int recordLength = LogFileServer.getRecordByteSize(dataLength);
+        if (this.getWrittenBytes() + recordLength > this.settings.getMaxByteSize())
+            throw new RunTimeFileServerException("Not enough space left in the log for a record of " + recordLength + " bytes");
+        Segment segment = this.segments.get(this.segments.size() - 1);
+        if (segment.capacity - segment.writePosition < recordLength) {
+            try {
+                segment = this.createSegment(Math.max(this.settings.getSegmentByteSize(), recordLength));
+            } catch (IOException e) {
+                throw new RunTimeFileServerException("Unable to create a new segment", e);
+            }
+            this.segments.add(segment);
+        }
+        final int position = segment.writePosition;
+        final ByteBuffer bb = segment.buffer.duplicate();
+        bb.position(position);
+        bb.put(type);
+        bb.put(entry.runningChecksum.getAlgorithm().getCode());
+        bb.putShort((short) 0);
+        bb.putInt(dataLength);
+        bb.putLong(entry.id.getMostSignificantBits());
+        bb.putLong(entry.id.getLeastSignificantBits());
+        bb.putLong(entry.generation);
+        bb.putLong(offset);
+        bb.putLong(entry.creationNanos);
+        bb.putLong(entry.lastModificationNanos);
+        bb.putLong(entry.expirationNanos);
+        bb.position(position + LogFileServer.HEADER_BYTE_SIZE);
+        bb.put(data.duplicate());
+        bb.putInt(position + LogFileServer.CRC_OFFSET, LogFileServer.getCrc(bb, position, dataLength));
+        if (this.settings.isSyncOnWrite())
+            segment.buffer.force();
+        segment.writePosition = position + recordLength;
+        segment.maxExpirationNanos = Math.max(segment.maxExpirationNanos, entry.expirationNanos);
+        this.ledger.addUsedBytes(recordLength);
+        return (new Chunk(segment, position + LogFileServer.HEADER_BYTE_SIZE, offset, dataLength));
+    }
+
+    /**
+     * Get the number of bytes written to the segments
+     * @return the written bytes
+     */
+    private long getWrittenBytes() {
+        long writtenBytes = 0;
+        for (final Segment segment : this.segments)
+            writtenBytes += segment.writePosition;
+        return (writtenBytes);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void close() {
+        if (this.isOpen) {
+            LogFileServer.logger.info("Closing log at " + this.settings.getDbDirectory());
+            this.isOpen = false;
+            ExpirationSweeper.shutdown(this.scheduler);
+            this.writeLock.lock();
+            try {
+                this.closeSegments();
+                this.index.clear();
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Close the segment files, their memory maps stay valid until they are not referenced anymore
+     */
+    private void closeSegments() {
+        for (final Segment segment : this.segments) {
+            try {
+                segment.buffer.force();
+                segment.channel.close();
+            } catch (IOException e) {
+                LogFileServer.logger.warn("Unable to close segment " + segment.path + ": " + e.getMessage());
+            }
+        }
+        this.segments.clear();
+    }
+
+    /**
+     * The data is appended to the log as a single record once the writer is closed
+     * @inheritDoc
+     */
+    @Override
+    public BlobWriter openWriter(final UUID fileId, final Timestamp expirationDate, final long size) {
+        Objects.requireNonNull(fileId);
+        Objects.requireNonNull(expirationDate);
+        this.mustBeOpenOrThrow();
+        return (BlobWriter.newBufferedInstance(size, data -> this.upload(fileId, expirationDate, data)));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void upload(final UUID fileId, final Timestamp expirationDate, final byte[] data) {
+        Objects.requireNonNull(fileId);
+        Objects.requireNonNull(expirationDate);
+        Objects.requireNonNull(data);
+        this.mustBeOpenOrThrow();
+        final long nowNanos = TimestampUtils.nowEpochNanos();
+        final long expirationNanos = TimestampUtils.toEpochNanos(expirationDate);
+        this.writeLock.lock();
+        try {
+            final FileEntry previous = this.index.get(fileId);
+            final FileEntry entry;
+            final long offset;
+            if (previous == null || previous.isExpired(nowNanos)) {
+                if (previous != null)
+                    this.removeEntry(previous);
+                final IChecksum checksum = this.settings.getChecksumAlgorithm().newChecksum();
+                checksum.update(data);
+                offset = 0;
+                entry = new FileEntry(fileId, this.nextGeneration++, Collections.emptyList(), nowNanos, nowNanos, expirationNanos, checksum);
+            } else {
+                if (previous.runningChecksum.getLength() != previous.dataLength)
+                    throw new DatabaseFileException("Running checksum of file " + fileId + " doesn't match its length");
+                offset = previous.dataLength;
+                entry = new FileEntry(fileId, previous.generation, previous.chunks, previous.creationNanos, nowNanos, expirationNanos, previous.runningChecksum);
+            }
+            final Chunk chunk = this.append(LogFileServer.CHUNK_RECORD, entry, offset, ByteBuffer.wrap(data));
+            // The running checksum of an existing file is only updated once its record is written
+            if (offset > 0)
+                entry.runningChecksum.update(data);
+            final List<Chunk> chunks = new ArrayList<>(entry.chunks);
+            chunks.add(chunk);
+            final FileEntry uploaded = new FileEntry(fileId, entry.generation, chunks, entry.creationNanos, nowNanos, expirationNanos, entry.runningChecksum);
+            if (previous != null && !previous.isExpired(nowNanos))
+                this.removeLiveChunks(previous);
+            this.addLiveChunks(uploaded);
+            this.index.put(fileId, uploaded);
+            this.ledger.consume(fileId, LogFileServer.getRecordByteSize(data.length));
+            LogFileServer.logger.info("Uploaded file: " + fileId + " chunk at offset " + offset);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable byte[] download(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        final FileEntry entry = this.getLiveEntry(fileId);
+        if (entry == null) {
+            LogFileServer.logger.info("Tried to download expired or non present file: " + fileId);
+            return (null);
+        }
+        final byte[] bytes = new byte[entry.dataLength];
+        int position = 0;
+        for (final Chunk chunk : entry.chunks) {
+            chunk.getData().get(bytes, position, chunk.length);
+            position += chunk.length;
+        }
+        LogFileServer.logger.info("Downloaded file: " + fileId);
+        return (bytes);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable byte[] read(final UUID fileId, final long offset, final int length) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        final List<ByteBuffer> slices = this.getRange(fileId, offset, length);
+        if (slices == null)
+            return (null);
+        final byte[] bytes = new byte[length];
+        int position = 0;
+        for (final ByteBuffer slice : slices) {
+            final int sliceLength = slice.remaining();
+            slice.get(bytes, position, sliceLength);
+            position += sliceLength;
+        }
+        return (bytes);
+    }
+
+    /**
+     * The leased buffers point straight to the segment memory maps, which stay valid until they aren't referenced anymore
+     * even once their segment has been deleted, so the lease holds nothing
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable BlobLease lease(final UUID fileId, final long offset, final int length) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        final List<ByteBuffer> slices = this.getRange(fileId, offset, length);
+        if (slices == null)
+            return (null);
+        return (BlobLease.newInstance(slices, () -> { }));
+    }
+
+    /**
+     * Get the slices of the segments holding a range of a file data
+     * @param fileId the file id
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the slices covering the whole range, sorted by offset, or Null if the file is expired or not found
+     * @throws IllegalArgumentException if the range is not within the file data
+     */
+    private @Nullable List<ByteBuffer> getRange(final UUID fileId, final long offset, final int length) {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("Offset and length must be greater than or equal to 0");
+        final FileEntry entry = this.getLiveEntry(fileId);
+        if (entry == null)
+            return (null);
+        if (offset + length > entry.dataLength)
+            throw new IllegalArgumentException("Range [" + offset + ", " + (offset + length) + ") is outside of file " + fileId + " of length " + entry.dataLength);
+        final long end = offset + length;
+        final List<ByteBuffer> slices = new ArrayList<>();
+        for (final Chunk chunk : entry.chunks) {
+            final long chunkEnd = chunk.offset + chunk.length;
+            if (chunkEnd <= offset)
+                continue;
+            if (chunk.offset >= end)
+                break;
+            final int sliceStart = (int) (Math.max(offset, chunk.offset) - chunk.offset);
+            final int sliceEnd = (int) (Math.min(end, chunkEnd) - chunk.offset);
+            slices.add(chunk.segment.slice(chunk.position + sliceStart, sliceEnd - sliceStart));
+        }
+        return (slices);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable DatabaseFileMetadata getFileMetaData(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        final FileEntry entry = this.getLiveEntry(fileId);
+        return ((entry != null) ? LogFileServer.getMetadata(entry) : null);
+    }
+
+    /**
+     * Both the data and the metadata come from the same index entry, so they always match
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable DatabaseFile getFile(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        final FileEntry entry = this.getLiveEntry(fileId);
+        if (entry == null)
+            return (null);
+        final byte[] bytes = new byte[entry.dataLength];
+        int position = 0;
+        for (final Chunk chunk : entry.chunks) {
+            chunk.getData().get(bytes, position, chunk.length);
+            position += chunk.length;
+        }
+        return (DatabaseFile.newInstance(LogFileServer.getMetadata(entry), bytes));
+    }
+
+    /**
+     * Create the metadata of a file entry
+     * @param entry the file entry
+     * @return the file metadata
+     */
+    private static DatabaseFileMetadata getMetadata(final FileEntry entry) {
+        return (DatabaseFileMetadata.Builder.newBuilder()
+                .id(entry.id)
+                .dataLength(entry.dataLength)
+                .checksum(entry.checksum)
+                .creationDate(TimestampUtils.fromEpochNanos(entry.creationNanos))
+                .expirationDate(TimestampUtils.fromEpochNanos(entry.expirationNanos))
+                .lastModificationDate(TimestampUtils.fromEpochNanos(entry.lastModificationNanos))
+                .checksumAlgorithm(entry.runningChecksum.getAlgorithm())
+                .build());
+    }
+
+    /**
+     * Get the index entry of a file that isn't expired
+     * @param fileId the file id
+     * @return the file entry Or Null if the file wasn't found or is expired
+     */
+    private @Nullable FileEntry getLiveEntry(final UUID fileId) {
+        final FileEntry entry = this.index.get(fileId);
+        if (entry == null || entry.isExpired(TimestampUtils.nowEpochNanos()))
+            return (null);
+        return (entry);
+    }
+
+    /**
+     * A deletion record is appended so the file stays deleted once the index is rebuilt
+     * @inheritDoc
+     */
+    @Override
+    public void delete(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        this.writeLock.lock();
+        try {
+            final FileEntry entry = this.index.get(fileId);
+            if (entry != null) {
+                if (!entry.isExpired(TimestampUtils.nowEpochNanos())) {
+                    final Chunk deletion = this.append(LogFileServer.DELETE_RECORD, entry, 0, ByteBuffer.allocate(0));
+                    deletion.segment.deletions.add(new Deletion(fileId, entry.generation, entry.expirationNanos));
+                }
+                this.removeEntry(entry);
+                LogFileServer.logger.info("Deleted file: " + fileId);
+            }
+            this.ledger.release(fileId);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Remove a file from the index, must be called with the write lock held
+     * @param entry the file entry
+     */
+    private void removeEntry(final FileEntry entry) {
+        if (this.index.remove(entry.id, entry))
+            this.removeLiveChunks(entry);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void deleteAll() {
+        this.mustBeOpenOrThrow();
+        this.writeLock.lock();
+        try {
+            final List<Segment> segments = new ArrayList<>(this.segments);
+            this.index.clear();
+            this.segments.clear();
+            this.segments.add(this.createSegment(this.settings.getSegmentByteSize()));
+            segments.forEach(this::deleteSegment);
+            this.ledger.releaseAll();
+            this.ledger.reconcile(this.getWrittenBytes());
+        } catch (IOException e) {
+            throw new RunTimeFileServerException("Unable to create a new segment", e);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Close and delete a segment file that isn't in the segment list anymore
+     * @param segment the segment
+     */
+    private void deleteSegment(final Segment segment) {
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+            LogFileServer.logger.debug("Deleted segment " + segment.path);
+        } catch (IOException e) {
+            LogFileServer.logger.warn("Unable to delete segment " + segment.path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isExpired(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        return (this.getLiveEntry(fileId) == null);
+    }
+
+    /**
+     * The expired files are only removed from the index, nothing is written.
+     * Then the segments whose records have all expired are deleted at once
+     * and the segments holding mostly dead records are compacted
+     * @inheritDoc
+     */
+    @Override
+    public void removeExpired() {
+        this.mustBeOpenOrThrow();
+        int nbExpired;
+        do {
+            nbExpired = this.removeExpired(LogFileServer.EXPIRATION_SLICE_SIZE);
+        } while (nbExpired == LogFileServer.EXPIRATION_SLICE_SIZE);
+    }
+
+    /**
+     * Remove a slice of the expired files, found without the write lock from where the previous slice stopped
+     * The segments are dropped or compacted once the index has been walked through
+     * @param maxNbFiles the maximum number of files to remove
+     * @return the number of files removed, below the maximum only when the end of the index has been reached
+     * @see ExpirationSweeper
+     */
+    private int removeExpired(final int maxNbFiles) {
+        if (!this.isOpen)
+            return (0);
+        final long nowNanos = TimestampUtils.nowEpochNanos();
+        final List<FileEntry> expired = new ArrayList<>();
+        boolean isWalkedThrough;
+        this.sweepLock.lock();
+        try {
+            if (this.sweepCursor == null)
+                this.sweepCursor = this.index.values().iterator();
+            while (expired.size() < maxNbFiles && this.sweepCursor.hasNext()) {
+                final FileEntry entry = this.sweepCursor.next();
+                if (entry.isExpired(nowNanos))
+                    expired.add(entry);
+            }
+            isWalkedThrough = !this.sweepCursor.hasNext();
+            if (isWalkedThrough)
+                this.sweepCursor = null;
+        } finally {
+            this.sweepLock.unlock();
+        }
+        int nbDropped = 0;
+        int nbCompacted = 0;
+        this.writeLock.lock();
+        try {
+            // An entry replaced since it was found isn't removed
+            expired.forEach(this::removeEntry);
+            if (isWalkedThrough) {
+                final Segment active = this.segments.get(this.segments.size() - 1);
+                for (final Segment segment : new ArrayList<>(this.segments)) {
+                    if (segment == active)
+                        continue;
+                    if (segment.maxExpirationNanos < nowNanos && segment.liveBytes == 0) {
+                        // Every record of the segment has expired and no file references it anymore
+                        this.segments.remove(segment);
+                        this.deleteSegment(segment);
+                        ++nbDropped;
+                    } else if (segment.getLiveRatio() < this.settings.getCompactionLiveRatio()) {
+                        this.compact(segment, nowNanos);
+                        ++nbCompacted;
+                    }
+                }
+            }
+            this.ledger.reconcile(this.getWrittenBytes());
+        } finally {
+            this.writeLock.unlock();
+        }
+        if (!expired.isEmpty() || nbDropped > 0 || nbCompacted > 0)
+            LogFileServer.logger.debug("Removed " + expired.size() + " expired files, dropped " + nbDropped + " segments and compacted " + nbCompacted);
+        return (expired.size());
+    }
+
+    /**
+     * Copy the live records of a segment to the active segment and delete it
+     * Must be called with the write lock held
+     * @param segment the segment to compact
+     * @param nowNanos the current date, epoch nanos
+     */
+    private void compact(final Segment segment, final long nowNanos) {
+        try {
+            for (final UUID fileId : new ArrayList<>(segment.fileIds)) {
+                final FileEntry entry = this.index.get(fileId);
+                if (entry == null)
+                    continue;
+                final List<Chunk> chunks = new ArrayList<>(entry.chunks.size());
+                for (final Chunk chunk : entry.chunks)
+                    chunks.add((chunk.segment == segment) ? this.append(LogFileServer.CHUNK_RECORD, entry, chunk.offset, chunk.getData()) : chunk);
+                final FileEntry moved = new FileEntry(fileId, entry.generation, chunks, entry.creationNanos,
+                        entry.lastModificationNanos, entry.expirationNanos, entry.runningChecksum);
+                this.removeLiveChunks(entry);
+                this.addLiveChunks(moved);
+                this.index.put(fileId, moved);
+            }
+            for (final Deletion deletion : segment.deletions) {
+                if (deletion.expirationNanos < nowNanos)
+                    continue;
+                final IChecksum checksum = this.settings.getChecksumAlgorithm().newChecksum();
+                final FileEntry deleted = new FileEntry(deletion.fileId, deletion.generation, Collections.emptyList(),
+                        nowNanos, nowNanos, deletion.expirationNanos, checksum);
+                final Chunk moved = this.append(LogFileServer.DELETE_RECORD, deleted, 0, ByteBuffer.allocate(0));
+                moved.segment.deletions.add(deletion);
+            }
+        } catch (RunTimeFileServerException e) {
+            LogFileServer.logger.warn("Unable to compact segment " + segment.path + ": " + e.getMessage());
+            return;
+        }
+        this.segments.remove(segment);
+        this.deleteSegment(segment);
+    }
+
+    /**
+     * Read from the running space account
+     * The space reserved for the uploads in progress isn't available
+     * @inheritDoc
+     */
+    @Override
+    public long getAvailableUsableByte() {
+        this.mustBeOpenOrThrow();
+        return (this.ledger.getAvailableBytes(this.settings.getMaxByteSize()));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean hasEnoughSpaceFor(final int nbByte) {
+        return (this.getAvailableUsableByte() > LogFileServer.getRecordByteSize(nbByte));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean reserve(final UUID fileId, final int nbByte, final Timestamp expirationDate) {
+        Objects.requireNonNull(fileId);
+        Objects.requireNonNull(expirationDate);
+        this.mustBeOpenOrThrow();
+        return (this.ledger.reserve(fileId, LogFileServer.getRecordByteSize(nbByte), this.settings.getMaxByteSize(),
+                TimestampUtils.getSecondsDifferenceFromNow(expirationDate)));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void releaseReservation(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        this.ledger.release(fileId);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isOpen() {
+        return (this.isOpen);
+    }
+
+    /**
+     * Get the number of segment files
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        this.mustBeOpenOrThrow();
+        this.writeLock.lock();
+        try {
+            return (this.segments.size());
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the settings
+     * @return the settings
+     */
+    public Settings getSettings() {
+        return (this.settings);
+    }
+
+    /**
+     * Throw an exception if the file server is closed
+     * @throws ClosedException
+     */
+    private void mustBeOpenOrThrow() {
+        if (!this.isOpen)
+            throw new ClosedException();
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "LogFileServer{" +
+                "settings=" + this.settings +
+                ", nbFiles=" + this.index.size() +
+                ", isOpen=" + this.isOpen +
+                '}';
+    }
+}
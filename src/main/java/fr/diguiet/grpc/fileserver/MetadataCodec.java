@@ -0,0 +1,306 @@
+package fr.diguiet.grpc.fileserver;
+
+import fr.diguiet.grpc.common.utils.BytesUtils;
+import fr.diguiet.grpc.common.utils.TimestampUtils;
+import fr.diguiet.grpc.fileserver.checksum.ChecksumAlgorithm;
+import fr.diguiet.grpc.fileserver.exception.databasefile.MetadataException;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Utils class with static method to encode and decode the metadata records stored by the file server
+ * A record has a fixed layout, big endian:
+ * <pre>
+ * 0  version (1 byte)
+ * 1  flags (1 byte), bit 0 set when the data is spilled to a side file, bit 1 when its chunks are compressed,
+ *    bit 2 when its chunks are references to deduplicated content, bit 3 when the data follows the record
+ * 2  checksum algorithm code (1 byte)
+ * 3  log2 of the compression block size (1 byte), 0 when the chunks aren't compressed
+ * 4  expiration date, epoch nanos (8 bytes)
+ * 12 data length (4 bytes)
+ * 16 id, most then least significant bits (16 bytes)
+ * 32 creation date, epoch nanos (8 bytes)
+ * 40 last modification date, epoch nanos (8 bytes)
+ * 48 checksum length (2 bytes) followed by the checksum
+ * .. checksum state length (2 bytes, 0xFFFF when absent) followed by the checksum state
+ * .. the file data when inline (data length bytes)
+ * </pre>
+ * So the expiration date, the data length and the layout of the data can be read without decoding the whole record,
+ * and the data of a small file is read with its metadata in a single lookup
+ * Records written before this layout are Json strings, they always start with '{'
+ */
+public final class MetadataCodec {
+    private static final byte VERSION = 1;
+    private static final byte JSON_FIRST_BYTE = '{';
+    private static final int VERSION_OFFSET = 0;
+    private static final int FLAGS_OFFSET = 1;
+    private static final byte FLAG_SPILLED = 0x01;
+    private static final byte FLAG_COMPRESSED = 0x02;
+    private static final byte FLAG_DEDUPLICATED = 0x04;
+    private static final byte FLAG_INLINE = 0x08;
+    private static final int CHECKSUM_ALGORITHM_OFFSET = 2;
+    private static final int BLOCK_SHIFT_OFFSET = 3;
+    private static final int EXPIRATION_OFFSET = 4;
+    private static final int DATA_LENGTH_OFFSET = 12;
+    private static final int ID_OFFSET = 16;
+    private static final int CREATION_OFFSET = 32;
+    private static final int LAST_MODIFICATION_OFFSET = 40;
+    private static final int CHECKSUM_OFFSET = 48;
+    private static final int MAX_FIELD_LENGTH = 0xFFFF - 1;
+    private static final short ABSENT_FIELD_LENGTH = (short) 0xFFFF;
+
+    /**
+     * Class is not instantiable and inheritable
+     */
+    private MetadataCodec() {
+
+    }
+
+    /**
+     * Get the byte size of the encoded metadata, without the inline data
+     * @param metadata the metadata
+     * @return the encoded byte size
+     */
+    public static int getEncodedLength(final DatabaseFileMetadata metadata) {
+        Objects.requireNonNull(metadata);
+        final byte[] state = metadata.getChecksumState();
+        return (MetadataCodec.CHECKSUM_OFFSET + Short.BYTES + metadata.getChecksum().length
+                + Short.BYTES + ((state != null) ? state.length : 0));
+    }
+
+    /**
+     * Get the byte size of the record of the metadata, with the inline data
+     * @param metadata the metadata
+     * @return the record byte size
+     */
+    public static int getRecordLength(final DatabaseFileMetadata metadata) {
+        return (MetadataCodec.getEncodedLength(metadata) + (metadata.isInline() ? metadata.getDataLength() : 0));
+    }
+
+    /**
+     * Encode the metadata of a file whose data isn't inline into a new direct buffer
+     * @param metadata the metadata to encode
+     * @return a new flipped direct ByteBuffer
+     * @throws MetadataException if a variable length field is too long or the data is inline
+     */
+    public static ByteBuffer encode(final DatabaseFileMetadata metadata) {
+        return (MetadataCodec.encode(metadata, Collections.emptyList()));
+    }
+
+    /**
+     * Encode the metadata and the inline data into a new direct buffer
+     * @param metadata the metadata to encode
+     * @param data the file data if inline, one buffer after the other, empty otherwise
+     * @return a new flipped direct ByteBuffer
+     * @throws MetadataException if a variable length field is too long or the data doesn't match the data length
+     */
+    public static ByteBuffer encode(final DatabaseFileMetadata metadata, final List<ByteBuffer> data) {
+        Objects.requireNonNull(metadata);
+        Objects.requireNonNull(data);
+        final byte[] checksum = metadata.getChecksum();
+        final byte[] state = metadata.getChecksumState();
+        if (checksum.length > MetadataCodec.MAX_FIELD_LENGTH || (state != null && state.length > MetadataCodec.MAX_FIELD_LENGTH))
+            throw new MetadataException("Checksum of file " + metadata.getId() + " is too long to be encoded");
+        long dataLength = 0;
+        for (final ByteBuffer buffer : data)
+            dataLength += buffer.remaining();
+        if (dataLength != (metadata.isInline() ? metadata.getDataLength() : 0))
+            throw new MetadataException("Inline data of file " + metadata.getId() + " doesn't match its data length");
+        final ByteBuffer bb = ByteBuffer.allocateDirect(MetadataCodec.getRecordLength(metadata));
+        bb.put(MetadataCodec.VERSION);
+        bb.put((byte) ((metadata.isSpilled() ? MetadataCodec.FLAG_SPILLED : 0)
+                | (metadata.isCompressed() ? MetadataCodec.FLAG_COMPRESSED : 0)
+                | (metadata.isDeduplicated() ? MetadataCodec.FLAG_DEDUPLICATED : 0)
+                | (metadata.isInline() ? MetadataCodec.FLAG_INLINE : 0)));
+        bb.put(metadata.getChecksumAlgorithm().getCode());
+        bb.put((byte) (metadata.isCompressed() ? Integer.numberOfTrailingZeros(metadata.getCompressionBlockSize()) : 0));
+        bb.putLong(TimestampUtils.toEpochNanos(metadata.getExpirationDate()));
+        bb.putInt(metadata.getDataLength());
+        bb.putLong(metadata.getId().getMostSignificantBits());
+        bb.putLong(metadata.getId().getLeastSignificantBits());
+        bb.putLong(TimestampUtils.toEpochNanos(metadata.getCreationDate()));
+        bb.putLong(TimestampUtils.toEpochNanos(metadata.getLastModificationDate()));
+        bb.putShort((short) checksum.length);
+        bb.put(checksum);
+        if (state != null) {
+            bb.putShort((short) state.length);
+            bb.put(state);
+        } else {
+            bb.putShort(MetadataCodec.ABSENT_FIELD_LENGTH);
+        }
+        for (final ByteBuffer buffer : data)
+            bb.put(buffer.duplicate());
+        bb.flip();
+        return (bb);
+    }
+
+    /**
+     * Decode a metadata record, either binary or Json
+     * The position of the buffer is left untouched
+     * @param record the record to decode
+     * @return the decoded metadata
+     * @throws MetadataException if the record is invalid
+     */
+    public static DatabaseFileMetadata decode(final ByteBuffer record) {
+        Objects.requireNonNull(record);
+        if (MetadataCodec.isJson(record))
+            return (DatabaseFileMetadata.Builder.fromJson(BytesUtils.toString(record.slice())).build());
+        MetadataCodec.mustBeBinaryOrThrow(record);
+        try {
+            final ByteBuffer bb = record.slice();
+            bb.position(MetadataCodec.CHECKSUM_OFFSET);
+            final byte[] checksum = new byte[bb.getShort() & 0xFFFF];
+            bb.get(checksum);
+            final short stateLength = bb.getShort();
+            byte[] state = null;
+            if (stateLength != MetadataCodec.ABSENT_FIELD_LENGTH) {
+                state = new byte[stateLength & 0xFFFF];
+                bb.get(state);
+            }
+            return (DatabaseFileMetadata.Builder.newBuilder()
+                    .id(new UUID(bb.getLong(MetadataCodec.ID_OFFSET), bb.getLong(MetadataCodec.ID_OFFSET + Long.BYTES)))
+                    .dataLength(bb.getInt(MetadataCodec.DATA_LENGTH_OFFSET))
+                    .checksum(checksum)
+                    .creationDate(TimestampUtils.fromEpochNanos(bb.getLong(MetadataCodec.CREATION_OFFSET)))
+                    .expirationDate(TimestampUtils.fromEpochNanos(bb.getLong(MetadataCodec.EXPIRATION_OFFSET)))
+                    .lastModificationDate(TimestampUtils.fromEpochNanos(bb.getLong(MetadataCodec.LAST_MODIFICATION_OFFSET)))
+                    .checksumAlgorithm(ChecksumAlgorithm.fromCode(bb.get(MetadataCodec.CHECKSUM_ALGORITHM_OFFSET)))
+                    .checksumState(state)
+                    .spilled((bb.get(MetadataCodec.FLAGS_OFFSET) & MetadataCodec.FLAG_SPILLED) != 0)
+                    .compressionBlockSize(MetadataCodec.getCompressionBlockSize(record))
+                    .deduplicated(MetadataCodec.isDeduplicated(record))
+                    .inline(MetadataCodec.isInline(record))
+                    .build());
+        } catch (RuntimeException e) {
+            throw new MetadataException("Unable to decode binary metadata record", e);
+        }
+    }
+
+    /**
+     * Predicate that tell whether or not a record is a Json record written before the binary layout
+     * @param record the record
+     * @return if the record is a Json record
+     */
+    public static boolean isJson(final ByteBuffer record) {
+        Objects.requireNonNull(record);
+        return (record.hasRemaining() && record.get(record.position()) == MetadataCodec.JSON_FIRST_BYTE);
+    }
+
+    /**
+     * Get the expiration date of a binary record without decoding it
+     * @param record the binary record
+     * @return the expiration date in nanoseconds since the epoch
+     * @throws MetadataException if the record isn't a binary record
+     */
+    public static long getExpirationEpochNanos(final ByteBuffer record) {
+        MetadataCodec.mustBeBinaryOrThrow(record);
+        return (record.getLong(record.position() + MetadataCodec.EXPIRATION_OFFSET));
+    }
+
+    /**
+     * Get the data length of a binary record without decoding it
+     * @param record the binary record
+     * @return the file data length
+     * @throws MetadataException if the record isn't a binary record
+     */
+    public static int getDataLength(final ByteBuffer record) {
+        MetadataCodec.mustBeBinaryOrThrow(record);
+        return (record.getInt(record.position() + MetadataCodec.DATA_LENGTH_OFFSET));
+    }
+
+    /**
+     * Tell whether or not the data of a record is spilled to a side file without decoding it
+     * @param record the record, a Json record is never spilled
+     * @return if the file data is spilled
+     * @throws MetadataException if the record is neither a Json nor a binary record
+     */
+    public static boolean isSpilled(final ByteBuffer record) {
+        if (MetadataCodec.isJson(record))
+            return (false);
+        MetadataCodec.mustBeBinaryOrThrow(record);
+        return ((record.get(record.position() + MetadataCodec.FLAGS_OFFSET) & MetadataCodec.FLAG_SPILLED) != 0);
+    }
+
+    /**
+     * Get the block size of the compressed chunks of a record without decoding it
+     * @param record the record, the chunks of a Json record are never compressed
+     * @return the compression block size Or 0 if the chunks aren't compressed
+     * @throws MetadataException if the record is neither a Json nor a binary record
+     * @see BlockCodec
+     */
+    public static int getCompressionBlockSize(final ByteBuffer record) {
+        if (MetadataCodec.isJson(record))
+            return (0);
+        MetadataCodec.mustBeBinaryOrThrow(record);
+        if ((record.get(record.position() + MetadataCodec.FLAGS_OFFSET) & MetadataCodec.FLAG_COMPRESSED) == 0)
+            return (0);
+        return (1 << record.get(record.position() + MetadataCodec.BLOCK_SHIFT_OFFSET));
+    }
+
+    /**
+     * Tell whether or not the chunks of a record are references to deduplicated content without decoding it
+     * @param record the record, the chunks of a Json record are never deduplicated
+     * @return if the file chunks are deduplicated
+     * @throws MetadataException if the record is neither a Json nor a binary record
+     */
+    public static boolean isDeduplicated(final ByteBuffer record) {
+        if (MetadataCodec.isJson(record))
+            return (false);
+        MetadataCodec.mustBeBinaryOrThrow(record);
+        return ((record.get(record.position() + MetadataCodec.FLAGS_OFFSET) & MetadataCodec.FLAG_DEDUPLICATED) != 0);
+    }
+
+    /**
+     * Tell whether or not the data of a record follows it without decoding it
+     * @param record the record, the data of a Json record is never inline
+     * @return if the file data is inline
+     * @throws MetadataException if the record is neither a Json nor a binary record
+     */
+    public static boolean isInline(final ByteBuffer record) {
+        if (MetadataCodec.isJson(record))
+            return (false);
+        MetadataCodec.mustBeBinaryOrThrow(record);
+        return ((record.get(record.position() + MetadataCodec.FLAGS_OFFSET) & MetadataCodec.FLAG_INLINE) != 0);
+    }
+
+    /**
+     * Get the inline data of a binary record without decoding it
+     * The returned buffer shares the record memory, it is only valid as long as the record is
+     * @param record the binary record whose data is inline
+     * @return a buffer whose remaining bytes are the file data
+     * @throws MetadataException if the data of the record isn't inline or the record is truncated
+     */
+    public static ByteBuffer getInlineData(final ByteBuffer record) {
+        if (!MetadataCodec.isInline(record))
+            throw new MetadataException("Data of the metadata record isn't inline");
+        final int checksumOffset = record.position() + MetadataCodec.CHECKSUM_OFFSET;
+        final int stateOffset = checksumOffset + Short.BYTES + (record.getShort(checksumOffset) & 0xFFFF);
+        final short stateLength = record.getShort(stateOffset);
+        final int dataOffset = stateOffset + Short.BYTES + ((stateLength != MetadataCodec.ABSENT_FIELD_LENGTH) ? stateLength & 0xFFFF : 0);
+        final int dataEnd = dataOffset + MetadataCodec.getDataLength(record);
+        if (dataEnd > record.limit())
+            throw new MetadataException("Metadata record is shorter than its inline data");
+        final ByteBuffer data = record.duplicate();
+        data.limit(dataEnd);
+        data.position(dataOffset);
+        return (data);
+    }
+
+    /**
+     * Throw an exception if the record isn't a binary record of the current version
+     * @param record the record
+     * @throws MetadataException if the record isn't a binary record
+     */
+    private static void mustBeBinaryOrThrow(final ByteBuffer record) {
+        Objects.requireNonNull(record);
+        if (record.remaining() < MetadataCodec.CHECKSUM_OFFSET + Short.BYTES * 2)
+            throw new MetadataException("Binary metadata record is too short: " + record.remaining() + " bytes");
+        final byte version = record.get(record.position() + MetadataCodec.VERSION_OFFSET);
+        if (version != MetadataCodec.VERSION)
+            throw new MetadataException("Unsupported metadata record version " + version);
+    }
+}
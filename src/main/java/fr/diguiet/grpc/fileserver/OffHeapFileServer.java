@@ -0,0 +1,899 @@
+package fr.diguiet.grpc.fileserver;
+
+import com.google.protobuf.Timestamp;
+import fr.diguiet.grpc.common.utils.TimestampUtils;
+import fr.diguiet.grpc.fileserver.checksum.ChecksumAlgorithm;
+import fr.diguiet.grpc.fileserver.checksum.IChecksum;
+import fr.diguiet.grpc.fileserver.exception.AlreadyOpenException;
+import fr.diguiet.grpc.fileserver.exception.ClosedException;
+import fr.diguiet.grpc.fileserver.exception.RunTimeFileServerException;
+import fr.diguiet.grpc.fileserver.exception.databasefile.DatabaseFileException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+/**
+ * Represent an implementation of file server keeping the file data in direct memory, nothing is written to the disk
+ * The data is copied to the slots of a slab allocator, so the payloads neither load the garbage collector nor need mmap or fsync,
+ * every file is lost when the file server is closed. It suits the devices whose files only live for a few minutes.
+ * The slots of a removed file are only freed once no reader may still be copying them,
+ * the readers validate an optimistic stamp and the leases hold a read lock until they are closed
+ * @see IFileServer
+ * @see SlabAllocator
+ */
+public class OffHeapFileServer implements IFileServer {
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapFileServer.class);
+    private static final int SLAB_MIN_BYTE_SIZE = 4096;
+    private static final int EXPIRATION_SLICE_SIZE = 256;
+    private static final long EXPIRATION_TIME_BUDGET_MS = 20;
+    private static final long FREE_MS_TIMEOUT = 200;
+    private final Settings settings;
+    private final Map<UUID, FileEntry> index = new ConcurrentHashMap<>();
+    // Held to modify the index and allocate slots
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Write locked to free slots, so a slot is never reused while a reader copies it
+    private final StampedLock memoryLock = new StampedLock();
+    // The slots of the removed files waiting for the readers, only modified with the write lock held
+    private final List<SlabAllocator.Slot> pendingFrees = new ArrayList<>();
+    private volatile boolean isOpen = false;
+    private SlabAllocator allocator;
+    private SpaceLedger ledger;
+    private ScheduledExecutorService scheduler;
+    // Position of the sweep in the index, kept between the slices of a sweep
+    private Iterator<FileEntry> sweepCursor;
+    // Held by the slice of sweep in progress
+    private final ReentrantLock sweepLock = new ReentrantLock();
+
+    /**
+     * Create a new instance from a builder
+     * @param builder the builder
+     */
+    private OffHeapFileServer(final OffHeapFileServer.Builder builder) {
+        this.settings = new Settings(builder);
+    }
+
+    /**
+     * Create a new Builder instance
+     * @return a new builder
+     */
+    public static Builder newInstance() {
+        return (OffHeapFileServer.Builder.newInstance());
+    }
+
+    /**
+     * File server settings class representation
+     */
+    @Immutable
+    public static class Settings {
+        private final long maxByteSize;
+        private final int slabByteSize;
+        private final int expirationCheckSecondsDelay;
+        private final ChecksumAlgorithm checksumAlgorithm;
+
+        /**
+         * Create a new Settings instance from the Builder
+         * @param builder the builder
+         */
+        private Settings(final Builder builder) {
+            this.maxByteSize = builder.maxByteSize;
+            this.slabByteSize = builder.slabByteSize;
+            this.expirationCheckSecondsDelay = builder.expirationCheckSecondsDelay;
+            this.checksumAlgorithm = builder.checksumAlgorithm;
+        }
+
+        /**
+         * Get the maximum number of bytes of direct memory the file data may take
+         * @return the memory cap in byte
+         */
+        public long getMaxByteSize() {
+            return (this.maxByteSize);
+        }
+
+        /**
+         * Get the byte size of a slab, a file chunk larger than it takes several slots
+         * @return the slab byte size
+         */
+        public int getSlabByteSize() {
+            return (this.slabByteSize);
+        }
+
+        /**
+         * Get the number of seconds between each removal of the expired files
+         * @return the number of seconds between each check
+         */
+        public int getExpirationCheckSecondsDelay() {
+            return (this.expirationCheckSecondsDelay);
+        }
+
+        /**
+         * Get the algorithm used to compute the checksum of new files
+         * @return the checksum algorithm
+         */
+        public ChecksumAlgorithm getChecksumAlgorithm() {
+            return (this.checksumAlgorithm);
+        }
+
+        /**
+         * Get the string representation of the settings
+         * @return the string representation of the settings
+         */
+        @Override
+        public String toString() {
+            return "Settings{" +
+                    "maxByteSize=" + this.maxByteSize +
+                    ", slabByteSize=" + this.slabByteSize +
+                    ", expirationCheckSecondsDelay=" + this.expirationCheckSecondsDelay +
+                    ", checksumAlgorithm=" + this.checksumAlgorithm +
+                    '}';
+        }
+    }
+
+    /**
+     * The file server builder class
+     */
+    public static class Builder {
+        private long maxByteSize = 1024L * 1024 * 256; // 256 mo
+        private int slabByteSize = 1024 * 1024; // 1 mo
+        private int expirationCheckSecondsDelay = 60; // 1 minute
+        private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.SHA1;
+
+        /**
+         * Create a new instance of the builder
+         * @return a new builder
+         */
+        public static Builder newInstance() {
+            return (new Builder());
+        }
+
+        /**
+         * Instantiate a new builder
+         */
+        private Builder() {
+
+        }
+
+        /**
+         * Build a new file server
+         * @return a new file server
+         * @throws IllegalArgumentException if the max size is below the slab size
+         */
+        public IFileServer build() {
+            if (this.maxByteSize < this.slabByteSize)
+                throw new IllegalArgumentException("The max size must be atleast the slab size");
+            return (new OffHeapFileServer(this));
+        }
+
+        /**
+         * Set the maximum number of bytes of direct memory the file data may take
+         * @param maxByteSize the memory cap in byte
+         * @return The builder
+         * @throws IllegalArgumentException if the size is below {@value #SLAB_MIN_BYTE_SIZE}
+         */
+        public Builder setMaxByteSize(final long maxByteSize) {
+            if (maxByteSize < OffHeapFileServer.SLAB_MIN_BYTE_SIZE)
+                throw new IllegalArgumentException("The max size must be atleast " + OffHeapFileServer.SLAB_MIN_BYTE_SIZE);
+            this.maxByteSize = maxByteSize;
+            return (this);
+        }
+
+        /**
+         * Set the byte size of a slab, the memory is allocated by slabs
+         * @param slabByteSize the slab byte size
+         * @return The builder
+         * @throws IllegalArgumentException if the size is below {@value #SLAB_MIN_BYTE_SIZE}
+         */
+        public Builder setSlabByteSize(final int slabByteSize) {
+            if (slabByteSize < OffHeapFileServer.SLAB_MIN_BYTE_SIZE)
+                throw new IllegalArgumentException("The slab size must be atleast " + OffHeapFileServer.SLAB_MIN_BYTE_SIZE);
+            this.slabByteSize = slabByteSize;
+            return (this);
+        }
+
+        /**
+         * Set the number of seconds between each removal of the expired files
+         * @param expirationCheckSecondsDelay the number of seconds between each check
+         * @return The builder
+         * @throws IllegalArgumentException if number of seconds below 1
+         */
+        public Builder setExpirationCheckSecondsDelay(final int expirationCheckSecondsDelay) {
+            if (expirationCheckSecondsDelay < 1)
+                throw new IllegalArgumentException("The delay to check for expired file must be greater than 0");
+            this.expirationCheckSecondsDelay = expirationCheckSecondsDelay;
+            return (this);
+        }
+
+        /**
+         * Set the algorithm used to compute the checksum of new files
+         * @param checksumAlgorithm the checksum algorithm
+         * @return The builder
+         */
+        public Builder setChecksumAlgorithm(final ChecksumAlgorithm checksumAlgorithm) {
+            Objects.requireNonNull(checksumAlgorithm);
+            this.checksumAlgorithm = checksumAlgorithm;
+            return (this);
+        }
+    }
+
+    /**
+     * A chunk of file data held by a slot
+     */
+    @Immutable
+    private static final class Chunk {
+        private final SlabAllocator.Slot slot;
+        private final long offset;
+        private final int length;
+
+        /**
+         * Create a new chunk instance
+         * @param slot the slot holding the chunk data
+         * @param offset the offset of the chunk in the file
+         * @param length the chunk length
+         */
+        private Chunk(final SlabAllocator.Slot slot, final long offset, final int length) {
+            this.slot = slot;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Get a part of the chunk data
+         * @param position the position of the part in the chunk
+         * @param length the part length
+         * @return a new buffer sharing the slot memory
+         */
+        private ByteBuffer slice(final int position, final int length) {
+            final ByteBuffer bb = this.slot.getBuffer();
+            bb.limit(position + length).position(position);
+            return (bb.slice());
+        }
+    }
+
+    /**
+     * The index entry of a file, replaced as a whole at each write so the readers always see a consistent file
+     */
+    @Immutable
+    private static final class FileEntry {
+        private final UUID id;
+        private final List<Chunk> chunks;
+        private final int dataLength;
+        private final long creationNanos;
+        private final long lastModificationNanos;
+        private final long expirationNanos;
+        private final byte[] checksum;
+        // Only used by the writer, it always holds the checksum of the latest entry
+        private final IChecksum runningChecksum;
+
+        /**
+         * Create a new file entry instance
+         * @param id the file id
+         * @param chunks the file chunks sorted by offset
+         * @param creationNanos the creation date, epoch nanos
+         * @param lastModificationNanos the last modification date, epoch nanos
+         * @param expirationNanos the expiration date, epoch nanos
+         * @param runningChecksum the checksum of the whole file data
+         */
+        private FileEntry(final UUID id, final List<Chunk> chunks, final long creationNanos,
+                          final long lastModificationNanos, final long expirationNanos, final IChecksum runningChecksum) {
+            this.id = id;
+            this.chunks = Collections.unmodifiableList(chunks);
+            int dataLength = 0;
+            for (final Chunk chunk : chunks)
+                dataLength = Math.addExact(dataLength, chunk.length);
+            this.dataLength = dataLength;
+            this.creationNanos = creationNanos;
+            this.lastModificationNanos = lastModificationNanos;
+            this.expirationNanos = expirationNanos;
+            this.checksum = runningChecksum.getValue();
+            this.runningChecksum = runningChecksum;
+        }
+
+        /**
+         * Predicate that tell whether or not the file is expired
+         * @param nowNanos the current date, epoch nanos
+         * @return if the file is expired
+         */
+        private boolean isExpired(final long nowNanos) {
+            return (nowNanos > this.expirationNanos);
+        }
+    }
+
+    /**
+     * The slabs are allocated lazily, opening doesn't take any memory
+     * @inheritDoc
+     */
+    @Override
+    public void openOrCreate() {
+        if (this.isOpen) {
+            OffHeapFileServer.logger.error("Tried to open already opened off heap file server");
+            throw new AlreadyOpenException();
+        }
+        this.allocator = SlabAllocator.newInstance(this.settings.getMaxByteSize(), this.settings.getSlabByteSize());
+        this.ledger = SpaceLedger.newInstance(1);
+        this.isOpen = true;
+        OffHeapFileServer.logger.info("Opened off heap file server of " + this.allocator.getCapacityBytes() + " bytes");
+        this.scheduler = ExpirationSweeper.newScheduler("off-heap-file-server-sweeper");
+        ExpirationSweeper.newInstance("off heap file server", this.scheduler, this::removeExpired,
+                TimeUnit.SECONDS.toMillis(this.settings.getExpirationCheckSecondsDelay()), OffHeapFileServer.EXPIRATION_SLICE_SIZE,
+                OffHeapFileServer.EXPIRATION_TIME_BUDGET_MS);
+    }
+
+    /**
+     * Every file is lost, the slabs are released once the file server isn't referenced anymore
+     * @inheritDoc
+     */
+    @Override
+    public void close() {
+        if (this.isOpen) {
+            OffHeapFileServer.logger.info("Closing off heap file server");
+            this.isOpen = false;
+            ExpirationSweeper.shutdown(this.scheduler);
+            this.writeLock.lock();
+            try {
+                this.index.clear();
+                this.pendingFrees.clear();
+                this.ledger.releaseAll();
+            } finally {
+                this.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The data is copied to its slots once the writer is closed
+     * @inheritDoc
+     */
+    @Override
+    public BlobWriter openWriter(final UUID fileId, final Timestamp expirationDate, final long size) {
+        Objects.requireNonNull(fileId);
+        Objects.requireNonNull(expirationDate);
+        this.mustBeOpenOrThrow();
+        return (BlobWriter.newBufferedInstance(size, data -> this.upload(fileId, expirationDate, data)));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void upload(final UUID fileId, final Timestamp expirationDate, final byte[] data) {
+        Objects.requireNonNull(fileId);
+        Objects.requireNonNull(expirationDate);
+        Objects.requireNonNull(data);
+        this.mustBeOpenOrThrow();
+        final long nowNanos = TimestampUtils.nowEpochNanos();
+        final long expirationNanos = TimestampUtils.toEpochNanos(expirationDate);
+        this.writeLock.lock();
+        try {
+            final FileEntry previous = this.index.get(fileId);
+            final boolean isAppend = previous != null && !previous.isExpired(nowNanos);
+            final long offset = isAppend ? previous.dataLength : 0;
+            if (isAppend && previous.runningChecksum.getLength() != previous.dataLength)
+                throw new DatabaseFileException("Running checksum of file " + fileId + " doesn't match its length");
+            final List<Chunk> chunks = new ArrayList<>();
+            if (isAppend)
+                chunks.addAll(previous.chunks);
+            chunks.addAll(this.store(data, offset));
+            final IChecksum checksum;
+            if (isAppend) {
+                checksum = previous.runningChecksum;
+            } else {
+                if (previous != null)
+                    this.removeEntry(previous);
+                checksum = this.settings.getChecksumAlgorithm().newChecksum();
+            }
+            checksum.update(data);
+            this.index.put(fileId, new FileEntry(fileId, chunks, isAppend ? previous.creationNanos : nowNanos, nowNanos, expirationNanos, checksum));
+            this.ledger.consume(fileId, this.allocator.getFootprint(data.length));
+            this.ledger.reconcile(this.allocator.getUsedBytes());
+            OffHeapFileServer.logger.info("Uploaded file: " + fileId + " chunk at offset " + offset);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copy data to new slots, a slot holds at most a slab
+     * The slots of the removed files are freed first if the memory cap is reached,
+     * the allocation fails if a lease still holds them, even one of the calling thread
+     * Must be called with the write lock held
+     * @param data the data
+     * @param offset the offset of the data in the file
+     * @return the chunks holding the data, sorted by offset
+     * @throws RunTimeFileServerException if there isn't enough memory left, no slot is kept then
+     */
+    private List<Chunk> store(final byte[] data, final long offset) {
+        final List<Chunk> chunks = new ArrayList<>();
+        final int slabByteSize = this.allocator.getSlabByteSize();
+        for (int position = 0; position < data.length; position += slabByteSize) {
+            final int length = Math.min(slabByteSize, data.length - position);
+            SlabAllocator.Slot slot = this.allocator.allocate(length);
+            if (slot == null && !this.pendingFrees.isEmpty()) {
+                this.freePending(true);
+                slot = this.allocator.allocate(length);
+            }
+            if (slot == null) {
+                for (final Chunk chunk : chunks)
+                    this.allocator.free(chunk.slot);
+                throw new RunTimeFileServerException("Not enough memory left for a chunk of " + data.length + " bytes");
+            }
+            final ByteBuffer bb = slot.getBuffer();
+            bb.put(data, position, length);
+            chunks.add(new Chunk(slot, offset + position, length));
+        }
+        return (chunks);
+    }
+
+    /**
+     * Free the slots of the removed files once no reader may use them anymore
+     * The wait is bounded, the uploads and the deletes queue behind it and a lease may stay open as long as its client reads
+     * Must be called with the write lock held
+     * @param wait wait up to {@value #FREE_MS_TIMEOUT} ms for the readers and the leases or give up at once if there is any
+     */
+    private void freePending(final boolean wait) {
+        if (this.pendingFrees.isEmpty())
+            return;
+        long stamp = this.memoryLock.tryWriteLock();
+        if (stamp == 0 && wait) {
+            try {
+                stamp = this.memoryLock.tryWriteLock(OffHeapFileServer.FREE_MS_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (stamp == 0)
+            return;
+        try {
+            this.pendingFrees.forEach(this.allocator::free);
+            this.pendingFrees.clear();
+        } finally {
+            this.memoryLock.unlockWrite(stamp);
+        }
+        this.ledger.reconcile(this.allocator.getUsedBytes());
+    }
+
+    /**
+     * Remove a file from the index, its slots are freed when no reader may use them anymore
+     * Must be called with the write lock held
+     * @param entry the file entry
+     */
+    private void removeEntry(final FileEntry entry) {
+        if (this.index.remove(entry.id, entry)) {
+            for (final Chunk chunk : entry.chunks)
+                this.pendingFrees.add(chunk.slot);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable byte[] download(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        final byte[] bytes = this.readEntry(fileId, entry -> OffHeapFileServer.copy(entry, 0, entry.dataLength));
+        if (bytes == null) {
+            OffHeapFileServer.logger.info("Tried to download expired or non present file: " + fileId);
+            return (null);
+        }
+        OffHeapFileServer.logger.info("Downloaded file: " + fileId);
+        return (bytes);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable byte[] read(final UUID fileId, final long offset, final int length) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        OffHeapFileServer.checkRange(offset, length);
+        return (this.readEntry(fileId, entry -> {
+            OffHeapFileServer.checkRange(entry, offset, length);
+            return (OffHeapFileServer.copy(entry, offset, length));
+        }));
+    }
+
+    /**
+     * Read the index entry of a file and its slots, the read is optimistic and done again under the read lock
+     * if a slot may have been freed meanwhile
+     * The entry is looked up once the stamp is taken, the slots of an entry looked up before may already be freed and reused
+     * by another file, and it must still be indexed once read, so it's the entry the stamp has been validated for
+     * @param fileId the file id
+     * @param reader the read of the file entry
+     * @param <T> the type of the read result
+     * @return the read result Or Null if the file is expired or not found
+     */
+    private @Nullable <T> T readEntry(final UUID fileId, final Function<FileEntry, T> reader) {
+        final long optimisticStamp = this.memoryLock.tryOptimisticRead();
+        if (optimisticStamp != 0) {
+            final FileEntry entry = this.index.get(fileId);
+            T result = null;
+            RuntimeException failure = null;
+            try {
+                if (entry != null && !entry.isExpired(TimestampUtils.nowEpochNanos()))
+                    result = reader.apply(entry);
+            } catch (RuntimeException e) {
+                // Only meaningful if the stamp is still valid, the read is done again under the lock otherwise
+                failure = e;
+            }
+            if (this.index.get(fileId) == entry && this.memoryLock.validate(optimisticStamp)) {
+                if (failure != null)
+                    throw failure;
+                return (result);
+            }
+        }
+        final long stamp = this.memoryLock.readLock();
+        try {
+            final FileEntry entry = this.getLiveEntry(fileId);
+            return ((entry != null) ? reader.apply(entry) : null);
+        } finally {
+            this.memoryLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copy a range of a file data
+     * Must be called with a stamp or the read lock held
+     * @param entry the file entry
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the range data
+     */
+    private static byte[] copy(final FileEntry entry, final long offset, final int length) {
+        final byte[] bytes = new byte[length];
+        int position = 0;
+        for (final ByteBuffer slice : OffHeapFileServer.getSlices(entry, offset, length)) {
+            final int sliceLength = slice.remaining();
+            slice.get(bytes, position, sliceLength);
+            position += sliceLength;
+        }
+        return (bytes);
+    }
+
+    /**
+     * The lease holds a read lock, so the slots of the leased range aren't freed until it's closed
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable BlobLease lease(final UUID fileId, final long offset, final int length) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        final long stamp = this.memoryLock.readLock();
+        try {
+            final FileEntry entry = this.getRangeEntry(fileId, offset, length);
+            if (entry == null) {
+                this.memoryLock.unlockRead(stamp);
+                return (null);
+            }
+            final List<ByteBuffer> slices = new ArrayList<>();
+            for (final ByteBuffer slice : OffHeapFileServer.getSlices(entry, offset, length))
+                slices.add(slice.asReadOnlyBuffer());
+            return (BlobLease.newInstance(slices, () -> this.memoryLock.unlockRead(stamp)));
+        } catch (RuntimeException e) {
+            this.memoryLock.unlockRead(stamp);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the index entry of a file whose data covers a range
+     * @param fileId the file id
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the file entry Or Null if the file is expired or not found
+     * @throws IllegalArgumentException if the range is not within the file data
+     */
+    private @Nullable FileEntry getRangeEntry(final UUID fileId, final long offset, final int length) {
+        OffHeapFileServer.checkRange(offset, length);
+        final FileEntry entry = this.getLiveEntry(fileId);
+        if (entry == null)
+            return (null);
+        OffHeapFileServer.checkRange(entry, offset, length);
+        return (entry);
+    }
+
+    /**
+     * Check the bounds of a range
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @throws IllegalArgumentException if the offset or the length is negative
+     */
+    private static void checkRange(final long offset, final int length) {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("Offset and length must be greater than or equal to 0");
+    }
+
+    /**
+     * Check a range is within a file data
+     * @param entry the file entry
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @throws IllegalArgumentException if the range is not within the file data
+     */
+    private static void checkRange(final FileEntry entry, final long offset, final int length) {
+        if (offset + length > entry.dataLength)
+            throw new IllegalArgumentException("Range [" + offset + ", " + (offset + length) + ") is outside of file " + entry.id + " of length " + entry.dataLength);
+    }
+
+    /**
+     * Get the slices of the slots holding a range of a file data
+     * @param entry the file entry
+     * @param offset the offset of the range in the file
+     * @param length the length of the range
+     * @return the slices covering the whole range, sorted by offset
+     */
+    private static List<ByteBuffer> getSlices(final FileEntry entry, final long offset, final int length) {
+        final long end = offset + length;
+        final List<ByteBuffer> slices = new ArrayList<>();
+        for (final Chunk chunk : entry.chunks) {
+            final long chunkEnd = chunk.offset + chunk.length;
+            if (chunkEnd <= offset)
+                continue;
+            if (chunk.offset >= end)
+                break;
+            final int sliceStart = (int) (Math.max(offset, chunk.offset) - chunk.offset);
+            final int sliceEnd = (int) (Math.min(end, chunkEnd) - chunk.offset);
+            slices.add(chunk.slice(sliceStart, sliceEnd - sliceStart));
+        }
+        return (slices);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable DatabaseFileMetadata getFileMetaData(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        final FileEntry entry = this.getLiveEntry(fileId);
+        return ((entry != null) ? OffHeapFileServer.getMetadata(entry) : null);
+    }
+
+    /**
+     * Both the data and the metadata come from the same index entry, so they always match
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable DatabaseFile getFile(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        return (this.readEntry(fileId, entry ->
+                DatabaseFile.newInstance(OffHeapFileServer.getMetadata(entry), OffHeapFileServer.copy(entry, 0, entry.dataLength))));
+    }
+
+    /**
+     * Create the metadata of a file entry
+     * @param entry the file entry
+     * @return the file metadata
+     */
+    private static DatabaseFileMetadata getMetadata(final FileEntry entry) {
+        return (DatabaseFileMetadata.Builder.newBuilder()
+                .id(entry.id)
+                .dataLength(entry.dataLength)
+                .checksum(entry.checksum)
+                .creationDate(TimestampUtils.fromEpochNanos(entry.creationNanos))
+                .expirationDate(TimestampUtils.fromEpochNanos(entry.expirationNanos))
+                .lastModificationDate(TimestampUtils.fromEpochNanos(entry.lastModificationNanos))
+                .checksumAlgorithm(entry.runningChecksum.getAlgorithm())
+                .build());
+    }
+
+    /**
+     * Get the index entry of a file that isn't expired
+     * @param fileId the file id
+     * @return the file entry Or Null if the file wasn't found or is expired
+     */
+    private @Nullable FileEntry getLiveEntry(final UUID fileId) {
+        final FileEntry entry = this.index.get(fileId);
+        if (entry == null || entry.isExpired(TimestampUtils.nowEpochNanos()))
+            return (null);
+        return (entry);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void delete(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        this.writeLock.lock();
+        try {
+            final FileEntry entry = this.index.get(fileId);
+            if (entry != null) {
+                this.removeEntry(entry);
+                OffHeapFileServer.logger.info("Deleted file: " + fileId);
+            }
+            this.ledger.release(fileId);
+            this.freePending(false);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void deleteAll() {
+        this.mustBeOpenOrThrow();
+        this.writeLock.lock();
+        try {
+            for (final FileEntry entry : new ArrayList<>(this.index.values()))
+                this.removeEntry(entry);
+            this.ledger.releaseAll();
+            this.freePending(false);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isExpired(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        return (this.getLiveEntry(fileId) == null);
+    }
+
+    /**
+     * The expired files are removed from the index, their slots are freed unless a lease is still open
+     * @inheritDoc
+     */
+    @Override
+    public void removeExpired() {
+        this.mustBeOpenOrThrow();
+        int nbExpired;
+        do {
+            nbExpired = this.removeExpired(OffHeapFileServer.EXPIRATION_SLICE_SIZE);
+        } while (nbExpired == OffHeapFileServer.EXPIRATION_SLICE_SIZE);
+    }
+
+    /**
+     * Remove a slice of the expired files, found without the write lock from where the previous slice stopped
+     * The slots of the removed files are freed once the index has been walked through
+     * @param maxNbFiles the maximum number of files to remove
+     * @return the number of files removed, below the maximum only when the end of the index has been reached
+     * @see ExpirationSweeper
+     */
+    private int removeExpired(final int maxNbFiles) {
+        if (!this.isOpen)
+            return (0);
+        final long nowNanos = TimestampUtils.nowEpochNanos();
+        final List<FileEntry> expired = new ArrayList<>();
+        boolean isWalkedThrough;
+        this.sweepLock.lock();
+        try {
+            if (this.sweepCursor == null)
+                this.sweepCursor = this.index.values().iterator();
+            while (expired.size() < maxNbFiles && this.sweepCursor.hasNext()) {
+                final FileEntry entry = this.sweepCursor.next();
+                if (entry.isExpired(nowNanos))
+                    expired.add(entry);
+            }
+            isWalkedThrough = !this.sweepCursor.hasNext();
+            if (isWalkedThrough)
+                this.sweepCursor = null;
+        } finally {
+            this.sweepLock.unlock();
+        }
+        this.writeLock.lock();
+        try {
+            // An entry replaced since it was found isn't removed
+            expired.forEach(this::removeEntry);
+            if (isWalkedThrough)
+                this.freePending(false);
+        } finally {
+            this.writeLock.unlock();
+        }
+        if (!expired.isEmpty())
+            OffHeapFileServer.logger.debug("Removed " + expired.size() + " expired files");
+        return (expired.size());
+    }
+
+    /**
+     * Read from the running space account, the slots are counted for their whole size class
+     * The space reserved for the uploads in progress isn't available
+     * @inheritDoc
+     */
+    @Override
+    public long getAvailableUsableByte() {
+        this.mustBeOpenOrThrow();
+        return (this.ledger.getAvailableBytes(this.allocator.getCapacityBytes()));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean hasEnoughSpaceFor(final int nbByte) {
+        return (this.getAvailableUsableByte() > this.allocator.getFootprint(nbByte));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean reserve(final UUID fileId, final int nbByte, final Timestamp expirationDate) {
+        Objects.requireNonNull(fileId);
+        Objects.requireNonNull(expirationDate);
+        this.mustBeOpenOrThrow();
+        return (this.ledger.reserve(fileId, this.allocator.getFootprint(nbByte), this.allocator.getCapacityBytes(),
+                TimestampUtils.getSecondsDifferenceFromNow(expirationDate)));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void releaseReservation(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        this.mustBeOpenOrThrow();
+        this.ledger.release(fileId);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isOpen() {
+        return (this.isOpen);
+    }
+
+    /**
+     * Get the number of bytes of direct memory allocated for the slabs so far
+     * @return the allocated bytes
+     */
+    public long getAllocatedBytes() {
+        this.mustBeOpenOrThrow();
+        return (this.allocator.getAllocatedBytes());
+    }
+
+    /**
+     * Get the settings
+     * @return the settings
+     */
+    public Settings getSettings() {
+        return (this.settings);
+    }
+
+    /**
+     * Throw an exception if the file server is closed
+     * @throws ClosedException
+     */
+    private void mustBeOpenOrThrow() {
+        if (!this.isOpen)
+            throw new ClosedException();
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "OffHeapFileServer{" +
+                "settings=" + this.settings +
+                ", allocator=" + this.allocator +
+                ", nbFiles=" + this.index.size() +
+                ", isOpen=" + this.isOpen +
+                '}';
+    }
+}
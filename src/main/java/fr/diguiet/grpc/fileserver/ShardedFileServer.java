@@ -0,0 +1,361 @@
+package fr.diguiet.grpc.fileserver;
+
+import com.google.protobuf.Timestamp;
+import fr.diguiet.grpc.fileserver.exception.AlreadyOpenException;
+import fr.diguiet.grpc.fileserver.exception.ClosedException;
+import fr.diguiet.grpc.fileserver.exception.FileServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * File server that spreads the files over several independent LMDB file servers
+ * LMDB only allows one writer per environment, each shard has its own environment, directory, writer and sweeper
+ * so the writes to different shards don't wait for each other.
+ * A file always goes to the same shard, chosen from a hash of its id, so the number of shards must not change
+ * between two openings of the same directories
+ * @see LMDBFileServer
+ */
+public class ShardedFileServer implements IFileServer {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedFileServer.class);
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private final List<IFileServer> shards;
+    private boolean isOpen = false;
+
+    /**
+     * Create a new instance from a builder
+     * @param builder the builder
+     */
+    private ShardedFileServer(final ShardedFileServer.Builder builder) {
+        final List<IFileServer> shards = new ArrayList<>(builder.nbShards);
+        for (int i = 0; i < builder.nbShards; ++i) {
+            shards.add(builder.shardBuilder.build(builder.dbDirectoryName + "-" + i));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Create a new Builder instance
+     * @return a new builder
+     */
+    public static Builder newInstance() {
+        return (ShardedFileServer.Builder.newInstance());
+    }
+
+    /**
+     * The sharded file server builder class
+     */
+    public static class Builder {
+        private int nbShards = Runtime.getRuntime().availableProcessors();
+        private String dbDirectoryName = "db";
+        private LMDBFileServer.Builder shardBuilder = LMDBFileServer.newInstance();
+
+        /**
+         * Create a new instance of the builder
+         * @return a new builder
+         */
+        public static Builder newInstance() {
+            return (new Builder());
+        }
+
+        /**
+         * Instantiate a new builder
+         */
+        private Builder() {
+
+        }
+
+        /**
+         * Build a new sharded file server
+         * @return a new file server
+         */
+        public IFileServer build() {
+            return (new ShardedFileServer(this));
+        }
+
+        /**
+         * Set the number of shards
+         * @param nbShards the number of shards
+         * @return The builder
+         * @throws IllegalArgumentException if the number of shards is below 1
+         */
+        public Builder setNbShards(final int nbShards) {
+            if (nbShards < 1)
+                throw new IllegalArgumentException("Number of shards must be greater than 0");
+            this.nbShards = nbShards;
+            return (this);
+        }
+
+        /**
+         * Set the base name of the shard directories, the shard i is stored in the directory named base name-i
+         * @param dbDirectoryName the base name of the shard directories
+         * @return The builder
+         * @throws IllegalArgumentException if the name is empty
+         */
+        public Builder setDbDirectoryName(final String dbDirectoryName) {
+            Objects.requireNonNull(dbDirectoryName);
+            if (dbDirectoryName.isEmpty())
+                throw new IllegalArgumentException("Db directory name must not be empty");
+            this.dbDirectoryName = dbDirectoryName;
+            return (this);
+        }
+
+        /**
+         * Set the builder of the shards, every setting but the directory name applies to each shard
+         * The builder isn't modified, its directory name is ignored
+         * @param shardBuilder the shard builder
+         * @return The builder
+         */
+        public Builder setShardBuilder(final LMDBFileServer.Builder shardBuilder) {
+            Objects.requireNonNull(shardBuilder);
+            this.shardBuilder = shardBuilder;
+            return (this);
+        }
+    }
+
+    /**
+     * Get the index of the shard a file belongs to
+     * The id bits are mixed so ids that only differ by a few bits still spread over every shard
+     * @param fileId the file id
+     * @param nbShards the number of shards
+     * @return the shard index
+     */
+    public static int getShardIndex(final UUID fileId, final int nbShards) {
+        Objects.requireNonNull(fileId);
+        if (nbShards < 1)
+            throw new IllegalArgumentException("Number of shards must be greater than 0");
+        final long hash = (fileId.getMostSignificantBits() ^ fileId.getLeastSignificantBits()) * ShardedFileServer.HASH_MULTIPLIER;
+        return (Math.floorMod((int) (hash >>> 32), nbShards));
+    }
+
+    /**
+     * Get the shard a file belongs to
+     * @param fileId the file id
+     * @return the file shard
+     */
+    public IFileServer getShard(final UUID fileId) {
+        return (this.shards.get(ShardedFileServer.getShardIndex(fileId, this.shards.size())));
+    }
+
+    /**
+     * Get the shards
+     * @return the unmodifiable list of shards
+     */
+    public List<IFileServer> getShards() {
+        return (this.shards);
+    }
+
+    /**
+     * Open every shard, the already opened shards are closed if one of them fails to open
+     * @inheritDoc
+     */
+    @Override
+    public void openOrCreate() throws FileServerException {
+        if (this.isOpen) {
+            ShardedFileServer.logger.error("Tried to open already opened sharded file server");
+            throw new AlreadyOpenException();
+        }
+        for (final IFileServer shard : this.shards) {
+            try {
+                shard.openOrCreate();
+            } catch (FileServerException | RuntimeException e) {
+                ShardedFileServer.logger.error("Unable to open a shard, closing the others: " + e.getMessage());
+                this.shards.forEach(IFileServer::close);
+                throw e;
+            }
+        }
+        this.isOpen = true;
+        ShardedFileServer.logger.info("Opened " + this.shards.size() + " shards");
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void close() {
+        if (this.isOpen) {
+            this.shards.forEach(IFileServer::close);
+            this.isOpen = false;
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void upload(final UUID fileId, final Timestamp expirationDate, final byte[] data) {
+        this.mustBeOpenOrThrow();
+        this.getShard(fileId).upload(fileId, expirationDate, data);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public BlobWriter openWriter(final UUID fileId, final Timestamp expirationDate, final long size) {
+        this.mustBeOpenOrThrow();
+        return (this.getShard(fileId).openWriter(fileId, expirationDate, size));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable byte[] download(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        return (this.getShard(fileId).download(fileId));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable byte[] read(final UUID fileId, final long offset, final int length) {
+        this.mustBeOpenOrThrow();
+        return (this.getShard(fileId).read(fileId, offset, length));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable BlobLease lease(final UUID fileId, final long offset, final int length) {
+        this.mustBeOpenOrThrow();
+        return (this.getShard(fileId).lease(fileId, offset, length));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable DatabaseFileMetadata getFileMetaData(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        return (this.getShard(fileId).getFileMetaData(fileId));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public @Nullable DatabaseFile getFile(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        return (this.getShard(fileId).getFile(fileId));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void delete(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        this.getShard(fileId).delete(fileId);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void deleteAll() {
+        this.mustBeOpenOrThrow();
+        this.shards.forEach(IFileServer::deleteAll);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isExpired(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        return (this.getShard(fileId).isExpired(fileId));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void removeExpired() {
+        this.mustBeOpenOrThrow();
+        this.shards.forEach(IFileServer::removeExpired);
+    }
+
+    /**
+     * Get the sum of the available usable byte of every shard
+     * @inheritDoc
+     */
+    @Override
+    public long getAvailableUsableByte() {
+        this.mustBeOpenOrThrow();
+        long availableUsableByte = 0;
+        for (final IFileServer shard : this.shards)
+            availableUsableByte += shard.getAvailableUsableByte();
+        return (availableUsableByte);
+    }
+
+    /**
+     * The shard of the next file isn't known, so every shard must have enough space
+     * @inheritDoc
+     */
+    @Override
+    public boolean hasEnoughSpaceFor(final int nbByte) {
+        this.mustBeOpenOrThrow();
+        for (final IFileServer shard : this.shards) {
+            if (!shard.hasEnoughSpaceFor(nbByte))
+                return (false);
+        }
+        return (true);
+    }
+
+    /**
+     * The space is reserved in the shard of the file
+     * @inheritDoc
+     */
+    @Override
+    public boolean reserve(final UUID fileId, final int nbByte, final Timestamp expirationDate) {
+        this.mustBeOpenOrThrow();
+        return (this.getShard(fileId).reserve(fileId, nbByte, expirationDate));
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void releaseReservation(final UUID fileId) {
+        this.mustBeOpenOrThrow();
+        this.getShard(fileId).releaseReservation(fileId);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public boolean isOpen() {
+        return (this.isOpen);
+    }
+
+    /**
+     * Throw an exception if the file server is closed
+     * @throws ClosedException
+     */
+    private void mustBeOpenOrThrow() {
+        if (!this.isOpen)
+            throw new ClosedException();
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "ShardedFileServer{" +
+                "shards=" + this.shards +
+                ", isOpen=" + this.isOpen +
+                '}';
+    }
+}
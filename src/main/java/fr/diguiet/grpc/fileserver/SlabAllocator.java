@@ -0,0 +1,279 @@
+package fr.diguiet.grpc.fileserver;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocator of direct memory slots grouped by size class
+ * The memory is allocated by slabs of the same size, up to a cap, a slab is split into the slots of a single size class
+ * when a slot of that class is needed and given back to the other classes once all of its slots are free.
+ * The size classes are the powers of two from {@value #MIN_SLOT_BYTE_SIZE} bytes up to the slab size,
+ * so a slot wastes less than half of its size and no slab is ever fragmented
+ */
+public class SlabAllocator {
+    private static final int MIN_SLOT_BYTE_SIZE = 64;
+    private final int slabByteSize;
+    private final int maxNbSlabs;
+    private final SizeClass[] sizeClasses;
+    private final List<Slab> slabs = new ArrayList<>();
+    private final ArrayDeque<Slab> freeSlabs = new ArrayDeque<>();
+    private long usedBytes = 0;
+
+    /**
+     * A size class and the slabs of that class having at least one free slot
+     */
+    private static final class SizeClass {
+        private final int slotByteSize;
+        private final ArrayDeque<Slab> partialSlabs = new ArrayDeque<>();
+
+        /**
+         * Create a new size class
+         * @param slotByteSize the byte size of the slots of the class
+         */
+        private SizeClass(final int slotByteSize) {
+            this.slotByteSize = slotByteSize;
+        }
+    }
+
+    /**
+     * A slab of direct memory, split into the slots of its size class
+     */
+    private static final class Slab {
+        private final ByteBuffer memory;
+        private SizeClass sizeClass;
+        private int[] freeSlots;
+        private int nbFreeSlots;
+
+        /**
+         * Create a new slab
+         * @param memory the slab memory
+         */
+        private Slab(final ByteBuffer memory) {
+            this.memory = memory;
+        }
+
+        /**
+         * Split the slab into the slots of a size class
+         * @param sizeClass the size class
+         */
+        private void assign(final SizeClass sizeClass) {
+            this.sizeClass = sizeClass;
+            final int nbSlots = this.memory.capacity() / sizeClass.slotByteSize;
+            this.freeSlots = new int[nbSlots];
+            for (int i = 0; i < nbSlots; ++i)
+                this.freeSlots[i] = nbSlots - 1 - i;
+            this.nbFreeSlots = nbSlots;
+        }
+
+        /**
+         * Predicate that tell whether or not every slot of the slab is free
+         * @return if the slab is free
+         */
+        private boolean isFree() {
+            return (this.nbFreeSlots == this.freeSlots.length);
+        }
+    }
+
+    /**
+     * A slot allocated in a slab
+     * The slot keeps its own size, the size class of its slab changes once the slot is freed,
+     * so a reader still holding a freed slot reads garbage but never fails
+     */
+    public static final class Slot {
+        private final Slab slab;
+        private final int index;
+        private final int byteSize;
+
+        /**
+         * Create a new slot
+         * @param slab the slab of the slot
+         * @param index the index of the slot in the slab
+         * @param byteSize the byte size of the slot
+         */
+        private Slot(final Slab slab, final int index, final int byteSize) {
+            this.slab = slab;
+            this.index = index;
+            this.byteSize = byteSize;
+        }
+
+        /**
+         * Get a view of the slot memory
+         * @return a new buffer of the slot byte size sharing the slab memory
+         */
+        public ByteBuffer getBuffer() {
+            final ByteBuffer bb = this.slab.memory.duplicate();
+            bb.limit((this.index + 1) * this.byteSize).position(this.index * this.byteSize);
+            return (bb.slice());
+        }
+
+        /**
+         * Get the byte size of the slot
+         * @return the slot byte size
+         */
+        public int getByteSize() {
+            return (this.byteSize);
+        }
+    }
+
+    /**
+     * Create a new allocator, no memory is allocated until the first slot is
+     * @param maxByteSize the maximum number of bytes of the slabs
+     * @param slabByteSize the byte size of a slab, the largest slot
+     * @return a new allocator
+     * @throws IllegalArgumentException if the slab size is below {@value #MIN_SLOT_BYTE_SIZE} or the maximum size below the slab size
+     */
+    public static SlabAllocator newInstance(final long maxByteSize, final int slabByteSize) {
+        if (slabByteSize < SlabAllocator.MIN_SLOT_BYTE_SIZE)
+            throw new IllegalArgumentException("Slab size must be atleast " + SlabAllocator.MIN_SLOT_BYTE_SIZE);
+        if (maxByteSize < slabByteSize)
+            throw new IllegalArgumentException("Max size must be atleast the slab size");
+        return (new SlabAllocator(maxByteSize, slabByteSize));
+    }
+
+    /**
+     * Create a new allocator instance
+     * @param maxByteSize the maximum number of bytes of the slabs
+     * @param slabByteSize the byte size of a slab
+     */
+    private SlabAllocator(final long maxByteSize, final int slabByteSize) {
+        this.slabByteSize = slabByteSize;
+        this.maxNbSlabs = (int) Math.min(Integer.MAX_VALUE, maxByteSize / slabByteSize);
+        final List<SizeClass> sizeClasses = new ArrayList<>();
+        for (int size = SlabAllocator.MIN_SLOT_BYTE_SIZE; size < slabByteSize; size *= 2)
+            sizeClasses.add(new SizeClass(size));
+        sizeClasses.add(new SizeClass(slabByteSize));
+        this.sizeClasses = sizeClasses.toArray(new SizeClass[0]);
+    }
+
+    /**
+     * Allocate a slot of the smallest size class that fits
+     * @param length the number of bytes needed, at most the slab size
+     * @return the slot Or Null if the memory cap is reached and no slot of the class is free
+     * @throws IllegalArgumentException if the length isn't within [1, slab size]
+     */
+    public synchronized @Nullable Slot allocate(final int length) {
+        final SizeClass sizeClass = this.sizeClasses[this.getSizeClassIndex(length)];
+        Slab slab = sizeClass.partialSlabs.peekFirst();
+        if (slab == null) {
+            slab = this.takeFreeSlab();
+            if (slab == null)
+                return (null);
+            slab.assign(sizeClass);
+            sizeClass.partialSlabs.addFirst(slab);
+        }
+        final int index = slab.freeSlots[--slab.nbFreeSlots];
+        if (slab.nbFreeSlots == 0)
+            sizeClass.partialSlabs.pollFirst();
+        this.usedBytes += sizeClass.slotByteSize;
+        return (new Slot(slab, index, sizeClass.slotByteSize));
+    }
+
+    /**
+     * Free a slot, its slab is given back to the other size classes once all of its slots are free
+     * A slot must not be freed twice nor used once freed
+     * @param slot the slot to free
+     */
+    public synchronized void free(final Slot slot) {
+        final Slab slab = slot.slab;
+        final SizeClass sizeClass = slab.sizeClass;
+        slab.freeSlots[slab.nbFreeSlots++] = slot.index;
+        this.usedBytes -= slot.byteSize;
+        if (slab.isFree()) {
+            sizeClass.partialSlabs.remove(slab);
+            slab.sizeClass = null;
+            this.freeSlabs.push(slab);
+        } else if (slab.nbFreeSlots == 1) {
+            sizeClass.partialSlabs.addLast(slab);
+        }
+    }
+
+    /**
+     * Get a slab that isn't assigned to any size class, its memory is allocated if the cap isn't reached
+     * @return the slab Or Null if the cap is reached
+     */
+    private @Nullable Slab takeFreeSlab() {
+        if (!this.freeSlabs.isEmpty())
+            return (this.freeSlabs.pop());
+        if (this.slabs.size() >= this.maxNbSlabs)
+            return (null);
+        final Slab slab = new Slab(ByteBuffer.allocateDirect(this.slabByteSize));
+        this.slabs.add(slab);
+        return (slab);
+    }
+
+    /**
+     * Get the index of the smallest size class that fits a length
+     * @param length the number of bytes needed
+     * @return the size class index
+     */
+    private int getSizeClassIndex(final int length) {
+        if (length < 1 || length > this.slabByteSize)
+            throw new IllegalArgumentException("Length must be within [1, " + this.slabByteSize + "]");
+        for (int i = 0; i < this.sizeClasses.length; ++i) {
+            if (this.sizeClasses[i].slotByteSize >= length)
+                return (i);
+        }
+        return (this.sizeClasses.length - 1);
+    }
+
+    /**
+     * Get the number of bytes the slots of data of any length take, the data longer than a slab takes several slots
+     * @param length the data length
+     * @return the number of bytes of the slots
+     */
+    public long getFootprint(final long length) {
+        final long nbFullSlots = length / this.slabByteSize;
+        final int remainder = (int) (length % this.slabByteSize);
+        return (nbFullSlots * this.slabByteSize + ((remainder > 0) ? this.sizeClasses[this.getSizeClassIndex(remainder)].slotByteSize : 0));
+    }
+
+    /**
+     * Get the byte size of a slab, the largest slot
+     * @return the slab byte size
+     */
+    public int getSlabByteSize() {
+        return (this.slabByteSize);
+    }
+
+    /**
+     * Get the maximum number of bytes of the slabs
+     * @return the memory cap in byte
+     */
+    public long getCapacityBytes() {
+        return ((long) this.maxNbSlabs * this.slabByteSize);
+    }
+
+    /**
+     * Get the number of bytes of the allocated slots
+     * @return the used bytes
+     */
+    public synchronized long getUsedBytes() {
+        return (this.usedBytes);
+    }
+
+    /**
+     * Get the number of bytes of direct memory allocated for the slabs so far
+     * @return the allocated bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return ((long) this.slabs.size() * this.slabByteSize);
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public synchronized String toString() {
+        return "SlabAllocator{" +
+                "slabByteSize=" + this.slabByteSize +
+                ", maxNbSlabs=" + this.maxNbSlabs +
+                ", nbSlabs=" + this.slabs.size() +
+                ", nbFreeSlabs=" + this.freeSlabs.size() +
+                ", usedBytes=" + this.usedBytes +
+                '}';
+    }
+}
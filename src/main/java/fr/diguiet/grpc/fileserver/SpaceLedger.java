@@ -0,0 +1,195 @@
+package fr.diguiet.grpc.fileserver;
+
+import net.jodah.expiringmap.ExpirationPolicy;
+import net.jodah.expiringmap.ExpiringMap;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running account of the space used in a LMDB map and of the space reserved for the uploads in progress
+ * The used space is an estimate updated by every committed write, it is reconciled with the real
+ * figures from time to time, so the space checks don't need any transaction
+ */
+public class SpaceLedger {
+    private static final int PAGE_HEADER_BYTE_SIZE = 16;
+    private static final int NODE_HEADER_BYTE_SIZE = 8;
+    private static final int NODE_POINTER_BYTE_SIZE = 2;
+    private static final int OVERFLOW_POINTER_BYTE_SIZE = 8;
+    private final ExpiringMap<UUID, Reservation> reservations;
+    private final int pageSize;
+    private long usedBytes = 0;
+    private long reservedBytes = 0;
+
+    /**
+     * The space reserved for a file that hasn't been uploaded yet
+     */
+    private static class Reservation {
+        private long remainingBytes;
+
+        /**
+         * Create a new reservation
+         * @param remainingBytes the number of reserved bytes
+         */
+        private Reservation(final long remainingBytes) {
+            this.remainingBytes = remainingBytes;
+        }
+    }
+
+    /**
+     * Create a new ledger
+     * @param pageSize the page size of the LMDB env
+     * @return a new ledger
+     * @throws IllegalArgumentException if the page size is below 1
+     */
+    public static SpaceLedger newInstance(final int pageSize) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("Page size must be greater than 0");
+        return (new SpaceLedger(pageSize));
+    }
+
+    /**
+     * Create a new ledger instance
+     * @param pageSize the page size of the LMDB env
+     */
+    private SpaceLedger(final int pageSize) {
+        this.pageSize = pageSize;
+        this.reservations = ExpiringMap.builder()
+                .variableExpiration()
+                .asyncExpirationListener(this::onExpiration)
+                .build();
+    }
+
+    /**
+     * Estimate the bytes an entry takes in the map
+     * A value larger than half a page is stored in its own overflow pages, a smaller one shares a leaf page
+     * @param keyLength the key length
+     * @param valueLength the value length
+     * @return the estimated number of bytes
+     */
+    public long estimateEntryBytes(final int keyLength, final int valueLength) {
+        final long nodeBytes = SpaceLedger.NODE_HEADER_BYTE_SIZE + SpaceLedger.NODE_POINTER_BYTE_SIZE + keyLength;
+        if (nodeBytes + valueLength <= (this.pageSize - SpaceLedger.PAGE_HEADER_BYTE_SIZE) / 2)
+            return (nodeBytes + valueLength);
+        final long overflowPages = (valueLength + SpaceLedger.PAGE_HEADER_BYTE_SIZE + this.pageSize - 1) / this.pageSize;
+        return (nodeBytes + SpaceLedger.OVERFLOW_POINTER_BYTE_SIZE + overflowPages * this.pageSize);
+    }
+
+    /**
+     * Add the space taken or freed by a committed write
+     * @param deltaBytes the number of bytes taken, negative if freed
+     */
+    public synchronized void addUsedBytes(final long deltaBytes) {
+        this.usedBytes = Math.max(0, this.usedBytes + deltaBytes);
+    }
+
+    /**
+     * Replace the estimated used space by the real one
+     * @param usedBytes the used space in byte
+     */
+    public synchronized void reconcile(final long usedBytes) {
+        this.usedBytes = usedBytes;
+    }
+
+    /**
+     * Reserve space for a file if there is enough space left once the current reservations are deducted
+     * A previous reservation of the same file is replaced
+     * @param fileId the file id
+     * @param nbBytes the number of bytes to reserve
+     * @param capacityBytes the byte size of the map
+     * @param expirationSeconds the number of seconds after which the reservation is released if not used
+     * @return False if there isn't enough space, nothing is reserved then
+     */
+    public synchronized boolean reserve(final UUID fileId, final long nbBytes, final long capacityBytes, final long expirationSeconds) {
+        Objects.requireNonNull(fileId);
+        this.release(fileId);
+        if (this.getAvailableBytes(capacityBytes) < nbBytes)
+            return (false);
+        this.reservations.put(fileId, new Reservation(nbBytes), ExpirationPolicy.CREATED, Math.max(1, expirationSeconds), TimeUnit.SECONDS);
+        this.reservedBytes += nbBytes;
+        return (true);
+    }
+
+    /**
+     * Deduct the space taken by a committed write from the reservation of its file, if any
+     * @param fileId the file id
+     * @param nbBytes the number of bytes taken by the write
+     */
+    public synchronized void consume(final UUID fileId, final long nbBytes) {
+        final Reservation reservation = this.reservations.get(fileId);
+        if (reservation == null)
+            return;
+        final long consumedBytes = Math.min(Math.max(0, nbBytes), reservation.remainingBytes);
+        reservation.remainingBytes -= consumedBytes;
+        this.reservedBytes -= consumedBytes;
+        if (reservation.remainingBytes == 0)
+            this.reservations.remove(fileId);
+    }
+
+    /**
+     * Release the remaining reservation of a file, if any
+     * @param fileId the file id
+     */
+    public synchronized void release(final UUID fileId) {
+        final Reservation reservation = this.reservations.remove(fileId);
+        if (reservation != null)
+            this.reservedBytes -= reservation.remainingBytes;
+    }
+
+    /**
+     * Release every reservation
+     */
+    public synchronized void releaseAll() {
+        this.reservations.clear();
+        this.reservedBytes = 0;
+    }
+
+    /**
+     * Release an expired reservation, called by another thread once it has been removed from the map
+     * @param fileId the file id
+     * @param reservation the expired reservation
+     */
+    private synchronized void onExpiration(final UUID fileId, final Reservation reservation) {
+        this.reservedBytes -= reservation.remainingBytes;
+    }
+
+    /**
+     * Get the bytes neither used nor reserved
+     * @param capacityBytes the byte size of the map
+     * @return the available bytes
+     */
+    public synchronized long getAvailableBytes(final long capacityBytes) {
+        return (capacityBytes - this.usedBytes - this.reservedBytes);
+    }
+
+    /**
+     * Get the estimated used bytes
+     * @return the used bytes
+     */
+    public synchronized long getUsedBytes() {
+        return (this.usedBytes);
+    }
+
+    /**
+     * Get the bytes reserved for the uploads in progress
+     * @return the reserved bytes
+     */
+    public synchronized long getReservedBytes() {
+        return (this.reservedBytes);
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public synchronized String toString() {
+        return "SpaceLedger{" +
+                "pageSize=" + this.pageSize +
+                ", usedBytes=" + this.usedBytes +
+                ", reservedBytes=" + this.reservedBytes +
+                ", nbReservations=" + this.reservations.size() +
+                '}';
+    }
+}
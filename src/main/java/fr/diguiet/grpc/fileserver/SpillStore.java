@@ -0,0 +1,225 @@
+package fr.diguiet.grpc.fileserver;
+
+import fr.diguiet.grpc.common.utils.FileUtils;
+import fr.diguiet.grpc.fileserver.exception.databasefile.DatabaseFileException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Side files holding the data of the files too large to be kept in the LMDB map, one file per file id
+ * The metadata stays in LMDB and tells how many bytes of the side file are committed,
+ * the bytes written past that length by a discarded write are overwritten by the next one
+ * The side files are read with positional reads, memory maps or transferTo, never through the Java heap when avoidable
+ */
+public class SpillStore {
+    private static final Logger logger = LoggerFactory.getLogger(SpillStore.class);
+    private final File directory;
+
+    /**
+     * Create a new spill store, the directory is created if not present
+     * @param directory the directory of the side files
+     * @return a new spill store
+     * @throws IOException if the directory can't be created
+     */
+    public static SpillStore newInstance(final File directory) throws IOException {
+        Objects.requireNonNull(directory);
+        FileUtils.createFolderIfNotPresent(directory);
+        return (new SpillStore(directory));
+    }
+
+    /**
+     * Create a new spill store instance
+     * @param directory the directory of the side files
+     */
+    private SpillStore(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the side file path of a file
+     * @param fileId the file id
+     * @return the side file path
+     */
+    public Path getPath(final UUID fileId) {
+        Objects.requireNonNull(fileId);
+        return (new File(this.directory, fileId.toString()).toPath());
+    }
+
+    /**
+     * Write data to the side file of a file and force it to the disk
+     * The side file is created if not present and truncated first when written from the start
+     * @param fileId the file id
+     * @param position the position of the first byte in the side file
+     * @param buffers the data to write, one buffer after the other
+     * @throws DatabaseFileException if the data can't be written
+     */
+    public void write(final UUID fileId, final long position, final List<ByteBuffer> buffers) {
+        Objects.requireNonNull(buffers);
+        try (final FileChannel channel = (position == 0)
+                ? FileChannel.open(this.getPath(fileId), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(this.getPath(fileId), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long filePosition = position;
+            for (final ByteBuffer buffer : buffers) {
+                final ByteBuffer bb = buffer.duplicate();
+                while (bb.hasRemaining())
+                    filePosition += channel.write(bb, filePosition);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new DatabaseFileException("Unable to write the side file of " + fileId, e);
+        }
+    }
+
+    /**
+     * Read the start of a side file into a new byte array
+     * @param fileId the file id
+     * @param length the number of bytes to read, the committed length of the file data
+     * @return the file data Or Null if the side file doesn't exist anymore
+     * @throws DatabaseFileException if the side file is shorter than the length or can't be read
+     */
+    public @Nullable byte[] read(final UUID fileId, final int length) {
+        final byte[] bytes = new byte[length];
+        try (final FileChannel channel = FileChannel.open(this.getPath(fileId), StandardOpenOption.READ)) {
+            final ByteBuffer bb = ByteBuffer.wrap(bytes);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, bb.position()) < 0)
+                    throw new DatabaseFileException("Side file of " + fileId + " is shorter than its metadata length");
+            }
+            return (bytes);
+        } catch (NoSuchFileException e) {
+            return (null);
+        } catch (IOException e) {
+            throw new DatabaseFileException("Unable to read the side file of " + fileId, e);
+        }
+    }
+
+    /**
+     * Map a range of a side file in memory, the mapping stays valid after the side file is deleted
+     * @param fileId the file id
+     * @param position the position of the range in the side file
+     * @param length the length of the range
+     * @return the read only buffer of the range Or Null if the side file doesn't exist anymore
+     * @throws DatabaseFileException if the side file is shorter than the range or can't be mapped
+     */
+    public @Nullable ByteBuffer map(final UUID fileId, final long position, final int length) {
+        try (final FileChannel channel = FileChannel.open(this.getPath(fileId), StandardOpenOption.READ)) {
+            if (channel.size() < position + length)
+                throw new DatabaseFileException("Side file of " + fileId + " is shorter than its metadata length");
+            return (channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+        } catch (NoSuchFileException e) {
+            return (null);
+        } catch (IOException e) {
+            throw new DatabaseFileException("Unable to map the side file of " + fileId, e);
+        }
+    }
+
+    /**
+     * Transfer a range of a side file to a channel, the kernel copies the bytes when it can
+     * @param fileId the file id
+     * @param position the position of the range in the side file
+     * @param length the length of the range
+     * @param target the channel to transfer to
+     * @return the number of bytes transferred Or -1 if the side file doesn't exist anymore
+     * @throws DatabaseFileException if the side file is shorter than the range or can't be transferred
+     */
+    public long transferTo(final UUID fileId, final long position, final long length, final WritableByteChannel target) {
+        Objects.requireNonNull(target);
+        try (final FileChannel channel = FileChannel.open(this.getPath(fileId), StandardOpenOption.READ)) {
+            if (channel.size() < position + length)
+                throw new DatabaseFileException("Side file of " + fileId + " is shorter than its metadata length");
+            long transferred = 0;
+            while (transferred < length)
+                transferred += channel.transferTo(position + transferred, length - transferred, target);
+            return (transferred);
+        } catch (NoSuchFileException e) {
+            return (-1);
+        } catch (IOException e) {
+            throw new DatabaseFileException("Unable to transfer the side file of " + fileId, e);
+        }
+    }
+
+    /**
+     * Delete the side file of a file, a failure is only logged since the file is unreachable anyway
+     * @param fileId the file id
+     * @return if the side file existed and has been deleted
+     */
+    public boolean delete(final UUID fileId) {
+        try {
+            return (Files.deleteIfExists(this.getPath(fileId)));
+        } catch (IOException e) {
+            SpillStore.logger.warn("Unable to delete the side file of " + fileId + ": " + e.getMessage());
+            return (false);
+        }
+    }
+
+    /**
+     * Get the ids of the files having a side file
+     * @return the file ids, the entries that aren't named after an id are ignored
+     * @throws DatabaseFileException if the directory can't be listed
+     */
+    public List<UUID> getIds() {
+        final List<UUID> ids = new ArrayList<>();
+        try (final DirectoryStream<Path> paths = Files.newDirectoryStream(this.directory.toPath())) {
+            for (final Path path : paths) {
+                try {
+                    ids.add(UUID.fromString(path.getFileName().toString()));
+                } catch (IllegalArgumentException e) {
+                    SpillStore.logger.debug("Ignoring " + path + " in the spill directory");
+                }
+            }
+        } catch (IOException e) {
+            throw new DatabaseFileException("Unable to list the side files of " + this.directory, e);
+        }
+        return (ids);
+    }
+
+    /**
+     * Delete every side file
+     */
+    public void deleteAll() {
+        this.getIds().forEach(this::delete);
+    }
+
+    /**
+     * Get the number of bytes the side files may still take on the disk
+     * @return the usable bytes of the disk holding the directory
+     */
+    public long getUsableBytes() {
+        return (this.directory.getUsableSpace());
+    }
+
+    /**
+     * Get the directory of the side files
+     * @return the directory
+     */
+    public File getDirectory() {
+        return (this.directory);
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "SpillStore{" +
+                "directory=" + this.directory +
+                '}';
+    }
+}
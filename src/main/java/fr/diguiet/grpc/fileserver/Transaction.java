@@ -1,5 +1,6 @@
 package fr.diguiet.grpc.fileserver;
 
+import fr.diguiet.grpc.fileserver.exception.RunTimeFileServerException;
 import fr.diguiet.grpc.fileserver.exception.transaction.ClosedException;
 import org.lmdbjava.Env;
 import org.lmdbjava.Txn;
@@ -9,6 +10,11 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Encapsulation class of a LMDB transaction
@@ -17,7 +23,210 @@ public class Transaction implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(Transaction.class);
     private final Txn<ByteBuffer> transaction;
     private final boolean readOnly;
-    private boolean isOpen = true;
+    @Nullable private final ReadPool pool;
+    private volatile boolean isOpen = true;
+
+    /**
+     * Pool of read only transactions
+     * A closed pooled transaction is reset and kept for the next reader instead of being released,
+     * renewing it later only takes a new snapshot, no native transaction handle is allocated.
+     * An idle transaction keeps its LMDB reader slot, the pool never holds more transactions than the
+     * specified maximum so it stays within the env max number of readers
+     */
+    public static class ReadPool implements Closeable {
+        private static final int CLOSE_SECONDS_TIMEOUT = 10;
+        private final Env<ByteBuffer> env;
+        private final int maxSize;
+        private final long acquireMsTimeout;
+        private final BlockingQueue<Transaction> idle;
+        private final Semaphore permits;
+        private boolean isOpen = true;
+
+        /**
+         * Create a new pool of read only transactions
+         * @param env the LMDB env
+         * @param maxSize the maximum number of transactions, open and idle, must not exceed the env max number of readers
+         * @param acquireMsTimeout the maximum number of milliseconds to wait for a transaction when they are all open
+         * @return a new pool
+         * @throws IllegalArgumentException if the maximum size or the timeout is below 1
+         */
+        public static ReadPool newInstance(final Env<ByteBuffer> env, final int maxSize, final long acquireMsTimeout) {
+            Objects.requireNonNull(env);
+            if (maxSize < 1)
+                throw new IllegalArgumentException("The pool max size must be greater than 0");
+            if (acquireMsTimeout < 1)
+                throw new IllegalArgumentException("The acquire timeout must be greater than 0");
+            return (new ReadPool(env, maxSize, acquireMsTimeout));
+        }
+
+        /**
+         * Create a new pool instance
+         * @param env the LMDB env
+         * @param maxSize the maximum number of transactions
+         * @param acquireMsTimeout the maximum number of milliseconds to wait for a transaction
+         */
+        private ReadPool(final Env<ByteBuffer> env, final int maxSize, final long acquireMsTimeout) {
+            this.env = env;
+            this.maxSize = maxSize;
+            this.acquireMsTimeout = acquireMsTimeout;
+            this.idle = new ArrayBlockingQueue<>(maxSize);
+            // Fair so a suspension isn't starved by the readers coming after it
+            this.permits = new Semaphore(maxSize, true);
+        }
+
+        /**
+         * Get a read only transaction from the pool, closing it gives it back to the pool
+         * Wait for a transaction to be closed if the maximum number of transactions are already open, the wait is bounded
+         * since the transactions may be held by leases for as long as their clients take to read them
+         * @return an open read only transaction
+         * @throws ClosedException if the pool is closed
+         * @throws RunTimeFileServerException if no transaction has been closed in time or the thread is interrupted
+         */
+        public Transaction acquire() {
+            try {
+                if (!this.permits.tryAcquire(this.acquireMsTimeout, TimeUnit.MILLISECONDS))
+                    throw new RunTimeFileServerException("No reader slot freed after " + this.acquireMsTimeout + " ms, " + this.maxSize + " readers open");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RunTimeFileServerException("Interrupted while waiting for a reader slot", e);
+            }
+            try {
+                final Transaction transaction = this.idle.poll();
+                if (transaction != null) {
+                    transaction.renew();
+                    return (transaction);
+                }
+                synchronized (this) {
+                    if (!this.isOpen)
+                        throw new ClosedException();
+                }
+                return (new Transaction(this.env.txnRead(), true, this));
+            } catch (RuntimeException e) {
+                this.permits.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Give back a closed transaction to the pool
+         * @param transaction the transaction, already marked as closed
+         */
+        private void release(final Transaction transaction) {
+            try {
+                synchronized (this) {
+                    if (this.isOpen) {
+                        transaction.transaction.reset();
+                        this.idle.add(transaction);
+                        return;
+                    }
+                }
+                transaction.transaction.close();
+            } finally {
+                this.permits.release();
+            }
+        }
+
+        /**
+         * Wait for every open transaction to be closed and make the new readers wait until the pool is resumed
+         * The wait is bounded, since a transaction may be held by a lease for as long as a client takes to read it,
+         * and the new readers queue behind the suspension meanwhile
+         * Must not be called by a thread holding a transaction of the pool
+         * @param timeout the maximum time to wait for the open transactions
+         * @param unit the timeout unit
+         * @return True if the pool is suspended and must be resumed, False if some transactions are still open
+         */
+        public boolean suspend(final long timeout, final TimeUnit unit) {
+            try {
+                return (this.permits.tryAcquire(this.maxSize, timeout, unit));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return (false);
+            }
+        }
+
+        /**
+         * Let the readers waiting since the pool has been suspended get their transaction
+         */
+        public void resume() {
+            this.permits.release(this.maxSize);
+        }
+
+        /**
+         * Wait for the open transactions to be closed and release every transaction
+         * Must be idempotent because of Closeable
+         * @see Closeable
+         * @see #close(long, TimeUnit)
+         */
+        @Override
+        public void close() {
+            this.close(ReadPool.CLOSE_SECONDS_TIMEOUT, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Stop giving transactions, wait for the open ones to be closed and release every transaction
+         * The env must not be closed unless every transaction has been closed, a transaction closed afterward would
+         * be released on a freed env
+         * Must not be called by a thread holding a transaction of the pool
+         * @param timeout the maximum time to wait for the open transactions
+         * @param unit the timeout unit
+         * @return False if some transactions are still open once the timeout elapsed, they are released once closed
+         */
+        public boolean close(final long timeout, final TimeUnit unit) {
+            synchronized (this) {
+                this.isOpen = false;
+            }
+            boolean isDrained;
+            try {
+                isDrained = this.permits.tryAcquire(this.maxSize, timeout, unit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                isDrained = false;
+            }
+            Transaction transaction;
+            while ((transaction = this.idle.poll()) != null) {
+                // A reset transaction must be renewed to be aborted, closing it as is would leak it
+                transaction.transaction.renew();
+                transaction.transaction.close();
+            }
+            // The readers coming after the close then fail instead of waiting
+            if (isDrained)
+                this.permits.release(this.maxSize);
+            else
+                Transaction.logger.warn((this.maxSize - this.permits.availablePermits()) + " read transactions still open after " + timeout + " " + unit);
+            return (isDrained);
+        }
+
+        /**
+         * Get the maximum number of transactions of the pool
+         * @return the maximum number of transactions
+         */
+        public int getMaxSize() {
+            return (this.maxSize);
+        }
+
+        /**
+         * Get the number of idle transactions waiting to be reused
+         * @return the number of idle transactions
+         */
+        public int getIdleCount() {
+            return (this.idle.size());
+        }
+
+        /**
+         * String representation of the instance
+         * @return a string representation of the instance
+         */
+        @Override
+        public String toString() {
+            return "ReadPool{" +
+                    "maxSize=" + this.maxSize +
+                    ", acquireMsTimeout=" + this.acquireMsTimeout +
+                    ", idle=" + this.idle.size() +
+                    ", available=" + this.permits.availablePermits() +
+                    ", isOpen=" + this.isOpen +
+                    '}';
+        }
+    }
 
     /**
      * Create a single use transaction
@@ -40,6 +249,20 @@ public class Transaction implements Closeable {
         return (new Transaction(env, readOnly));
     }
 
+    /**
+     * Create a write transaction nested in another write transaction
+     * Its writes are only visible to the parent once committed, and only persisted once the parent is committed
+     * @param env the LMDB env
+     * @param parent the parent write transaction
+     * @see Env
+     * @return a new Transaction
+     */
+    public static Transaction newNestedInstance(final Env<ByteBuffer> env, final Transaction parent) {
+        Objects.requireNonNull(env);
+        Objects.requireNonNull(parent);
+        return (new Transaction(env.txn(parent.get()), false, null));
+    }
+
     /**
      * Create a new transaction instance
      * @param env LMDB env
@@ -47,18 +270,45 @@ public class Transaction implements Closeable {
      * @see Env
      */
     private Transaction(final Env<ByteBuffer> env, boolean readOnly) {
-        this.transaction = (readOnly) ? env.txnRead() : env.txnWrite();
+        this((readOnly) ? env.txnRead() : env.txnWrite(), readOnly, null);
+    }
+
+    /**
+     * Create a new transaction instance
+     * @param transaction the LMDB transaction
+     * @param readOnly is read only
+     * @param pool the pool the transaction is given back to once closed, if any
+     */
+    private Transaction(final Txn<ByteBuffer> transaction, boolean readOnly, @Nullable final ReadPool pool) {
+        this.transaction = transaction;
         this.readOnly = readOnly;
+        this.pool = pool;
         Transaction.logger.debug("[" + this.transaction.getId() + "]" + " Begin of new transaction, readOnly=" + this.readOnly);
     }
 
+    /**
+     * Take a new snapshot with a pooled transaction that has been reset
+     */
+    private void renew() {
+        this.transaction.renew();
+        this.isOpen = true;
+        if (Transaction.logger.isDebugEnabled())
+            Transaction.logger.debug("[" + this.transaction.getId() + "]" + " Renew of pooled transaction");
+    }
+
     /**
      * Close the transaction, must be idempotent because of Closeable
+     * A pooled transaction is given back to its pool
      * @see Closeable
      */
     @Override
     public void close() {
-        if (this.isOpen) {
+        if (this.isOpen && this.pool != null) {
+            this.isOpen = false;
+            this.pool.release(this);
+            if (Transaction.logger.isDebugEnabled())
+                Transaction.logger.debug("[" + this.transaction.getId() + "]" + " Release of pooled transaction");
+        } else if (this.isOpen) {
             if (!this.readOnly) {
                 this.transaction.commit();
             }
@@ -69,16 +319,18 @@ public class Transaction implements Closeable {
     }
 
     /**
-     * Just in case the transaction is not closed properly
-     * @throws Throwable
+     * Close the transaction without committing it, every write is discarded
+     * Does nothing if the transaction is already closed, a pooled transaction is given back to its pool
      */
-    @Override
-    protected void finalize() throws Throwable {
-        if (this.isOpen) {
-            Transaction.logger.warn("Transaction has not been closed properly");
+    public void abort() {
+        if (this.pool != null) {
             this.close();
+        } else if (this.isOpen) {
+            this.transaction.abort();
+            this.transaction.close();
+            Transaction.logger.debug("[" + this.transaction.getId() + "]" + " Abort of transaction, readOnly=" + this.readOnly);
+            this.isOpen = false;
         }
-        super.finalize();
     }
 
     /**
@@ -128,6 +380,7 @@ public class Transaction implements Closeable {
         return "Transaction{" +
                 "transaction=" + this.transaction +
                 ", readOnly=" + this.readOnly +
+                ", pooled=" + (this.pool != null) +
                 ", isOpen=" + this.isOpen +
                 '}';
     }
@@ -0,0 +1,158 @@
+package fr.diguiet.grpc.fileserver;
+
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Env;
+import org.lmdbjava.Txn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A write session over several databases, every write is made in a single LMDB transaction
+ * The writes are only committed by {@link #commit()}, a session closed without being committed is aborted
+ * so the databases never disagree with each other
+ * @see Transaction
+ */
+public class WriteSession implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WriteSession.class);
+    private final Transaction transaction;
+    private final WriteSession parent;
+    // Run once the outermost session is committed, discarded with the session otherwise
+    private final List<Runnable> commitActions = new ArrayList<>();
+    private boolean isCommitted = false;
+
+    /**
+     * Begin a new write session
+     * @param env the LMDB env
+     * @return a new write session
+     */
+    public static WriteSession newInstance(final Env<ByteBuffer> env) {
+        Objects.requireNonNull(env);
+        return (new WriteSession(Transaction.newInstance(env, false), null));
+    }
+
+    /**
+     * Begin a new write session nested in another one
+     * Its writes are discarded alone if it isn't committed, the parent session stays usable
+     * @param env the LMDB env
+     * @param parent the parent write session
+     * @return a new write session
+     */
+    public static WriteSession newNestedInstance(final Env<ByteBuffer> env, final WriteSession parent) {
+        Objects.requireNonNull(env);
+        Objects.requireNonNull(parent);
+        return (new WriteSession(Transaction.newNestedInstance(env, parent.transaction), parent));
+    }
+
+    /**
+     * Create a new write session instance
+     * @param transaction the write transaction
+     * @param parent the parent write session Or Null if the session isn't nested
+     */
+    private WriteSession(final Transaction transaction, @Nullable final WriteSession parent) {
+        this.transaction = transaction;
+        this.parent = parent;
+    }
+
+    /**
+     * Get the LMDB write transaction, to read what has been written so far
+     * @return the LMDB transaction
+     */
+    public Txn<ByteBuffer> get() {
+        return (this.transaction.get());
+    }
+
+    /**
+     * Put a value into a database
+     * @param dbi the database
+     * @param key the key
+     * @param value the value
+     */
+    public void put(final Dbi<ByteBuffer> dbi, final ByteBuffer key, final ByteBuffer value) {
+        Objects.requireNonNull(dbi);
+        dbi.put(this.transaction.get(), key, value);
+    }
+
+    /**
+     * Delete a key from a database
+     * @param dbi the database
+     * @param key the key
+     * @return if the key was found and deleted
+     */
+    public boolean delete(final Dbi<ByteBuffer> dbi, final ByteBuffer key) {
+        Objects.requireNonNull(dbi);
+        return (dbi.delete(this.transaction.get(), key));
+    }
+
+    /**
+     * Register an action to run once the writes of the session are durable, for the side effects outside of the databases
+     * The action of a nested session is handed to its parent when the nested session is committed,
+     * it never runs if any of the sessions is discarded
+     * @param action the action to run after the commit
+     */
+    public void onCommit(final Runnable action) {
+        Objects.requireNonNull(action);
+        this.commitActions.add(action);
+    }
+
+    /**
+     * Commit every write of the session at once, then run the commit actions of a session that isn't nested
+     * The actions run on the committing thread before the next session can begin. The writes are durable by then,
+     * so a failing action is only logged and the following actions still run, the session is never taken for a failed one
+     * @throws RuntimeException if the transaction can't be committed, no action is run then
+     */
+    public void commit() {
+        this.transaction.close();
+        this.isCommitted = true;
+        if (this.parent != null) {
+            this.parent.commitActions.addAll(this.commitActions);
+            return;
+        }
+        for (final Runnable action : this.commitActions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                WriteSession.logger.error("Commit action failed after the writes were committed: " + e.getMessage(), e);
+            }
+        }
+        this.commitActions.clear();
+    }
+
+    /**
+     * Predicate that tell whether or not the session has been committed
+     * @return If the session has been committed or not
+     */
+    public boolean isCommitted() {
+        return (this.isCommitted);
+    }
+
+    /**
+     * Close the session, the writes are discarded if it hasn't been committed
+     * Must be idempotent because of Closeable
+     * @see Closeable
+     */
+    @Override
+    public void close() {
+        if (!this.isCommitted)
+            this.transaction.abort();
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "WriteSession{" +
+                "transaction=" + this.transaction +
+                ", nbCommitActions=" + this.commitActions.size() +
+                ", isCommitted=" + this.isCommitted +
+                '}';
+    }
+}
@@ -0,0 +1,125 @@
+package fr.diguiet.grpc.fileserver.checksum;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The checksum algorithms available to the file server
+ * CRC32C and xxHash64 are fast non cryptographic hashes whose running state can be stored along the file,
+ * SHA-1 and SHA-256 are cryptographic hashes whose running state only lives in memory
+ * @see IChecksum
+ */
+public enum ChecksumAlgorithm {
+    CRC32C((byte) 1) {
+        @Override
+        public IChecksum newChecksum() {
+            return (Crc32c.newInstance());
+        }
+
+        @Override
+        public IChecksum resume(final byte[] state) {
+            Objects.requireNonNull(state);
+            return (Crc32c.fromState(state));
+        }
+    },
+    XXHASH64((byte) 2) {
+        @Override
+        public IChecksum newChecksum() {
+            return (XxHash64.newInstance());
+        }
+
+        @Override
+        public IChecksum resume(final byte[] state) {
+            Objects.requireNonNull(state);
+            return (XxHash64.fromState(state));
+        }
+    },
+    SHA1((byte) 3) {
+        @Override
+        public IChecksum newChecksum() {
+            return (DigestChecksum.newInstance(this, "SHA-1"));
+        }
+    },
+    SHA256((byte) 4) {
+        @Override
+        public IChecksum newChecksum() {
+            return (DigestChecksum.newInstance(this, "SHA-256"));
+        }
+    };
+
+    private final byte code;
+
+    /**
+     * Create a new algorithm constant
+     * @param code the stable code identifying the algorithm once serialized
+     */
+    ChecksumAlgorithm(final byte code) {
+        this.code = code;
+    }
+
+    /**
+     * Get the stable code identifying the algorithm once serialized
+     * @return the algorithm code
+     */
+    public byte getCode() {
+        return (this.code);
+    }
+
+    /**
+     * Get the algorithm identified by a code
+     * @param code the algorithm code
+     * @return the algorithm
+     * @throws IllegalArgumentException if no algorithm is identified by the code
+     */
+    public static ChecksumAlgorithm fromCode(final byte code) {
+        for (final ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+            if (algorithm.code == code)
+                return (algorithm);
+        }
+        throw new IllegalArgumentException("Unknown checksum algorithm code " + code);
+    }
+
+    /**
+     * Create a new running checksum
+     * @return a new running checksum with nothing hashed yet
+     */
+    public abstract IChecksum newChecksum();
+
+    /**
+     * Resume a running checksum from its serialized state
+     * @param state the running state
+     * @return the resumed running checksum
+     * @throws IllegalArgumentException if the state is invalid or the algorithm can't be resumed
+     * @see IChecksum#getState()
+     */
+    public IChecksum resume(final byte[] state) {
+        throw new IllegalArgumentException("The state of " + this + " checksum can't be resumed");
+    }
+
+    /**
+     * Compute the checksum of a byte array
+     * @param data the data to hash
+     * @return the checksum of the data
+     */
+    public byte[] getCheckSum(final byte[] data) {
+        Objects.requireNonNull(data);
+        final IChecksum checksum = this.newChecksum();
+        checksum.update(data);
+        return (checksum.getValue());
+    }
+
+    /**
+     * Compute the checksum of several ByteBuffer as if their payload were a single one
+     * The positions of the buffers are left untouched
+     * @param data the data to hash, in order
+     * @return the checksum of the data
+     */
+    public byte[] getCheckSum(final List<ByteBuffer> data) {
+        Objects.requireNonNull(data);
+        final IChecksum checksum = this.newChecksum();
+        for (final ByteBuffer bb : data)
+            checksum.update(bb);
+        return (checksum.getValue());
+    }
+}
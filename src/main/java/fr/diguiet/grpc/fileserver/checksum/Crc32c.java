@@ -0,0 +1,151 @@
+package fr.diguiet.grpc.fileserver.checksum;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Objects;
+
+/**
+ * Running CRC32C (Castagnoli) checksum, computed eight bytes at a time with the slicing-by-8 tables
+ * The state is the 32 bits CRC register followed by the number of hashed bytes
+ */
+final class Crc32c implements IChecksum {
+    private static final int POLYNOMIAL = 0x82F63B78; // Reversed Castagnoli polynomial
+    private static final int STATE_BYTE_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int[][] TABLES = Crc32c.newTables();
+    private int crc;
+    private long length;
+
+    /**
+     * Create a new running checksum
+     * @return a new running checksum
+     */
+    static Crc32c newInstance() {
+        return (new Crc32c(0xFFFFFFFF, 0));
+    }
+
+    /**
+     * Resume a running checksum from its state
+     * @param state the state
+     * @return the resumed running checksum
+     * @throws IllegalArgumentException if the state is invalid
+     */
+    static Crc32c fromState(final byte[] state) {
+        Objects.requireNonNull(state);
+        if (state.length != Crc32c.STATE_BYTE_SIZE)
+            throw new IllegalArgumentException("CRC32C state must be " + Crc32c.STATE_BYTE_SIZE + " bytes long");
+        final ByteBuffer bb = ByteBuffer.wrap(state);
+        final int crc = bb.getInt();
+        final long length = bb.getLong();
+        if (length < 0)
+            throw new IllegalArgumentException("CRC32C state length must be greater than or equal to 0");
+        return (new Crc32c(crc, length));
+    }
+
+    /**
+     * Create a new instance
+     * @param crc the CRC register
+     * @param length the number of hashed bytes
+     */
+    private Crc32c(final int crc, final long length) {
+        this.crc = crc;
+        this.length = length;
+    }
+
+    /**
+     * Compute the slicing-by-8 lookup tables
+     * @return the lookup tables
+     */
+    private static int[][] newTables() {
+        final int[][] tables = new int[8][256];
+        for (int n = 0; n < 256; ++n) {
+            int crc = n;
+            for (int k = 0; k < 8; ++k)
+                crc = ((crc & 1) != 0) ? (crc >>> 1) ^ Crc32c.POLYNOMIAL : crc >>> 1;
+            tables[0][n] = crc;
+        }
+        for (int n = 0; n < 256; ++n) {
+            for (int t = 1; t < 8; ++t)
+                tables[t][n] = (tables[t - 1][n] >>> 8) ^ tables[0][tables[t - 1][n] & 0xFF];
+        }
+        return (tables);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void update(final ByteBuffer data) {
+        Objects.requireNonNull(data);
+        final ByteBuffer bb = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int[][] t = Crc32c.TABLES;
+        final int limit = bb.limit();
+        int position = bb.position();
+        int crc = this.crc;
+        while (limit - position >= Long.BYTES) {
+            final long word = bb.getLong(position);
+            final int low = (int) word ^ crc;
+            final int high = (int) (word >>> 32);
+            crc = t[7][low & 0xFF] ^ t[6][(low >>> 8) & 0xFF] ^ t[5][(low >>> 16) & 0xFF] ^ t[4][low >>> 24]
+                    ^ t[3][high & 0xFF] ^ t[2][(high >>> 8) & 0xFF] ^ t[1][(high >>> 16) & 0xFF] ^ t[0][high >>> 24];
+            position += Long.BYTES;
+        }
+        while (position < limit)
+            crc = (crc >>> 8) ^ t[0][(crc ^ bb.get(position++)) & 0xFF];
+        this.crc = crc;
+        this.length += data.remaining();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void update(final byte[] data) {
+        Objects.requireNonNull(data);
+        this.update(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @inheritDoc
+     * @return the 4 bytes big endian CRC
+     */
+    @Override
+    public byte[] getValue() {
+        return (ByteBuffer.allocate(Integer.BYTES).putInt(~this.crc).array());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public byte[] getState() {
+        return (ByteBuffer.allocate(Crc32c.STATE_BYTE_SIZE).putInt(this.crc).putLong(this.length).array());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long getLength() {
+        return (this.length);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public ChecksumAlgorithm getAlgorithm() {
+        return (ChecksumAlgorithm.CRC32C);
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "Crc32c{" +
+                "crc=" + Integer.toHexString(~this.crc) +
+                ", length=" + this.length +
+                '}';
+    }
+}
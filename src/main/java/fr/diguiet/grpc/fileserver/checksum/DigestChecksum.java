@@ -0,0 +1,115 @@
+package fr.diguiet.grpc.fileserver.checksum;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/**
+ * Running checksum backed by a cryptographic MessageDigest
+ * The digest state can't be serialized, it only lives in memory
+ * @see MessageDigest
+ */
+final class DigestChecksum implements IChecksum {
+    private final ChecksumAlgorithm algorithm;
+    private final MessageDigest digest;
+    private long length = 0;
+
+    /**
+     * Create a new running digest checksum
+     * @param algorithm the checksum algorithm
+     * @param digestName the MessageDigest algorithm name
+     * @return a new running checksum
+     * @throws IllegalStateException if the MessageDigest algorithm isn't available
+     */
+    static DigestChecksum newInstance(final ChecksumAlgorithm algorithm, final String digestName) {
+        Objects.requireNonNull(algorithm);
+        Objects.requireNonNull(digestName);
+        try {
+            return (new DigestChecksum(algorithm, MessageDigest.getInstance(digestName)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unable to get " + digestName + " checksum algorithm!", e);
+        }
+    }
+
+    /**
+     * Create a new instance
+     * @param algorithm the checksum algorithm
+     * @param digest the message digest
+     */
+    private DigestChecksum(final ChecksumAlgorithm algorithm, final MessageDigest digest) {
+        this.algorithm = algorithm;
+        this.digest = digest;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void update(final ByteBuffer data) {
+        Objects.requireNonNull(data);
+        this.length += data.remaining();
+        this.digest.update(data.duplicate());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void update(final byte[] data) {
+        Objects.requireNonNull(data);
+        this.length += data.length;
+        this.digest.update(data);
+    }
+
+    /**
+     * The running digest is cloned so it can still be updated afterward
+     * @inheritDoc
+     */
+    @Override
+    public byte[] getValue() {
+        try {
+            return (((MessageDigest) this.digest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("Unable to clone " + this.digest.getAlgorithm() + " running digest", e);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     * @return always Null, the digest state can't be serialized
+     */
+    @Override
+    public @Nullable byte[] getState() {
+        return (null);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long getLength() {
+        return (this.length);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public ChecksumAlgorithm getAlgorithm() {
+        return (this.algorithm);
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "DigestChecksum{" +
+                "algorithm=" + this.algorithm +
+                ", length=" + this.length +
+                '}';
+    }
+}
@@ -0,0 +1,49 @@
+package fr.diguiet.grpc.fileserver.checksum;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface that represent a running checksum, updated chunk after chunk
+ * @see ChecksumAlgorithm
+ */
+public interface IChecksum {
+
+    /**
+     * Update the checksum with the payload of a ByteBuffer from position to limit
+     * The position of the buffer is left untouched
+     * @param data the data to hash
+     */
+    void update(final ByteBuffer data);
+
+    /**
+     * Update the checksum with a byte array
+     * @param data the data to hash
+     */
+    void update(final byte[] data);
+
+    /**
+     * Get the checksum of all the data hashed so far, the checksum can still be updated afterward
+     * @return the checksum value
+     */
+    byte[] getValue();
+
+    /**
+     * Get the serialized running state of the checksum, used to resume it later
+     * @return the running state Or Null if the algorithm state can't be serialized
+     * @see ChecksumAlgorithm#resume(byte[])
+     */
+    @Nullable byte[] getState();
+
+    /**
+     * Get the number of bytes hashed so far
+     * @return the number of hashed bytes
+     */
+    long getLength();
+
+    /**
+     * Get the algorithm of the checksum
+     * @return the checksum algorithm
+     */
+    ChecksumAlgorithm getAlgorithm();
+}
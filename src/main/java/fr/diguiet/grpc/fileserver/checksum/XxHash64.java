@@ -0,0 +1,217 @@
+package fr.diguiet.grpc.fileserver.checksum;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Objects;
+
+/**
+ * Running xxHash64 checksum with a seed of 0
+ * The state is the number of hashed bytes, the four accumulators and the bytes of the last incomplete stripe
+ */
+final class XxHash64 implements IChecksum {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_BYTE_SIZE = 32;
+    private static final int STATE_HEADER_BYTE_SIZE = Long.BYTES * 5;
+    private final ByteBuffer stripe = ByteBuffer.allocate(XxHash64.STRIPE_BYTE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long v1 = XxHash64.PRIME1 + XxHash64.PRIME2;
+    private long v2 = XxHash64.PRIME2;
+    private long v3 = 0;
+    private long v4 = -XxHash64.PRIME1;
+    private long length = 0;
+
+    /**
+     * Create a new running checksum
+     * @return a new running checksum
+     */
+    static XxHash64 newInstance() {
+        return (new XxHash64());
+    }
+
+    /**
+     * Resume a running checksum from its state
+     * @param state the state
+     * @return the resumed running checksum
+     * @throws IllegalArgumentException if the state is invalid
+     */
+    static XxHash64 fromState(final byte[] state) {
+        Objects.requireNonNull(state);
+        if (state.length < XxHash64.STATE_HEADER_BYTE_SIZE)
+            throw new IllegalArgumentException("xxHash64 state must be at least " + XxHash64.STATE_HEADER_BYTE_SIZE + " bytes long");
+        final ByteBuffer bb = ByteBuffer.wrap(state);
+        final XxHash64 xxHash64 = new XxHash64();
+        xxHash64.length = bb.getLong();
+        xxHash64.v1 = bb.getLong();
+        xxHash64.v2 = bb.getLong();
+        xxHash64.v3 = bb.getLong();
+        xxHash64.v4 = bb.getLong();
+        if (xxHash64.length < 0 || bb.remaining() != xxHash64.length % XxHash64.STRIPE_BYTE_SIZE)
+            throw new IllegalArgumentException("xxHash64 state doesn't match its length");
+        xxHash64.stripe.put(bb);
+        return (xxHash64);
+    }
+
+    /**
+     * Create a new instance
+     */
+    private XxHash64() {
+
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void update(final ByteBuffer data) {
+        Objects.requireNonNull(data);
+        final ByteBuffer bb = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.length += bb.remaining();
+        if (this.stripe.position() > 0) {
+            // Complete the pending stripe first
+            while (this.stripe.hasRemaining() && bb.hasRemaining())
+                this.stripe.put(bb.get());
+            if (this.stripe.hasRemaining())
+                return;
+            this.consumeStripe(this.stripe, 0);
+            this.stripe.clear();
+        }
+        final int limit = bb.limit();
+        int position = bb.position();
+        while (limit - position >= XxHash64.STRIPE_BYTE_SIZE) {
+            this.consumeStripe(bb, position);
+            position += XxHash64.STRIPE_BYTE_SIZE;
+        }
+        bb.position(position);
+        this.stripe.put(bb);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void update(final byte[] data) {
+        Objects.requireNonNull(data);
+        this.update(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @inheritDoc
+     * @return the 8 bytes big endian hash
+     */
+    @Override
+    public byte[] getValue() {
+        long hash;
+        if (this.length >= XxHash64.STRIPE_BYTE_SIZE) {
+            hash = Long.rotateLeft(this.v1, 1) + Long.rotateLeft(this.v2, 7) + Long.rotateLeft(this.v3, 12) + Long.rotateLeft(this.v4, 18);
+            hash = XxHash64.mergeRound(hash, this.v1);
+            hash = XxHash64.mergeRound(hash, this.v2);
+            hash = XxHash64.mergeRound(hash, this.v3);
+            hash = XxHash64.mergeRound(hash, this.v4);
+        } else {
+            hash = XxHash64.PRIME5;
+        }
+        hash += this.length;
+
+        final int limit = this.stripe.position();
+        int position = 0;
+        while (limit - position >= Long.BYTES) {
+            hash ^= XxHash64.round(0, this.stripe.getLong(position));
+            hash = Long.rotateLeft(hash, 27) * XxHash64.PRIME1 + XxHash64.PRIME4;
+            position += Long.BYTES;
+        }
+        if (limit - position >= Integer.BYTES) {
+            hash ^= (this.stripe.getInt(position) & 0xFFFFFFFFL) * XxHash64.PRIME1;
+            hash = Long.rotateLeft(hash, 23) * XxHash64.PRIME2 + XxHash64.PRIME3;
+            position += Integer.BYTES;
+        }
+        while (position < limit) {
+            hash ^= (this.stripe.get(position++) & 0xFFL) * XxHash64.PRIME5;
+            hash = Long.rotateLeft(hash, 11) * XxHash64.PRIME1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= XxHash64.PRIME2;
+        hash ^= hash >>> 29;
+        hash *= XxHash64.PRIME3;
+        hash ^= hash >>> 32;
+        return (ByteBuffer.allocate(Long.BYTES).putLong(hash).array());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public byte[] getState() {
+        final ByteBuffer pending = (ByteBuffer) this.stripe.duplicate().flip();
+        return (ByteBuffer.allocate(XxHash64.STATE_HEADER_BYTE_SIZE + pending.remaining())
+                .putLong(this.length)
+                .putLong(this.v1)
+                .putLong(this.v2)
+                .putLong(this.v3)
+                .putLong(this.v4)
+                .put(pending)
+                .array());
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public long getLength() {
+        return (this.length);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public ChecksumAlgorithm getAlgorithm() {
+        return (ChecksumAlgorithm.XXHASH64);
+    }
+
+    /**
+     * Hash a whole stripe into the accumulators
+     * @param bb the little endian buffer holding the stripe
+     * @param position the position of the stripe in the buffer
+     */
+    private void consumeStripe(final ByteBuffer bb, final int position) {
+        this.v1 = XxHash64.round(this.v1, bb.getLong(position));
+        this.v2 = XxHash64.round(this.v2, bb.getLong(position + 8));
+        this.v3 = XxHash64.round(this.v3, bb.getLong(position + 16));
+        this.v4 = XxHash64.round(this.v4, bb.getLong(position + 24));
+    }
+
+    /**
+     * xxHash64 round
+     * @param accumulator the accumulator
+     * @param input the input lane
+     * @return the new accumulator
+     */
+    private static long round(final long accumulator, final long input) {
+        return (Long.rotateLeft(accumulator + input * XxHash64.PRIME2, 31) * XxHash64.PRIME1);
+    }
+
+    /**
+     * xxHash64 accumulator merge round
+     * @param hash the hash
+     * @param accumulator the accumulator to merge
+     * @return the new hash
+     */
+    private static long mergeRound(final long hash, final long accumulator) {
+        return ((hash ^ XxHash64.round(0, accumulator)) * XxHash64.PRIME1 + XxHash64.PRIME4);
+    }
+
+    /**
+     * String representation of the instance
+     * @return a string representation of the instance
+     */
+    @Override
+    public String toString() {
+        return "XxHash64{" +
+                "length=" + this.length +
+                '}';
+    }
+}
@@ -1,8 +1,14 @@
 package fr.diguiet.grpc.rpc.device;
 
+import fr.diguiet.grpc.fileserver.checksum.ChecksumAlgorithm;
 import fr.diguiet.grpc.fileserver.exception.FileServerException;
+import fr.diguiet.grpc.fileserver.AsyncFileServer;
+import fr.diguiet.grpc.fileserver.CachingFileServer;
 import fr.diguiet.grpc.fileserver.IFileServer;
 import fr.diguiet.grpc.fileserver.LMDBFileServer;
+import fr.diguiet.grpc.fileserver.LogFileServer;
+import fr.diguiet.grpc.fileserver.OffHeapFileServer;
+import fr.diguiet.grpc.fileserver.ShardedFileServer;
 import fr.diguiet.grpc.rpc.service.provider.BinaryDownload;
 import fr.diguiet.grpc.rpc.service.provider.BinaryUpload;
 import fr.diguiet.grpc.rpc.service.provider.ImageAnalysis;
@@ -13,6 +19,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Locale;
+import java.util.Objects;
 
 /**
  * Device that manage binary services.
@@ -20,9 +28,86 @@ import java.io.IOException;
 public class Device {
     private static final Logger logger = LoggerFactory.getLogger(Device.class);
     private static final int FILE_EXPIRATION_SECONDS = 60 * 10; // 10 minutes
+    private static final long DB_INITIAL_BYTE_SIZE = 1024 * 1024 * 64; // 64 mo
+    private static final long DB_MAX_BYTE_SIZE = 1024L * 1024 * 1024; // 1 go
+    private static final long OFF_HEAP_MAX_BYTE_SIZE = 1024L * 1024 * 256; // 256 mo
+    /**
+     * The system property selecting the storage of the files, one of the {@link Storage} names
+     */
+    public static final String STORAGE_PROPERTY = "device.storage";
+    /**
+     * The system property naming the checksum algorithm of the new files, one of the {@link ChecksumAlgorithm} names
+     */
+    public static final String CHECKSUM_PROPERTY = "device.checksum";
+    /**
+     * The system property enabling the commit of the LMDB writes by batch by a single writer thread, disabled if not set
+     */
+    public static final String GROUP_COMMIT_PROPERTY = "device.groupCommit";
+    /**
+     * The system property setting the number of LMDB environments the files are sharded over, a single one if not set
+     */
+    public static final String NB_SHARDS_PROPERTY = "device.shards";
+    /**
+     * The system property setting the byte length from which a file goes to a side file instead of the LMDB map,
+     * never if not set
+     */
+    public static final String SPILL_THRESHOLD_PROPERTY = "device.spillThreshold";
+    /**
+     * The system property setting the byte size of the cache of the recently used files, no cache if not set
+     */
+    public static final String CACHE_MAX_BYTE_SIZE_PROPERTY = "device.cacheMaxByteSize";
+    private final Storage storage;
     private IFileServer fileServer;
+    private AsyncFileServer asyncFileServer;
     private Server server;
 
+    /**
+     * The storages a device may keep its files in
+     */
+    public enum Storage {
+        /**
+         * LMDB environment, sharded by file id over several environments if {@value Device#NB_SHARDS_PROPERTY} is above 1,
+         * the files above {@value Device#SPILL_THRESHOLD_PROPERTY} go to side files if set
+         */
+        LMDB,
+        /**
+         * Append only segment log
+         */
+        LOG,
+        /**
+         * Direct memory only, nothing is written to the disk and every file is lost when the device stops
+         */
+        OFF_HEAP;
+
+        /**
+         * Get the storage of a name, the case doesn't matter
+         * @param name the storage name
+         * @return the storage
+         * @throws IllegalArgumentException if no storage has this name
+         */
+        public static Storage fromName(final String name) {
+            Objects.requireNonNull(name);
+            return (Storage.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+        }
+    }
+
+    /**
+     * Create a new device whose storage is read from the {@value #STORAGE_PROPERTY} system property, LMDB if not set
+     * @throws IllegalArgumentException if the property doesn't name a storage
+     */
+    public Device() {
+        this(Storage.fromName(System.getProperty(Device.STORAGE_PROPERTY, Storage.LMDB.name())));
+    }
+
+    /**
+     * Create a new device
+     * @param storage the storage of the files
+     */
+    public Device(final Storage storage) {
+        Objects.requireNonNull(storage);
+        this.storage = storage;
+    }
+
     /**
      * Start the device
      * @param port the port to listen on
@@ -30,18 +115,27 @@ public class Device {
      * @throws FileServerException
      */
     public void start(final int port) throws IOException, FileServerException {
-        this.fileServer = LMDBFileServer.newInstance().build();
+        // The blobs are read right after being written, the hot ones may be served from memory
+        final long cacheMaxByteSize = Long.getLong(Device.CACHE_MAX_BYTE_SIZE_PROPERTY, 0);
+        this.fileServer = (this.storage == Storage.OFF_HEAP || cacheMaxByteSize <= 0) ? this.newFileServer()
+                : CachingFileServer.newInstance(this.newFileServer())
+                        .setCacheMaxByteSize(cacheMaxByteSize)
+                        .build();
         this.fileServer.openOrCreate();
         this.fileServer.deleteAll();
+        // The services don't block the transport threads, the file server calls run on pools sized to the storage writers
+        this.asyncFileServer = AsyncFileServer.newInstance(this.fileServer)
+                .setNbWriteThreads(this.getNbWriters())
+                .build();
         this.server = ServerBuilder.forPort(port)
-                .addService(BinaryUpload.newServiceProvider(this.fileServer, Device.FILE_EXPIRATION_SECONDS))
-                .addService(ImageAnalysis.newServiceProvider(this.fileServer))
-                .addService(ImageGenerator.newServiceProvider(this.fileServer, Device.FILE_EXPIRATION_SECONDS))
-                .addService(BinaryDownload.newServiceProvider(this.fileServer))
+                .addService(BinaryUpload.newServiceProvider(this.asyncFileServer, Device.FILE_EXPIRATION_SECONDS))
+                .addService(ImageAnalysis.newServiceProvider(this.asyncFileServer))
+                .addService(ImageGenerator.newServiceProvider(this.asyncFileServer, Device.FILE_EXPIRATION_SECONDS))
+                .addService(BinaryDownload.newServiceProvider(this.asyncFileServer))
                 .intercept(EnableCompressionInterceptor.newInterceptor())
                 .build()
                 .start();
-        Device.logger.info("Server started, listening on " + port);
+        Device.logger.info("Server started with " + this.storage + " storage, listening on " + port);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             // Use stderr here since the logger may have been reset by its JVM shutdown hook.
             System.err.println("*** shutting down gRPC server since JVM is shutting down");
@@ -50,6 +144,74 @@ public class Device {
         }));
     }
 
+    /**
+     * Create the file server of the device storage
+     * @return a new file server
+     * @throws IllegalArgumentException if a property doesn't hold a valid value
+     */
+    private IFileServer newFileServer() {
+        if (this.storage == Storage.LOG) {
+            return (LogFileServer.newInstance()
+                    .setChecksumAlgorithm(Device.getChecksumAlgorithm())
+                    .build());
+        }
+        if (this.storage == Storage.OFF_HEAP) {
+            return (OffHeapFileServer.newInstance()
+                    .setChecksumAlgorithm(Device.getChecksumAlgorithm())
+                    .setMaxByteSize(Device.OFF_HEAP_MAX_BYTE_SIZE)
+                    .build());
+        }
+        // The large images may go to side files so they don't fill the maps
+        final LMDBFileServer.Builder builder = LMDBFileServer.newInstance()
+                .setChecksumAlgorithm(Device.getChecksumAlgorithm())
+                .setGroupCommit(Boolean.getBoolean(Device.GROUP_COMMIT_PROPERTY))
+                .setDbMaxByteSize(Device.DB_INITIAL_BYTE_SIZE)
+                .setDbGrowthCeilingByteSize(Device.DB_MAX_BYTE_SIZE)
+                .setSpillThresholdByteSize(Integer.getInteger(Device.SPILL_THRESHOLD_PROPERTY, Integer.MAX_VALUE));
+        final int nbShards = Device.getNbShards();
+        if (nbShards == 1)
+            return (builder.build());
+        // Several shards so the uploads aren't serialized by a single LMDB writer
+        return (ShardedFileServer.newInstance()
+                .setNbShards(nbShards)
+                .setShardBuilder(builder)
+                .build());
+    }
+
+    /**
+     * Get the checksum algorithm of the new files from the {@value #CHECKSUM_PROPERTY} system property, the case doesn't matter
+     * A fast non cryptographic hash such as XXHASH64 is enough to guard the integrity of the blobs
+     * @return the checksum algorithm, SHA1 if not set
+     * @throws IllegalArgumentException if the property doesn't name an algorithm
+     */
+    private static ChecksumAlgorithm getChecksumAlgorithm() {
+        final String name = System.getProperty(Device.CHECKSUM_PROPERTY, ChecksumAlgorithm.SHA1.name());
+        return (ChecksumAlgorithm.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+    }
+
+    /**
+     * Get the number of LMDB environments from the {@value #NB_SHARDS_PROPERTY} system property
+     * @return the number of shards, 1 if not set
+     * @throws IllegalArgumentException if the number of shards is below 1
+     */
+    private static int getNbShards() {
+        final int nbShards = Integer.getInteger(Device.NB_SHARDS_PROPERTY, 1);
+        if (nbShards < 1)
+            throw new IllegalArgumentException("Number of shards must be greater than 0");
+        return (nbShards);
+    }
+
+    /**
+     * Get the number of writes the device storage runs in parallel
+     * @return the number of writers
+     */
+    private int getNbWriters() {
+        // The log has a single writer, the LMDB storage has one per shard and the off heap one copies in parallel
+        if (this.storage == Storage.LOG)
+            return (1);
+        return ((this.storage == Storage.LMDB) ? Device.getNbShards() : Runtime.getRuntime().availableProcessors());
+    }
+
     /**
      * Stop the device
      */
@@ -57,6 +219,9 @@ public class Device {
         if (this.server != null) {
             this.server.shutdown();
         }
+        if (this.asyncFileServer != null) {
+            this.asyncFileServer.close();
+        }
         if (this.fileServer != null) {
             this.fileServer.close();
         }
@@ -1,9 +1,8 @@
 package fr.diguiet.grpc.rpc.service.provider;
 
-import com.google.protobuf.ByteString;
 import com.google.protobuf.GeneratedMessageV3;
+import fr.diguiet.grpc.fileserver.AsyncFileServer;
 import fr.diguiet.grpc.fileserver.DatabaseFileMetadata;
-import fr.diguiet.grpc.fileserver.IFileServer;
 import fr.diguiet.grpc.rpc.common.*;
 import fr.diguiet.grpc.rpc.common.Error;
 import fr.diguiet.grpc.rpc.service.provider.download.DownloadManager;
@@ -12,6 +11,7 @@ import fr.diguiet.grpc.rpc.utils.MessageUtils;
 import io.grpc.ServerInterceptor;
 import io.grpc.ServerInterceptors;
 import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,14 +27,14 @@ public class BinaryDownload extends BinaryDownloadGrpc.BinaryDownloadImplBase im
     private static final Logger logger = LoggerFactory.getLogger(BinaryDownload.class);
     private final ServerInterceptor responseStatusInterceptor = ResponseStatusInterceptor.newInterceptor(this);
     private final DownloadManager downloadManager = DownloadManager.newInstance();
-    private final IFileServer fileServer;
+    private final AsyncFileServer fileServer;
 
     /**
      * Create a new service provider
      * @param fileServer The file server
      * @return the service
      */
-    public static ServerServiceDefinition newServiceProvider(final IFileServer fileServer) {
+    public static ServerServiceDefinition newServiceProvider(final AsyncFileServer fileServer) {
         final BinaryDownload binaryDownload = new BinaryDownload(fileServer);
         return (ServerInterceptors.intercept(binaryDownload, binaryDownload.responseStatusInterceptor));
     }
@@ -44,7 +44,7 @@ public class BinaryDownload extends BinaryDownloadGrpc.BinaryDownloadImplBase im
      * @param fileServer The file server
      * @return the service
      */
-    private BinaryDownload(final IFileServer fileServer) {
+    private BinaryDownload(final AsyncFileServer fileServer) {
         Objects.requireNonNull(fileServer);
         this.fileServer = fileServer;
     }
@@ -56,15 +56,38 @@ public class BinaryDownload extends BinaryDownloadGrpc.BinaryDownloadImplBase im
      */
     @Override
     public void getChunk(GetBlobChunkRequest request, StreamObserver<GetBlobChunkResponse> responseObserver) {
-        GetBlobChunkResponse.Builder builder = GetBlobChunkResponse.newBuilder();
+        final ServerCallStreamObserver<GetBlobChunkResponse> serverCallStreamObserver = (ServerCallStreamObserver<GetBlobChunkResponse>) responseObserver;
         final UUID blobId = MessageUtils.getUUID(request.getBlobId());
-        final byte[] data = this.fileServer.download(blobId);
         final int startOffset = request.getStartOffset();
         final int length = request.getLength();
-        ByteString chunk = ByteString.copyFrom(data, startOffset, length);
-        builder.setChunk(BlobChunk.newBuilder().setPayload(chunk));
-        responseObserver.onNext(builder.build());
-        responseObserver.onCompleted();
+        this.fileServer.lease(blobId, startOffset, length).whenComplete((lease, throwable) -> {
+            final GetBlobChunkResponse.Builder builder = GetBlobChunkResponse.newBuilder();
+            if (throwable != null) {
+                final Throwable cause = AsyncFileServer.unwrap(throwable);
+                if (cause instanceof IllegalArgumentException)
+                    BinaryDownload.logger.warn("Invalid chunk request for blob " + blobId + ": " + cause.getMessage());
+                else
+                    BinaryDownload.logger.error("Unable to lease chunk of blob " + blobId + ": " + cause.getMessage());
+                builder.setError(Error.newBuilder().setMessage(cause.getMessage()));
+            } else if (lease == null) {
+                builder.setError(Error.newBuilder().setMessage("Unable to get blob chunk!"));
+            } else {
+                // The message is serialized into the transport buffers by onNext, the lease is only released once it returned,
+                // a cancellation meanwhile must not release the buffers being copied
+                try {
+                    if (serverCallStreamObserver.isCancelled())
+                        return;
+                    builder.setChunk(BlobChunk.newBuilder().setPayload(MessageUtils.toByteString(lease)));
+                    responseObserver.onNext(builder.build());
+                    responseObserver.onCompleted();
+                } finally {
+                    lease.close();
+                }
+                return;
+            }
+            responseObserver.onNext(builder.build());
+            responseObserver.onCompleted();
+        });
     }
 
     /**
@@ -74,16 +97,19 @@ public class BinaryDownload extends BinaryDownloadGrpc.BinaryDownloadImplBase im
      */
     @Override
     public void getBlobInfo(GetBlobInfoRequest request, StreamObserver<GetBlobInfoResponse> responseObserver) {
-        final GetBlobInfoResponse.Builder Response = GetBlobInfoResponse.newBuilder();
         final UUID blobId = MessageUtils.getUUID(request.getBlobId());
-        final DatabaseFileMetadata databaseFileMetadata = this.fileServer.getFileMetaData(blobId);
-        if (databaseFileMetadata != null) {
-            Response.setInfo(BlobDownloadInfo.newBuilder().setBlobLength(databaseFileMetadata.getDataLength()).build());
-        } else {
-            Response.setError(Error.newBuilder().setMessage("Unable to get blob metadata info!").build());
-        }
-        responseObserver.onNext(Response.build());
-        responseObserver.onCompleted();
+        this.fileServer.getFileMetaData(blobId).whenComplete((databaseFileMetadata, throwable) -> {
+            final GetBlobInfoResponse.Builder Response = GetBlobInfoResponse.newBuilder();
+            if (throwable != null)
+                BinaryDownload.logger.error("Unable to get metadata of blob " + blobId + ": " + AsyncFileServer.unwrap(throwable).getMessage());
+            if (databaseFileMetadata != null) {
+                Response.setInfo(BlobDownloadInfo.newBuilder().setBlobLength(databaseFileMetadata.getDataLength()).build());
+            } else {
+                Response.setError(Error.newBuilder().setMessage("Unable to get blob metadata info!").build());
+            }
+            responseObserver.onNext(Response.build());
+            responseObserver.onCompleted();
+        });
     }
 
     /**
@@ -94,10 +120,13 @@ public class BinaryDownload extends BinaryDownloadGrpc.BinaryDownloadImplBase im
     @Override
     public void deleteBlob(DeleteBlobRequest request, StreamObserver<DeleteBlobResponse> responseObserver) {
         final UUID blobId = MessageUtils.getUUID(request.getBlobId());
-        this.fileServer.delete(blobId);
-        DeleteBlobResponse Response = DeleteBlobResponse.newBuilder().build();
-        responseObserver.onNext(Response);
-        responseObserver.onCompleted();
+        this.fileServer.delete(blobId).whenComplete((result, throwable) -> {
+            if (throwable != null)
+                BinaryDownload.logger.error("Unable to delete blob " + blobId + ": " + AsyncFileServer.unwrap(throwable).getMessage());
+            DeleteBlobResponse Response = DeleteBlobResponse.newBuilder().build();
+            responseObserver.onNext(Response);
+            responseObserver.onCompleted();
+        });
     }
 
     /**
@@ -111,22 +140,26 @@ public class BinaryDownload extends BinaryDownloadGrpc.BinaryDownloadImplBase im
             GetBlobChunkRequest chunkRequest = (GetBlobChunkRequest) message;
             if (chunkRequest.hasBlobId()) {
                 final UUID blobId = MessageUtils.getUUID(chunkRequest.getBlobId());
-                final DatabaseFileMetadata databaseFileMetadata = this.fileServer.getFileMetaData(blobId);
-                if (databaseFileMetadata == null) {
-                    this.downloadManager.deleteBlob(blobId);
-                    BinaryDownload.logger.info("Removing blob " + blobId + " because it has been removed from fileserver");
-                } else {
-                    final int startOffset = chunkRequest.getStartOffset();
-                    final int length = chunkRequest.getLength();
-                    boolean isComplete = this.downloadManager.getBlob(blobId, databaseFileMetadata.getDataLength(), databaseFileMetadata.getExpirationDate())
-                            .getClient(clientIp.toString())
-                            .addChunk(startOffset, length);
-                    if (isComplete) {
-                        BinaryDownload.logger.info("Download of " + blobId + " complete for " + clientIp);
-                        BinaryDownload.logger.debug("Metadata " + databaseFileMetadata);
-                        this.fileServer.delete(blobId);
+                this.fileServer.getFileMetaData(blobId).thenAccept(databaseFileMetadata -> {
+                    if (databaseFileMetadata == null) {
+                        this.downloadManager.deleteBlob(blobId);
+                        BinaryDownload.logger.info("Removing blob " + blobId + " because it has been removed from fileserver");
+                    } else {
+                        final int startOffset = chunkRequest.getStartOffset();
+                        final int length = chunkRequest.getLength();
+                        boolean isComplete = this.downloadManager.getBlob(blobId, databaseFileMetadata.getDataLength(), databaseFileMetadata.getExpirationDate())
+                                .getClient(clientIp.toString())
+                                .addChunk(startOffset, length);
+                        if (isComplete) {
+                            BinaryDownload.logger.info("Download of " + blobId + " complete for " + clientIp);
+                            BinaryDownload.logger.debug("Metadata " + databaseFileMetadata);
+                            this.fileServer.delete(blobId);
+                        }
                     }
-                }
+                }).exceptionally(throwable -> {
+                    BinaryDownload.logger.error("Unable to track download of blob " + blobId + ": " + AsyncFileServer.unwrap(throwable).getMessage());
+                    return (null);
+                });
             }
         }
     }
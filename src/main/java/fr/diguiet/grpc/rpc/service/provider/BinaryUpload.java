@@ -1,7 +1,7 @@
 package fr.diguiet.grpc.rpc.service.provider;
 
 import com.google.protobuf.Timestamp;
-import fr.diguiet.grpc.fileserver.IFileServer;
+import fr.diguiet.grpc.fileserver.AsyncFileServer;
 import fr.diguiet.grpc.common.utils.TimestampUtils;
 import fr.diguiet.grpc.rpc.common.*;
 import fr.diguiet.grpc.rpc.common.Error;
@@ -22,7 +22,7 @@ public class BinaryUpload extends BinaryUploadGrpc.BinaryUploadImplBase {
     private static final int DEFAULT_FILE_EXPIRATION_SECONDS = 60 * 10; // 10 minutes
     private static final Logger logger = LoggerFactory.getLogger(BinaryUpload.class);
     private final UploadManager uploadManager = UploadManager.newInstance();
-    private final IFileServer fileServer;
+    private final AsyncFileServer fileServer;
     private final int blobExpirationSeconds;
 
     /**
@@ -30,7 +30,7 @@ public class BinaryUpload extends BinaryUploadGrpc.BinaryUploadImplBase {
      * @param fileServer The file server
      * @return the service
      */
-    public static BinaryUpload newServiceProvider(final IFileServer fileServer) {
+    public static BinaryUpload newServiceProvider(final AsyncFileServer fileServer) {
         return (new BinaryUpload(fileServer));
     }
 
@@ -40,7 +40,7 @@ public class BinaryUpload extends BinaryUploadGrpc.BinaryUploadImplBase {
      * @param fileExpirationSeconds the number of seconds becore a file expire
      * @return the service
      */
-    public static BinaryUpload newServiceProvider(final IFileServer fileServer, final int fileExpirationSeconds) {
+    public static BinaryUpload newServiceProvider(final AsyncFileServer fileServer, final int fileExpirationSeconds) {
         return (new BinaryUpload(fileServer, fileExpirationSeconds));
     }
 
@@ -49,7 +49,7 @@ public class BinaryUpload extends BinaryUploadGrpc.BinaryUploadImplBase {
      * @param fileServer The file server
      * @return the service
      */
-    private BinaryUpload(final IFileServer fileServer) {
+    private BinaryUpload(final AsyncFileServer fileServer) {
         this(fileServer, BinaryUpload.DEFAULT_FILE_EXPIRATION_SECONDS);
     }
 
@@ -59,7 +59,7 @@ public class BinaryUpload extends BinaryUploadGrpc.BinaryUploadImplBase {
      * @param blobExpirationSeconds the number of seconds becore a file expire
      * @return the service
      */
-    private BinaryUpload(final IFileServer fileServer, final int blobExpirationSeconds) {
+    private BinaryUpload(final AsyncFileServer fileServer, final int blobExpirationSeconds) {
         Objects.requireNonNull(fileServer);
         if (blobExpirationSeconds < 1) {
             throw new IllegalArgumentException("The number of seconds before the file expire must be greater than 0");
@@ -76,22 +76,34 @@ public class BinaryUpload extends BinaryUploadGrpc.BinaryUploadImplBase {
     @Override
     public void createBlob(CreateBlobRequest request, StreamObserver<CreateBlobResponse> responseObserver) {
         final ServerCallStreamObserver<CreateBlobResponse> serverCallStreamObserver = (ServerCallStreamObserver<CreateBlobResponse>) responseObserver;
-
-        final CreateBlobResponse.Builder builder = CreateBlobResponse.newBuilder();
-        if (!this.fileServer.hasEnoughSpaceFor(request.getBlobSize())) {
-            builder.setError(Error.newBuilder().setMessage("Not enough space available!")).build();
-        } else {
-            final java.util.UUID uuid = java.util.UUID.randomUUID();
-            final UUID uuidMessage = MessageUtils.toUUIDMessage(uuid);
-            final Timestamp expirationDate = TimestampUtils.nowPlusSeconds(this.blobExpirationSeconds);
-            builder.setInfo(BlobCreationInfo.newBuilder()
-                    .setBlobId(uuidMessage)
-                    .setExpirationDate(expirationDate)).build();
-            this.uploadManager.addNewUpload(uuid, request.getBlobSize(), request.getChunkCount(), expirationDate);
-            serverCallStreamObserver.setOnCancelHandler(() -> this.uploadManager.deleteBlob(uuid));
-        }
-        serverCallStreamObserver.onNext(builder.build());
-        serverCallStreamObserver.onCompleted();
+        final java.util.UUID uuid = java.util.UUID.randomUUID();
+        final Timestamp expirationDate = TimestampUtils.nowPlusSeconds(this.blobExpirationSeconds);
+        // The cancel handler can only be set before the call returns, releasing a reservation not taken yet does nothing
+        serverCallStreamObserver.setOnCancelHandler(() -> {
+            this.uploadManager.deleteBlob(uuid);
+            this.fileServer.releaseReservation(uuid);
+        });
+        // The space is reserved until the chunks arrive so concurrent creations can't over commit the file server
+        this.fileServer.reserve(uuid, request.getBlobSize(), expirationDate).whenComplete((isReserved, throwable) -> {
+            final CreateBlobResponse.Builder builder = CreateBlobResponse.newBuilder();
+            if (throwable != null) {
+                BinaryUpload.logger.warn("Unable to reserve space for blob " + uuid + ": " + AsyncFileServer.unwrap(throwable).getMessage());
+                builder.setError(Error.newBuilder().setMessage("Unable to reserve space!"));
+            } else if (!isReserved) {
+                builder.setError(Error.newBuilder().setMessage("Not enough space available!")).build();
+            } else if (serverCallStreamObserver.isCancelled()) {
+                this.fileServer.releaseReservation(uuid);
+                return;
+            } else {
+                final UUID uuidMessage = MessageUtils.toUUIDMessage(uuid);
+                builder.setInfo(BlobCreationInfo.newBuilder()
+                        .setBlobId(uuidMessage)
+                        .setExpirationDate(expirationDate)).build();
+                this.uploadManager.addNewUpload(uuid, request.getBlobSize(), request.getChunkCount(), expirationDate);
+            }
+            serverCallStreamObserver.onNext(builder.build());
+            serverCallStreamObserver.onCompleted();
+        });
     }
 
     /**
@@ -110,20 +122,27 @@ public class BinaryUpload extends BinaryUploadGrpc.BinaryUploadImplBase {
             expirationDate = TimestampUtils.nowPlusSeconds(this.blobExpirationSeconds);
         }
         BinaryUpload.logger.debug("upload chunk blob " + blobId);
-        this.fileServer.upload(blobId, expirationDate, request.getPayload().toByteArray());
-        UploadBlobResponse Response;
-        try {
-            if (blobCompletion != null) {
-                blobCompletion.updateUploadCompletion(request.getPayload().size(), request.getChunkIndex());
-            } else {
-                throw new IllegalArgumentException("Not allowed to upload this blob");
+        // The response is sent once the chunk is saved, the transport thread doesn't wait for the file server.
+        // The payload buffers are handed to the file server as they are, the payload isn't copied to an array first,
+        // the LMDB storage copies them straight into the chunk reserved in its map or into the side file
+        this.fileServer.upload(blobId, expirationDate, request.getPayload().asReadOnlyByteBufferList()).whenComplete((result, throwable) -> {
+            UploadBlobResponse Response;
+            try {
+                if (throwable != null) {
+                    BinaryUpload.logger.warn("Unable to save chunk of blob " + blobId + ": " + AsyncFileServer.unwrap(throwable).getMessage());
+                    throw new IllegalArgumentException("Unable to save the chunk");
+                } else if (blobCompletion != null) {
+                    blobCompletion.updateUploadCompletion(request.getPayload().size(), request.getChunkIndex());
+                } else {
+                    throw new IllegalArgumentException("Not allowed to upload this blob");
+                }
+                Response = UploadBlobResponse.newBuilder().setExpirationDate(expirationDate).build();
+            } catch (IllegalArgumentException e) {
+                Response = UploadBlobResponse.newBuilder().setError(Error.newBuilder().setMessage(e.getMessage()).build()).build();
             }
-            Response = UploadBlobResponse.newBuilder().setExpirationDate(expirationDate).build();
-        } catch (IllegalArgumentException e) {
-            Response = UploadBlobResponse.newBuilder().setError(Error.newBuilder().setMessage(e.getMessage()).build()).build();
-        }
-        responseObserver.onNext(Response);
-        responseObserver.onCompleted();
+            responseObserver.onNext(Response);
+            responseObserver.onCompleted();
+        });
     }
 
     /**
@@ -134,10 +153,13 @@ public class BinaryUpload extends BinaryUploadGrpc.BinaryUploadImplBase {
     @Override
     public void deleteBlob(DeleteBlobRequest request, StreamObserver<DeleteBlobResponse> responseObserver) {
         final java.util.UUID blobId = MessageUtils.getUUID(request.getBlobId());
-        this.fileServer.delete(blobId);
-        DeleteBlobResponse Response = DeleteBlobResponse.newBuilder().build();
-        responseObserver.onNext(Response);
-        responseObserver.onCompleted();
+        this.fileServer.delete(blobId).whenComplete((result, throwable) -> {
+            if (throwable != null)
+                BinaryUpload.logger.warn("Unable to delete blob " + blobId + ": " + AsyncFileServer.unwrap(throwable).getMessage());
+            DeleteBlobResponse Response = DeleteBlobResponse.newBuilder().build();
+            responseObserver.onNext(Response);
+            responseObserver.onCompleted();
+        });
     }
 
     /**
@@ -2,8 +2,7 @@ package fr.diguiet.grpc.rpc.service.provider;
 
 
 import com.google.protobuf.GeneratedMessageV3;
-import fr.diguiet.grpc.fileserver.DatabaseFile;
-import fr.diguiet.grpc.fileserver.IFileServer;
+import fr.diguiet.grpc.fileserver.AsyncFileServer;
 import fr.diguiet.grpc.common.utils.ImageUtils;
 import fr.diguiet.grpc.rpc.common.Error;
 import fr.diguiet.grpc.rpc.common.GetImageLevelsResponse;
@@ -28,7 +27,7 @@ import java.util.Objects;
  */
 public class ImageAnalysis extends ImageAnalysisGrpc.ImageAnalysisImplBase implements ResponseStatusInterceptor.ICallBack {
     private static final Logger logger = LoggerFactory.getLogger(ImageAnalysis.class);
-    private final IFileServer fileServer;
+    private final AsyncFileServer fileServer;
     private final ServerInterceptor responseStatusInterceptor = ResponseStatusInterceptor.newInterceptor(this);
 
     /**
@@ -36,7 +35,7 @@ public class ImageAnalysis extends ImageAnalysisGrpc.ImageAnalysisImplBase imple
      * @param fileServer The file server
      * @return the service
      */
-    public static ServerServiceDefinition newServiceProvider(final IFileServer fileServer) {
+    public static ServerServiceDefinition newServiceProvider(final AsyncFileServer fileServer) {
         final ImageAnalysis imageAnalysis = new ImageAnalysis(fileServer);
         return (ServerInterceptors.intercept(imageAnalysis, imageAnalysis.responseStatusInterceptor));
     }
@@ -46,7 +45,7 @@ public class ImageAnalysis extends ImageAnalysisGrpc.ImageAnalysisImplBase imple
      * @param fileServer The file server
      * @return the service
      */
-    private ImageAnalysis(final IFileServer fileServer) {
+    private ImageAnalysis(final AsyncFileServer fileServer) {
         Objects.requireNonNull(fileServer);
         this.fileServer = fileServer;
     }
@@ -58,26 +57,30 @@ public class ImageAnalysis extends ImageAnalysisGrpc.ImageAnalysisImplBase imple
      */
     @Override
     public void getImageLevels(GetImageLevelsRequest request, StreamObserver<GetImageLevelsResponse> responseObserver) {
-        final GetImageLevelsResponse.Builder builder = GetImageLevelsResponse.newBuilder();
         final java.util.UUID blobId = MessageUtils.getUUID(request.getBlobId());
-        final DatabaseFile image = this.fileServer.getFile(blobId);
-        if (image == null) {
-            builder.setError(Error.newBuilder().setMessage("Invalid blobId"));
-        } else {
-            try {
-                final BufferedImage bufferedImage = ImageUtils.fromBytes(image.getData());
-                final long[] imageLevels = ImageUtils.getLevels(bufferedImage);
-                final ImageLevels.Builder levelsBuilder = ImageLevels.newBuilder();
-                Arrays.stream(imageLevels).forEach(levelsBuilder::addLevels);
-                builder.setLevels(levelsBuilder);
-            } catch (IOException e) {
-                ImageAnalysis.logger.warn("Unable to get image " + blobId + " + from bytes ");
-                ImageAnalysis.logger.debug("Message: " + e.getMessage());
-                builder.setError(Error.newBuilder().setMessage(e.getMessage()));
+        this.fileServer.getFile(blobId).whenComplete((image, throwable) -> {
+            final GetImageLevelsResponse.Builder builder = GetImageLevelsResponse.newBuilder();
+            if (throwable != null) {
+                ImageAnalysis.logger.error("Unable to get image " + blobId + ": " + AsyncFileServer.unwrap(throwable).getMessage());
+                builder.setError(Error.newBuilder().setMessage("Unable to get the image"));
+            } else if (image == null) {
+                builder.setError(Error.newBuilder().setMessage("Invalid blobId"));
+            } else {
+                try {
+                    final BufferedImage bufferedImage = ImageUtils.fromBytes(image.getData());
+                    final long[] imageLevels = ImageUtils.getLevels(bufferedImage);
+                    final ImageLevels.Builder levelsBuilder = ImageLevels.newBuilder();
+                    Arrays.stream(imageLevels).forEach(levelsBuilder::addLevels);
+                    builder.setLevels(levelsBuilder);
+                } catch (IOException e) {
+                    ImageAnalysis.logger.warn("Unable to get image " + blobId + " + from bytes ");
+                    ImageAnalysis.logger.debug("Message: " + e.getMessage());
+                    builder.setError(Error.newBuilder().setMessage(e.getMessage()));
+                }
             }
-        }
-        responseObserver.onNext(builder.build());
-        responseObserver.onCompleted();
+            responseObserver.onNext(builder.build());
+            responseObserver.onCompleted();
+        });
     }
 
     /**
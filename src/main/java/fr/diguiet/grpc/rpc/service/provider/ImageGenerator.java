@@ -3,7 +3,7 @@ package fr.diguiet.grpc.rpc.service.provider;
 import com.google.protobuf.Timestamp;
 import fr.diguiet.grpc.common.utils.ImageUtils;
 import fr.diguiet.grpc.common.utils.TimestampUtils;
-import fr.diguiet.grpc.fileserver.IFileServer;
+import fr.diguiet.grpc.fileserver.AsyncFileServer;
 import fr.diguiet.grpc.image.generator.MandelBrot;
 import fr.diguiet.grpc.rpc.common.Error;
 import fr.diguiet.grpc.rpc.common.ImageGeneratorGrpc;
@@ -25,7 +25,7 @@ import java.util.UUID;
 public class ImageGenerator extends ImageGeneratorGrpc.ImageGeneratorImplBase {
     private static final int DEFAULT_FILE_EXPIRATION_SECONDS = 60 * 60; // 1 hour
     private static final Logger logger = LoggerFactory.getLogger(ImageGenerator.class);
-    private final IFileServer fileServer;
+    private final AsyncFileServer fileServer;
     private final int fileExpirationSeconds;
 
     /**
@@ -33,7 +33,7 @@ public class ImageGenerator extends ImageGeneratorGrpc.ImageGeneratorImplBase {
      * @param fileServer The file server
      * @return the service
      */
-    public static ImageGenerator newServiceProvider(final IFileServer fileServer) {
+    public static ImageGenerator newServiceProvider(final AsyncFileServer fileServer) {
         return (new ImageGenerator(fileServer));
     }
 
@@ -43,7 +43,7 @@ public class ImageGenerator extends ImageGeneratorGrpc.ImageGeneratorImplBase {
      * @param fileExpirationSeconds the number of seconds before a file expire
      * @return the service
      */
-    public static ImageGenerator newServiceProvider(final IFileServer fileServer, final int fileExpirationSeconds) {
+    public static ImageGenerator newServiceProvider(final AsyncFileServer fileServer, final int fileExpirationSeconds) {
         return (new ImageGenerator(fileServer, fileExpirationSeconds));
     }
 
@@ -52,7 +52,7 @@ public class ImageGenerator extends ImageGeneratorGrpc.ImageGeneratorImplBase {
      * @param fileServer The file server
      * @return the service
      */
-    private ImageGenerator(final IFileServer fileServer) {
+    private ImageGenerator(final AsyncFileServer fileServer) {
         this(fileServer, ImageGenerator.DEFAULT_FILE_EXPIRATION_SECONDS);
     }
 
@@ -62,7 +62,7 @@ public class ImageGenerator extends ImageGeneratorGrpc.ImageGeneratorImplBase {
      * @param fileExpirationSeconds the number of seconds becore a file expire
      * @return the service
      */
-    private ImageGenerator(final IFileServer fileServer, final int fileExpirationSeconds) {
+    private ImageGenerator(final AsyncFileServer fileServer, final int fileExpirationSeconds) {
         Objects.requireNonNull(fileServer);
         if (fileExpirationSeconds < 1) {
             throw new IllegalArgumentException("The number of seconds before the file expire must be greater than 0");
@@ -78,21 +78,30 @@ public class ImageGenerator extends ImageGeneratorGrpc.ImageGeneratorImplBase {
      */
     @Override
     public void takeImage(final TakeImageRequest request, final StreamObserver<TakeImageResponse> responseObserver) {
-        final TakeImageResponse.Builder builder = TakeImageResponse.newBuilder();
         final MandelBrot mandelBrot = MandelBrot.newInstance().build();
         final BufferedImage bufferedImage = mandelBrot.generateImage();
+        final byte[] bytes;
         try {
-            final byte[] bytes = ImageUtils.toBytes(bufferedImage);
-            final UUID blobId = UUID.randomUUID();
-            final Timestamp expirationDate = TimestampUtils.nowPlusSeconds(this.fileExpirationSeconds);
-            this.fileServer.upload(blobId, expirationDate, bytes);
-            builder.setBlobId(MessageUtils.toUUIDMessage(blobId));
+            bytes = ImageUtils.toBytes(bufferedImage);
         } catch (IOException e) {
             ImageGenerator.logger.warn("Unable to convert image into bytes " + e.getMessage());
             ImageGenerator.logger.debug("Request " + request + " Mandelbrot " + mandelBrot);
-            builder.setError(Error.newBuilder().setMessage(e.getMessage()));
+            responseObserver.onNext(TakeImageResponse.newBuilder().setError(Error.newBuilder().setMessage(e.getMessage())).build());
+            responseObserver.onCompleted();
+            return;
         }
-        responseObserver.onNext(builder.build());
-        responseObserver.onCompleted();
+        final UUID blobId = UUID.randomUUID();
+        final Timestamp expirationDate = TimestampUtils.nowPlusSeconds(this.fileExpirationSeconds);
+        this.fileServer.upload(blobId, expirationDate, bytes).whenComplete((result, throwable) -> {
+            final TakeImageResponse.Builder builder = TakeImageResponse.newBuilder();
+            if (throwable != null) {
+                ImageGenerator.logger.error("Unable to save image " + blobId + ": " + AsyncFileServer.unwrap(throwable).getMessage());
+                builder.setError(Error.newBuilder().setMessage("Unable to save the image"));
+            } else {
+                builder.setBlobId(MessageUtils.toUUIDMessage(blobId));
+            }
+            responseObserver.onNext(builder.build());
+            responseObserver.onCompleted();
+        });
     }
 }
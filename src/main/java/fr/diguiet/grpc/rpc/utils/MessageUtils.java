@@ -1,7 +1,13 @@
 package fr.diguiet.grpc.rpc.utils;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import fr.diguiet.grpc.fileserver.BlobLease;
 import fr.diguiet.grpc.rpc.common.UUID;
 
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
 /**
  * Utils class with static method to simplify the use of message related function and object
  * @see com.google.protobuf.GeneratedMessageV3
@@ -32,4 +38,19 @@ public final class MessageUtils {
     public static UUID toUUIDMessage(final java.util.UUID uuid) {
         return (UUID.newBuilder().setId(uuid.toString()).build());
     }
+
+    /**
+     * Wrap the leased buffers into a ByteString without copying them
+     * The ByteString must not be used once the lease is closed
+     * @param lease the lease to wrap
+     * @return a ByteString backed by the leased buffers
+     * @see UnsafeByteOperations
+     */
+    public static ByteString toByteString(final BlobLease lease) {
+        Objects.requireNonNull(lease);
+        ByteString byteString = ByteString.EMPTY;
+        for (final ByteBuffer buffer : lease.getBuffers())
+            byteString = byteString.concat(UnsafeByteOperations.unsafeWrap(buffer));
+        return (byteString);
+    }
 }
@@ -1,20 +1,56 @@
 import fr.diguiet.grpc.common.utils.TimestampUtils;
+import fr.diguiet.grpc.fileserver.AsyncFileServer;
+import fr.diguiet.grpc.fileserver.BlobCache;
+import fr.diguiet.grpc.fileserver.BlobKeys;
+import fr.diguiet.grpc.fileserver.BlobLease;
+import fr.diguiet.grpc.fileserver.BlobWriter;
+import fr.diguiet.grpc.fileserver.CachingFileServer;
 import fr.diguiet.grpc.fileserver.DatabaseFile;
+import fr.diguiet.grpc.fileserver.DatabaseFileMetadata;
+import fr.diguiet.grpc.fileserver.ExpirationSweeper;
+import fr.diguiet.grpc.fileserver.checksum.ChecksumAlgorithm;
+import fr.diguiet.grpc.fileserver.checksum.IChecksum;
 import fr.diguiet.grpc.fileserver.exception.FileServerException;
+import fr.diguiet.grpc.fileserver.exception.RunTimeFileServerException;
 import fr.diguiet.grpc.fileserver.IFileServer;
 import fr.diguiet.grpc.common.utils.BytesUtils;
 import fr.diguiet.grpc.common.utils.FileUtils;
+import fr.diguiet.grpc.common.utils.UUIDUtils;
 import fr.diguiet.grpc.fileserver.LMDBFileServer;
+import fr.diguiet.grpc.fileserver.LogFileServer;
+import fr.diguiet.grpc.fileserver.OffHeapFileServer;
+import fr.diguiet.grpc.fileserver.ShardedFileServer;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.Txn;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileServer {
     private static final String TEST_DB_FOLDER_NAME = "test";
@@ -129,6 +165,1224 @@ public class FileServer {
         }
     }
 
+    @Test
+    public void chunkedUpload() throws IOException, FileServerException {
+        this.setupBuilder();
+        final UUID id = UUID.randomUUID();
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096 * 16 + 7));
+        final byte[][] chunks = BytesUtils.split(bytes, 16);
+        try (IFileServer fileServer = this.dbBuilder.build()) {
+            fileServer.openOrCreate();
+            for (final byte[] chunk : chunks) {
+                fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), chunk);
+            }
+            final DatabaseFile databaseFile = fileServer.getFile(id);
+            Assertions.assertNotNull(databaseFile);
+            Assertions.assertTrue(Arrays.equals(bytes, databaseFile.getData()));
+            Assertions.assertTrue(Arrays.equals(BytesUtils.getCheckSum(bytes), databaseFile.getDatabaseFileMetadata().getChecksum()));
+            Assertions.assertEquals(bytes.length, databaseFile.getDatabaseFileMetadata().getDataLength());
+
+            final int chunkLength = chunks[0].length;
+            Assertions.assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 0, 10), fileServer.read(id, 0, 10)));
+            Assertions.assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, chunkLength - 3, chunkLength * 3 + 5),
+                    fileServer.read(id, chunkLength - 3, chunkLength * 2 + 8)));
+            Assertions.assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, chunkLength, chunkLength * 2), fileServer.read(id, chunkLength, chunkLength)));
+            Assertions.assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, bytes.length - 1, bytes.length), fileServer.read(id, bytes.length - 1, 1)));
+            Assertions.assertEquals(0, fileServer.read(id, bytes.length, 0).length);
+            Assertions.assertThrows(IllegalArgumentException.class, () -> fileServer.read(id, bytes.length - 1, 2));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> fileServer.read(id, -1, 2));
+
+            fileServer.delete(id);
+            Assertions.assertNull(fileServer.download(id));
+            Assertions.assertNull(fileServer.read(id, 0, 1));
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), chunks[0]);
+            Assertions.assertTrue(Arrays.equals(chunks[0], fileServer.download(id)));
+            fileServer.delete(id);
+        }
+    }
+
+    @Test
+    public void lease() throws IOException, FileServerException, InterruptedException {
+        this.setupBuilder();
+        final UUID id = UUID.randomUUID();
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096 * 4));
+        final byte[][] chunks = BytesUtils.split(bytes, 4);
+        try (IFileServer fileServer = this.dbBuilder.build()) {
+            fileServer.openOrCreate();
+            for (final byte[] chunk : chunks) {
+                fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), chunk);
+            }
+            final BlobLease lease = fileServer.lease(id, 4000, 4096 * 2);
+            Assertions.assertNotNull(lease);
+            Assertions.assertEquals(4096 * 2, lease.getLength());
+            Assertions.assertEquals(3, lease.getBuffers().size());
+            final ByteBuffer leased = ByteBuffer.allocate(lease.getLength());
+            lease.getBuffers().forEach(buffer -> leased.put(buffer.duplicate()));
+            Assertions.assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 4000, 4000 + 4096 * 2), leased.array()));
+            Assertions.assertTrue(lease.getBuffers().get(0).isReadOnly());
+
+            // A lease may be released by another thread than the one that took it
+            final Thread releaser = new Thread(lease::close);
+            releaser.start();
+            releaser.join();
+            Assertions.assertFalse(lease.isOpen());
+            Assertions.assertThrows(IllegalStateException.class, lease::getBuffers);
+            lease.close();
+
+            Assertions.assertThrows(IllegalArgumentException.class, () -> fileServer.lease(id, 1, bytes.length));
+            fileServer.delete(id);
+            Assertions.assertNull(fileServer.lease(id, 0, 1));
+        }
+    }
+
+    @Test
+    public void checksumAlgorithms() {
+        final byte[] digits = "123456789".getBytes(StandardCharsets.US_ASCII);
+        Assertions.assertEquals(0xE3069283, ByteBuffer.wrap(ChecksumAlgorithm.CRC32C.getCheckSum(digits)).getInt());
+        Assertions.assertEquals(0xEF46DB3751D8E999L, ByteBuffer.wrap(ChecksumAlgorithm.XXHASH64.getCheckSum(new byte[0])).getLong());
+        Assertions.assertEquals(0x44BC2CF5AD770999L, ByteBuffer.wrap(ChecksumAlgorithm.XXHASH64.getCheckSum("abc".getBytes(StandardCharsets.US_ASCII))).getLong());
+        Assertions.assertEquals(0xFBCEA83C8A378BF1L, ByteBuffer.wrap(ChecksumAlgorithm.XXHASH64.getCheckSum(
+                "Nobody inspects the spammish repetition".getBytes(StandardCharsets.US_ASCII))).getLong());
+        Assertions.assertTrue(Arrays.equals(BytesUtils.getCheckSum(digits), ChecksumAlgorithm.SHA1.getCheckSum(digits)));
+
+        // Resuming from the running state must give the same checksum as hashing everything at once
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096 + 45));
+        for (final ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+            IChecksum checksum = algorithm.newChecksum();
+            for (final byte[] chunk : BytesUtils.split(bytes, 7)) {
+                checksum.update(ByteBuffer.wrap(chunk));
+                final byte[] state = checksum.getState();
+                if (state != null)
+                    checksum = algorithm.resume(state);
+            }
+            Assertions.assertEquals(bytes.length, checksum.getLength());
+            Assertions.assertTrue(Arrays.equals(algorithm.getCheckSum(bytes), checksum.getValue()), algorithm.toString());
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ChecksumAlgorithm.SHA256.resume(new byte[1]));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ChecksumAlgorithm.XXHASH64.resume(new byte[1]));
+    }
+
+    @Test
+    public void incrementalChecksum() throws IOException, FileServerException {
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096 * 4 + 3));
+        final byte[][] chunks = BytesUtils.split(bytes, 4);
+        for (final ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+            final UUID id = UUID.randomUUID();
+            final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setChecksumAlgorithm(algorithm);
+            try (IFileServer fileServer = builder.build()) {
+                fileServer.openOrCreate();
+                fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), chunks[0]);
+                fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), chunks[1]);
+            }
+            // The running checksum must survive a restart of the file server
+            try (IFileServer fileServer = builder.build()) {
+                fileServer.openOrCreate();
+                fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), chunks[2]);
+                fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), chunks[3]);
+                final DatabaseFile databaseFile = fileServer.getFile(id);
+                Assertions.assertNotNull(databaseFile);
+                Assertions.assertEquals(algorithm, databaseFile.getDatabaseFileMetadata().getChecksumAlgorithm());
+                Assertions.assertTrue(Arrays.equals(algorithm.getCheckSum(bytes), databaseFile.getDatabaseFileMetadata().getChecksum()), algorithm.toString());
+                fileServer.delete(id);
+            }
+        }
+    }
+
+    @Test
+    public void jsonMetadataMigration() throws IOException, FileServerException {
+        final UUID id = UUID.randomUUID();
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096));
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setDbDirectoryName("legacy");
+        final File dbDirectory = FileUtils.createFolderIfNotPresent("legacy", FileServer.getTestDbParentDirectory());
+        // Write a file the way it was stored before the binary metadata layout
+        try (final Env<ByteBuffer> env = Env.create().setMaxDbs(2).setMapSize(1024 * 1024).open(dbDirectory)) {
+            final Dbi<ByteBuffer> metaDb = env.openDbi("meta", DbiFlags.MDB_CREATE);
+            final Dbi<ByteBuffer> dataDb = env.openDbi("data", DbiFlags.MDB_CREATE);
+            final DatabaseFileMetadata metadata = DatabaseFileMetadata.Builder.newBuilder()
+                    .id(id)
+                    .dataLength(bytes.length)
+                    .checksum(BytesUtils.getCheckSum(bytes))
+                    .creationDate(TimestampUtils.now())
+                    .expirationDate(TimestampUtils.nowPlusSeconds(60))
+                    .lastModificationDate(TimestampUtils.now())
+                    .build();
+            metaDb.put(BytesUtils.allocateAndPutFlip(UUIDUtils.toBytes(id)), BytesUtils.toByteBuffer(metadata.toJsonString()));
+            dataDb.put(BytesUtils.allocateAndPutFlip(UUIDUtils.toBytes(id)), BytesUtils.allocateAndPutFlip(bytes));
+        }
+        try (IFileServer fileServer = builder.build()) {
+            fileServer.openOrCreate();
+            Assertions.assertFalse(fileServer.isExpired(id));
+            final DatabaseFile databaseFile = fileServer.getFile(id);
+            Assertions.assertNotNull(databaseFile);
+            Assertions.assertTrue(Arrays.equals(bytes, databaseFile.getData()));
+            Assertions.assertEquals(ChecksumAlgorithm.SHA1, databaseFile.getDatabaseFileMetadata().getChecksumAlgorithm());
+            Assertions.assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 10, 20), fileServer.read(id, 10, 10)));
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            Assertions.assertTrue(Arrays.equals(BytesUtils.getCheckSum(BytesUtils.merge(bytes, bytes)), fileServer.getFileMetaData(id).getChecksum()));
+            fileServer.delete(id);
+        }
+    }
+
+    @Test
+    public void expirationIndex() throws IOException, FileServerException, InterruptedException {
+        final UUID expiringId = UUID.randomUUID();
+        final UUID extendedId = UUID.randomUUID();
+        final UUID liveId = UUID.randomUUID();
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096));
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setDbDirectoryName("sweep");
+        try (IFileServer fileServer = builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            fileServer.upload(expiringId, TimestampUtils.nowPlusSeconds(1), bytes);
+            fileServer.upload(extendedId, TimestampUtils.nowPlusSeconds(1), bytes);
+            fileServer.upload(extendedId, TimestampUtils.nowPlusSeconds(60), bytes);
+            fileServer.upload(liveId, TimestampUtils.nowPlusSeconds(60), bytes);
+            Thread.sleep(2000);
+            fileServer.removeExpired();
+            Assertions.assertNull(fileServer.getFileMetaData(expiringId));
+            Assertions.assertEquals(bytes.length * 2, fileServer.getFileMetaData(extendedId).getDataLength());
+            Assertions.assertNotNull(fileServer.getFile(liveId));
+        }
+        // Only the entries of the live files must be left
+        try (final Env<ByteBuffer> env = Env.create().setMaxDbs(3).open(new File(FileServer.getTestDbParentDirectory(), "sweep"))) {
+            final Dbi<ByteBuffer> metaDb = env.openDbi("meta");
+            final Dbi<ByteBuffer> expireDb = env.openDbi("expire");
+            final Dbi<ByteBuffer> dataDb = env.openDbi("data");
+            try (final Txn<ByteBuffer> txn = env.txnRead()) {
+                Assertions.assertEquals(2, metaDb.stat(txn).entries);
+                Assertions.assertEquals(2, expireDb.stat(txn).entries);
+                Assertions.assertEquals(3, dataDb.stat(txn).entries);
+            }
+        }
+    }
+
+    @Test
+    public void atomicUpload() throws IOException, FileServerException {
+        final UUID id = UUID.randomUUID();
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096));
+        final byte[] tooLarge = new byte[1024 * 1024 * 2];
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setDbDirectoryName("atomic").setDbMaxByteSize(1024 * 1024);
+        try (IFileServer fileServer = builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            Assertions.assertThrows(Env.MapFullException.class, () -> fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), tooLarge));
+            Assertions.assertNull(fileServer.getFileMetaData(id));
+
+            // A failed append must leave the file as it was
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), bytes);
+            Assertions.assertThrows(Env.MapFullException.class, () -> fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), tooLarge));
+            final DatabaseFile databaseFile = fileServer.getFile(id);
+            Assertions.assertNotNull(databaseFile);
+            Assertions.assertEquals(bytes.length, databaseFile.getDatabaseFileMetadata().getDataLength());
+            Assertions.assertTrue(Arrays.equals(bytes, databaseFile.getData()));
+            fileServer.delete(id);
+            Assertions.assertNull(fileServer.getFile(id));
+        }
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        final int nbFiles = 16;
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096 * 8));
+        final byte[][] chunks = BytesUtils.split(bytes, 8);
+        final UUID[] ids = new UUID[nbFiles];
+        for (int i = 0; i < nbFiles; ++i)
+            ids[i] = UUID.randomUUID();
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setDbDirectoryName("group")
+                .setDbMaxByteSize(1024 * 1024 * 8)
+                .setGroupCommit(true)
+                .setGroupCommitMaxBatchSize(8)
+                .setGroupCommitLingerMs(5);
+        final ExecutorService executor = Executors.newFixedThreadPool(nbFiles);
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            final List<Future<?>> uploads = new ArrayList<>();
+            for (final UUID id : ids) {
+                uploads.add(executor.submit(() -> {
+                    for (final byte[] chunk : chunks)
+                        fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), chunk);
+                }));
+            }
+            for (final Future<?> upload : uploads)
+                upload.get();
+            for (final UUID id : ids) {
+                final DatabaseFile databaseFile = fileServer.getFile(id);
+                Assertions.assertNotNull(databaseFile);
+                Assertions.assertTrue(Arrays.equals(bytes, databaseFile.getData()));
+                Assertions.assertTrue(Arrays.equals(BytesUtils.getCheckSum(bytes), databaseFile.getDatabaseFileMetadata().getChecksum()));
+            }
+
+            // A failing write must not fail the other writes of its batch
+            final UUID failingId = UUID.randomUUID();
+            final CompletableFuture<Void> failing = fileServer.uploadAsync(failingId, TimestampUtils.nowPlusSeconds(10), new byte[1024 * 1024 * 16]);
+            final List<CompletableFuture<Void>> deletions = new ArrayList<>();
+            for (final UUID id : ids)
+                deletions.add(fileServer.deleteAsync(id));
+            CompletableFuture.allOf(deletions.toArray(new CompletableFuture[0])).join();
+            final CompletionException exception = Assertions.assertThrows(CompletionException.class, failing::join);
+            Assertions.assertTrue(exception.getCause() instanceof Env.MapFullException);
+            Assertions.assertNull(fileServer.getFileMetaData(failingId));
+            for (final UUID id : ids)
+                Assertions.assertNull(fileServer.getFileMetaData(id));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void readPool() throws Exception {
+        final int maxReaders = 4;
+        final UUID id = UUID.randomUUID();
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096));
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setDbDirectoryName("readers")
+                .setMaxReaders(maxReaders)
+                .setReaderWaitMs(1000);
+        final ExecutorService executor = Executors.newFixedThreadPool(maxReaders * 2);
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), bytes);
+
+            // More concurrent readers than reader slots must wait for a pooled transaction instead of failing
+            final List<Future<?>> reads = new ArrayList<>();
+            for (int i = 0; i < maxReaders * 2; ++i) {
+                reads.add(executor.submit(() -> {
+                    for (int j = 0; j < 200; ++j)
+                        Assertions.assertTrue(Arrays.equals(bytes, fileServer.download(id)));
+                }));
+            }
+            for (final Future<?> read : reads)
+                read.get();
+
+            // A renewed transaction must see the writes committed since it was reset
+            final byte[] appended = BytesUtils.toByteArray(BytesUtils.getRandom(16));
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), appended);
+            Assertions.assertEquals(bytes.length + appended.length, fileServer.getFileMetaData(id).getDataLength());
+
+            // Every reader slot is held by a lease, the next reader waits for one to be released
+            final List<BlobLease> leases = new ArrayList<>();
+            for (int i = 0; i < maxReaders; ++i)
+                leases.add(fileServer.lease(id, 0, 1));
+            final Future<BlobLease> waiting = executor.submit(() -> fileServer.lease(id, 0, 1));
+            Thread.sleep(200);
+            Assertions.assertFalse(waiting.isDone());
+            leases.get(0).close();
+            leases.set(0, waiting.get());
+            // The wait is bounded, a reader fails instead of being starved by leases that are never closed
+            Assertions.assertThrows(RunTimeFileServerException.class, () -> fileServer.getFileMetaData(id));
+
+            // Closing waits for the leases still open instead of freeing the env under them
+            executor.submit(() -> {
+                Thread.sleep(200);
+                leases.forEach(BlobLease::close);
+                return (null);
+            });
+            fileServer.close();
+            Assertions.assertFalse(fileServer.isOpen());
+            Assertions.assertTrue(leases.stream().noneMatch(BlobLease::isOpen));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void allocationFreeLookup() throws IOException, FileServerException {
+        final java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assumptions.assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported());
+        allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+        final int nbOperations = 20000;
+        final long threadId = Thread.currentThread().getId();
+        final UUID id = UUID.randomUUID();
+        final UUID missingId = UUID.randomUUID();
+        this.setupBuilder();
+        try (LMDBFileServer fileServer = (LMDBFileServer) this.dbBuilder.build()) {
+            fileServer.openOrCreate();
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), BytesUtils.toByteArray(BytesUtils.getRandom(4096)));
+            // Warm up so the lookup path is compiled and the thread local keys and pooled transaction exist
+            for (int i = 0; i < nbOperations * 5; ++i) {
+                Assertions.assertFalse(fileServer.isExpired(id));
+                Assertions.assertTrue(fileServer.isExpired(missingId));
+            }
+            final long before = allocationMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < nbOperations; ++i) {
+                fileServer.isExpired(id);
+                fileServer.isExpired(missingId);
+            }
+            final long allocated = allocationMXBean.getThreadAllocatedBytes(threadId) - before;
+            // Only the measure itself may allocate a few bytes
+            Assertions.assertTrue((double) allocated / (nbOperations * 2) < 1, "Allocated " + allocated + " bytes");
+        }
+    }
+
+    @Test
+    public void shardedFileServer() throws Exception {
+        final int nbShards = 4;
+        final int nbFiles = 64;
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096));
+        final IFileServer fileServer = ShardedFileServer.newInstance()
+                .setNbShards(nbShards)
+                .setDbDirectoryName("sharded")
+                .setShardBuilder(FileServer.getNewSetupBuilder().setDbMaxByteSize(1024 * 1024 * 8).setGroupCommit(true))
+                .build();
+        final ExecutorService executor = Executors.newFixedThreadPool(nbShards);
+        try (ShardedFileServer shardedFileServer = (ShardedFileServer) fileServer) {
+            shardedFileServer.openOrCreate();
+            shardedFileServer.deleteAll();
+            Assertions.assertEquals(nbShards, shardedFileServer.getShards().size());
+            long availableUsableByte = 0;
+            for (final IFileServer shard : shardedFileServer.getShards())
+                availableUsableByte += shard.getAvailableUsableByte();
+            Assertions.assertEquals(availableUsableByte, shardedFileServer.getAvailableUsableByte());
+            Assertions.assertTrue(shardedFileServer.hasEnoughSpaceFor(bytes.length));
+            Assertions.assertFalse(shardedFileServer.hasEnoughSpaceFor(1024 * 1024 * 16));
+
+            final List<UUID> ids = new ArrayList<>();
+            final List<Future<?>> uploads = new ArrayList<>();
+            for (int i = 0; i < nbFiles; ++i) {
+                final UUID id = UUID.randomUUID();
+                ids.add(id);
+                uploads.add(executor.submit(() -> shardedFileServer.upload(id, TimestampUtils.nowPlusSeconds(10), bytes)));
+            }
+            for (final Future<?> upload : uploads)
+                upload.get();
+            final int[] nbFilesPerShard = new int[nbShards];
+            for (final UUID id : ids) {
+                Assertions.assertTrue(Arrays.equals(bytes, shardedFileServer.download(id)));
+                final int shardIndex = ShardedFileServer.getShardIndex(id, nbShards);
+                for (int i = 0; i < nbShards; ++i)
+                    Assertions.assertEquals(i == shardIndex, shardedFileServer.getShards().get(i).getFileMetaData(id) != null);
+                ++nbFilesPerShard[shardIndex];
+            }
+            for (final int nbShardFiles : nbFilesPerShard)
+                Assertions.assertTrue(nbShardFiles > 0);
+            shardedFileServer.delete(ids.get(0));
+            Assertions.assertNull(shardedFileServer.getFile(ids.get(0)));
+            shardedFileServer.deleteAll();
+            Assertions.assertNull(shardedFileServer.getFile(ids.get(1)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void mapGrowth() throws Exception {
+        final long initialMapSize = 1024 * 1024;
+        final long ceiling = 1024 * 1024 * 16;
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 512));
+        for (final boolean groupCommit : new boolean[] { false, true }) {
+            final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setDbDirectoryName("growth-" + groupCommit)
+                    .setDbMaxByteSize(initialMapSize)
+                    .setDbGrowthCeilingByteSize(ceiling)
+                    .setGroupCommit(groupCommit);
+            // The map keeps the size it has grown to, start from a new database
+            final File dbDirectory = new File(FileServer.getTestDbParentDirectory(), "growth-" + groupCommit);
+            Files.deleteIfExists(new File(dbDirectory, "data.mdb").toPath());
+            Files.deleteIfExists(new File(dbDirectory, "lock.mdb").toPath());
+            try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+                fileServer.openOrCreate();
+                Assertions.assertEquals(initialMapSize, fileServer.getMapByteSize());
+                // The space figures account for the map growth
+                Assertions.assertTrue(fileServer.hasEnoughSpaceFor(1024 * 1024 * 8));
+
+                final List<UUID> ids = new ArrayList<>();
+                for (int i = 0; i < 16; ++i) {
+                    final UUID id = UUID.randomUUID();
+                    ids.add(id);
+                    fileServer.upload(id, TimestampUtils.nowPlusSeconds(10), bytes);
+                }
+                Assertions.assertTrue(fileServer.getMapByteSize() > initialMapSize);
+                Assertions.assertTrue(fileServer.getMapByteSize() <= ceiling);
+                for (final UUID id : ids)
+                    Assertions.assertTrue(Arrays.equals(bytes, fileServer.download(id)));
+
+                // A write that doesn't fit below the ceiling still fails, without any trace
+                final UUID tooLargeId = UUID.randomUUID();
+                final RuntimeException exception = Assertions.assertThrows(RuntimeException.class,
+                        () -> fileServer.upload(tooLargeId, TimestampUtils.nowPlusSeconds(10), new byte[(int) ceiling]));
+                Assertions.assertTrue(exception instanceof Env.MapFullException);
+                Assertions.assertEquals(ceiling, fileServer.getMapByteSize());
+                Assertions.assertNull(fileServer.getFileMetaData(tooLargeId));
+                Assertions.assertTrue(Arrays.equals(bytes, fileServer.download(ids.get(0))));
+            }
+        }
+    }
+
+    @Test
+    public void spaceAccounting() throws Exception {
+        final int nbFiles = 32;
+        final int fileLength = 1024 * 64;
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(fileLength));
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setDbDirectoryName("space")
+                .setDbMaxByteSize(1024 * 1024 * 4);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            final long emptyAvailable = fileServer.getAvailableUsableByte();
+
+            // The running estimate stays close to the database figures
+            final List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < nbFiles; ++i) {
+                final UUID id = UUID.randomUUID();
+                ids.add(id);
+                fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            }
+            final long estimatedAvailable = fileServer.getAvailableUsableByte();
+            fileServer.reconcileUsedSpace();
+            final long reconciledAvailable = fileServer.getAvailableUsableByte();
+            Assertions.assertTrue(Math.abs(estimatedAvailable - reconciledAvailable) <= (emptyAvailable - reconciledAvailable) / 10,
+                    "Estimated " + estimatedAvailable + " available bytes, reconciled " + reconciledAvailable);
+            for (final UUID id : ids)
+                fileServer.delete(id);
+            Assertions.assertTrue(fileServer.getAvailableUsableByte() >= emptyAvailable - 1024 * 16);
+
+            // Concurrent reservations never reserve more than the available space
+            final UUID reservedId = UUID.randomUUID();
+            final List<Future<Boolean>> reservations = new ArrayList<>();
+            for (int i = 0; i < 64; ++i) {
+                final UUID id = (i == 0) ? reservedId : UUID.randomUUID();
+                reservations.add(executor.submit(() -> fileServer.reserve(id, fileLength, TimestampUtils.nowPlusSeconds(60))));
+            }
+            int nbReserved = 0;
+            for (final Future<Boolean> reservation : reservations)
+                nbReserved += (reservation.get()) ? 1 : 0;
+            Assertions.assertTrue(nbReserved > 0 && nbReserved < 64);
+            Assertions.assertFalse(fileServer.hasEnoughSpaceFor(fileLength));
+            Assertions.assertTrue(fileServer.getAvailableUsableByte() >= 0);
+
+            // Uploading the reserved file uses up its reservation instead of taking more space
+            final boolean isReserved = reservations.get(0).get();
+            final long reservedAvailable = fileServer.getAvailableUsableByte();
+            if (isReserved) {
+                fileServer.upload(reservedId, TimestampUtils.nowPlusSeconds(60), bytes);
+                Assertions.assertEquals(reservedAvailable, fileServer.getAvailableUsableByte(), 1024);
+            }
+            Assertions.assertFalse(fileServer.reserve(UUID.randomUUID(), 1024 * 1024 * 8, TimestampUtils.nowPlusSeconds(60)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void spillTier() throws Exception {
+        final int threshold = 1024 * 64;
+        final byte[] small = BytesUtils.toByteArray(BytesUtils.getRandom(1024));
+        final byte[] large = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 1024 * 2));
+        final byte[] head = Arrays.copyOfRange(large, 0, threshold / 2);
+        final byte[] tail = Arrays.copyOfRange(large, threshold / 2, threshold + 1024);
+        for (final boolean groupCommit : new boolean[] {false, true}) {
+            // The map is smaller than the large file, only its metadata is stored in it
+            final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setDbDirectoryName("spill-" + groupCommit)
+                    .setDbMaxByteSize(1024 * 1024)
+                    .setSpillThresholdByteSize(threshold)
+                    .setGroupCommit(groupCommit);
+            final File spillDirectory = new File(new File(FileServer.getTestDbParentDirectory(), "spill-" + groupCommit), "spill");
+            final UUID smallId = UUID.randomUUID();
+            final UUID largeId = UUID.randomUUID();
+            final UUID appendedId = UUID.randomUUID();
+            final UUID orphanId = UUID.randomUUID();
+            try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+                fileServer.openOrCreate();
+                fileServer.deleteAll();
+                fileServer.upload(smallId, TimestampUtils.nowPlusSeconds(60), small);
+                fileServer.upload(largeId, TimestampUtils.nowPlusSeconds(60), large);
+                Assertions.assertFalse(new File(spillDirectory, smallId.toString()).exists());
+                Assertions.assertTrue(new File(spillDirectory, largeId.toString()).exists());
+                Assertions.assertArrayEquals(small, fileServer.download(smallId));
+                Assertions.assertArrayEquals(large, fileServer.download(largeId));
+                Assertions.assertTrue(fileServer.getFileMetaData(largeId).isSpilled());
+                Assertions.assertFalse(fileServer.isExpired(largeId));
+                Assertions.assertArrayEquals(Arrays.copyOfRange(large, 1000, 5000), fileServer.read(largeId, 1000, 4000));
+                try (BlobLease lease = fileServer.lease(largeId, 1000, 4000)) {
+                    final ByteBuffer leased = lease.getBuffers().get(0);
+                    Assertions.assertEquals(1, lease.getBuffers().size());
+                    Assertions.assertEquals(ByteBuffer.wrap(large, 1000, 4000), leased);
+                }
+                final ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+                Assertions.assertEquals(large.length, fileServer.transferTo(largeId, 0, large.length, Channels.newChannel(transferred)));
+                Assertions.assertArrayEquals(large, transferred.toByteArray());
+
+                // The chunks are moved to the side file once the file reaches the threshold
+                fileServer.upload(appendedId, TimestampUtils.nowPlusSeconds(60), head);
+                Assertions.assertFalse(new File(spillDirectory, appendedId.toString()).exists());
+                fileServer.upload(appendedId, TimestampUtils.nowPlusSeconds(60), tail);
+                Assertions.assertTrue(new File(spillDirectory, appendedId.toString()).exists());
+                final byte[] appended = Arrays.copyOfRange(large, 0, head.length + tail.length);
+                Assertions.assertArrayEquals(appended, fileServer.download(appendedId));
+                final IChecksum checksum = ChecksumAlgorithm.SHA1.newChecksum();
+                checksum.update(appended);
+                Assertions.assertArrayEquals(checksum.getValue(), fileServer.getFileMetaData(appendedId).getChecksum());
+
+                // The side file is deleted with its file
+                fileServer.delete(largeId);
+                Assertions.assertNull(fileServer.download(largeId));
+                Assertions.assertFalse(new File(spillDirectory, largeId.toString()).exists());
+                Files.write(new File(spillDirectory, orphanId.toString()).toPath(), small);
+            }
+            // The side files left behind are removed when the file server is opened again
+            try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+                fileServer.openOrCreate();
+                Assertions.assertFalse(new File(spillDirectory, orphanId.toString()).exists());
+                Assertions.assertArrayEquals(Arrays.copyOfRange(large, 0, head.length + tail.length), fileServer.download(appendedId));
+                fileServer.deleteAll();
+                Assertions.assertFalse(new File(spillDirectory, appendedId.toString()).exists());
+            }
+        }
+    }
+
+    @Test
+    public void logFileServer() throws Exception {
+        final int segmentByteSize = 1024 * 64;
+        final LogFileServer.Builder builder = LogFileServer.newInstance()
+                .setParentDbDirectory(FileServer.getTestDbParentDirectory())
+                .setDbDirectoryName("log")
+                .setSegmentByteSize(segmentByteSize)
+                .setMaxByteSize(1024 * 1024 * 16)
+                .setSyncOnWrite(false);
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 8));
+        final UUID appendedId = UUID.randomUUID();
+        final UUID deletedId = UUID.randomUUID();
+        final List<UUID> kept = new ArrayList<>();
+        try (LogFileServer fileServer = (LogFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            fileServer.upload(appendedId, TimestampUtils.nowPlusSeconds(60), Arrays.copyOfRange(bytes, 0, 1000));
+            fileServer.upload(appendedId, TimestampUtils.nowPlusSeconds(60), Arrays.copyOfRange(bytes, 1000, bytes.length));
+            Assertions.assertArrayEquals(bytes, fileServer.download(appendedId));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 900, 1100), fileServer.read(appendedId, 900, 200));
+            try (BlobLease lease = fileServer.lease(appendedId, 900, 200)) {
+                Assertions.assertEquals(2, lease.getBuffers().size());
+                Assertions.assertEquals(200, lease.getLength());
+            }
+            Assertions.assertArrayEquals(FileServer.checksum(bytes), fileServer.getFileMetaData(appendedId).getChecksum());
+            Assertions.assertArrayEquals(bytes, fileServer.getFile(appendedId).getData());
+            fileServer.upload(deletedId, TimestampUtils.nowPlusSeconds(60), bytes);
+            fileServer.delete(deletedId);
+            Assertions.assertNull(fileServer.download(deletedId));
+
+            // Deleting most of the files of the sealed segments makes them compacted
+            final List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < 64; ++i) {
+                final UUID id = UUID.randomUUID();
+                fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+                ids.add(id);
+            }
+            final int nbSegments = fileServer.getSegmentCount();
+            for (int i = 0; i < ids.size(); ++i) {
+                if (i % 4 == 0)
+                    kept.add(ids.get(i));
+                else
+                    fileServer.delete(ids.get(i));
+            }
+            fileServer.removeExpired();
+            Assertions.assertTrue(fileServer.getSegmentCount() < nbSegments, fileServer.getSegmentCount() + " segments out of " + nbSegments);
+            for (final UUID id : kept)
+                Assertions.assertArrayEquals(bytes, fileServer.download(id));
+        }
+        // The index is rebuilt from the segments, the deleted files stay deleted
+        try (LogFileServer fileServer = (LogFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            Assertions.assertArrayEquals(bytes, fileServer.download(appendedId));
+            Assertions.assertArrayEquals(FileServer.checksum(bytes), fileServer.getFileMetaData(appendedId).getChecksum());
+            Assertions.assertNull(fileServer.download(deletedId));
+            for (final UUID id : kept)
+                Assertions.assertArrayEquals(bytes, fileServer.download(id));
+
+            // A segment whose files have all expired is deleted without being read
+            fileServer.deleteAll();
+            for (int i = 0; i < 16; ++i)
+                fileServer.upload(UUID.randomUUID(), TimestampUtils.nowPlusSeconds(1), bytes);
+            final UUID liveId = UUID.randomUUID();
+            fileServer.upload(liveId, TimestampUtils.nowPlusSeconds(60), bytes);
+            Assertions.assertTrue(fileServer.getSegmentCount() > 1);
+            Thread.sleep(1500);
+            fileServer.removeExpired();
+            Assertions.assertEquals(1, fileServer.getSegmentCount());
+            Assertions.assertArrayEquals(bytes, fileServer.download(liveId));
+        }
+    }
+
+    @Test
+    public void offHeapFileServer() throws Exception {
+        final int slabByteSize = 1024 * 16;
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 20));
+        try (OffHeapFileServer fileServer = (OffHeapFileServer) OffHeapFileServer.newInstance()
+                .setSlabByteSize(slabByteSize)
+                .setMaxByteSize(slabByteSize * 4)
+                .build()) {
+            fileServer.openOrCreate();
+            Assertions.assertEquals(0, fileServer.getAllocatedBytes());
+            final UUID appendedId = UUID.randomUUID();
+            fileServer.upload(appendedId, TimestampUtils.nowPlusSeconds(60), Arrays.copyOfRange(bytes, 0, 1000));
+            fileServer.upload(appendedId, TimestampUtils.nowPlusSeconds(60), Arrays.copyOfRange(bytes, 1000, bytes.length));
+            Assertions.assertArrayEquals(bytes, fileServer.download(appendedId));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 900, 1100), fileServer.read(appendedId, 900, 200));
+            Assertions.assertArrayEquals(FileServer.checksum(bytes), fileServer.getFileMetaData(appendedId).getChecksum());
+            Assertions.assertArrayEquals(bytes, fileServer.getFile(appendedId).getData());
+
+            // The memory cap is enforced, a file too large for the remaining slabs is refused
+            final UUID tooLargeId = UUID.randomUUID();
+            Assertions.assertFalse(fileServer.hasEnoughSpaceFor(slabByteSize * 4));
+            Assertions.assertThrows(RunTimeFileServerException.class,
+                    () -> fileServer.upload(tooLargeId, TimestampUtils.nowPlusSeconds(60), new byte[slabByteSize * 4]));
+            Assertions.assertNull(fileServer.download(tooLargeId));
+
+            // The slots of a leased file are only reused once the lease is closed
+            final UUID leasedId = UUID.randomUUID();
+            fileServer.upload(leasedId, TimestampUtils.nowPlusSeconds(60), bytes);
+            try (BlobLease lease = fileServer.lease(leasedId, 0, bytes.length)) {
+                fileServer.delete(leasedId);
+                Assertions.assertNull(fileServer.download(leasedId));
+                final byte[] leased = new byte[bytes.length];
+                int position = 0;
+                for (final ByteBuffer buffer : lease.getBuffers()) {
+                    final int length = buffer.remaining();
+                    buffer.get(leased, position, length);
+                    position += length;
+                }
+                Assertions.assertArrayEquals(bytes, leased);
+                // The slots held by the lease aren't waited for, the upload of the lease holder fails instead of deadlocking
+                Assertions.assertThrows(RunTimeFileServerException.class,
+                        () -> fileServer.upload(UUID.randomUUID(), TimestampUtils.nowPlusSeconds(60), new byte[slabByteSize * 2]));
+            }
+            final UUID reusingId = UUID.randomUUID();
+            fileServer.upload(reusingId, TimestampUtils.nowPlusSeconds(60), bytes);
+            Assertions.assertArrayEquals(bytes, fileServer.download(reusingId));
+            Assertions.assertArrayEquals(bytes, fileServer.download(appendedId));
+
+            // The expired files give their slots back
+            fileServer.upload(UUID.randomUUID(), TimestampUtils.nowPlusSeconds(1), new byte[1000]);
+            final long availableBytes = fileServer.getAvailableUsableByte();
+            Thread.sleep(1500);
+            fileServer.removeExpired();
+            Assertions.assertTrue(fileServer.getAvailableUsableByte() > availableBytes);
+            fileServer.deleteAll();
+            Assertions.assertEquals(slabByteSize * 4, fileServer.getAvailableUsableByte());
+        }
+    }
+
+    @Test
+    public void cachingFileServer() throws Exception {
+        final int slabByteSize = 1024 * 16;
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 8));
+        try (CachingFileServer fileServer = (CachingFileServer) CachingFileServer.newInstance(FileServer.getNewSetupBuilder()
+                .setDbDirectoryName("cache")
+                .build())
+                .setSlabByteSize(slabByteSize)
+                .setCacheMaxByteSize(slabByteSize * 4)
+                .setWindowRatio(0.25)
+                .build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+
+            // A whole file upload is cached, its reads don't go to the file server
+            final UUID id = UUID.randomUUID();
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            Assertions.assertArrayEquals(bytes, fileServer.download(id));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 100, 300), fileServer.read(id, 100, 200));
+            try (BlobLease lease = fileServer.lease(id, 100, 200)) {
+                Assertions.assertEquals(200, lease.getLength());
+            }
+            Assertions.assertArrayEquals(FileServer.checksum(bytes), fileServer.getFileMetaData(id).getChecksum());
+            Assertions.assertEquals(4, fileServer.getCacheStats().getHitCount());
+            Assertions.assertEquals(0, fileServer.getCacheStats().getMissCount());
+            fileServer.delete(id);
+            Assertions.assertNull(fileServer.download(id));
+            Assertions.assertNull(fileServer.getFileMetaData(id));
+
+            // An appended file is loaded by its first read
+            final UUID appendedId = UUID.randomUUID();
+            fileServer.upload(appendedId, TimestampUtils.nowPlusSeconds(60), Arrays.copyOfRange(bytes, 0, 1000));
+            fileServer.upload(appendedId, TimestampUtils.nowPlusSeconds(60), Arrays.copyOfRange(bytes, 1000, bytes.length));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 900, 1100), fileServer.read(appendedId, 900, 200));
+            final long nbHits = fileServer.getCacheStats().getHitCount();
+            Assertions.assertArrayEquals(bytes, fileServer.download(appendedId));
+            Assertions.assertEquals(nbHits + 1, fileServer.getCacheStats().getHitCount());
+
+            // A frequently read file isn't evicted by a scan of files read once, the cache stays within its size
+            for (int i = 0; i < 10; ++i)
+                Assertions.assertArrayEquals(bytes, fileServer.download(appendedId));
+            for (int i = 0; i < 20; ++i)
+                fileServer.upload(UUID.randomUUID(), TimestampUtils.nowPlusSeconds(60), bytes);
+            final BlobCache.Stats stats = fileServer.getCacheStats();
+            Assertions.assertTrue(stats.getUsedBytes() <= slabByteSize * 4, stats.toString());
+            Assertions.assertTrue(stats.getRejectionCount() > 0, stats.toString());
+            Assertions.assertArrayEquals(bytes, fileServer.download(appendedId));
+            Assertions.assertEquals(stats.getHitCount() + 1, fileServer.getCacheStats().getHitCount());
+
+            // An expired file isn't returned by the cache
+            final UUID expiringId = UUID.randomUUID();
+            fileServer.upload(expiringId, TimestampUtils.nowPlusSeconds(1), bytes);
+            Thread.sleep(1500);
+            Assertions.assertNull(fileServer.download(expiringId));
+            Assertions.assertTrue(fileServer.isExpired(expiringId));
+            fileServer.deleteAll();
+            Assertions.assertEquals(0, fileServer.getCacheStats().getNbEntries());
+        }
+    }
+
+    @Test
+    public void asyncFileServer() throws Exception {
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 64));
+        try (IFileServer fileServer = FileServer.getNewSetupBuilder().setDbDirectoryName("async").build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            try (AsyncFileServer asyncFileServer = AsyncFileServer.newInstance(fileServer)
+                    .setNbWriteThreads(1)
+                    .setQueueCapacity(1)
+                    .build()) {
+                final UUID id = UUID.randomUUID();
+                asyncFileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes).get();
+                Assertions.assertArrayEquals(bytes, asyncFileServer.download(id).get());
+                Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 100, 300), asyncFileServer.read(id, 100, 200).get());
+                Assertions.assertEquals(bytes.length, asyncFileServer.getFileMetaData(id).get().getDataLength());
+                try (BlobLease lease = asyncFileServer.lease(id, 100, 200).get()) {
+                    Assertions.assertEquals(200, lease.getLength());
+                }
+                final ExecutionException invalidRange = Assertions.assertThrows(ExecutionException.class, () -> asyncFileServer.read(id, 0, bytes.length + 1).get());
+                Assertions.assertTrue(AsyncFileServer.unwrap(invalidRange) instanceof IllegalArgumentException);
+                asyncFileServer.delete(id).get();
+                Assertions.assertNull(asyncFileServer.getFile(id).get());
+
+                // The writes beyond the queue capacity are refused at once, the reads still run
+                final List<CompletableFuture<Void>> uploads = new ArrayList<>();
+                for (int i = 0; i < 32; ++i)
+                    uploads.add(asyncFileServer.upload(UUID.randomUUID(), TimestampUtils.nowPlusSeconds(60), bytes));
+                Assertions.assertTrue(uploads.stream().anyMatch(CompletableFuture::isCompletedExceptionally));
+                Assertions.assertNull(asyncFileServer.getFileMetaData(id).get());
+                final CompletionException refused = Assertions.assertThrows(CompletionException.class,
+                        () -> uploads.stream().filter(CompletableFuture::isCompletedExceptionally).findFirst().get().join());
+                Assertions.assertTrue(AsyncFileServer.unwrap(refused) instanceof RejectedExecutionException);
+            }
+        }
+    }
+
+    @Test
+    public void expirationSweeper() throws Exception {
+        // A sweep yields after each slice with no time budget, and goes on until a slice removes less than its size
+        final ScheduledExecutorService scheduler = ExpirationSweeper.newScheduler("test-sweeper");
+        final AtomicInteger nbExpired = new AtomicInteger(10);
+        final AtomicInteger nbSlices = new AtomicInteger();
+        try {
+            final ExpirationSweeper sweeper = ExpirationSweeper.newInstance("test", scheduler, maxNbFiles -> {
+                nbSlices.incrementAndGet();
+                final int nbRemoved = Math.min(maxNbFiles, nbExpired.get());
+                nbExpired.addAndGet(-nbRemoved);
+                return (nbRemoved);
+            }, 1000, 4, 0);
+            Assertions.assertThrows(IllegalArgumentException.class, () -> ExpirationSweeper.newInstance("test", scheduler, maxNbFiles -> 0, 1000, 0, 0));
+            for (int i = 0; i < 50 && sweeper.getNbSweeps() == 0; ++i)
+                Thread.sleep(100);
+            Assertions.assertEquals(1, sweeper.getNbSweeps());
+            Assertions.assertEquals(10, sweeper.getLastSweepNbRemoved());
+            Assertions.assertEquals(3, nbSlices.get());
+            Assertions.assertTrue(sweeper.getLastSweepNanos() > 0);
+        } finally {
+            ExpirationSweeper.shutdown(scheduler);
+        }
+
+        // The expired files are removed by the periodic sweeps, a few at a time
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(4096));
+        final UUID liveId = UUID.randomUUID();
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder()
+                .setDbDirectoryName("sweeper")
+                .setExpirationCheckSecondsDelay(1)
+                .setExpirationSliceSize(4)
+                .setExpirationTimeBudgetMs(0);
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            for (int i = 0; i < 10; ++i)
+                fileServer.upload(UUID.randomUUID(), TimestampUtils.nowPlusSeconds(1), bytes);
+            fileServer.upload(liveId, TimestampUtils.nowPlusSeconds(1), bytes);
+            fileServer.upload(liveId, TimestampUtils.nowPlusSeconds(60), bytes);
+            final long availableBytes = fileServer.getAvailableUsableByte();
+            final ExpirationSweeper sweeper = fileServer.getExpirationSweeper();
+            for (int i = 0; i < 100 && sweeper.getNbRemoved() < 10; ++i)
+                Thread.sleep(100);
+            Assertions.assertEquals(10, sweeper.getNbRemoved());
+            Assertions.assertTrue(fileServer.getAvailableUsableByte() > availableBytes);
+            Assertions.assertArrayEquals(bytes, Arrays.copyOf(fileServer.download(liveId), bytes.length));
+        }
+        try (final Env<ByteBuffer> env = Env.create().setMaxDbs(3).open(new File(FileServer.getTestDbParentDirectory(), "sweeper"))) {
+            final Dbi<ByteBuffer> metaDb = env.openDbi("meta");
+            final Dbi<ByteBuffer> expireDb = env.openDbi("expire");
+            try (final Txn<ByteBuffer> txn = env.txnRead()) {
+                Assertions.assertEquals(1, metaDb.stat(txn).entries);
+                Assertions.assertEquals(1, expireDb.stat(txn).entries);
+            }
+        }
+    }
+
+    @Test
+    public void blobWriter() throws Exception {
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 64));
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder()
+                .setDbDirectoryName("writer")
+                .setSpillThresholdByteSize(1024 * 96);
+        try (IFileServer fileServer = builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            final UUID id = UUID.randomUUID();
+            // Written in place in several buffers, then appended until the file is spilled
+            try (BlobWriter writer = fileServer.openWriter(id, TimestampUtils.nowPlusSeconds(60), bytes.length)) {
+                writer.write(ByteBuffer.wrap(bytes, 0, 1000));
+                writer.write(ByteBuffer.wrap(bytes, 1000, bytes.length - 1000));
+                Assertions.assertThrows(IllegalArgumentException.class, () -> writer.write(ByteBuffer.allocate(1)));
+            }
+            Assertions.assertArrayEquals(bytes, fileServer.download(id));
+            Assertions.assertArrayEquals(FileServer.checksum(bytes), fileServer.getFileMetaData(id).getChecksum());
+            try (BlobWriter writer = fileServer.openWriter(id, TimestampUtils.nowPlusSeconds(60), bytes.length)) {
+                writer.write(ByteBuffer.wrap(bytes));
+            }
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(bytes);
+            expected.write(bytes);
+            final byte[] twice = expected.toByteArray();
+            Assertions.assertTrue(fileServer.getFileMetaData(id).isSpilled());
+            Assertions.assertArrayEquals(twice, fileServer.download(id));
+            Assertions.assertArrayEquals(FileServer.checksum(twice), fileServer.getFileMetaData(id).getChecksum());
+
+            // A writer closed before its whole size has been written is discarded
+            try (BlobWriter writer = fileServer.openWriter(id, TimestampUtils.nowPlusSeconds(60), bytes.length)) {
+                writer.write(ByteBuffer.wrap(bytes, 0, 10));
+            }
+            Assertions.assertEquals(twice.length, fileServer.getFileMetaData(id).getDataLength());
+            final UUID discardedId = UUID.randomUUID();
+            fileServer.openWriter(discardedId, TimestampUtils.nowPlusSeconds(60), bytes.length).close();
+            Assertions.assertNull(fileServer.getFileMetaData(discardedId));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> fileServer.openWriter(discardedId, TimestampUtils.nowPlusSeconds(60), -1));
+
+            // Nothing is held between the writes, a writer may be closed by another thread than the one that opened it
+            final UUID handedOffId = UUID.randomUUID();
+            final BlobWriter handedOff = fileServer.openWriter(handedOffId, TimestampUtils.nowPlusSeconds(60), bytes.length);
+            handedOff.write(ByteBuffer.wrap(bytes));
+            CompletableFuture.runAsync(handedOff::close).get();
+            Assertions.assertArrayEquals(bytes, fileServer.download(handedOffId));
+
+            // The asynchronous upload writes the buffers through a writer
+            try (AsyncFileServer asyncFileServer = AsyncFileServer.newInstance(fileServer).build()) {
+                final UUID asyncId = UUID.randomUUID();
+                asyncFileServer.upload(asyncId, TimestampUtils.nowPlusSeconds(60),
+                        Arrays.asList(ByteBuffer.wrap(bytes, 0, 100), ByteBuffer.wrap(bytes, 100, bytes.length - 100))).get();
+                Assertions.assertArrayEquals(bytes, fileServer.download(asyncId));
+            }
+        }
+        try (IFileServer fileServer = LogFileServer.newInstance()
+                .setParentDbDirectory(FileServer.getTestDbParentDirectory())
+                .setDbDirectoryName("writer-log")
+                .build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            final UUID id = UUID.randomUUID();
+            try (BlobWriter writer = fileServer.openWriter(id, TimestampUtils.nowPlusSeconds(60), bytes.length)) {
+                writer.write(ByteBuffer.wrap(bytes));
+            }
+            Assertions.assertArrayEquals(bytes, fileServer.download(id));
+        }
+    }
+
+    @Test
+    public void compression() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 1024 * 64; ++i)
+            text.append("line ").append(i).append(": nothing to report\n");
+        final byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+        final byte[] random = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 64));
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder()
+                .setDbDirectoryName("compression")
+                .setCompressed(true)
+                .setCompressionBlockByteSize(4096);
+        final UUID id = UUID.randomUUID();
+        final UUID writtenId = UUID.randomUUID();
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(bytes);
+        expected.write(bytes);
+        final byte[] twice = expected.toByteArray();
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            // Two chunks of compressed blocks, the ranges overlap several blocks and both chunks
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            Assertions.assertEquals(4096, fileServer.getFileMetaData(id).getCompressionBlockSize());
+            Assertions.assertTrue(fileServer.getDataUsedSpace() < bytes.length);
+            Assertions.assertArrayEquals(twice, fileServer.download(id));
+            Assertions.assertArrayEquals(FileServer.checksum(twice), fileServer.getFileMetaData(id).getChecksum());
+            Assertions.assertArrayEquals(Arrays.copyOfRange(twice, 4000, 4100), fileServer.read(id, 4000, 100));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(twice, bytes.length - 5000, bytes.length + 5000), fileServer.read(id, bytes.length - 5000, 10000));
+            try (BlobLease lease = fileServer.lease(id, 1, twice.length - 2)) {
+                final ByteBuffer leased = ByteBuffer.allocate(lease.getLength());
+                lease.getBuffers().forEach(buffer -> leased.put(buffer.duplicate()));
+                Assertions.assertArrayEquals(Arrays.copyOfRange(twice, 1, twice.length - 1), leased.array());
+            }
+            final ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+            Assertions.assertEquals(8192, fileServer.transferTo(id, 8192, 8192, Channels.newChannel(transferred)));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(twice, 8192, 8192 * 2), transferred.toByteArray());
+
+            // The probe turns compression off for the data that doesn't shrink
+            final UUID randomId = UUID.randomUUID();
+            fileServer.upload(randomId, TimestampUtils.nowPlusSeconds(60), random);
+            Assertions.assertFalse(fileServer.getFileMetaData(randomId).isCompressed());
+            Assertions.assertArrayEquals(random, fileServer.download(randomId));
+
+            try (BlobWriter writer = fileServer.openWriter(writtenId, TimestampUtils.nowPlusSeconds(60), bytes.length)) {
+                writer.write(ByteBuffer.wrap(bytes));
+            }
+            Assertions.assertTrue(fileServer.getFileMetaData(writtenId).isCompressed());
+        }
+        // The files keep their block size once compression is disabled, and are inflated when spilled
+        try (IFileServer fileServer = builder.setCompressed(false).setSpillThresholdByteSize(bytes.length * 3).build()) {
+            fileServer.openOrCreate();
+            try (BlobWriter writer = fileServer.openWriter(writtenId, TimestampUtils.nowPlusSeconds(60), bytes.length)) {
+                writer.write(ByteBuffer.wrap(bytes));
+            }
+            Assertions.assertTrue(fileServer.getFileMetaData(writtenId).isCompressed());
+            Assertions.assertArrayEquals(twice, fileServer.download(writtenId));
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            Assertions.assertTrue(fileServer.getFileMetaData(id).isSpilled());
+            Assertions.assertFalse(fileServer.getFileMetaData(id).isCompressed());
+            Assertions.assertArrayEquals(Arrays.copyOfRange(twice, 0, 100), fileServer.read(id, bytes.length * 2, 100));
+            fileServer.deleteAll();
+        }
+    }
+
+    @Test
+    public void deduplication() throws Exception {
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 64));
+        final byte[] other = BytesUtils.toByteArray(BytesUtils.getRandom(1024));
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder()
+                .setDbDirectoryName("deduplication")
+                .setDeduplicated(true)
+                .setSpillThresholdByteSize(1024 * 96);
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            final long emptyBytes = fileServer.getDataUsedSpace();
+            final UUID id = UUID.randomUUID();
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            final long onceBytes = fileServer.getDataUsedSpace();
+            Assertions.assertTrue(fileServer.getFileMetaData(id).isDeduplicated());
+
+            // The same data uploaded again only takes a reference
+            final UUID copyId = UUID.randomUUID();
+            final UUID expiringId = UUID.randomUUID();
+            fileServer.upload(copyId, TimestampUtils.nowPlusSeconds(60), bytes);
+            fileServer.upload(expiringId, TimestampUtils.nowPlusSeconds(1), bytes);
+            final UUID writtenId = UUID.randomUUID();
+            try (BlobWriter writer = fileServer.openWriter(writtenId, TimestampUtils.nowPlusSeconds(60), bytes.length)) {
+                writer.write(ByteBuffer.wrap(bytes));
+            }
+            Assertions.assertTrue(fileServer.getDataUsedSpace() < onceBytes + bytes.length / 2);
+            Assertions.assertArrayEquals(bytes, fileServer.download(copyId));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 1000, 3000), fileServer.read(copyId, 1000, 2000));
+
+            // Deletions and expirations only release their reference, until the last one
+            fileServer.delete(id);
+            Thread.sleep(1100);
+            fileServer.removeExpired();
+            Assertions.assertNull(fileServer.download(expiringId));
+            Assertions.assertArrayEquals(bytes, fileServer.download(copyId));
+            fileServer.upload(copyId, TimestampUtils.nowPlusSeconds(60), other);
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(bytes);
+            expected.write(other);
+            Assertions.assertArrayEquals(expected.toByteArray(), fileServer.download(copyId));
+            Assertions.assertArrayEquals(FileServer.checksum(expected.toByteArray()), fileServer.getFileMetaData(copyId).getChecksum());
+
+            // A file reaching the spill threshold is moved out of the shared content
+            fileServer.upload(copyId, TimestampUtils.nowPlusSeconds(60), bytes);
+            Assertions.assertTrue(fileServer.getFileMetaData(copyId).isSpilled());
+            Assertions.assertFalse(fileServer.getFileMetaData(copyId).isDeduplicated());
+            expected.write(bytes);
+            Assertions.assertArrayEquals(expected.toByteArray(), fileServer.download(copyId));
+            Assertions.assertArrayEquals(bytes, fileServer.download(writtenId));
+            fileServer.delete(writtenId);
+            Assertions.assertEquals(emptyBytes, fileServer.getDataUsedSpace());
+            fileServer.deleteAll();
+        }
+    }
+
+    @Test
+    public void contentDefinedChunking() throws Exception {
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 256));
+        final byte[] log = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 16));
+        final byte[] header = BytesUtils.toByteArray(BytesUtils.getRandom(64));
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder()
+                .setDbDirectoryName("contentDefinedChunking")
+                .setContentDefinedChunking(true)
+                .setChunkingAverageByteSize(4096);
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            final UUID id = UUID.randomUUID();
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            final long onceBytes = fileServer.getDataUsedSpace();
+            Assertions.assertTrue(fileServer.getFileMetaData(id).isDeduplicated());
+            Assertions.assertArrayEquals(bytes, fileServer.download(id));
+
+            // A changed header and an appended log only store the chunks around the changes
+            final byte[] changed = bytes.clone();
+            System.arraycopy(header, 0, changed, 0, header.length);
+            final ByteArrayOutputStream appended = new ByteArrayOutputStream();
+            appended.write(bytes);
+            appended.write(log);
+            final UUID changedId = UUID.randomUUID();
+            final UUID appendedId = UUID.randomUUID();
+            fileServer.upload(changedId, TimestampUtils.nowPlusSeconds(60), changed);
+            Assertions.assertTrue(fileServer.getDataUsedSpace() < onceBytes + bytes.length / 4);
+            fileServer.upload(appendedId, TimestampUtils.nowPlusSeconds(60), appended.toByteArray());
+            Assertions.assertTrue(fileServer.getDataUsedSpace() < onceBytes + bytes.length / 4 + log.length * 2);
+            Assertions.assertArrayEquals(changed, fileServer.download(changedId));
+            Assertions.assertArrayEquals(appended.toByteArray(), fileServer.download(appendedId));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(changed, 10, 100_010), fileServer.read(changedId, 10, 100_000));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(appended.toByteArray(), bytes.length - 5000, bytes.length + 5000),
+                    fileServer.read(appendedId, bytes.length - 5000, 10_000));
+            final LMDBFileServer.DeduplicationStats stats = fileServer.getDeduplicationStats();
+            Assertions.assertEquals(bytes.length * 3L + log.length, stats.getReferencedBytes());
+            Assertions.assertTrue(stats.getRatio() > 2);
+
+            // An upload appended to a file is cut from its own start
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), log);
+            Assertions.assertArrayEquals(appended.toByteArray(), fileServer.download(id));
+            Assertions.assertArrayEquals(FileServer.checksum(appended.toByteArray()), fileServer.getFileMetaData(id).getChecksum());
+            fileServer.delete(id);
+            fileServer.delete(changedId);
+            fileServer.delete(appendedId);
+            Assertions.assertEquals(0, fileServer.getDeduplicationStats().getNbContents());
+            fileServer.deleteAll();
+        }
+    }
+
+    @Test
+    public void inline() throws Exception {
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1000));
+        final byte[] large = BytesUtils.toByteArray(BytesUtils.getRandom(1024 * 16));
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder()
+                .setDbDirectoryName("inline")
+                .setInlineThresholdByteSize(4096)
+                .setSpillThresholdByteSize(1024 * 16);
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            final long emptyBytes = fileServer.getDataUsedSpace();
+            final UUID id = UUID.randomUUID();
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            Assertions.assertTrue(fileServer.getFileMetaData(id).isInline());
+            Assertions.assertEquals(emptyBytes, fileServer.getDataUsedSpace());
+            Assertions.assertArrayEquals(bytes, fileServer.download(id));
+            Assertions.assertArrayEquals(bytes, fileServer.getFile(id).getData());
+            Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 100, 300), fileServer.read(id, 100, 200));
+            try (BlobLease lease = fileServer.lease(id, 10, 20)) {
+                Assertions.assertEquals(1, lease.getBuffers().size());
+                final byte[] leased = new byte[lease.getLength()];
+                lease.getBuffers().get(0).duplicate().get(leased);
+                Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 10, 30), leased);
+            }
+            final ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+            Assertions.assertEquals(500, fileServer.transferTo(id, 500, 500, Channels.newChannel(transferred)));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 500, 1000), transferred.toByteArray());
+
+            // An appended file stays inline until it reaches the threshold, then its data is moved to a chunk
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(bytes);
+            expected.write(bytes);
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            Assertions.assertTrue(fileServer.getFileMetaData(id).isInline());
+            Assertions.assertArrayEquals(expected.toByteArray(), fileServer.download(id));
+            expected.write(large, 0, 4000);
+            try (BlobWriter writer = fileServer.openWriter(id, TimestampUtils.nowPlusSeconds(60), 4000)) {
+                writer.write(ByteBuffer.wrap(large, 0, 4000));
+            }
+            Assertions.assertFalse(fileServer.getFileMetaData(id).isInline());
+            Assertions.assertTrue(fileServer.getDataUsedSpace() > emptyBytes);
+            Assertions.assertArrayEquals(expected.toByteArray(), fileServer.download(id));
+            Assertions.assertArrayEquals(Arrays.copyOfRange(expected.toByteArray(), 1500, 2500), fileServer.read(id, 1500, 1000));
+            Assertions.assertArrayEquals(FileServer.checksum(expected.toByteArray()), fileServer.getFileMetaData(id).getChecksum());
+
+            // An inline file reaching the spill threshold is moved to its side file
+            final UUID spilledId = UUID.randomUUID();
+            final UUID expiringId = UUID.randomUUID();
+            fileServer.upload(spilledId, TimestampUtils.nowPlusSeconds(60), bytes);
+            fileServer.upload(spilledId, TimestampUtils.nowPlusSeconds(60), large);
+            Assertions.assertTrue(fileServer.getFileMetaData(spilledId).isSpilled());
+            expected.reset();
+            expected.write(bytes);
+            expected.write(large);
+            Assertions.assertArrayEquals(expected.toByteArray(), fileServer.download(spilledId));
+
+            // Deletions and expirations only delete the metadata record
+            fileServer.upload(expiringId, TimestampUtils.nowPlusSeconds(1), bytes);
+            Thread.sleep(1100);
+            fileServer.removeExpired();
+            Assertions.assertNull(fileServer.download(expiringId));
+            Assertions.assertNull(fileServer.getFileMetaData(expiringId));
+            final UUID deletedId = UUID.randomUUID();
+            fileServer.upload(deletedId, TimestampUtils.nowPlusSeconds(60), bytes);
+            fileServer.delete(deletedId);
+            Assertions.assertNull(fileServer.download(deletedId));
+            fileServer.deleteAll();
+        }
+    }
+
+    @Test
+    public void consistentGetFile() throws Exception {
+        final byte[] bytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024));
+        final UUID id = UUID.randomUUID();
+        final UUID orphanId = UUID.randomUUID();
+        final LMDBFileServer.Builder builder = FileServer.getNewSetupBuilder().setDbDirectoryName("consistentGetFile");
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            fileServer.deleteAll();
+            fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            fileServer.upload(orphanId, TimestampUtils.nowPlusSeconds(60), bytes);
+            // The metadata and the data of a file being appended to are read from the same snapshot
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            final Future<?> appends = executor.submit(() -> {
+                for (int i = 0; i < 100; ++i)
+                    fileServer.upload(id, TimestampUtils.nowPlusSeconds(60), bytes);
+            });
+            while (!appends.isDone()) {
+                final DatabaseFile file = fileServer.getFile(id);
+                Assertions.assertEquals(file.getDatabaseFileMetadata().getDataLength(), file.getData().length);
+                Assertions.assertArrayEquals(FileServer.checksum(file.getData()), file.getDatabaseFileMetadata().getChecksum());
+            }
+            appends.get();
+            executor.shutdown();
+            Assertions.assertEquals(bytes.length * 101, fileServer.getFile(id).getData().length);
+        }
+        // A metadata record left without data is removed when the file is read
+        try (final Env<ByteBuffer> env = Env.create().setMaxDbs(5).open(new File(FileServer.getTestDbParentDirectory(), "consistentGetFile"))) {
+            final Dbi<ByteBuffer> dataDb = env.openDbi("data");
+            try (final Txn<ByteBuffer> txn = env.txnWrite()) {
+                Assertions.assertTrue(dataDb.delete(txn, BlobKeys.ofChunk(orphanId, 0)));
+                txn.commit();
+            }
+        }
+        try (LMDBFileServer fileServer = (LMDBFileServer) builder.build()) {
+            fileServer.openOrCreate();
+            Assertions.assertNull(fileServer.getFileMetaData(orphanId));
+            Assertions.assertNull(fileServer.getFile(orphanId));
+            Assertions.assertTrue(fileServer.isExpired(orphanId));
+            Assertions.assertNotNull(fileServer.getFileMetaData(id));
+            fileServer.deleteAll();
+        }
+    }
+
+    /**
+     * Compute the SHA1 checksum of data
+     * @param data the data
+     * @return the checksum value
+     */
+    private static byte[] checksum(final byte[] data) {
+        final IChecksum checksum = ChecksumAlgorithm.SHA1.newChecksum();
+        checksum.update(data);
+        return (checksum.getValue());
+    }
+
     @Test
     void testFileExpiration() throws IOException, FileServerException, InterruptedException {
         this.setupBuilder();
@@ -2,9 +2,16 @@ import fr.diguiet.grpc.common.utils.BytesUtils;
 import fr.diguiet.grpc.common.utils.TimestampUtils;
 import fr.diguiet.grpc.fileserver.DatabaseFile;
 import fr.diguiet.grpc.fileserver.DatabaseFileMetadata;
+import fr.diguiet.grpc.fileserver.MetadataCodec;
+import fr.diguiet.grpc.fileserver.checksum.ChecksumAlgorithm;
+import fr.diguiet.grpc.fileserver.checksum.IChecksum;
+import fr.diguiet.grpc.fileserver.exception.databasefile.MetadataException;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.UUID;
 
 public class Json {
@@ -31,4 +38,43 @@ public class Json {
         final DatabaseFileMetadata databaseFileMetadata = builder.build();
         System.out.println(databaseFileMetadata.toString());
     }
+
+    @Test
+    public void binary() {
+        final byte[] randomBytes = BytesUtils.toByteArray(BytesUtils.getRandom(1024));
+        final IChecksum checksum = ChecksumAlgorithm.XXHASH64.newChecksum();
+        checksum.update(randomBytes);
+        final DatabaseFileMetadata metadata = DatabaseFileMetadata.Builder.newBuilder()
+                .id(UUID.randomUUID())
+                .dataLength(randomBytes.length)
+                .checksum(checksum.getValue())
+                .creationDate(TimestampUtils.now())
+                .expirationDate(TimestampUtils.nowPlusSeconds(60 * 60))
+                .lastModificationDate(TimestampUtils.now())
+                .checksumAlgorithm(checksum.getAlgorithm())
+                .checksumState(checksum.getState())
+                .build();
+        final ByteBuffer record = MetadataCodec.encode(metadata);
+        Assertions.assertEquals(MetadataCodec.getEncodedLength(metadata), record.remaining());
+        Assertions.assertFalse(MetadataCodec.isJson(record));
+        Assertions.assertEquals(randomBytes.length, MetadataCodec.getDataLength(record));
+        Assertions.assertEquals(TimestampUtils.toEpochNanos(metadata.getExpirationDate()), MetadataCodec.getExpirationEpochNanos(record));
+
+        final DatabaseFileMetadata decoded = MetadataCodec.decode(record);
+        Assertions.assertEquals(metadata.getId(), decoded.getId());
+        Assertions.assertEquals(metadata.getDataLength(), decoded.getDataLength());
+        Assertions.assertEquals(metadata.getCreationDate(), decoded.getCreationDate());
+        Assertions.assertEquals(metadata.getExpirationDate(), decoded.getExpirationDate());
+        Assertions.assertEquals(metadata.getLastModificationDate(), decoded.getLastModificationDate());
+        Assertions.assertTrue(Arrays.equals(metadata.getChecksum(), decoded.getChecksum()));
+        Assertions.assertEquals(ChecksumAlgorithm.XXHASH64, decoded.getChecksumAlgorithm());
+        Assertions.assertTrue(Arrays.equals(metadata.getChecksumState(), decoded.getChecksumState()));
+        Assertions.assertEquals(0, record.position());
+
+        final ByteBuffer json = BytesUtils.toByteBuffer(metadata.toJsonString());
+        Assertions.assertTrue(MetadataCodec.isJson(json));
+        Assertions.assertEquals(metadata.getExpirationDate(), MetadataCodec.decode(json).getExpirationDate());
+        Assertions.assertThrows(MetadataException.class, () -> MetadataCodec.getDataLength(json));
+        Assertions.assertThrows(MetadataException.class, () -> MetadataCodec.decode(ByteBuffer.wrap(new byte[] { 7 })));
+    }
 }
@@ -112,4 +112,15 @@ public class Timestamps {
         Assertions.assertFalse(TimestampUtils.isAfter(timestampNow1nano, timeStampNow));
         Assertions.assertTrue(TimestampUtils.isAfter(timeStampNow, timestampNow1nano));
     }
+
+    @Test
+    public void epochNanos() {
+        final Timestamp now = TimestampUtils.now();
+        final long epochNanos = TimestampUtils.toEpochNanos(now);
+        Assertions.assertEquals(now, TimestampUtils.fromEpochNanos(epochNanos));
+        Assertions.assertEquals(now.getSeconds() * 1000000000L + now.getNanos(), epochNanos);
+        Assertions.assertTrue(TimestampUtils.nowEpochNanos() >= epochNanos);
+        Assertions.assertEquals(Timestamp.newBuilder().setSeconds(-1).setNanos(999999999).build(), TimestampUtils.fromEpochNanos(-1));
+        Assertions.assertThrows(ArithmeticException.class, () -> TimestampUtils.toEpochNanos(Timestamp.newBuilder().setSeconds(Long.MAX_VALUE / 1000).build()));
+    }
 }